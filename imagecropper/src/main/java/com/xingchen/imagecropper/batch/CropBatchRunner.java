@@ -0,0 +1,249 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.xingchen.imagecropper.batch;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+
+import com.xingchen.imagecropper.cache.CropCacheKey;
+import com.xingchen.imagecropper.cache.CropResultCache;
+import com.xingchen.imagecropper.decode.DecodePlan;
+import com.xingchen.imagecropper.decode.DecodePlanner;
+import com.xingchen.imagecropper.jpeg.JpegMetadata;
+import com.xingchen.imagecropper.metrics.CropMetrics;
+import com.xingchen.imagecropper.metrics.CropTracer;
+import com.xingchen.imagecropper.shape.CropShape;
+import com.xingchen.imagecropper.source.ImageSource;
+import com.xingchen.imagecropper.utils.BitmapUtil;
+import com.xingchen.imagecropper.utils.IOUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Runs the pending jobs of a {@link CropJournal}, e.g. from a background service that may be
+ * killed and restarted at any point.
+ * <p/>
+ * Every output is written atomically (see {@link IOUtil#writeAtomically}), so a run that is killed
+ * leaves no half-written files behind, and the next run picks up with the first job whose
+ * completion was not recorded.
+ */
+public class CropBatchRunner {
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    private final Context mContext;
+    private final CropJournal mJournal;
+
+    // Optional cache of encoded results, shared with other users of the same crops.
+    private final CropResultCache mCache;
+
+    // Fits every decode into the memory budget.
+    private final DecodePlanner mDecodePlanner;
+
+    // Receives the metrics of every job that was decoded and encoded; null if none.
+    private volatile CropMetrics.Listener mMetricsListener;
+
+    // Whether JPEG outputs of JPEG sources keep the EXIF, XMP and ICC profile of the source.
+    private volatile boolean mKeepMetadata;
+
+    // Constructor /////////////////////////////////////////////////////////////////////////////////
+
+    public CropBatchRunner(@NonNull Context context, @NonNull CropJournal journal) {
+        this(context, journal, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param context the context used to open content Uris
+     * @param journal the journal of the jobs to run
+     * @param cache   if not null, outputs are looked up in (and stored to) this cache, so a job
+     *                whose crop was already encoded only copies the cached file
+     */
+    public CropBatchRunner(@NonNull Context context, @NonNull CropJournal journal, @Nullable CropResultCache cache) {
+        mContext = context.getApplicationContext();
+        mJournal = journal;
+        mCache = cache;
+        mDecodePlanner = DecodePlanner.forDevice(mContext);
+    }
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Receives the outcome of every job.
+     */
+    public interface Listener {
+
+        /**
+         * Called after a job is done.
+         *
+         * @param sampleSize the sample size the output was decoded at: 1 at full resolution, more if
+         *                   the memory budget forced a lower resolution; 0 if the job failed
+         * @param error      the reason the job failed; null if its output was written
+         */
+        void onJobFinished(long id, @NonNull CropJob job, int sampleSize, @Nullable Exception error);
+    }
+
+    /**
+     * Sets a listener that receives the {@link CropMetrics} of every job that is decoded and
+     * encoded (i.e. not served from the cache), on the thread running the jobs.
+     *
+     * @param listener the listener; null to stop reporting
+     */
+    public void setMetricsListener(@Nullable CropMetrics.Listener listener) {
+        mMetricsListener = listener;
+    }
+
+    /**
+     * Sets whether JPEG outputs of JPEG sources keep the EXIF, XMP and ICC profile of the source,
+     * with the EXIF pixel dimensions updated (see {@link JpegMetadata}). Cached results are stored
+     * without metadata, which is added as they are copied to the output.
+     *
+     * @param keepMetadata true to keep the metadata; false (the default) to drop it
+     */
+    public void setKeepMetadata(boolean keepMetadata) {
+        mKeepMetadata = keepMetadata;
+    }
+
+    /**
+     * Runs every pending job, in enqueue order. A job that fails (e.g. its source was deleted) is
+     * recorded as failed and skipped; interrupting the calling thread stops the run, leaving the
+     * job that was running pending.
+     *
+     * @param listener notified after every job; may be null
+     * @return the number of jobs whose output was written
+     * @throws IOException if the journal could not be written, or the thread was interrupted
+     */
+    @WorkerThread
+    public int runPending(@Nullable Listener listener) throws IOException {
+        int completed = 0;
+        try {
+            for (Map.Entry<Long, CropJob> entry : mJournal.getPendingJobs().entrySet()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException("Crop batch interrupted");
+                }
+                long id = entry.getKey();
+                CropJob job = entry.getValue();
+                Exception error = null;
+                int sampleSize = 0;
+                try {
+                    sampleSize = run(job);
+                } catch (InterruptedIOException e) {
+                    // Cancelled, not failed: the job stays pending and runs again next time.
+                    throw e;
+                } catch (IOException | IllegalArgumentException e) {
+                    // IllegalArgumentException: the crop rect does not fit the image (anymore).
+                    error = e;
+                }
+                if (error == null) {
+                    mJournal.markCompleted(id);
+                    completed++;
+                } else {
+                    mJournal.markFailed(id, String.valueOf(error.getMessage()));
+                }
+                if (listener != null) {
+                    listener.onJobFinished(id, job, sampleSize, error);
+                }
+            }
+        } finally {
+            mJournal.sync();
+        }
+        return completed;
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Runs a job.
+     *
+     * @return the sample size the output was decoded at
+     * @throws InterruptedIOException if the thread was interrupted
+     */
+    @VisibleForTesting
+    int run(@NonNull final CropJob job) throws IOException {
+        final ImageSource source = ImageSource.fromUri(mContext, Uri.parse(job.getSourceUri()));
+        final JpegMetadata metadata = JpegMetadata.read(mKeepMetadata && job.getFormat() == Bitmap.CompressFormat.JPEG ? source : null);
+        // Jobs run unattended; a lower resolution output beats running out of memory.
+        final DecodePlan plan = mDecodePlanner.plan(source.getWidth(), source.getHeight(), source.getMimeType(),
+                job.getCropRect(), 0, Bitmap.Config.ARGB_8888);
+        // The cache key says full resolution, so a degraded output must not end up in the cache;
+        // nor may the output of a source without an identity, which could be replaced unnoticed.
+        String identity = mCache != null ? source.getIdentity() : null;
+        if (identity == null || plan.isDegraded()) {
+            IOUtil.writeAtomically(job.getOutput(), new IOUtil.StreamWriter() {
+                @Override
+                public void writeTo(@NonNull OutputStream out) throws IOException {
+                    encode(source, plan, job, metadata.insertInto(out, JpegMetadata.ORIENTATION_UNCHANGED));
+                }
+            });
+            return plan.getSampleSize();
+        }
+
+        CropCacheKey key = new CropCacheKey(identity, job.getCropRect(), source.getWidth(), source.getHeight(),
+                0, job.getFormat(), job.getQuality(), CropShape.RECTANGLE, 0);
+        final InputStream cached = mCache.open(key, new IOUtil.StreamWriter() {
+            @Override
+            public void writeTo(@NonNull OutputStream out) throws IOException {
+                encode(source, plan, job, out);
+            }
+        });
+        try {
+            IOUtil.writeAtomically(job.getOutput(), new IOUtil.StreamWriter() {
+                @Override
+                public void writeTo(@NonNull OutputStream out) throws IOException {
+                    IOUtil.copy(cached, metadata.insertInto(out, JpegMetadata.ORIENTATION_UNCHANGED));
+                }
+            });
+        } finally {
+            IOUtil.closeQuietly(cached);
+        }
+        return plan.getSampleSize();
+    }
+
+    private void encode(@NonNull ImageSource source, @NonNull DecodePlan plan, @NonNull CropJob job,
+                        @NonNull OutputStream out) throws IOException {
+        CropTracer tracer = new CropTracer(CropMetrics.Operation.CROP_AND_ENCODE);
+        tracer.setRegion(job.getCropRect());
+        Bitmap croppedImage;
+        tracer.beginStage(CropMetrics.Stage.DECODE);
+        try {
+            tracer.setSource(source.getWidth(), source.getHeight(), source.getMimeType());
+            tracer.setSampleSize(plan.getSampleSize());
+            croppedImage = plan.decode(source, false);
+        } finally {
+            tracer.endStage();
+        }
+        tracer.onBitmapAllocated(croppedImage);
+        tracer.beginStage(CropMetrics.Stage.ENCODE);
+        try {
+            if (!BitmapUtil.compress(croppedImage, job.getFormat(), job.getQuality(), tracer.countBytes(out))) {
+                throw new IOException("Unable to encode " + job);
+            }
+        } finally {
+            tracer.endStage();
+            croppedImage.recycle();
+        }
+        tracer.finish(mMetricsListener);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.xingchen.imagecropper.batch;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import androidx.annotation.NonNull;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The specification of one crop: which region of which image to write where, and how. Instances
+ * are immutable.
+ */
+public class CropJob {
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    private final String mSourceUri;
+    private final Rect mCropRect;
+    private final File mOutput;
+    private final Bitmap.CompressFormat mFormat;
+    private final int mQuality;
+
+    // Constructor /////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Constructor.
+     *
+     * @param sourceUri the Uri of the image to crop, as a string
+     * @param cropRect  the region to crop, in pixels of the image (see
+     *                  {@link com.xingchen.imagecropper.view.CropImageView#getCropRect()})
+     * @param output    the file to write the cropped image to
+     * @param format    the format to compress to
+     * @param quality   the compression quality (0-100) for lossy formats
+     */
+    public CropJob(@NonNull String sourceUri,
+                   @NonNull Rect cropRect,
+                   @NonNull File output,
+                   @NonNull Bitmap.CompressFormat format,
+                   int quality) {
+        if (cropRect.isEmpty()) {
+            throw new IllegalArgumentException("Crop rect must not be empty.");
+        }
+        if (quality < 0 || quality > 100) {
+            throw new IllegalArgumentException("Quality must be in [0, 100].");
+        }
+        mSourceUri = sourceUri;
+        mCropRect = new Rect(cropRect);
+        mOutput = output;
+        mFormat = format;
+        mQuality = quality;
+    }
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    @NonNull
+    public String getSourceUri() {
+        return mSourceUri;
+    }
+
+    @NonNull
+    public Rect getCropRect() {
+        return new Rect(mCropRect);
+    }
+
+    @NonNull
+    public File getOutput() {
+        return mOutput;
+    }
+
+    @NonNull
+    public Bitmap.CompressFormat getFormat() {
+        return mFormat;
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+
+    @Override
+    public String toString() {
+        return "CropJob{" + mSourceUri + " " + mCropRect + " -> " + mOutput + "}";
+    }
+
+    // Package-Private Methods /////////////////////////////////////////////////////////////////////
+
+    void writeTo(@NonNull DataOutputStream out) throws IOException {
+        out.writeUTF(mSourceUri);
+        out.writeInt(mCropRect.left);
+        out.writeInt(mCropRect.top);
+        out.writeInt(mCropRect.right);
+        out.writeInt(mCropRect.bottom);
+        out.writeUTF(mOutput.getPath());
+        out.writeUTF(mFormat.name());
+        out.writeByte(mQuality);
+    }
+
+    @NonNull
+    static CropJob readFrom(@NonNull DataInputStream in) throws IOException {
+        String sourceUri = in.readUTF();
+        Rect cropRect = new Rect(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+        File output = new File(in.readUTF());
+        Bitmap.CompressFormat format;
+        try {
+            format = Bitmap.CompressFormat.valueOf(in.readUTF());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown output format", e);
+        }
+        return new CropJob(sourceUri, cropRect, output, format, in.readUnsignedByte());
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.xingchen.imagecropper.batch;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.xingchen.imagecropper.utils.IOUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A durable queue of {@link CropJob}s, kept as an append-only journal file so that a batch run
+ * killed by the OS resumes where it left off.
+ * <p/>
+ * The file starts with the magic <code>"CJN1"</code>, followed by records of the form
+ * <code>[length][CRC32][payload]</code>; a payload is a type byte, the job id and, for new jobs,
+ * the job spec. On open the journal is replayed; a torn record at the end (from a crash mid-write)
+ * fails its checksum and is cut off.
+ * <p/>
+ * Enqueued jobs are synced to disk before {@link #enqueue} returns. Completion records are only
+ * synced every {@link #DEFAULT_SYNC_INTERVAL} records (and on {@link #sync()} and
+ * {@link #close()}): outputs are written atomically and crops are deterministic, so a job whose
+ * completion was lost in a crash is simply run again with the same result. When most of the file
+ * is dead records, the journal is compacted on open.
+ * <p/>
+ * All methods are thread-safe.
+ */
+public class CropJournal implements Closeable {
+
+    // Public Constants ////////////////////////////////////////////////////////////////////////////
+
+    // Default number of unsynced completion records after which the journal is synced.
+    public static final int DEFAULT_SYNC_INTERVAL = 32;
+
+    // Private Constants ///////////////////////////////////////////////////////////////////////////
+
+    private static final int MAGIC = 0x434A4E31; // "CJN1"
+
+    // Record types.
+    private static final int RECORD_ENQUEUED = 1;
+    private static final int RECORD_COMPLETED = 2;
+    private static final int RECORD_FAILED = 3;
+
+    // Upper bound on the payload of a single record; anything larger is treated as corruption.
+    private static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+    // Longer failure reasons are truncated; they are only kept for diagnosis.
+    private static final int MAX_REASON_LENGTH = 1024;
+
+    // Minimum number of dead records before compaction is considered.
+    @VisibleForTesting
+    static final int COMPACTION_THRESHOLD = 256;
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    private final File mFile;
+    private final int mSyncInterval;
+
+    // Jobs enqueued but neither completed nor failed, in enqueue order.
+    private final Map<Long, CropJob> mPendingJobs = new LinkedHashMap<>();
+
+    private long mNextId;
+    private int mDeadRecordCount;
+    private int mUnsyncedRecordCount;
+
+    private FileOutputStream mFileStream;
+    private OutputStream mOutput;
+
+    // Reused to assemble each record before it is checksummed and appended.
+    private final ByteArrayOutputStream mRecordBuffer = new ByteArrayOutputStream(256);
+    private final DataOutputStream mRecord = new DataOutputStream(mRecordBuffer);
+    private final CRC32 mCrc = new CRC32();
+
+    // Constructor /////////////////////////////////////////////////////////////////////////////////
+
+    private CropJournal(@NonNull File file, int syncInterval) {
+        mFile = file;
+        mSyncInterval = syncInterval;
+    }
+
+    // Static Factory Methods //////////////////////////////////////////////////////////////////////
+
+    /**
+     * Opens (or creates) a journal, replaying it to find the jobs still pending.
+     */
+    @NonNull
+    public static CropJournal open(@NonNull File file) throws IOException {
+        return open(file, DEFAULT_SYNC_INTERVAL);
+    }
+
+    /**
+     * Opens (or creates) a journal, replaying it to find the jobs still pending.
+     *
+     * @param syncInterval the number of unsynced completion records after which the journal is
+     *                     synced; 1 syncs after every record
+     */
+    @NonNull
+    public static CropJournal open(@NonNull File file, int syncInterval) throws IOException {
+        if (syncInterval < 1) {
+            throw new IllegalArgumentException("Sync interval must be at least 1.");
+        }
+        CropJournal journal = new CropJournal(file, syncInterval);
+        long validLength = file.exists() ? journal.replay() : 0;
+        if (validLength == 0 || journal.shouldCompact()) {
+            journal.rewrite();
+        } else {
+            if (validLength < file.length()) {
+                // Cut off the torn tail so that new records follow the last valid one.
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(validLength);
+                } finally {
+                    raf.close();
+                }
+            }
+            journal.openForAppend();
+        }
+        return journal;
+    }
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Appends jobs to the queue. They are synced to disk before this returns, so enqueue a whole
+     * batch in one call rather than one job at a time.
+     *
+     * @return the ids assigned to the jobs, in order
+     * @throws IllegalArgumentException if a job is too large to journal (e.g. its Uri is tens of
+     *                                  kilobytes long), in which case none of the jobs is enqueued
+     */
+    @NonNull
+    public synchronized long[] enqueue(@NonNull CropJob... jobs) throws IOException {
+        // Every record is encoded before any is written, so that a bad job rejects the whole batch.
+        byte[][] records = new byte[jobs.length][];
+        for (int i = 0; i < jobs.length; i++) {
+            records[i] = encodeRecord(RECORD_ENQUEUED, mNextId + i, jobs[i], null);
+        }
+        long[] ids = new long[jobs.length];
+        for (int i = 0; i < jobs.length; i++) {
+            ids[i] = mNextId++;
+            writeRecord(records[i]);
+            mPendingJobs.put(ids[i], jobs[i]);
+        }
+        sync();
+        return ids;
+    }
+
+    /**
+     * Records that a job's output has been written.
+     */
+    public synchronized void markCompleted(long id) throws IOException {
+        if (mPendingJobs.remove(id) != null) {
+            appendRecord(RECORD_COMPLETED, id, null, null);
+            mDeadRecordCount += 2;
+            syncIfDue();
+        }
+    }
+
+    /**
+     * Records that a job cannot be done (e.g. its source no longer exists), so that it is not
+     * retried on every restart.
+     *
+     * @param reason why the job failed; only its first 1024 characters are kept
+     */
+    public synchronized void markFailed(long id, @NonNull String reason) throws IOException {
+        if (reason.length() > MAX_REASON_LENGTH) {
+            reason = reason.substring(0, MAX_REASON_LENGTH);
+        }
+        if (mPendingJobs.remove(id) != null) {
+            appendRecord(RECORD_FAILED, id, null, reason);
+            mDeadRecordCount += 2;
+            syncIfDue();
+        }
+    }
+
+    /**
+     * Gets the jobs still to be done, by id, in enqueue order.
+     */
+    @NonNull
+    public synchronized Map<Long, CropJob> getPendingJobs() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(mPendingJobs));
+    }
+
+    /**
+     * Flushes and syncs every record appended so far.
+     */
+    public synchronized void sync() throws IOException {
+        mOutput.flush();
+        mFileStream.getFD().sync();
+        mUnsyncedRecordCount = 0;
+    }
+
+    /**
+     * Syncs and closes the journal.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mOutput != null) {
+            try {
+                sync();
+            } finally {
+                mOutput.close();
+                mOutput = null;
+            }
+        }
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Replays the journal file.
+     *
+     * @return the length of the valid prefix of the file; 0 if it does not even have a valid header
+     */
+    private long replay() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        try {
+            if (in.readInt() != MAGIC) {
+                return 0;
+            }
+            long validLength = 4;
+            byte[] payload = new byte[256];
+            while (true) {
+                int length;
+                int crc;
+                try {
+                    length = in.readInt();
+                    crc = in.readInt();
+                } catch (EOFException e) {
+                    return validLength;
+                }
+                if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                    return validLength;
+                }
+                if (payload.length < length) {
+                    payload = new byte[length];
+                }
+                try {
+                    in.readFully(payload, 0, length);
+                } catch (EOFException e) {
+                    return validLength;
+                }
+                mCrc.reset();
+                mCrc.update(payload, 0, length);
+                if ((int) mCrc.getValue() != crc) {
+                    return validLength;
+                }
+                applyRecord(new DataInputStream(new ByteArrayInputStream(payload, 0, length)));
+                validLength += 8 + length;
+            }
+        } catch (EOFException e) {
+            // No complete header.
+            return 0;
+        } finally {
+            IOUtil.closeQuietly(in);
+        }
+    }
+
+    private void applyRecord(@NonNull DataInputStream record) throws IOException {
+        int type = record.readUnsignedByte();
+        long id = record.readLong();
+        mNextId = Math.max(mNextId, id + 1);
+        switch (type) {
+            case RECORD_ENQUEUED:
+                mPendingJobs.put(id, CropJob.readFrom(record));
+                break;
+            case RECORD_COMPLETED:
+            case RECORD_FAILED:
+                mPendingJobs.remove(id);
+                mDeadRecordCount += 2;
+                break;
+            default:
+                throw new IOException("Unknown journal record type " + type);
+        }
+    }
+
+    private boolean shouldCompact() {
+        return mDeadRecordCount >= COMPACTION_THRESHOLD && mDeadRecordCount > mPendingJobs.size();
+    }
+
+    /**
+     * Atomically replaces the journal file with one holding only the pending jobs.
+     */
+    private void rewrite() throws IOException {
+        IOUtil.writeAtomically(mFile, new IOUtil.StreamWriter() {
+            @Override
+            public void writeTo(@NonNull OutputStream out) throws IOException {
+                mOutput = out;
+                new DataOutputStream(out).writeInt(MAGIC);
+                for (Map.Entry<Long, CropJob> entry : mPendingJobs.entrySet()) {
+                    appendRecord(RECORD_ENQUEUED, entry.getKey(), entry.getValue(), null);
+                }
+            }
+        });
+        mDeadRecordCount = 0;
+        openForAppend();
+    }
+
+    private void openForAppend() throws IOException {
+        mFileStream = new FileOutputStream(mFile, true);
+        mOutput = new BufferedOutputStream(mFileStream);
+        mUnsyncedRecordCount = 0;
+    }
+
+    private void appendRecord(int type, long id, @Nullable CropJob job, @Nullable String reason) throws IOException {
+        writeRecord(encodeRecord(type, id, job, reason));
+    }
+
+    /**
+     * Encodes the payload of a record.
+     *
+     * @throws IllegalArgumentException if the payload is too large to be read back
+     */
+    @NonNull
+    private byte[] encodeRecord(int type, long id, @Nullable CropJob job, @Nullable String reason) throws IOException {
+        mRecordBuffer.reset();
+        mRecord.writeByte(type);
+        mRecord.writeLong(id);
+        if (job != null) {
+            job.writeTo(mRecord);
+        }
+        if (reason != null) {
+            mRecord.writeUTF(reason);
+        }
+        mRecord.flush();
+        // replay() takes a longer record for corruption and would drop it and everything after it.
+        if (mRecordBuffer.size() > MAX_RECORD_LENGTH) {
+            throw new IllegalArgumentException("Journal record of " + mRecordBuffer.size()
+                    + " bytes exceeds " + MAX_RECORD_LENGTH + " bytes: " + job);
+        }
+        return mRecordBuffer.toByteArray();
+    }
+
+    private void writeRecord(@NonNull byte[] payload) throws IOException {
+        if (mOutput == null) {
+            throw new IOException("Journal is closed");
+        }
+        mCrc.reset();
+        mCrc.update(payload, 0, payload.length);
+        writeInt(mOutput, payload.length);
+        writeInt(mOutput, (int) mCrc.getValue());
+        mOutput.write(payload);
+        mUnsyncedRecordCount++;
+    }
+
+    private void syncIfDue() throws IOException {
+        if (mUnsyncedRecordCount >= mSyncInterval) {
+            sync();
+        }
+    }
+
+    private static void writeInt(@NonNull OutputStream out, int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+
+package com.xingchen.imagecropper.cache;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import androidx.annotation.NonNull;
+
+import com.xingchen.imagecropper.shape.CropShape;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Identifies one encoded crop result: the source image, the crop rect and everything that affects
+ * the encoded bytes. Two keys with the same {@link #getHash() hash} produce the same output.
+ * <p/>
+ * The crop rect is stored relative to the source size, so the same region requested through a
+ * subsampled preview and through the full image maps to the same key.
+ */
+public class CropCacheKey {
+
+    // Private Constants ///////////////////////////////////////////////////////////////////////////
+
+    // Resolution of the normalized crop rect: well below a pixel even for 100-megapixel sources.
+    private static final long RECT_SCALE = 1 << 20;
+
+    // Bumped whenever the encoding of the key (or the meaning of an output parameter) changes.
+    private static final int VERSION = 1;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    private final String mSourceIdentity;
+    private final long[] mNormalizedRect;
+    private final int mMaxSize;
+    private final Bitmap.CompressFormat mFormat;
+    private final int mQuality;
+    private final CropShape mShape;
+    private final float mCornerRadius;
+
+    // Lazily computed; a hex SHA-1 digest.
+    private String mHash;
+
+    // Constructor /////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Constructor.
+     *
+     * @param sourceIdentity identifies the source image (see
+     *                       {@link com.xingchen.imagecropper.source.ImageSource#getIdentity()})
+     * @param cropRect       the crop rect, in the coordinates of a <code>width</code> x
+     *                       <code>height</code> rendition of the source
+     * @param width          the width the crop rect is relative to
+     * @param height         the height the crop rect is relative to
+     * @param maxSize        the longest side of the output; 0 if it is not scaled
+     * @param format         the output format
+     * @param quality        the output quality, as passed to {@link Bitmap#compress}
+     * @param shape          the crop shape
+     * @param cornerRadius   the corner radius of a rounded crop, in output pixels; ignored by
+     *                       other shapes
+     */
+    public CropCacheKey(@NonNull String sourceIdentity,
+                        @NonNull Rect cropRect,
+                        int width,
+                        int height,
+                        int maxSize,
+                        @NonNull Bitmap.CompressFormat format,
+                        int quality,
+                        @NonNull CropShape shape,
+                        float cornerRadius) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid source size " + width + "x" + height);
+        }
+        mSourceIdentity = sourceIdentity;
+        mNormalizedRect = new long[]{
+                normalize(cropRect.left, width),
+                normalize(cropRect.top, height),
+                normalize(cropRect.right, width),
+                normalize(cropRect.bottom, height)};
+        mMaxSize = Math.max(0, maxSize);
+        mFormat = format;
+        // PNG ignores the quality, so it must not split the key.
+        mQuality = format == Bitmap.CompressFormat.PNG ? 0 : quality;
+        mShape = shape;
+        mCornerRadius = shape == CropShape.ROUNDED_RECTANGLE ? cornerRadius : 0;
+    }
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Gets the hex SHA-1 digest of the key, usable as a file name.
+     */
+    @NonNull
+    public synchronized String getHash() {
+        if (mHash == null) {
+            mHash = toHex(digest());
+        }
+        return mHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof CropCacheKey && getHash().equals(((CropCacheKey) o).getHash());
+    }
+
+    @Override
+    public int hashCode() {
+        return getHash().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "CropCacheKey{" + mSourceIdentity + ", " + mFormat + "/" + mQuality + ", " + getHash() + "}";
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    private static long normalize(int coordinate, int size) {
+        return (coordinate * RECT_SCALE + size / 2) / size;
+    }
+
+    /**
+     * Digests a canonical binary encoding of the key, so that no two distinct keys can collide by
+     * concatenation (as they could by hashing toString()).
+     */
+    @NonNull
+    private byte[] digest() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(VERSION);
+            out.writeUTF(mSourceIdentity);
+            for (long value : mNormalizedRect) {
+                out.writeLong(value);
+            }
+            out.writeInt(mMaxSize);
+            out.writeUTF(mFormat.name());
+            out.writeInt(mQuality);
+            out.writeUTF(mShape.name());
+            out.writeFloat(mCornerRadius);
+            out.flush();
+            return MessageDigest.getInstance("SHA-1").digest(bytes.toByteArray());
+        } catch (IOException | NoSuchAlgorithmException e) {
+            // Neither happens: the stream is in memory and every platform provides SHA-1.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @NonNull
+    private static String toHex(@NonNull byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
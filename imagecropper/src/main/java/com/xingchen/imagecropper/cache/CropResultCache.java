@@ -0,0 +1,280 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+
+package com.xingchen.imagecropper.cache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.xingchen.imagecropper.utils.IOUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * On-disk cache of encoded crop results, keyed by {@link CropCacheKey}.
+ * <p/>
+ * Every entry is one file named after the key hash. Entries are evicted least recently used first
+ * once their total size exceeds the limit; the order survives restarts through the files' last
+ * modified times. Concurrent requests for the same missing key are coalesced: one thread encodes,
+ * the others wait for it and then read the same file.
+ */
+public class CropResultCache {
+
+    // Private Constants ///////////////////////////////////////////////////////////////////////////
+
+    // Suffix of the files IOUtil.writeAtomically() writes before renaming them into place.
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    // Entry sizes by key hash, in access order (least recently used first). Guarded by this.
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mSize;
+
+    // Encodings in progress, by key hash.
+    private final ConcurrentHashMap<String, FutureTask<Void>> mPending = new ConcurrentHashMap<>();
+
+    // Constructor /////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Opens (or creates) the cache in the given directory, which it owns exclusively.
+     *
+     * @param directory the cache directory, e.g. under {@link android.content.Context#getCacheDir()}
+     * @param maxBytes  the total size of the entries above which the oldest ones are evicted
+     * @throws IOException if the directory could not be created
+     */
+    @WorkerThread
+    public CropResultCache(@NonNull File directory, long maxBytes) throws IOException {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        load();
+    }
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Opens the cached result for the given key, encoding and storing it first on a miss. A hit
+     * only streams the stored file; the writer is not called.
+     *
+     * @param key    the key of the result
+     * @param writer writes the encoded result (e.g. decodes, crops and compresses the source);
+     *               called at most once across concurrent calls with the same key
+     * @return the stored result; the caller must close it
+     * @throws IOException if the result could not be written or read, or the thread was interrupted
+     *                     while waiting for another thread's encoding
+     */
+    @NonNull
+    @WorkerThread
+    public InputStream open(@NonNull CropCacheKey key, @NonNull final IOUtil.StreamWriter writer) throws IOException {
+        final String hash = key.getHash();
+        while (true) {
+            InputStream in = openEntry(hash);
+            if (in != null) {
+                return in;
+            }
+
+            FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    // Another caller may have stored the entry between our miss and our put.
+                    if (!containsEntry(hash)) {
+                        File file = getFile(hash);
+                        IOUtil.writeAtomically(file, writer);
+                        putEntry(hash, file.length());
+                    }
+                    return null;
+                }
+            });
+            FutureTask<Void> pending = mPending.putIfAbsent(hash, task);
+            if (pending == null) {
+                pending = task;
+                try {
+                    task.run();
+                } finally {
+                    mPending.remove(hash, task);
+                }
+            }
+            await(pending);
+            // Loop to open the entry; in the unlikely event it was evicted in the meantime, this
+            // encodes it again.
+        }
+    }
+
+    /**
+     * Opens the cached result for the given key, if present.
+     *
+     * @return the stored result, which the caller must close; null on a miss
+     */
+    @Nullable
+    @WorkerThread
+    public InputStream get(@NonNull CropCacheKey key) {
+        return openEntry(key.getHash());
+    }
+
+    /**
+     * Gets the total size of the cached entries, in bytes.
+     */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Removes every entry. Streams already opened stay readable.
+     */
+    @WorkerThread
+    public synchronized void clear() {
+        for (String hash : mEntries.keySet()) {
+            getFile(hash).delete();
+        }
+        mEntries.clear();
+        mSize = 0;
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Indexes the entries already on disk, in last-modified order, and removes leftovers of writes
+     * interrupted by a crash.
+     */
+    private synchronized void load() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long[] lastModified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            // Read once: File.lastModified() is a system call, and sort comparators must be stable.
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return lastModified[lhs] < lastModified[rhs] ? -1 : (lastModified[lhs] == lastModified[rhs] ? 0 : 1);
+            }
+        });
+        for (Integer i : order) {
+            File file = files[i];
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                file.delete();
+            } else if (file.isFile()) {
+                mEntries.put(file.getName(), file.length());
+                mSize += file.length();
+            }
+        }
+        trimToSize(null);
+    }
+
+    @Nullable
+    private synchronized InputStream openEntry(@NonNull String hash) {
+        if (mEntries.get(hash) == null) {
+            return null;
+        }
+        File file = getFile(hash);
+        try {
+            InputStream in = new FileInputStream(file);
+            // Persist the access order; the index itself was already reordered by get().
+            file.setLastModified(System.currentTimeMillis());
+            return in;
+        } catch (FileNotFoundException e) {
+            // Deleted behind our back; forget it and treat it as a miss.
+            mSize -= mEntries.remove(hash);
+            return null;
+        }
+    }
+
+    private synchronized boolean containsEntry(@NonNull String hash) {
+        return mEntries.containsKey(hash);
+    }
+
+    private synchronized void putEntry(@NonNull String hash, long size) {
+        Long previous = mEntries.put(hash, size);
+        mSize += size - (previous != null ? previous : 0);
+        trimToSize(hash);
+    }
+
+    /**
+     * Evicts least recently used entries until the cache fits its limit.
+     *
+     * @param keep the hash of an entry never to evict (the one just stored, which its callers are
+     *             about to open even if it alone exceeds the limit); may be null
+     */
+    private void trimToSize(@Nullable String keep) {
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (mSize > mMaxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (entry.getKey().equals(keep)) {
+                continue;
+            }
+            // Open streams keep reading an evicted file until they are closed.
+            getFile(entry.getKey()).delete();
+            mSize -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    @NonNull
+    private File getFile(@NonNull String hash) {
+        return new File(mDirectory, hash);
+    }
+
+    /**
+     * Waits for an encoding, rethrowing its failure.
+     */
+    private static void await(@NonNull FutureTask<Void> task) throws IOException {
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a crop result");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+
+package com.xingchen.imagecropper.decode;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+import androidx.annotation.NonNull;
+
+import com.xingchen.imagecropper.source.ImageSource;
+import com.xingchen.imagecropper.utils.ParallelUtil;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * How a region of an image is decoded so that it fits a memory budget, as chosen by a
+ * {@link DecodePlanner}: the sample size, whether the region is decoded directly or cut from a
+ * decode of the whole image, and how many region decoders share the work.
+ */
+public class DecodePlan {
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    private final Mode mMode;
+    private final Rect mRegion;
+    private final int mSampleSize;
+    private final int mRequestedSampleSize;
+    private final Bitmap.Config mConfig;
+    private final int mDecoderCount;
+    private final int mStripHeight;
+    private final long mEstimatedBytes;
+    private final long mBudgetBytes;
+    private final String mReason;
+
+    // Constructor /////////////////////////////////////////////////////////////////////////////////
+
+    DecodePlan(@NonNull Mode mode,
+               @NonNull Rect region,
+               int sampleSize,
+               int requestedSampleSize,
+               @NonNull Bitmap.Config config,
+               int decoderCount,
+               int stripHeight,
+               long estimatedBytes,
+               long budgetBytes,
+               @NonNull String reason) {
+        mMode = mode;
+        mRegion = new Rect(region);
+        mSampleSize = sampleSize;
+        mRequestedSampleSize = requestedSampleSize;
+        mConfig = config;
+        mDecoderCount = decoderCount;
+        mStripHeight = stripHeight;
+        mEstimatedBytes = estimatedBytes;
+        mBudgetBytes = budgetBytes;
+        mReason = reason;
+    }
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Gets how the region is decoded.
+     */
+    @NonNull
+    public Mode getMode() {
+        return mMode;
+    }
+
+    /**
+     * Gets the region to decode, in source pixels.
+     */
+    @NonNull
+    public Rect getRegion() {
+        return new Rect(mRegion);
+    }
+
+    /**
+     * Gets the sample size to decode with.
+     */
+    public int getSampleSize() {
+        return mSampleSize;
+    }
+
+    /**
+     * Gets the sample size the requested output size alone called for. A larger
+     * {@link #getSampleSize() sample size} means the quality was lowered to fit the budget.
+     */
+    public int getRequestedSampleSize() {
+        return mRequestedSampleSize;
+    }
+
+    /**
+     * Returns whether the output has a lower resolution than requested, to fit the budget.
+     */
+    public boolean isDegraded() {
+        return mSampleSize > mRequestedSampleSize;
+    }
+
+    /**
+     * Gets the number of region decoders that decode the output at once, each over its own strips
+     * of rows; 1 if the region is decoded in one call.
+     */
+    public int getDecoderCount() {
+        return mDecoderCount;
+    }
+
+    /**
+     * Gets the height of one strip of rows when several decoders are used, in output pixels; 0 if
+     * the region is decoded in one call.
+     */
+    public int getStripHeight() {
+        return mStripHeight;
+    }
+
+    /**
+     * Gets the width of the output, in output pixels.
+     */
+    public int getOutputWidth() {
+        return ceilDiv(mRegion.width(), mSampleSize);
+    }
+
+    /**
+     * Gets the height of the output, in output pixels.
+     */
+    public int getOutputHeight() {
+        return ceilDiv(mRegion.height(), mSampleSize);
+    }
+
+    /**
+     * Gets the largest number of bytes the plan holds in Bitmaps at any one time: the output, plus
+     * the whole image when the region is cut from a full decode, or the strips in flight when
+     * several decoders are used.
+     */
+    public long getEstimatedBytes() {
+        return mEstimatedBytes;
+    }
+
+    /**
+     * Gets the memory budget the plan was made for, in bytes.
+     */
+    public long getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    /**
+     * Gets a human readable explanation of why this plan was chosen, e.g. for logs.
+     */
+    @NonNull
+    public String getReason() {
+        return mReason;
+    }
+
+    /**
+     * Decodes the region as a single Bitmap, following the plan.
+     *
+     * @param source  the image to decode
+     * @param mutable whether the Bitmap will be drawn into afterwards
+     * @return the decoded region, {@link #getOutputWidth()} x {@link #getOutputHeight()} pixels
+     * (give or take a pixel of decoder rounding)
+     * @throws IOException if the source could not be read or decoded
+     */
+    @NonNull
+    public Bitmap decode(@NonNull ImageSource source, boolean mutable) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = mSampleSize;
+        options.inPreferredConfig = mConfig;
+        options.inMutable = mutable;
+
+        Bitmap bitmap;
+        if (mMode == Mode.REGION && mDecoderCount > 1) {
+            bitmap = decodeStrips(source, options);
+        } else if (mMode == Mode.REGION) {
+            BitmapRegionDecoder decoder = source.newRegionDecoder();
+            try {
+                bitmap = decoder.decodeRegion(mRegion, options);
+            } finally {
+                decoder.recycle();
+            }
+        } else {
+            Bitmap image = source.decode(options);
+            if (image == null || isWholeImage(image)) {
+                bitmap = image;
+            } else {
+                // Cut the region from the sampled image; the decoder may round its size either way.
+                int left = Math.min(mRegion.left / mSampleSize, image.getWidth() - 1);
+                int top = Math.min(mRegion.top / mSampleSize, image.getHeight() - 1);
+                int width = Math.max(1, Math.min(getOutputWidth(), image.getWidth() - left));
+                int height = Math.max(1, Math.min(getOutputHeight(), image.getHeight() - top));
+                bitmap = Bitmap.createBitmap(image, left, top, width, height);
+                if (bitmap != image) {
+                    image.recycle();
+                }
+                if (mutable && !bitmap.isMutable()) {
+                    Bitmap copy = bitmap.copy(mConfig, true);
+                    bitmap.recycle();
+                    bitmap = copy;
+                }
+            }
+        }
+        if (bitmap == null) {
+            throw new IOException("Unable to decode " + mRegion + " of " + source);
+        }
+        return bitmap;
+    }
+
+    @Override
+    public String toString() {
+        return "DecodePlan{" + mMode + " " + mRegion + ", sample=" + mSampleSize
+                + (mDecoderCount > 1 ? ", decoders=" + mDecoderCount + "x" + mStripHeight + "px" : "")
+                + ", bytes=" + mEstimatedBytes + "/" + mBudgetBytes + ", " + mReason + "}";
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Decodes the region strip by strip, with several independent region decoders over the source
+     * at once, drawing each strip into the output as it completes. A single BitmapRegionDecoder
+     * serializes its calls, so this is the only way to put more than one core on one region.
+     * <p/>
+     * Strip boundaries fall on source rows that are multiples of the strip height in source rows,
+     * and so, the planner making that a multiple of 16, on JPEG MCU rows: only the first strip may
+     * start mid-MCU. That needs the region's top to be on the sample grid, so that every strip still
+     * starts on a whole output row; otherwise the strips are laid out from the region's top.
+     * <p/>
+     * Only the decodes run in parallel. The strips are drawn into the output one at a time, through
+     * a single Canvas: they cover disjoint rows, but nothing documents Canvas or Bitmap as safe to
+     * write from several threads at once, and a draw takes a fraction of the time of a decode.
+     */
+    @NonNull
+    private Bitmap decodeStrips(@NonNull final ImageSource source, @NonNull final BitmapFactory.Options options) throws IOException {
+        final Bitmap output = Bitmap.createBitmap(getOutputWidth(), getOutputHeight(), mConfig);
+        final Canvas canvas = new Canvas(output);
+        final int step = mStripHeight * mSampleSize;
+        // The source row strip boundaries are counted from; at or above the region's top.
+        final int base = mRegion.top % mSampleSize == 0 ? mRegion.top - mRegion.top % step : mRegion.top;
+        final int stripCount = ceilDiv(mRegion.bottom - base, step);
+        final AtomicInteger nextStrip = new AtomicInteger();
+        final AtomicBoolean hasAlpha = new AtomicBoolean();
+        try {
+            ParallelUtil.parallelFor(Math.min(mDecoderCount, stripCount), new ParallelUtil.IndexedTask() {
+                @Override
+                public void run(int index) throws Exception {
+                    BitmapRegionDecoder decoder = source.newRegionDecoder();
+                    try {
+                        // Options are per call: each decoder gets its own copy.
+                        BitmapFactory.Options stripOptions = new BitmapFactory.Options();
+                        stripOptions.inSampleSize = options.inSampleSize;
+                        stripOptions.inPreferredConfig = options.inPreferredConfig;
+                        int strip;
+                        while ((strip = nextStrip.getAndIncrement()) < stripCount) {
+                            int top = Math.max(mRegion.top, base + strip * step);
+                            Rect stripRegion = new Rect(mRegion.left, top, mRegion.right, Math.min(base + (strip + 1) * step, mRegion.bottom));
+                            Bitmap bitmap = decoder.decodeRegion(stripRegion, stripOptions);
+                            if (bitmap == null) {
+                                throw new IOException("Unable to decode " + stripRegion + " of " + source);
+                            }
+                            synchronized (canvas) {
+                                canvas.drawBitmap(bitmap, 0, (top - mRegion.top) / mSampleSize, null);
+                            }
+                            if (bitmap.hasAlpha()) {
+                                hasAlpha.set(true);
+                            }
+                            bitmap.recycle();
+                        }
+                    } finally {
+                        decoder.recycle();
+                    }
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            output.recycle();
+            throw e;
+        }
+        output.setHasAlpha(hasAlpha.get());
+        return output;
+    }
+
+    private boolean isWholeImage(@NonNull Bitmap image) {
+        return mRegion.left == 0 && mRegion.top == 0
+                && image.getWidth() <= getOutputWidth() && image.getHeight() <= getOutputHeight();
+    }
+
+    static int ceilDiv(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+
+    // Inner Classes ///////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * How the region is decoded.
+     */
+    public enum Mode {
+
+        /**
+         * Only the region is decoded, with a {@link BitmapRegionDecoder}.
+         */
+        REGION,
+
+        /**
+         * The whole image is decoded and the region cut from it; for formats without region
+         * decoding support, and for regions covering the whole image.
+         */
+        FULL
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+
+package com.xingchen.imagecropper.decode;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.xingchen.imagecropper.source.ImageSource;
+import com.xingchen.imagecropper.utils.ParallelUtil;
+
+/**
+ * Chooses how to decode a region of an image so that the Bitmaps it needs fit a memory budget,
+ * before anything is decoded.
+ * <p/>
+ * The plan starts from the sample size the requested output size calls for and keeps that quality
+ * whenever it fits, decoding only the region when the format supports it. Only when it does not fit
+ * is the sample size doubled until the output does. Large single-Bitmap regions of formats with
+ * random access are split across several region decoders, within the same budget.
+ */
+public class DecodePlanner {
+
+    // Private Constants ///////////////////////////////////////////////////////////////////////////
+
+    // The budget is never planned below this, so that a plan always exists.
+    private static final long MIN_BUDGET_BYTES = 4L * 1024 * 1024;
+
+    // Smallest output, in pixels, worth splitting across several region decoders.
+    private static final long MIN_PARALLEL_PIXELS = 1024 * 1024;
+
+    // Most region decoders run at once. Each one holds its own decoder state (e.g. a Huffman index).
+    private static final int MAX_DECODERS = 4;
+
+    // Strips per decoder, so that a slow strip does not leave the other decoders idle at the end.
+    private static final int STRIPS_PER_DECODER = 2;
+
+    // Strips are a multiple of this many output rows high: the tallest JPEG MCU, so that strips
+    // laid out on a grid of source rows (see DecodePlan#decodeStrips) start on an MCU row.
+    private static final int STRIP_ALIGNMENT = 16;
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    // Measures the available memory at plan time; null for a fixed budget.
+    private final ActivityManager mActivityManager;
+
+    // The configured cap on the budget.
+    private final long mMaxBytes;
+
+    // Constructor /////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a planner with a fixed budget.
+     *
+     * @param budgetBytes the number of bytes a plan may hold in Bitmaps at any one time
+     */
+    public DecodePlanner(long budgetBytes) {
+        this(null, budgetBytes);
+    }
+
+    private DecodePlanner(@Nullable ActivityManager activityManager, long maxBytes) {
+        mActivityManager = activityManager;
+        mMaxBytes = maxBytes;
+    }
+
+    // Static Factory Methods //////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a planner whose budget is measured at every plan: free Java heap before Android O,
+     * where Bitmap pixels live on the Java heap, and free system memory above the low memory
+     * threshold from O on, where they live in native memory.
+     */
+    @NonNull
+    public static DecodePlanner forDevice(@NonNull Context context) {
+        return forDevice(context, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a planner whose budget is measured at every plan (see {@link #forDevice(Context)}),
+     * but never exceeds the given cap.
+     *
+     * @param maxBytes the cap on the budget, in bytes
+     */
+    @NonNull
+    public static DecodePlanner forDevice(@NonNull Context context, long maxBytes) {
+        ActivityManager activityManager = (ActivityManager) context.getApplicationContext()
+                .getSystemService(Context.ACTIVITY_SERVICE);
+        return new DecodePlanner(activityManager, maxBytes);
+    }
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Gets the number of bytes a plan made now may hold in Bitmaps at any one time.
+     */
+    public long getBudgetBytes() {
+        long budget = mMaxBytes;
+        if (mActivityManager != null) {
+            budget = Math.min(budget, measureAvailableBytes());
+        }
+        return Math.max(MIN_BUDGET_BYTES, budget);
+    }
+
+    /**
+     * Plans the decode of the whole image, e.g. for a preview.
+     *
+     * @param width         the width of the image
+     * @param height        the height of the image
+     * @param maxOutputSize the output may be subsampled until either side gets this close to it;
+     *                      0 for full resolution
+     * @param config        the Bitmap config to decode to
+     */
+    @NonNull
+    public DecodePlan planImage(int width, int height, int maxOutputSize, @NonNull Bitmap.Config config) {
+        return plan(width, height, null, new Rect(0, 0, width, height), maxOutputSize, config);
+    }
+
+    /**
+     * Plans the decode of a region of an image.
+     *
+     * @param width         the width of the image
+     * @param height        the height of the image
+     * @param mimeType      the mime type of the image, which decides whether its regions can be
+     *                      decoded directly; null if unknown
+     * @param region        the region to decode
+     * @param maxOutputSize the output may be subsampled until either side gets this close to it;
+     *                      0 for full resolution
+     * @param config        the Bitmap config to decode to
+     */
+    @NonNull
+    public DecodePlan plan(int width,
+                           int height,
+                           @Nullable String mimeType,
+                           @NonNull Rect region,
+                           int maxOutputSize,
+                           @NonNull Bitmap.Config config) {
+        if (region.isEmpty() || region.left < 0 || region.top < 0 || region.right > width || region.bottom > height) {
+            throw new IllegalArgumentException("Region " + region + " is not within " + width + "x" + height);
+        }
+        long budget = getBudgetBytes();
+        int bytesPerPixel = getBytesPerPixel(config);
+        boolean wholeImage = region.width() == width && region.height() == height;
+        DecodePlan.Mode mode = wholeImage || !supportsRegionDecoding(mimeType) ? DecodePlan.Mode.FULL : DecodePlan.Mode.REGION;
+        int requested = maxOutputSize > 0
+                ? ImageSource.calculateInSampleSize(region.width(), region.height(), maxOutputSize, maxOutputSize)
+                : 1;
+
+        long requestedBytes = getBytes(mode, width, height, region, requested, bytesPerPixel);
+        if (requestedBytes <= budget) {
+            return newBitmapPlan(mode, mimeType, region, requested, requested, config, requestedBytes, budget,
+                    "fits at the requested sample size");
+        }
+
+        // Lower the quality until a single Bitmap fits.
+        int sampleSize = requested;
+        long bytes = requestedBytes;
+        while (bytes > budget && (DecodePlan.ceilDiv(region.width(), sampleSize) > 1 || DecodePlan.ceilDiv(region.height(), sampleSize) > 1)) {
+            sampleSize *= 2;
+            bytes = getBytes(mode, width, height, region, sampleSize, bytesPerPixel);
+        }
+        String reason = (mode == DecodePlan.Mode.FULL && !wholeImage ? "format has no region decoding; " : "")
+                + "sample size " + requested + " needs " + requestedBytes + " bytes; subsampled to " + sampleSize;
+        return newBitmapPlan(mode, mimeType, region, sampleSize, requested, config, bytes, budget, reason);
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a plan decoding to a single Bitmap. A large region whose format supports random
+     * access is split into strips, decoded by several region decoders at once, as long as the strips
+     * in flight fit the budget next to the output.
+     */
+    @NonNull
+    private static DecodePlan newBitmapPlan(@NonNull DecodePlan.Mode mode,
+                                            @Nullable String mimeType,
+                                            @NonNull Rect region,
+                                            int sampleSize,
+                                            int requestedSampleSize,
+                                            @NonNull Bitmap.Config config,
+                                            long bytes,
+                                            long budget,
+                                            @NonNull String reason) {
+        int outputWidth = DecodePlan.ceilDiv(region.width(), sampleSize);
+        int outputHeight = DecodePlan.ceilDiv(region.height(), sampleSize);
+        int decoders = Math.min(MAX_DECODERS, ParallelUtil.getParallelism());
+        if (mode != DecodePlan.Mode.REGION || !supportsParallelDecoding(mimeType)
+                || (long) outputWidth * outputHeight < MIN_PARALLEL_PIXELS) {
+            decoders = 1;
+        }
+        int bytesPerPixel = getBytesPerPixel(config);
+        for (; decoders > 1; decoders--) {
+            int stripHeight = DecodePlan.ceilDiv(DecodePlan.ceilDiv(outputHeight, decoders * STRIPS_PER_DECODER), STRIP_ALIGNMENT) * STRIP_ALIGNMENT;
+            long stripBytes = (long) decoders * outputWidth * stripHeight * bytesPerPixel;
+            if (bytes + stripBytes <= budget) {
+                return new DecodePlan(mode, region, sampleSize, requestedSampleSize, config, decoders, stripHeight,
+                        bytes + stripBytes, budget, reason + "; " + decoders + " decoders");
+            }
+        }
+        return new DecodePlan(mode, region, sampleSize, requestedSampleSize, config, 1, 0, bytes, budget, reason);
+    }
+
+    /**
+     * Measures the memory Bitmaps can currently take, keeping headroom for everything else.
+     */
+    private long measureAvailableBytes() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+            mActivityManager.getMemoryInfo(memoryInfo);
+            // Below the threshold the system starts killing processes; leave half the rest to them.
+            return (memoryInfo.availMem - memoryInfo.threshold) / 2;
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        // Leave a quarter of the free heap to the rest of the app.
+        return free / 4 * 3;
+    }
+
+    /**
+     * Gets the number of bytes held at once when decoding the region at the given sample size.
+     */
+    private static long getBytes(@NonNull DecodePlan.Mode mode, int width, int height, @NonNull Rect region,
+                                 int sampleSize, int bytesPerPixel) {
+        long output = (long) DecodePlan.ceilDiv(region.width(), sampleSize) * DecodePlan.ceilDiv(region.height(), sampleSize);
+        if (mode == DecodePlan.Mode.FULL && (region.width() != width || region.height() != height)) {
+            // The whole sampled image is alive while the region is copied out of it.
+            output += (long) DecodePlan.ceilDiv(width, sampleSize) * DecodePlan.ceilDiv(height, sampleSize);
+        }
+        return output * bytesPerPixel;
+    }
+
+    private static int getBytesPerPixel(@NonNull Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            case RGBA_F16:
+                return 8;
+            default:
+                return 4;
+        }
+    }
+
+    /**
+     * Returns whether independent region decoders can each decode a strip of the given format
+     * without decoding everything above it. PNG and WebP regions are decoded from the first row on,
+     * so splitting them only repeats work.
+     */
+    private static boolean supportsParallelDecoding(@Nullable String mimeType) {
+        if ("image/jpeg".equals(mimeType)) {
+            return true;
+        }
+        // HEIF images are grids of independently coded tiles.
+        return ("image/heif".equals(mimeType) || "image/heic".equals(mimeType))
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P;
+    }
+
+    /**
+     * Returns whether BitmapRegionDecoder supports the given format on this device. Unknown formats
+     * are assumed to be supported, and fail over to the preview in the caller if not.
+     */
+    private static boolean supportsRegionDecoding(@Nullable String mimeType) {
+        if (mimeType == null) {
+            return true;
+        }
+        switch (mimeType) {
+            case "image/jpeg":
+            case "image/png":
+            case "image/webp":
+                return true;
+            case "image/heif":
+            case "image/heic":
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.P;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,581 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+
+package com.xingchen.imagecropper.gif;
+
+import android.graphics.Rect;
+
+import androidx.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Crops every frame of an animated GIF, streaming from the input to the output one frame at a
+ * time.
+ * <p/>
+ * GIF frames are palette images drawn over each other by the viewer, so cropping the animation
+ * does not require compositing it: each frame is cut to the part of its rectangle inside the crop
+ * window and moved by the window's origin, keeping its palette, timing, transparency and disposal.
+ * Only the LZW-coded pixel indices of the current frame are ever held in memory, and the output is
+ * lossless. Frames that lie entirely outside the window are replaced by a transparent 1x1 frame so
+ * that the timing of the animation is preserved.
+ */
+public class GifCropper {
+
+    // Private Constants ///////////////////////////////////////////////////////////////////////////
+
+    private static final int EXTENSION_INTRODUCER = 0x21;
+    private static final int IMAGE_SEPARATOR = 0x2C;
+    private static final int TRAILER = 0x3B;
+
+    private static final int GRAPHIC_CONTROL_LABEL = 0xF9;
+    private static final int PLAIN_TEXT_LABEL = 0x01;
+
+    // Flags of the logical screen and image descriptors.
+    private static final int COLOR_TABLE_FLAG = 0x80;
+    private static final int INTERLACE_FLAG = 0x40;
+    private static final int COLOR_TABLE_SIZE_MASK = 0x07;
+
+    // Graphic control flags: disposal "do not dispose" and the transparency flag.
+    private static final int DISPOSAL_NONE = 1 << 2;
+    private static final int TRANSPARENT_FLAG = 0x01;
+
+    private static final int MAX_CODE_SIZE = 12;
+    private static final int MAX_CODES = 1 << MAX_CODE_SIZE;
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    private final InputStream mIn;
+    private final OutputStream mOut;
+
+    // The crop window, in logical screen coordinates.
+    private final Rect mCrop = new Rect();
+
+    // The graphic control extension read before the next image, if any (4 data bytes).
+    private final byte[] mGraphicControl = new byte[4];
+    private boolean mHasGraphicControl;
+
+    // Pixel indices of the current frame, and of its cropped part; grown as needed.
+    private byte[] mPixels = new byte[0];
+    private byte[] mCropped = new byte[1];
+
+    private final byte[] mBlock = new byte[256];
+    private final LzwDecoder mDecoder = new LzwDecoder();
+    private final LzwEncoder mEncoder = new LzwEncoder();
+
+    // Constructor /////////////////////////////////////////////////////////////////////////////////
+
+    private GifCropper(@NonNull InputStream in, @NonNull OutputStream out) {
+        mIn = in;
+        mOut = out;
+    }
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Crops a GIF (animated or not) to the given window.
+     *
+     * @param in   the GIF to read, ideally buffered; read up to its trailer and not closed
+     * @param crop the crop window, in the coordinates of the GIF's logical screen; clamped to it
+     * @param out  the stream to write the cropped GIF to, ideally buffered; not closed
+     * @return the number of frames written
+     * @throws IOException              if the input is not a valid GIF, or could not be read or
+     *                                  written
+     * @throws IllegalArgumentException if the window lies outside the logical screen
+     */
+    public static int crop(@NonNull InputStream in, @NonNull Rect crop, @NonNull OutputStream out) throws IOException {
+        return new GifCropper(in, out).crop(crop);
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    private int crop(@NonNull Rect crop) throws IOException {
+        byte[] header = new byte[13];
+        readFully(header, 13);
+        if (header[0] != 'G' || header[1] != 'I' || header[2] != 'F') {
+            throw new IOException("Not a GIF");
+        }
+        int screenWidth = readShort(header, 6);
+        int screenHeight = readShort(header, 8);
+        mCrop.set(Math.max(0, crop.left), Math.max(0, crop.top), Math.min(screenWidth, crop.right), Math.min(screenHeight, crop.bottom));
+        if (mCrop.isEmpty()) {
+            throw new IllegalArgumentException("Crop rect " + crop + " lies outside the " + screenWidth + "x" + screenHeight + " GIF.");
+        }
+
+        // Logical screen descriptor, with the size of the window; always GIF89a, since frames may
+        // gain a graphic control extension.
+        writeAscii("GIF89a");
+        writeShort(mCrop.width());
+        writeShort(mCrop.height());
+        mOut.write(header, 10, 3);
+        int flags = header[10] & 0xFF;
+        if ((flags & COLOR_TABLE_FLAG) != 0) {
+            copy(getColorTableBytes(flags));
+        }
+
+        int frames = 0;
+        while (true) {
+            int separator = read();
+            if (separator == IMAGE_SEPARATOR) {
+                cropImage();
+                frames++;
+            } else if (separator == EXTENSION_INTRODUCER) {
+                copyExtension();
+            } else if (separator == TRAILER) {
+                break;
+            } else {
+                throw new IOException("Unexpected block 0x" + Integer.toHexString(separator));
+            }
+        }
+        mOut.write(TRAILER);
+        return frames;
+    }
+
+    /**
+     * Copies an extension, except graphic control extensions, which are held back until their
+     * image is written, and plain text extensions, which are dropped (with their graphic control)
+     * since their text grid cannot be cropped.
+     */
+    private void copyExtension() throws IOException {
+        int label = read();
+        if (label == GRAPHIC_CONTROL_LABEL) {
+            int size = read();
+            if (size != 4) {
+                throw new IOException("Invalid graphic control extension");
+            }
+            readFully(mGraphicControl, 4);
+            skipSubBlocks();
+            mHasGraphicControl = true;
+        } else if (label == PLAIN_TEXT_LABEL) {
+            skipSubBlocks();
+            mHasGraphicControl = false;
+        } else {
+            mOut.write(EXTENSION_INTRODUCER);
+            mOut.write(label);
+            int size;
+            while ((size = read()) != 0) {
+                readFully(mBlock, size);
+                mOut.write(size);
+                mOut.write(mBlock, 0, size);
+            }
+            mOut.write(0);
+        }
+    }
+
+    /**
+     * Reads one image, and writes the part of it inside the crop window.
+     */
+    private void cropImage() throws IOException {
+        byte[] descriptor = new byte[9];
+        readFully(descriptor, 9);
+        int left = readShort(descriptor, 0);
+        int top = readShort(descriptor, 2);
+        int width = readShort(descriptor, 4);
+        int height = readShort(descriptor, 6);
+        int flags = descriptor[8] & 0xFF;
+        byte[] colorTable = (flags & COLOR_TABLE_FLAG) != 0 ? readColorTable(flags) : null;
+        int minCodeSize = read();
+        if (minCodeSize < 2 || minCodeSize > 8) {
+            throw new IOException("Invalid LZW code size " + minCodeSize);
+        }
+
+        int pixelCount = width * height;
+        if (mPixels.length < pixelCount) {
+            mPixels = new byte[pixelCount];
+        }
+        mDecoder.decode(minCodeSize, mPixels, pixelCount);
+
+        Rect visible = new Rect(left, top, left + width, top + height);
+        if (!visible.intersect(mCrop)) {
+            writeEmptyFrame();
+            return;
+        }
+
+        // Copy the visible rows, undoing the interlacing if needed.
+        int croppedWidth = visible.width();
+        int croppedHeight = visible.height();
+        if (mCropped.length < croppedWidth * croppedHeight) {
+            mCropped = new byte[croppedWidth * croppedHeight];
+        }
+        boolean interlaced = (flags & INTERLACE_FLAG) != 0;
+        for (int y = 0; y < croppedHeight; y++) {
+            int row = visible.top - top + y;
+            int sourceRow = interlaced ? getInterlacedRow(row, height) : row;
+            System.arraycopy(mPixels, sourceRow * width + visible.left - left, mCropped, y * croppedWidth, croppedWidth);
+        }
+
+        writeGraphicControl();
+        mOut.write(IMAGE_SEPARATOR);
+        writeShort(visible.left - mCrop.left);
+        writeShort(visible.top - mCrop.top);
+        writeShort(croppedWidth);
+        writeShort(croppedHeight);
+        mOut.write(flags & ~INTERLACE_FLAG);
+        if (colorTable != null) {
+            mOut.write(colorTable);
+        }
+        mEncoder.encode(minCodeSize, mCropped, croppedWidth * croppedHeight);
+    }
+
+    /**
+     * Writes a transparent 1x1 frame, standing in for a frame outside the crop window so that the
+     * animation keeps its timing.
+     */
+    private void writeEmptyFrame() throws IOException {
+        int delayLow = mHasGraphicControl ? mGraphicControl[1] & 0xFF : 0;
+        int delayHigh = mHasGraphicControl ? mGraphicControl[2] & 0xFF : 0;
+        mOut.write(new byte[]{EXTENSION_INTRODUCER, (byte) GRAPHIC_CONTROL_LABEL, 4,
+                DISPOSAL_NONE | TRANSPARENT_FLAG, (byte) delayLow, (byte) delayHigh, 0, 0});
+        mHasGraphicControl = false;
+
+        mOut.write(IMAGE_SEPARATOR);
+        writeShort(0);
+        writeShort(0);
+        writeShort(1);
+        writeShort(1);
+        // A local table of two (black) entries, so the frame never depends on the global table.
+        mOut.write(COLOR_TABLE_FLAG);
+        mOut.write(new byte[6]);
+        mCropped[0] = 0;
+        mEncoder.encode(2, mCropped, 1);
+    }
+
+    private void writeGraphicControl() throws IOException {
+        if (mHasGraphicControl) {
+            mOut.write(EXTENSION_INTRODUCER);
+            mOut.write(GRAPHIC_CONTROL_LABEL);
+            mOut.write(4);
+            mOut.write(mGraphicControl);
+            mOut.write(0);
+            mHasGraphicControl = false;
+        }
+    }
+
+    /**
+     * Maps a row of an interlaced image to the order its rows are stored in: every 8th row from 0,
+     * every 8th from 4, every 4th from 2, then every 2nd from 1.
+     */
+    private static int getInterlacedRow(int row, int height) {
+        int pass1 = (height + 7) / 8;
+        int pass2 = (height + 3) / 8;
+        int pass3 = (height + 1) / 4;
+        if (row % 8 == 0) {
+            return row / 8;
+        } else if (row % 8 == 4) {
+            return pass1 + row / 8;
+        } else if (row % 4 == 2) {
+            return pass1 + pass2 + row / 4;
+        }
+        return pass1 + pass2 + pass3 + row / 2;
+    }
+
+    @NonNull
+    private byte[] readColorTable(int flags) throws IOException {
+        byte[] colorTable = new byte[3 << ((flags & COLOR_TABLE_SIZE_MASK) + 1)];
+        readFully(colorTable, colorTable.length);
+        return colorTable;
+    }
+
+    private int getColorTableBytes(int flags) {
+        return 3 << ((flags & COLOR_TABLE_SIZE_MASK) + 1);
+    }
+
+    private void copy(int length) throws IOException {
+        while (length > 0) {
+            int count = Math.min(length, mBlock.length);
+            readFully(mBlock, count);
+            mOut.write(mBlock, 0, count);
+            length -= count;
+        }
+    }
+
+    private void skipSubBlocks() throws IOException {
+        int size;
+        while ((size = read()) != 0) {
+            readFully(mBlock, size);
+        }
+    }
+
+    private int read() throws IOException {
+        int value = mIn.read();
+        if (value < 0) {
+            throw new EOFException("Truncated GIF");
+        }
+        return value;
+    }
+
+    private void readFully(@NonNull byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int count = mIn.read(buffer, offset, length - offset);
+            if (count < 0) {
+                throw new EOFException("Truncated GIF");
+            }
+            offset += count;
+        }
+    }
+
+    private static int readShort(@NonNull byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) | (buffer[offset + 1] & 0xFF) << 8;
+    }
+
+    private void writeShort(int value) throws IOException {
+        mOut.write(value & 0xFF);
+        mOut.write((value >> 8) & 0xFF);
+    }
+
+    private void writeAscii(@NonNull String value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            mOut.write(value.charAt(i));
+        }
+    }
+
+    // Inner Classes ///////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Decodes the LZW-coded pixel indices of one image from its data sub-blocks.
+     */
+    private class LzwDecoder {
+
+        private final short[] mPrefix = new short[MAX_CODES];
+        private final byte[] mSuffix = new byte[MAX_CODES];
+        private final byte[] mStack = new byte[MAX_CODES + 1];
+
+        // Bits read from the sub-blocks but not consumed yet.
+        private int mBits;
+        private int mBitCount;
+        private int mBlockSize;
+        private int mBlockOffset;
+
+        // Whether the block terminator has been read.
+        private boolean mEndOfData;
+
+        /**
+         * Decodes up to <code>count</code> indices; a truncated image is padded with index 0. The
+         * sub-blocks are always consumed up to their terminator.
+         */
+        void decode(int minCodeSize, @NonNull byte[] pixels, int count) throws IOException {
+            int clear = 1 << minCodeSize;
+            int end = clear + 1;
+            for (int code = 0; code < clear; code++) {
+                mPrefix[code] = -1;
+                mSuffix[code] = (byte) code;
+            }
+            mBits = 0;
+            mBitCount = 0;
+            mBlockSize = 0;
+            mBlockOffset = 0;
+            mEndOfData = false;
+
+            int codeSize = minCodeSize + 1;
+            int next = clear + 2;
+            int previous = -1;
+            int first = 0;
+            int written = 0;
+            while (written < count) {
+                int code = readCode(codeSize);
+                if (code < 0 || code == end) {
+                    break;
+                }
+                if (code == clear) {
+                    codeSize = minCodeSize + 1;
+                    next = clear + 2;
+                    previous = -1;
+                    continue;
+                }
+                if (previous == -1) {
+                    if (code >= clear) {
+                        break;
+                    }
+                    pixels[written++] = mSuffix[code];
+                    previous = code;
+                    first = code;
+                    continue;
+                }
+                if (code > next) {
+                    break;
+                }
+
+                int in = code;
+                int top = 0;
+                if (code == next) {
+                    // The code being defined: the previous string plus its own first index.
+                    mStack[top++] = (byte) first;
+                    code = previous;
+                }
+                while (code >= clear) {
+                    mStack[top++] = mSuffix[code];
+                    code = mPrefix[code];
+                }
+                first = mSuffix[code] & 0xFF;
+                mStack[top++] = (byte) first;
+
+                if (next < MAX_CODES) {
+                    mPrefix[next] = (short) previous;
+                    mSuffix[next] = (byte) first;
+                    next++;
+                    if (next == 1 << codeSize && codeSize < MAX_CODE_SIZE) {
+                        codeSize++;
+                    }
+                }
+                previous = in;
+                while (top > 0 && written < count) {
+                    pixels[written++] = mStack[--top];
+                }
+            }
+            Arrays.fill(pixels, written, count, (byte) 0);
+
+            // Skip whatever follows the end code, up to the terminator.
+            while (!mEndOfData) {
+                nextBlock();
+            }
+        }
+
+        /**
+         * Reads the next code, LSB first; -1 at the end of the data.
+         */
+        private int readCode(int codeSize) throws IOException {
+            while (mBitCount < codeSize) {
+                if (mBlockOffset == mBlockSize && (mEndOfData || !nextBlock())) {
+                    return -1;
+                }
+                mBits |= (mBlock[mBlockOffset++] & 0xFF) << mBitCount;
+                mBitCount += 8;
+            }
+            int code = mBits & ((1 << codeSize) - 1);
+            mBits >>>= codeSize;
+            mBitCount -= codeSize;
+            return code;
+        }
+
+        /**
+         * Reads the next sub-block into mBlock.
+         *
+         * @return false at the block terminator
+         */
+        private boolean nextBlock() throws IOException {
+            mBlockSize = read();
+            mBlockOffset = 0;
+            if (mBlockSize == 0) {
+                mEndOfData = true;
+                return false;
+            }
+            readFully(mBlock, mBlockSize);
+            return true;
+        }
+    }
+
+    /**
+     * LZW-codes pixel indices into data sub-blocks.
+     */
+    private class LzwEncoder {
+
+        // Open-addressed table from (prefix code, index) to code; keys are stored plus one, so 0
+        // marks a free slot.
+        private static final int TABLE_SIZE = 8192;
+        private final int[] mKeys = new int[TABLE_SIZE];
+        private final short[] mCodes = new short[TABLE_SIZE];
+
+        private final byte[] mOutBlock = new byte[256];
+        private int mOutSize;
+        private int mBits;
+        private int mBitCount;
+
+        private int mClear;
+        private int mCodeSize;
+        private int mNext;
+
+        void encode(int minCodeSize, @NonNull byte[] pixels, int count) throws IOException {
+            mOut.write(minCodeSize);
+            mClear = 1 << minCodeSize;
+            mOutSize = 0;
+            mBits = 0;
+            mBitCount = 0;
+            reset(minCodeSize);
+            writeCode(mClear);
+
+            int prefix = pixels[0] & 0xFF;
+            for (int i = 1; i < count; i++) {
+                int index = pixels[i] & 0xFF;
+                int key = (prefix << 8 | index) + 1;
+                int slot = (key * 0x9E3779B1) >>> 19;
+                while (mKeys[slot] != 0 && mKeys[slot] != key) {
+                    slot = (slot + 1) & (TABLE_SIZE - 1);
+                }
+                if (mKeys[slot] == key) {
+                    prefix = mCodes[slot];
+                    continue;
+                }
+                writeCode(prefix);
+                if (mNext < MAX_CODES) {
+                    mKeys[slot] = key;
+                    mCodes[slot] = (short) mNext++;
+                } else {
+                    writeCode(mClear);
+                    reset(minCodeSize);
+                }
+                prefix = index;
+            }
+            writeCode(prefix);
+            writeCode(mClear + 1);
+            if (mBitCount > 0) {
+                writeByte(mBits & 0xFF);
+            }
+            if (mOutSize > 0) {
+                flushBlock();
+            }
+            mOut.write(0);
+        }
+
+        private void reset(int minCodeSize) {
+            Arrays.fill(mKeys, 0);
+            mCodeSize = minCodeSize + 1;
+            mNext = mClear + 2;
+        }
+
+        /**
+         * Writes a code, then widens the codes once the next one to be defined no longer fits, in
+         * step with the decoder (which defines each code one step later).
+         */
+        private void writeCode(int code) throws IOException {
+            mBits |= code << mBitCount;
+            mBitCount += mCodeSize;
+            while (mBitCount >= 8) {
+                writeByte(mBits & 0xFF);
+                mBits >>>= 8;
+                mBitCount -= 8;
+            }
+            if (mNext > (1 << mCodeSize) - 1 && mCodeSize < MAX_CODE_SIZE) {
+                mCodeSize++;
+            }
+        }
+
+        private void writeByte(int value) throws IOException {
+            mOutBlock[mOutSize++] = (byte) value;
+            if (mOutSize == 255) {
+                flushBlock();
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            mOut.write(mOutSize);
+            mOut.write(mOutBlock, 0, mOutSize);
+            mOutSize = 0;
+        }
+    }
+}
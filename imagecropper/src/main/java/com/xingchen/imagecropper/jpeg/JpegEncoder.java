@@ -0,0 +1,554 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+
+package com.xingchen.imagecropper.jpeg;
+
+import androidx.annotation.NonNull;
+
+import com.xingchen.imagecropper.raster.IntRaster;
+import com.xingchen.imagecropper.utils.ParallelUtil;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Baseline JPEG encoder that uses every core, for large crops where <code>Bitmap.compress()</code>
+ * (or ImageIO, headlessly) would encode on a single thread.
+ * <p/>
+ * The image is cut into horizontal segments of whole MCU rows, one restart interval each. Restart
+ * markers reset the DC predictors and byte-align the entropy-coded data, so every segment can be
+ * color converted, transformed, quantized and Huffman coded on its own thread with
+ * {@link ParallelUtil}; the segments are then written out in order, separated by RST markers, as
+ * one standard baseline JPEG that any decoder reads.
+ * <p/>
+ * The output is YCbCr with 4:2:0 chroma subsampling, the standard (Annex K) Huffman tables and the
+ * IJG quality scaling of the standard quantization tables, like libjpeg. Alpha is ignored: composite
+ * translucent pixels onto a background first (see {@link com.xingchen.imagecropper.output.MaskedCrop}).
+ * Instances are immutable and may be shared between threads.
+ */
+public class JpegEncoder {
+
+    // Private Constants ///////////////////////////////////////////////////////////////////////////
+
+    // Number of segments each thread gets, to even out uneven progress.
+    private static final int SEGMENTS_PER_THREAD = 4;
+
+    // The largest restart interval the DRI marker can hold, in MCUs.
+    private static final int MAX_RESTART_INTERVAL = 0xFFFF;
+
+    // An MCU covers 16x16 pixels: four 8x8 luma blocks and one block of each subsampled chroma channel.
+    private static final int MCU_SIZE = 16;
+
+    // For each position in zigzag order, the index of the coefficient in row-major order.
+    private static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63};
+
+    // Standard quantization tables (Annex K.1), in row-major order.
+    private static final int[] LUMA_QUANTIZATION = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99};
+    private static final int[] CHROMA_QUANTIZATION = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99};
+
+    // Standard Huffman tables (Annex K.3): the number of codes of each length 1-16, then the values.
+    private static final int[] LUMA_DC_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private static final int[] LUMA_DC_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[] CHROMA_DC_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private static final int[] CHROMA_DC_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[] LUMA_AC_BITS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    private static final int[] LUMA_AC_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa};
+    private static final int[] CHROMA_AC_BITS = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private static final int[] CHROMA_AC_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa};
+
+    private static final HuffmanTable LUMA_DC = new HuffmanTable(LUMA_DC_BITS, LUMA_DC_VALUES);
+    private static final HuffmanTable LUMA_AC = new HuffmanTable(LUMA_AC_BITS, LUMA_AC_VALUES);
+    private static final HuffmanTable CHROMA_DC = new HuffmanTable(CHROMA_DC_BITS, CHROMA_DC_VALUES);
+    private static final HuffmanTable CHROMA_AC = new HuffmanTable(CHROMA_AC_BITS, CHROMA_AC_VALUES);
+
+    // Scale factors of the AAN DCT, folded into the quantization divisors.
+    private static final double[] AAN_SCALE = {
+            1.0, 1.387039845, 1.306562965, 1.175875602, 1.0, 0.785694958, 0.541196100, 0.275899379};
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    private final int mQuality;
+
+    // The scaled quantization tables, in row-major order, and their reciprocals premultiplied by
+    // the DCT scale factors.
+    private final int[] mLumaQuantization;
+    private final int[] mChromaQuantization;
+    private final float[] mLumaDivisors;
+    private final float[] mChromaDivisors;
+
+    // Constructor /////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Constructor.
+     *
+     * @param quality the quality, 1-100, scaling the quantization tables like libjpeg does
+     */
+    public JpegEncoder(int quality) {
+        if (quality < 1 || quality > 100) {
+            throw new IllegalArgumentException("Quality must be between 1 and 100.");
+        }
+        mQuality = quality;
+        mLumaQuantization = scaleQuantization(LUMA_QUANTIZATION, quality);
+        mChromaQuantization = scaleQuantization(CHROMA_QUANTIZATION, quality);
+        mLumaDivisors = getDivisors(mLumaQuantization);
+        mChromaDivisors = getDivisors(mChromaQuantization);
+    }
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Gets the quality this encoder was created with.
+     */
+    public int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * Encodes packed ARGB pixels (as returned by <code>Bitmap.getPixels()</code>) as a JPEG.
+     *
+     * @param raster the pixels to encode; alpha is ignored
+     * @param out    the stream to write to; it is not closed
+     * @throws IOException if the output could not be written or the calling thread was interrupted
+     */
+    public void encode(@NonNull final IntRaster raster, @NonNull OutputStream out) throws IOException {
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        if (width <= 0 || height <= 0 || width > 0xFFFF || height > 0xFFFF) {
+            throw new IllegalArgumentException("Cannot encode a " + width + "x" + height + " JPEG.");
+        }
+        int mcusPerRow = (width + MCU_SIZE - 1) / MCU_SIZE;
+        final int mcuRows = (height + MCU_SIZE - 1) / MCU_SIZE;
+        int segmentTarget = ParallelUtil.getParallelism() * SEGMENTS_PER_THREAD;
+        final int rowsPerSegment = Math.max(1, Math.min(MAX_RESTART_INTERVAL / mcusPerRow, (mcuRows + segmentTarget - 1) / segmentTarget));
+        int segmentCount = (mcuRows + rowsPerSegment - 1) / rowsPerSegment;
+
+        final byte[][] segments = new byte[segmentCount][];
+        ParallelUtil.parallelFor(segmentCount, new ParallelUtil.IndexedTask() {
+            @Override
+            public void run(int index) {
+                int firstRow = index * rowsPerSegment;
+                segments[index] = encodeSegment(raster, firstRow, Math.min(firstRow + rowsPerSegment, mcuRows));
+            }
+        });
+
+        writeHeaders(out, width, height, segmentCount > 1 ? rowsPerSegment * mcusPerRow : 0);
+        for (int i = 0; i < segmentCount; i++) {
+            out.write(segments[i]);
+            if (i < segmentCount - 1) {
+                // RST0 to RST7, in turn.
+                out.write(0xFF);
+                out.write(0xD0 + (i & 7));
+            }
+        }
+        out.write(0xFF);
+        out.write(0xD9);
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Encodes the MCU rows [firstRow, endRow) into byte-aligned entropy-coded data.
+     */
+    @NonNull
+    private byte[] encodeSegment(@NonNull IntRaster raster, int firstRow, int endRow) {
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        int[] pixels = raster.getPixels();
+        int offset = raster.getOffset();
+        int stride = raster.getStride();
+
+        BitWriter writer = new BitWriter((endRow - firstRow) * width * MCU_SIZE / 4);
+        float[] y = new float[MCU_SIZE * MCU_SIZE];
+        float[] cb = new float[MCU_SIZE * MCU_SIZE];
+        float[] cr = new float[MCU_SIZE * MCU_SIZE];
+        float[] block = new float[64];
+        int[] coefficients = new int[64];
+        int[] predictors = new int[3];
+
+        for (int row = firstRow; row < endRow; row++) {
+            for (int mcuX = 0; mcuX < width; mcuX += MCU_SIZE) {
+                // Convert the MCU to YCbCr, centered on 0, repeating the edge pixels past the image.
+                int mcuY = row * MCU_SIZE;
+                for (int j = 0; j < MCU_SIZE; j++) {
+                    int line = offset + Math.min(mcuY + j, height - 1) * stride;
+                    for (int i = 0; i < MCU_SIZE; i++) {
+                        int pixel = pixels[line + Math.min(mcuX + i, width - 1)];
+                        int r = (pixel >> 16) & 0xFF;
+                        int g = (pixel >> 8) & 0xFF;
+                        int b = pixel & 0xFF;
+                        int index = j * MCU_SIZE + i;
+                        y[index] = 0.299f * r + 0.587f * g + 0.114f * b - 128;
+                        cb[index] = -0.168736f * r - 0.331264f * g + 0.5f * b;
+                        cr[index] = 0.5f * r - 0.418688f * g - 0.081312f * b;
+                    }
+                }
+
+                for (int blockY = 0; blockY < MCU_SIZE; blockY += 8) {
+                    for (int blockX = 0; blockX < MCU_SIZE; blockX += 8) {
+                        for (int j = 0; j < 8; j++) {
+                            System.arraycopy(y, (blockY + j) * MCU_SIZE + blockX, block, j * 8, 8);
+                        }
+                        predictors[0] = encodeBlock(block, mLumaDivisors, coefficients, predictors[0], LUMA_DC, LUMA_AC, writer);
+                    }
+                }
+                subsample(cb, block);
+                predictors[1] = encodeBlock(block, mChromaDivisors, coefficients, predictors[1], CHROMA_DC, CHROMA_AC, writer);
+                subsample(cr, block);
+                predictors[2] = encodeBlock(block, mChromaDivisors, coefficients, predictors[2], CHROMA_DC, CHROMA_AC, writer);
+            }
+        }
+        writer.flush();
+        return writer.toByteArray();
+    }
+
+    /**
+     * Averages each 2x2 square of a 16x16 chroma MCU into an 8x8 block.
+     */
+    private static void subsample(@NonNull float[] mcu, @NonNull float[] block) {
+        for (int j = 0; j < 8; j++) {
+            for (int i = 0; i < 8; i++) {
+                int index = 2 * j * MCU_SIZE + 2 * i;
+                block[j * 8 + i] = 0.25f * (mcu[index] + mcu[index + 1] + mcu[index + MCU_SIZE] + mcu[index + MCU_SIZE + 1]);
+            }
+        }
+    }
+
+    /**
+     * Transforms, quantizes and Huffman codes one block.
+     *
+     * @return the quantized DC coefficient, the predictor for the next block of the component
+     */
+    private static int encodeBlock(@NonNull float[] block,
+                                   @NonNull float[] divisors,
+                                   @NonNull int[] coefficients,
+                                   int predictor,
+                                   @NonNull HuffmanTable dcTable,
+                                   @NonNull HuffmanTable acTable,
+                                   @NonNull BitWriter writer) {
+        forwardDct(block);
+        for (int i = 0; i < 64; i++) {
+            coefficients[i] = Math.round(block[i] * divisors[i]);
+        }
+
+        int dc = coefficients[0];
+        int diff = dc - predictor;
+        int category = getCategory(diff);
+        writer.write(dcTable.mCodes[category], dcTable.mLengths[category]);
+        writer.write(getAdditionalBits(diff, category), category);
+
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int value = coefficients[ZIGZAG[k]];
+            if (value == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                // ZRL: a run of 16 zeros.
+                writer.write(acTable.mCodes[0xF0], acTable.mLengths[0xF0]);
+                run -= 16;
+            }
+            category = getCategory(value);
+            int symbol = (run << 4) | category;
+            writer.write(acTable.mCodes[symbol], acTable.mLengths[symbol]);
+            writer.write(getAdditionalBits(value, category), category);
+            run = 0;
+        }
+        if (run > 0) {
+            // EOB: the rest of the block is zero.
+            writer.write(acTable.mCodes[0x00], acTable.mLengths[0x00]);
+        }
+        return dc;
+    }
+
+    /**
+     * Gets the number of bits needed to represent the magnitude of a value.
+     */
+    private static int getCategory(int value) {
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+
+    /**
+     * Gets the bits following a Huffman code: the value itself if positive, its ones' complement
+     * (in <code>category</code> bits) if negative.
+     */
+    private static int getAdditionalBits(int value, int category) {
+        return value >= 0 ? value : value + (1 << category) - 1;
+    }
+
+    /**
+     * Forward DCT of an 8x8 block in place, with the AAN algorithm (IJG's jfdctflt). The outputs are
+     * scaled by the AAN factors, which {@link #getDivisors} removes during quantization.
+     */
+    private static void forwardDct(@NonNull float[] data) {
+        for (int pass = 0; pass < 2; pass++) {
+            // Rows on the first pass, columns on the second.
+            int step = pass == 0 ? 1 : 8;
+            int lineStep = pass == 0 ? 8 : 1;
+            for (int line = 0; line < 8; line++) {
+                int p = line * lineStep;
+                float d0 = data[p];
+                float d1 = data[p + step];
+                float d2 = data[p + 2 * step];
+                float d3 = data[p + 3 * step];
+                float d4 = data[p + 4 * step];
+                float d5 = data[p + 5 * step];
+                float d6 = data[p + 6 * step];
+                float d7 = data[p + 7 * step];
+
+                float tmp0 = d0 + d7;
+                float tmp7 = d0 - d7;
+                float tmp1 = d1 + d6;
+                float tmp6 = d1 - d6;
+                float tmp2 = d2 + d5;
+                float tmp5 = d2 - d5;
+                float tmp3 = d3 + d4;
+                float tmp4 = d3 - d4;
+
+                // Even part.
+                float tmp10 = tmp0 + tmp3;
+                float tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2;
+                float tmp12 = tmp1 - tmp2;
+                data[p] = tmp10 + tmp11;
+                data[p + 4 * step] = tmp10 - tmp11;
+                float z1 = (tmp12 + tmp13) * 0.707106781f;
+                data[p + 2 * step] = tmp13 + z1;
+                data[p + 6 * step] = tmp13 - z1;
+
+                // Odd part.
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+                float z5 = (tmp10 - tmp12) * 0.382683433f;
+                float z2 = 0.541196100f * tmp10 + z5;
+                float z4 = 1.306562965f * tmp12 + z5;
+                float z3 = tmp11 * 0.707106781f;
+                float z11 = tmp7 + z3;
+                float z13 = tmp7 - z3;
+                data[p + 5 * step] = z13 + z2;
+                data[p + 3 * step] = z13 - z2;
+                data[p + step] = z11 + z4;
+                data[p + 7 * step] = z11 - z4;
+            }
+        }
+    }
+
+    /**
+     * Scales a standard quantization table to the given quality, like libjpeg's
+     * <code>jpeg_quality_scaling()</code>.
+     */
+    @NonNull
+    private static int[] scaleQuantization(@NonNull int[] table, int quality) {
+        int scale = quality < 50 ? 5000 / quality : 200 - 2 * quality;
+        int[] scaled = new int[64];
+        for (int i = 0; i < 64; i++) {
+            scaled[i] = Math.max(1, Math.min(255, (table[i] * scale + 50) / 100));
+        }
+        return scaled;
+    }
+
+    /**
+     * Gets the factors that turn AAN DCT outputs into quantized coefficients.
+     */
+    @NonNull
+    private static float[] getDivisors(@NonNull int[] quantization) {
+        float[] divisors = new float[64];
+        for (int row = 0; row < 8; row++) {
+            for (int column = 0; column < 8; column++) {
+                int i = row * 8 + column;
+                divisors[i] = (float) (1.0 / (quantization[i] * AAN_SCALE[row] * AAN_SCALE[column] * 8.0));
+            }
+        }
+        return divisors;
+    }
+
+    private void writeHeaders(@NonNull OutputStream out, int width, int height, int restartInterval) throws IOException {
+        out.write(0xFF);
+        out.write(0xD8);
+
+        // APP0: JFIF 1.01, no density, no thumbnail.
+        writeMarker(out, 0xE0, new byte[]{'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0});
+
+        // DQT: table 0 (luma) and table 1 (chroma), 8-bit precision, in zigzag order.
+        byte[] dqt = new byte[2 * 65];
+        dqt[0] = 0;
+        dqt[65] = 1;
+        for (int k = 0; k < 64; k++) {
+            dqt[1 + k] = (byte) mLumaQuantization[ZIGZAG[k]];
+            dqt[66 + k] = (byte) mChromaQuantization[ZIGZAG[k]];
+        }
+        writeMarker(out, 0xDB, dqt);
+
+        // SOF0: 8-bit baseline, three components; luma sampled 2x2 with table 0, chroma 1x1 with table 1.
+        writeMarker(out, 0xC0, new byte[]{8, (byte) (height >> 8), (byte) height, (byte) (width >> 8), (byte) width, 3,
+                1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1});
+
+        // DHT: DC and AC tables 0 (luma) and 1 (chroma).
+        writeHuffmanTable(out, 0x00, LUMA_DC_BITS, LUMA_DC_VALUES);
+        writeHuffmanTable(out, 0x10, LUMA_AC_BITS, LUMA_AC_VALUES);
+        writeHuffmanTable(out, 0x01, CHROMA_DC_BITS, CHROMA_DC_VALUES);
+        writeHuffmanTable(out, 0x11, CHROMA_AC_BITS, CHROMA_AC_VALUES);
+
+        if (restartInterval > 0) {
+            writeMarker(out, 0xDD, new byte[]{(byte) (restartInterval >> 8), (byte) restartInterval});
+        }
+
+        // SOS: all three components, full spectral range.
+        writeMarker(out, 0xDA, new byte[]{3, 1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0});
+    }
+
+    private static void writeHuffmanTable(@NonNull OutputStream out, int tableClassAndId, @NonNull int[] bits, @NonNull int[] values) throws IOException {
+        byte[] data = new byte[1 + 16 + values.length];
+        data[0] = (byte) tableClassAndId;
+        for (int i = 0; i < 16; i++) {
+            data[1 + i] = (byte) bits[i];
+        }
+        for (int i = 0; i < values.length; i++) {
+            data[17 + i] = (byte) values[i];
+        }
+        writeMarker(out, 0xC4, data);
+    }
+
+    private static void writeMarker(@NonNull OutputStream out, int marker, @NonNull byte[] data) throws IOException {
+        int length = data.length + 2;
+        out.write(0xFF);
+        out.write(marker);
+        out.write(length >> 8);
+        out.write(length & 0xFF);
+        out.write(data);
+    }
+
+    // Inner Classes ///////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * A Huffman table expanded into the code and code length of every symbol.
+     */
+    private static class HuffmanTable {
+
+        final int[] mCodes = new int[256];
+        final int[] mLengths = new int[256];
+
+        HuffmanTable(@NonNull int[] bits, @NonNull int[] values) {
+            // Canonical codes (Annex C): consecutive within a length, shifted left between lengths.
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < bits[length - 1]; i++) {
+                    mCodes[values[k]] = code++;
+                    mLengths[values[k]] = length;
+                    k++;
+                }
+                code <<= 1;
+            }
+        }
+    }
+
+    /**
+     * Packs variable-length codes into bytes, stuffing a zero byte after every 0xFF.
+     */
+    private static class BitWriter {
+
+        private byte[] mBuffer;
+        private int mSize;
+
+        // Pending bits, right-aligned, and how many there are (always fewer than 8 between writes).
+        private int mBits;
+        private int mBitCount;
+
+        BitWriter(int initialCapacity) {
+            mBuffer = new byte[Math.max(64, initialCapacity)];
+        }
+
+        void write(int value, int count) {
+            if (count == 0) {
+                return;
+            }
+            mBits = (mBits << count) | (value & ((1 << count) - 1));
+            mBitCount += count;
+            while (mBitCount >= 8) {
+                mBitCount -= 8;
+                writeByte((mBits >> mBitCount) & 0xFF);
+            }
+            mBits &= (1 << mBitCount) - 1;
+        }
+
+        /**
+         * Pads the last byte with 1 bits, as required before a marker.
+         */
+        void flush() {
+            if (mBitCount > 0) {
+                write(0x7F, 8 - mBitCount);
+            }
+        }
+
+        @NonNull
+        byte[] toByteArray() {
+            return Arrays.copyOf(mBuffer, mSize);
+        }
+
+        private void writeByte(int value) {
+            if (mSize + 2 > mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2);
+            }
+            mBuffer[mSize++] = (byte) value;
+            if (value == 0xFF) {
+                mBuffer[mSize++] = 0;
+            }
+        }
+    }
+}
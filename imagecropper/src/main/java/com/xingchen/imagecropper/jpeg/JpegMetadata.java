@@ -0,0 +1,501 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+
+package com.xingchen.imagecropper.jpeg;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.xingchen.imagecropper.source.ImageSource;
+import com.xingchen.imagecropper.utils.IOUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The EXIF, XMP and ICC profile segments of a JPEG, carried over byte for byte into the encoded
+ * crop instead of being re-attached with <code>ExifInterface</code> (which re-reads and rewrites
+ * the whole output).
+ * <p/>
+ * {@link #read(InputStream)} reads the source only up to the end of its metadata, which precedes
+ * the image data. {@link #insertInto(OutputStream, int)} then wraps the stream an encoder writes
+ * to and inserts the segments right after its start-of-image marker (and its JFIF segment, which
+ * must come first). The only fields changed are the EXIF orientation and pixel dimensions, which
+ * are patched in place, and the EXIF thumbnail, which shows the uncropped image and is unlinked
+ * and erased in place. Everything else, including any dimensions recorded in the XMP, is left as
+ * it was.
+ */
+public class JpegMetadata {
+
+    // Public Constants ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Passed to {@link #insertInto(OutputStream, int)} to keep the orientation of the source.
+     */
+    public static final int ORIENTATION_UNCHANGED = 0;
+
+    // Private Constants ///////////////////////////////////////////////////////////////////////////
+
+    private static final int SOI = 0xD8;
+    private static final int SOS = 0xDA;
+    private static final int APP0 = 0xE0;
+    private static final int APP1 = 0xE1;
+    private static final int APP2 = 0xE2;
+
+    // Identifiers at the start of the segments worth carrying over.
+    private static final byte[] EXIF = ascii("Exif\0\0");
+    private static final byte[] XMP = ascii("http://ns.adobe.com/xap/1.0/\0");
+    private static final byte[] EXTENDED_XMP = ascii("http://ns.adobe.com/xmp/extension/\0");
+    private static final byte[] ICC_PROFILE = ascii("ICC_PROFILE\0");
+
+    // Offset of the TIFF header in an EXIF segment: marker, length and identifier.
+    private static final int TIFF_OFFSET = 4 + 6;
+
+    private static final int TAG_IMAGE_WIDTH = 0x0100;
+    private static final int TAG_IMAGE_LENGTH = 0x0101;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_PIXEL_X_DIMENSION = 0xA002;
+    private static final int TAG_PIXEL_Y_DIMENSION = 0xA003;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    // The segments to copy, in source order, each with its marker and length.
+    private final List<byte[]> mSegments;
+
+    // Constructor /////////////////////////////////////////////////////////////////////////////////
+
+    private JpegMetadata(@NonNull List<byte[]> segments) {
+        mSegments = segments;
+    }
+
+    // Static Factory Methods //////////////////////////////////////////////////////////////////////
+
+    /**
+     * Reads the metadata segments of a JPEG, stopping at the first segment that is neither
+     * application data nor a comment (in practice the quantization tables or the frame header).
+     *
+     * @param in the encoded image, positioned at its start; it is not closed
+     * @return the metadata; empty if the stream is not a JPEG or has none worth carrying over
+     * @throws IOException if the stream could not be read
+     */
+    @NonNull
+    public static JpegMetadata read(@NonNull InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.read() != 0xFF || data.read() != SOI) {
+            return new JpegMetadata(Collections.<byte[]>emptyList());
+        }
+        List<byte[]> segments = new ArrayList<>();
+        try {
+            while (true) {
+                int marker = data.readUnsignedByte();
+                if (marker != 0xFF) {
+                    break;
+                }
+                while (marker == 0xFF) {
+                    // Markers may be preceded by any number of fill bytes.
+                    marker = data.readUnsignedByte();
+                }
+                if (marker < 0xE0 && marker != 0xFE) {
+                    break;
+                }
+                int length = data.readUnsignedShort();
+                if (length < 2) {
+                    break;
+                }
+                byte[] segment = new byte[length + 2];
+                segment[0] = (byte) 0xFF;
+                segment[1] = (byte) marker;
+                segment[2] = (byte) (length >> 8);
+                segment[3] = (byte) length;
+                data.readFully(segment, 4, length - 2);
+                if (isCarriedOver(segment)) {
+                    segments.add(segment);
+                }
+            }
+        } catch (EOFException e) {
+            // A truncated header; keep what was read before it.
+        }
+        return new JpegMetadata(segments);
+    }
+
+    /**
+     * Reads the metadata segments of a JPEG image source; see {@link #read(InputStream)}.
+     *
+     * @param source the image; may be null
+     * @return the metadata; empty if there is no source or it is not a JPEG
+     * @throws IOException if the source could not be read
+     */
+    @NonNull
+    public static JpegMetadata read(@Nullable ImageSource source) throws IOException {
+        if (source == null || !"image/jpeg".equals(source.getMimeType())) {
+            return new JpegMetadata(Collections.<byte[]>emptyList());
+        }
+        InputStream in = source.openStream();
+        try {
+            return read(in);
+        } finally {
+            IOUtil.closeQuietly(in);
+        }
+    }
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns whether there are no segments to carry over.
+     */
+    public boolean isEmpty() {
+        return mSegments.isEmpty();
+    }
+
+    /**
+     * Wraps a stream so that the JPEG written to it gets these metadata segments. The header the
+     * encoder writes is held back until its frame header, which gives the pixel dimensions to
+     * patch in; the rest is passed straight through. Output that does not start like a JPEG is
+     * passed through unchanged.
+     *
+     * @param out         the stream to write the JPEG with metadata to; closing the returned
+     *                    stream closes it
+     * @param orientation the EXIF orientation (1-8) of the encoded pixels, or
+     *                    {@link #ORIENTATION_UNCHANGED} to keep the orientation of the source
+     */
+    @NonNull
+    public OutputStream insertInto(@NonNull OutputStream out, int orientation) {
+        if (isEmpty()) {
+            return out;
+        }
+        return new InsertingOutputStream(out, orientation);
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    private static boolean isCarriedOver(@NonNull byte[] segment) {
+        int marker = segment[1] & 0xFF;
+        if (marker == APP1) {
+            return startsWith(segment, EXIF) || startsWith(segment, XMP) || startsWith(segment, EXTENDED_XMP);
+        }
+        return marker == APP2 && startsWith(segment, ICC_PROFILE);
+    }
+
+    private static boolean startsWith(@NonNull byte[] segment, @NonNull byte[] identifier) {
+        if (segment.length < 4 + identifier.length) {
+            return false;
+        }
+        for (int i = 0; i < identifier.length; i++) {
+            if (segment[4 + i] != identifier[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes every segment, patching a copy of the EXIF segment for the encoded image.
+     */
+    private void writeSegments(@NonNull OutputStream out, int width, int height, int orientation) throws IOException {
+        for (byte[] segment : mSegments) {
+            if ((segment[1] & 0xFF) == APP1 && startsWith(segment, EXIF)) {
+                segment = segment.clone();
+                new ExifPatcher(segment).patch(width, height, orientation);
+            }
+            out.write(segment);
+        }
+    }
+
+    @NonNull
+    private static byte[] ascii(@NonNull String string) {
+        byte[] bytes = new byte[string.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) string.charAt(i);
+        }
+        return bytes;
+    }
+
+    // Inner Classes ///////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Overwrites tag values in a TIFF structure in place. Offsets are checked against the segment,
+     * and anything malformed is left unpatched rather than failing the crop.
+     */
+    private static class ExifPatcher {
+
+        private final byte[] mData;
+        private boolean mLittleEndian;
+
+        ExifPatcher(@NonNull byte[] segment) {
+            mData = segment;
+        }
+
+        void patch(int width, int height, int orientation) {
+            if (mData.length < TIFF_OFFSET + 8) {
+                return;
+            }
+            int byteOrder = readShort(TIFF_OFFSET);
+            if (byteOrder == 0x4949) {
+                mLittleEndian = true;
+            } else if (byteOrder != 0x4D4D) {
+                return;
+            }
+            int ifd = readOffset(TIFF_OFFSET + 4);
+            if (ifd < 0) {
+                return;
+            }
+            int exifIfd = -1;
+            int count = readShort(ifd);
+            dropThumbnail(ifd + 2 + count * 12);
+            for (int i = 0; i < count; i++) {
+                int entry = ifd + 2 + i * 12;
+                if (entry + 12 > mData.length) {
+                    break;
+                }
+                int tag = readShort(entry);
+                if (tag == TAG_ORIENTATION && orientation != ORIENTATION_UNCHANGED) {
+                    writeValue(entry, orientation);
+                } else if (tag == TAG_IMAGE_WIDTH) {
+                    writeValue(entry, width);
+                } else if (tag == TAG_IMAGE_LENGTH) {
+                    writeValue(entry, height);
+                } else if (tag == TAG_EXIF_IFD) {
+                    exifIfd = readOffset(entry + 8);
+                }
+            }
+            count = exifIfd >= 0 ? readShort(exifIfd) : 0;
+            for (int i = 0; i < count; i++) {
+                int entry = exifIfd + 2 + i * 12;
+                if (entry + 12 > mData.length) {
+                    break;
+                }
+                int tag = readShort(entry);
+                if (tag == TAG_PIXEL_X_DIMENSION) {
+                    writeValue(entry, width);
+                } else if (tag == TAG_PIXEL_Y_DIMENSION) {
+                    writeValue(entry, height);
+                }
+            }
+        }
+
+        /**
+         * Erases the JPEG thumbnail of the IFD following IFD0 (IFD1) and unlinks that IFD by zeroing
+         * the next-IFD offset of IFD0.
+         *
+         * @param next the position of the next-IFD offset of IFD0
+         */
+        private void dropThumbnail(int next) {
+            if (next + 4 > mData.length) {
+                return;
+            }
+            int ifd = readInt(next) != 0 ? readOffset(next) : -1;
+            writeInt(next, 0);
+            int count = ifd >= 0 ? readShort(ifd) : 0;
+            long offset = -1;
+            long length = 0;
+            for (int i = 0; i < count; i++) {
+                int entry = ifd + 2 + i * 12;
+                if (entry + 12 > mData.length) {
+                    break;
+                }
+                int tag = readShort(entry);
+                if (tag == TAG_THUMBNAIL_OFFSET) {
+                    offset = readInt(entry + 8) & 0xFFFFFFFFL;
+                } else if (tag == TAG_THUMBNAIL_LENGTH) {
+                    length = readInt(entry + 8) & 0xFFFFFFFFL;
+                }
+            }
+            if (offset >= 0) {
+                // Unreachable once unlinked, but still in the segment; the bytes must go too.
+                int start = (int) Math.min(mData.length, TIFF_OFFSET + offset);
+                int end = (int) Math.min(mData.length, start + length);
+                Arrays.fill(mData, start, end, (byte) 0);
+            }
+        }
+
+        /**
+         * Overwrites the single SHORT or LONG value of an entry, widening a SHORT that cannot hold it.
+         */
+        private void writeValue(int entry, int value) {
+            int type = readShort(entry + 2);
+            if ((type != TYPE_SHORT && type != TYPE_LONG) || readInt(entry + 4) != 1) {
+                return;
+            }
+            if (type == TYPE_SHORT && value > 0xFFFF) {
+                type = TYPE_LONG;
+                writeShort(entry + 2, TYPE_LONG);
+            }
+            // Values of up to 4 bytes are stored in the entry itself, left-aligned.
+            writeInt(entry + 8, 0);
+            if (type == TYPE_SHORT) {
+                writeShort(entry + 8, value);
+            } else {
+                writeInt(entry + 8, value);
+            }
+        }
+
+        /**
+         * Reads a TIFF offset and converts it to an index into the segment.
+         *
+         * @return the index; -1 if it points outside the segment
+         */
+        private int readOffset(int position) {
+            long offset = readInt(position) & 0xFFFFFFFFL;
+            long index = TIFF_OFFSET + offset;
+            return index + 2 <= mData.length ? (int) index : -1;
+        }
+
+        private int readShort(int position) {
+            int b0 = mData[position] & 0xFF;
+            int b1 = mData[position + 1] & 0xFF;
+            return mLittleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+        }
+
+        private int readInt(int position) {
+            int s0 = readShort(position);
+            int s1 = readShort(position + 2);
+            return mLittleEndian ? (s1 << 16) | s0 : (s0 << 16) | s1;
+        }
+
+        private void writeShort(int position, int value) {
+            mData[position + (mLittleEndian ? 0 : 1)] = (byte) value;
+            mData[position + (mLittleEndian ? 1 : 0)] = (byte) (value >> 8);
+        }
+
+        private void writeInt(int position, int value) {
+            writeShort(position + (mLittleEndian ? 0 : 2), value & 0xFFFF);
+            writeShort(position + (mLittleEndian ? 2 : 0), value >>> 16);
+        }
+    }
+
+    /**
+     * Holds back the header of the JPEG being written until its frame header, then writes the
+     * start-of-image marker (and JFIF segment, if any), the metadata and the rest of the held back
+     * segments, and passes the rest through.
+     */
+    private class InsertingOutputStream extends FilterOutputStream {
+
+        private final int mOrientation;
+
+        // The header written so far; null once it has been passed on.
+        private ByteArrayOutputStream mHeader = new ByteArrayOutputStream();
+
+        InsertingOutputStream(@NonNull OutputStream out, int orientation) {
+            super(out);
+            mOrientation = orientation;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mHeader == null) {
+                out.write(b);
+            } else {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            if (mHeader == null) {
+                out.write(b, off, len);
+                return;
+            }
+            mHeader.write(b, off, len);
+            byte[] header = mHeader.toByteArray();
+            int position = findFrameHeader(header);
+            if (position == 0) {
+                return;
+            }
+            mHeader = null;
+            if (position < 0) {
+                out.write(header);
+                return;
+            }
+            // JFIF requires its APP0 segment right after the start-of-image marker.
+            int insertion = 2;
+            if ((header[3] & 0xFF) == APP0) {
+                insertion += 2 + (((header[4] & 0xFF) << 8) | (header[5] & 0xFF));
+            }
+            out.write(header, 0, insertion);
+            int height = ((header[position + 5] & 0xFF) << 8) | (header[position + 6] & 0xFF);
+            int width = ((header[position + 7] & 0xFF) << 8) | (header[position + 8] & 0xFF);
+            writeSegments(out, width, height, mOrientation);
+            out.write(header, insertion, header.length - insertion);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            // The held back header cannot be flushed without giving up on the metadata.
+            if (mHeader == null) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mHeader != null) {
+                // The stream ended before a frame header; pass on what there is.
+                out.write(mHeader.toByteArray());
+                mHeader = null;
+            }
+            super.close();
+        }
+
+        /**
+         * Finds the complete frame header (SOF0 to SOF15) in the header written so far.
+         *
+         * @return its index; 0 if more of the header is needed, -1 if the output is not a JPEG or
+         * has no frame header before its image data
+         */
+        private int findFrameHeader(@NonNull byte[] header) {
+            if (header.length < 2) {
+                return 0;
+            }
+            if ((header[0] & 0xFF) != 0xFF || (header[1] & 0xFF) != SOI) {
+                return -1;
+            }
+            int position = 2;
+            while (position + 4 <= header.length) {
+                if ((header[position] & 0xFF) != 0xFF) {
+                    return -1;
+                }
+                int marker = header[position + 1] & 0xFF;
+                if (marker == 0xFF) {
+                    position++;
+                    continue;
+                }
+                if (marker == SOS) {
+                    return -1;
+                }
+                int length = ((header[position + 2] & 0xFF) << 8) | (header[position + 3] & 0xFF);
+                boolean frame = marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+                if (frame) {
+                    return position + 9 <= header.length ? position : 0;
+                }
+                position += 2 + length;
+            }
+            return 0;
+        }
+    }
+}
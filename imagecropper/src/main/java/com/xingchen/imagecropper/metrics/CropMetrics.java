@@ -0,0 +1,242 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+
+package com.xingchen.imagecropper.metrics;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Timings and sizes of one pass through the decode, crop and encode pipeline, reported to a
+ * {@link Listener} so that the dominant stage can be found per kind of image.
+ * <p/>
+ * Every stage is also wrapped in an {@link android.os.Trace} section named after
+ * {@link Stage#getSectionName()}, so the same breakdown shows up in systrace and Perfetto.
+ */
+public class CropMetrics {
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    private final Operation mOperation;
+    private final long[] mStageNanos;
+    private final int mSourceWidth;
+    private final int mSourceHeight;
+    private final String mMimeType;
+    private final int mSampleSize;
+    private final int mRegionWidth;
+    private final int mRegionHeight;
+    private final long mEncodedBytes;
+    private final long mPeakBitmapBytes;
+
+    // Constructor /////////////////////////////////////////////////////////////////////////////////
+
+    CropMetrics(@NonNull Operation operation,
+                @NonNull long[] stageNanos,
+                int sourceWidth,
+                int sourceHeight,
+                @Nullable String mimeType,
+                int sampleSize,
+                int regionWidth,
+                int regionHeight,
+                long encodedBytes,
+                long peakBitmapBytes) {
+        mOperation = operation;
+        mStageNanos = stageNanos;
+        mSourceWidth = sourceWidth;
+        mSourceHeight = sourceHeight;
+        mMimeType = mimeType;
+        mSampleSize = sampleSize;
+        mRegionWidth = regionWidth;
+        mRegionHeight = regionHeight;
+        mEncodedBytes = encodedBytes;
+        mPeakBitmapBytes = peakBitmapBytes;
+    }
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Receives the metrics of every pass, on the thread that ran it.
+     */
+    public interface Listener {
+        void onCropMetrics(@NonNull CropMetrics metrics);
+    }
+
+    /**
+     * Gets what the pass was for.
+     */
+    @NonNull
+    public Operation getOperation() {
+        return mOperation;
+    }
+
+    /**
+     * Gets the time spent in the given stage, in nanoseconds.
+     *
+     * @return the time; -1 if the pass did not run the stage
+     */
+    public long getStageNanos(@NonNull Stage stage) {
+        return mStageNanos[stage.ordinal()];
+    }
+
+    /**
+     * Gets the total time spent in all stages, in nanoseconds.
+     */
+    public long getTotalNanos() {
+        long total = 0;
+        for (long nanos : mStageNanos) {
+            total += Math.max(0, nanos);
+        }
+        return total;
+    }
+
+    /**
+     * Gets the width of the encoded source image; 0 if the pass worked on a Bitmap.
+     */
+    public int getSourceWidth() {
+        return mSourceWidth;
+    }
+
+    /**
+     * Gets the height of the encoded source image; 0 if the pass worked on a Bitmap.
+     */
+    public int getSourceHeight() {
+        return mSourceHeight;
+    }
+
+    /**
+     * Gets the mime type of the encoded source image.
+     *
+     * @return the mime type; null if unknown, or if the pass worked on a Bitmap
+     */
+    @Nullable
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    /**
+     * Gets the sample size the source was decoded with; 1 for a full resolution decode.
+     */
+    public int getSampleSize() {
+        return mSampleSize;
+    }
+
+    /**
+     * Gets the width of the region that was decoded or cropped, in source pixels.
+     */
+    public int getRegionWidth() {
+        return mRegionWidth;
+    }
+
+    /**
+     * Gets the height of the region that was decoded or cropped, in source pixels.
+     */
+    public int getRegionHeight() {
+        return mRegionHeight;
+    }
+
+    /**
+     * Gets the number of bytes the encoder produced.
+     *
+     * @return the number of bytes; -1 if the pass did not encode
+     */
+    public long getEncodedBytes() {
+        return mEncodedBytes;
+    }
+
+    /**
+     * Gets the largest number of bytes held by the Bitmaps the pass allocated at any one time.
+     */
+    public long getPeakBitmapBytes() {
+        return mPeakBitmapBytes;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("CropMetrics{").append(mOperation);
+        if (mSourceWidth > 0) {
+            builder.append(", source=").append(mSourceWidth).append('x').append(mSourceHeight)
+                    .append(' ').append(mMimeType);
+        }
+        builder.append(", sample=").append(mSampleSize)
+                .append(", region=").append(mRegionWidth).append('x').append(mRegionHeight);
+        for (Stage stage : Stage.values()) {
+            long nanos = getStageNanos(stage);
+            if (nanos >= 0) {
+                builder.append(", ").append(stage.name().toLowerCase()).append('=').append(nanos / 1000).append("us");
+            }
+        }
+        if (mEncodedBytes >= 0) {
+            builder.append(", encoded=").append(mEncodedBytes).append('B');
+        }
+        return builder.append(", peakBitmap=").append(mPeakBitmapBytes).append("B}").toString();
+    }
+
+    // Inner Classes ///////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * What a pass produced.
+     */
+    public enum Operation {
+
+        /**
+         * A subsampled decode of the whole source, for display.
+         */
+        LOAD_PREVIEW,
+
+        /**
+         * A cropped Bitmap.
+         */
+        CROP,
+
+        /**
+         * A cropped and encoded image.
+         */
+        CROP_AND_ENCODE
+    }
+
+    /**
+     * The stages of a pass, in pipeline order.
+     */
+    public enum Stage {
+
+        /**
+         * Reading the source bounds and decoding the (region of the) source.
+         */
+        DECODE("ImageCropper:decode"),
+
+        /**
+         * Copying, masking or scaling the decoded pixels into the output Bitmap.
+         */
+        CROP("ImageCropper:crop"),
+
+        /**
+         * Compressing the output Bitmap.
+         */
+        ENCODE("ImageCropper:encode");
+
+        private final String mSectionName;
+
+        Stage(@NonNull String sectionName) {
+            mSectionName = sectionName;
+        }
+
+        /**
+         * Gets the name of the {@link android.os.Trace} section wrapping this stage.
+         */
+        @NonNull
+        public String getSectionName() {
+            return mSectionName;
+        }
+    }
+}
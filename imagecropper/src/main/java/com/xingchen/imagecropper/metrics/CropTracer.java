@@ -0,0 +1,180 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+
+package com.xingchen.imagecropper.metrics;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.Trace;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Collects the {@link CropMetrics} of one pass while it runs, and opens an
+ * {@link android.os.Trace} section around every stage.
+ * <p/>
+ * A tracer is used by a single thread, from construction to {@link #finish}. Stages must not nest
+ * and must be ended in a finally block, since Trace sections are closed by the thread in LIFO
+ * order.
+ */
+public class CropTracer {
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    private final CropMetrics.Operation mOperation;
+    private final long[] mStageNanos = new long[CropMetrics.Stage.values().length];
+
+    // The stage in progress and when it started.
+    private CropMetrics.Stage mStage;
+    private long mStageStart;
+
+    private int mSourceWidth;
+    private int mSourceHeight;
+    private String mMimeType;
+    private int mSampleSize = 1;
+    private int mRegionWidth;
+    private int mRegionHeight;
+    private long mEncodedBytes = -1;
+
+    // Bytes of the Bitmaps allocated by the pass that are still alive, and their maximum.
+    private long mBitmapBytes;
+    private long mPeakBitmapBytes;
+
+    // Constructor /////////////////////////////////////////////////////////////////////////////////
+
+    public CropTracer(@NonNull CropMetrics.Operation operation) {
+        mOperation = operation;
+        Arrays.fill(mStageNanos, -1);
+    }
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Starts timing a stage, and opens its Trace section.
+     */
+    public void beginStage(@NonNull CropMetrics.Stage stage) {
+        if (mStage != null) {
+            throw new IllegalStateException("Stage " + mStage + " is still in progress");
+        }
+        Trace.beginSection(stage.getSectionName());
+        mStage = stage;
+        mStageStart = System.nanoTime();
+    }
+
+    /**
+     * Stops timing the stage in progress, and closes its Trace section. A stage that runs several
+     * times in one pass accumulates its time.
+     */
+    public void endStage() {
+        if (mStage == null) {
+            throw new IllegalStateException("No stage in progress");
+        }
+        long elapsed = System.nanoTime() - mStageStart;
+        int index = mStage.ordinal();
+        mStageNanos[index] = Math.max(0, mStageNanos[index]) + elapsed;
+        mStage = null;
+        Trace.endSection();
+    }
+
+    /**
+     * Records the encoded source the pass reads from.
+     */
+    public void setSource(int width, int height, @Nullable String mimeType) {
+        mSourceWidth = width;
+        mSourceHeight = height;
+        mMimeType = mimeType;
+    }
+
+    /**
+     * Records the sample size the source was decoded with.
+     */
+    public void setSampleSize(int sampleSize) {
+        mSampleSize = Math.max(1, sampleSize);
+    }
+
+    /**
+     * Records the region that was decoded or cropped, in source pixels.
+     */
+    public void setRegion(@NonNull Rect region) {
+        mRegionWidth = region.width();
+        mRegionHeight = region.height();
+    }
+
+    /**
+     * Records a Bitmap allocated by the pass.
+     *
+     * @param bitmap the new Bitmap; null is ignored, so decoder results can be passed as they are
+     */
+    public void onBitmapAllocated(@Nullable Bitmap bitmap) {
+        if (bitmap != null) {
+            mBitmapBytes += bitmap.getAllocationByteCount();
+            mPeakBitmapBytes = Math.max(mPeakBitmapBytes, mBitmapBytes);
+        }
+    }
+
+    /**
+     * Records that a Bitmap allocated by the pass is no longer used (e.g. was recycled). Call this
+     * before recycling it.
+     */
+    public void onBitmapReleased(@NonNull Bitmap bitmap) {
+        mBitmapBytes -= bitmap.getAllocationByteCount();
+    }
+
+    /**
+     * Wraps the stream an encoder writes to, to count the bytes it produces.
+     */
+    @NonNull
+    public OutputStream countBytes(@NonNull OutputStream out) {
+        mEncodedBytes = Math.max(0, mEncodedBytes);
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                mEncodedBytes++;
+            }
+
+            @Override
+            public void write(@NonNull byte[] b, int off, int len) throws IOException {
+                // FilterOutputStream writes arrays byte by byte.
+                out.write(b, off, len);
+                mEncodedBytes += len;
+            }
+        };
+    }
+
+    /**
+     * Ends the pass and reports its metrics.
+     *
+     * @param listener the listener to report to; may be null
+     * @return the metrics
+     */
+    @NonNull
+    public CropMetrics finish(@Nullable CropMetrics.Listener listener) {
+        if (mStage != null) {
+            throw new IllegalStateException("Stage " + mStage + " is still in progress");
+        }
+        CropMetrics metrics = new CropMetrics(mOperation, mStageNanos.clone(), mSourceWidth, mSourceHeight, mMimeType,
+                mSampleSize, mRegionWidth, mRegionHeight, mEncodedBytes, mPeakBitmapBytes);
+        if (listener != null) {
+            listener.onCropMetrics(metrics);
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.xingchen.imagecropper.output;
+
+import android.graphics.Bitmap;
+import android.os.Trace;
+
+import androidx.annotation.NonNull;
+
+import com.xingchen.imagecropper.metrics.CropMetrics;
+import com.xingchen.imagecropper.raster.Resampler;
+import com.xingchen.imagecropper.utils.BitmapUtil;
+import com.xingchen.imagecropper.utils.ParallelUtil;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A set of differently sized renditions (e.g. thumbnail, medium, full size) of a single crop.
+ * <p/>
+ * The crop is decoded once; each smaller level is derived from the next larger one by successive
+ * halving followed by one final resample, so no level is ever scaled down by more than 2x in a
+ * single bilinear step.
+ */
+public class CropPyramid {
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    // The levels, in the order the sizes were requested.
+    private final Bitmap[] mLevels;
+
+    // Constructor /////////////////////////////////////////////////////////////////////////////////
+
+    private CropPyramid(@NonNull Bitmap[] levels) {
+        mLevels = levels;
+    }
+
+    // Static Factory Methods //////////////////////////////////////////////////////////////////////
+
+    /**
+     * Builds a pyramid from a cropped Bitmap. The pyramid takes ownership of <code>crop</code>: it
+     * either becomes one of the levels or is recycled.
+     *
+     * @param crop     the full-size crop
+     * @param maxSizes the maximum length (in pixels) of the longer side of each level; levels are
+     *                 never scaled up, so a size at or above the crop size yields the crop itself
+     * @return the pyramid, with levels in the same order as <code>maxSizes</code>
+     */
+    @NonNull
+    public static CropPyramid create(@NonNull Bitmap crop, @NonNull int... maxSizes) {
+        Bitmap[] levels = new Bitmap[maxSizes.length];
+        Bitmap previous = crop;
+        boolean cropUsed = false;
+        for (int index : getLevelOrder(maxSizes)) {
+            Bitmap level = scaleToFit(previous, maxSizes[index], crop);
+            levels[index] = level;
+            cropUsed |= level == crop;
+            previous = level;
+        }
+        if (!cropUsed) {
+            crop.recycle();
+        }
+        return new CropPyramid(levels);
+    }
+
+    /**
+     * Builds a pyramid from a cropped Bitmap, deriving each level from the next larger one with the
+     * given {@link Resampler} instead of bilinear halving. The pyramid takes ownership of
+     * <code>crop</code> once it has been built.
+     *
+     * @param crop      the full-size crop
+     * @param resampler the resampler to scale levels with
+     * @param maxSizes  the maximum length (in pixels) of the longer side of each level; levels are
+     *                  never scaled up, so a size at or above the crop size yields the crop itself
+     * @return the pyramid, with levels in the same order as <code>maxSizes</code>
+     * @throws IOException if the calling thread was interrupted
+     */
+    @NonNull
+    public static CropPyramid create(@NonNull Bitmap crop,
+                                     @NonNull Resampler resampler,
+                                     @NonNull int... maxSizes) throws IOException {
+        Bitmap[] levels = new Bitmap[maxSizes.length];
+        Bitmap previous = crop;
+        boolean cropUsed = false;
+        try {
+            for (int index : getLevelOrder(maxSizes)) {
+                int[] size = getTargetSize(crop, maxSizes[index]);
+                Bitmap level = previous;
+                if (size[0] < previous.getWidth() || size[1] < previous.getHeight()) {
+                    level = BitmapUtil.resample(previous, size[0], size[1], resampler);
+                }
+                levels[index] = level;
+                cropUsed |= level == crop;
+                previous = level;
+            }
+        } catch (IOException e) {
+            for (Bitmap level : levels) {
+                if (level != null && level != crop && !level.isRecycled()) {
+                    level.recycle();
+                }
+            }
+            throw e;
+        }
+        if (!cropUsed) {
+            crop.recycle();
+        }
+        return new CropPyramid(levels);
+    }
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Gets the number of levels in the pyramid.
+     */
+    public int getLevelCount() {
+        return mLevels.length;
+    }
+
+    /**
+     * Gets the level at the given index; indices match the order the sizes were requested in.
+     * Several indices may share one Bitmap if they resolved to the same size.
+     */
+    @NonNull
+    public Bitmap getLevel(int index) {
+        return mLevels[index];
+    }
+
+    /**
+     * Encodes every level to its own stream, all levels in parallel. The streams are not closed.
+     *
+     * @param format  the format to compress to
+     * @param quality the compression quality (0-100) for lossy formats
+     * @param outputs one stream per level, in level order
+     * @throws IOException if a level could not be written
+     */
+    public void encode(@NonNull final Bitmap.CompressFormat format,
+                       final int quality,
+                       @NonNull final OutputStream... outputs) throws IOException {
+        if (outputs.length != mLevels.length) {
+            throw new IllegalArgumentException("Expected " + mLevels.length + " outputs but got " + outputs.length + ".");
+        }
+        ParallelUtil.parallelFor(mLevels.length, new ParallelUtil.IndexedTask() {
+            @Override
+            public void run(int index) throws IOException {
+                Trace.beginSection(CropMetrics.Stage.ENCODE.getSectionName());
+                try {
+                    if (!mLevels[index].compress(format, quality, outputs[index])) {
+                        throw new IOException("Unable to encode pyramid level " + index);
+                    }
+                } finally {
+                    Trace.endSection();
+                }
+            }
+        });
+    }
+
+    /**
+     * Recycles every level of the pyramid.
+     */
+    public void recycle() {
+        for (Bitmap level : mLevels) {
+            if (!level.isRecycled()) {
+                level.recycle();
+            }
+        }
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Gets the indices of the requested sizes from largest to smallest, the order levels are built in.
+     */
+    @NonNull
+    private static Integer[] getLevelOrder(@NonNull final int[] maxSizes) {
+        Integer[] order = new Integer[maxSizes.length];
+        for (int i = 0; i < order.length; i++) {
+            if (maxSizes[i] <= 0) {
+                throw new IllegalArgumentException("Pyramid level sizes must be greater than 0.");
+            }
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return maxSizes[rhs] - maxSizes[lhs];
+            }
+        });
+        return order;
+    }
+
+    /**
+     * Gets the width and height of the level of <code>crop</code> whose longer side is at most
+     * <code>maxSize</code>.
+     */
+    @NonNull
+    private static int[] getTargetSize(@NonNull Bitmap crop, int maxSize) {
+        float scale = Math.min(1f, maxSize / (float) Math.max(crop.getWidth(), crop.getHeight()));
+        return new int[]{
+                Math.max(1, Math.round(crop.getWidth() * scale)),
+                Math.max(1, Math.round(crop.getHeight() * scale))};
+    }
+
+    /**
+     * Scales <code>bitmap</code> so that its longer side is at most <code>maxSize</code>, halving
+     * while possible and then resampling once to the exact size. Intermediate halvings are recycled,
+     * but neither <code>bitmap</code> nor <code>crop</code> ever is.
+     */
+    @NonNull
+    private static Bitmap scaleToFit(@NonNull Bitmap bitmap, int maxSize, @NonNull Bitmap crop) {
+        int[] size = getTargetSize(crop, maxSize);
+        int targetWidth = size[0];
+        int targetHeight = size[1];
+        if (targetWidth >= bitmap.getWidth() && targetHeight >= bitmap.getHeight()) {
+            return bitmap;
+        }
+
+        Bitmap current = bitmap;
+        while (current.getWidth() / 2 >= targetWidth && current.getHeight() / 2 >= targetHeight) {
+            Bitmap half = Bitmap.createScaledBitmap(current, current.getWidth() / 2, current.getHeight() / 2, true);
+            recycleIntermediate(current, bitmap, crop);
+            current = half;
+        }
+        if (current.getWidth() == targetWidth && current.getHeight() == targetHeight) {
+            return current;
+        }
+        Bitmap result = Bitmap.createScaledBitmap(current, targetWidth, targetHeight, true);
+        recycleIntermediate(current, bitmap, crop);
+        return result;
+    }
+
+    private static void recycleIntermediate(@NonNull Bitmap intermediate, @NonNull Bitmap bitmap, @NonNull Bitmap crop) {
+        if (intermediate != bitmap && intermediate != crop) {
+            intermediate.recycle();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.xingchen.imagecropper.output;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.Shader;
+
+import androidx.annotation.ColorInt;
+import androidx.annotation.NonNull;
+
+import com.xingchen.imagecropper.shape.CropShape;
+
+/**
+ * Renders shaped (e.g. circular avatar) crops in a single pass, without first producing a
+ * rectangular crop and masking it into a second Bitmap.
+ * <p/>
+ * The area outside the shape is either cleared to transparent, for formats that keep alpha (PNG,
+ * WebP), or filled with an opaque background color, for formats that do not (JPEG); in the latter
+ * case the result is marked as opaque so that no alpha channel is written.
+ */
+public class MaskedCrop {
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Draws the shaped region of a Bitmap into a new Bitmap of the region's size, sampling the
+     * source through a BitmapShader.
+     *
+     * @param source          the Bitmap to crop from; not modified
+     * @param region          the region of <code>source</code> to crop
+     * @param shape           the shape inscribed in the region
+     * @param cornerRadius    the corner radius, in pixels of <code>source</code>
+     * @param backgroundColor the color outside the shape; if not fully opaque, the outside is
+     *                        cleared to transparent instead
+     * @return the new, masked Bitmap
+     */
+    @NonNull
+    public static Bitmap draw(@NonNull Bitmap source,
+                              @NonNull Rect region,
+                              @NonNull CropShape shape,
+                              float cornerRadius,
+                              @ColorInt int backgroundColor) {
+        Bitmap output = Bitmap.createBitmap(region.width(), region.height(), Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(output);
+        boolean opaque = isOpaque(backgroundColor);
+        if (opaque) {
+            canvas.drawColor(backgroundColor);
+        }
+
+        BitmapShader shader = new BitmapShader(source, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+        Matrix matrix = new Matrix();
+        matrix.setTranslate(-region.left, -region.top);
+        shader.setLocalMatrix(matrix);
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+        paint.setShader(shader);
+        canvas.drawPath(newShapePath(shape, output.getWidth(), output.getHeight(), cornerRadius, false), paint);
+
+        output.setHasAlpha(!opaque);
+        return output;
+    }
+
+    /**
+     * Masks a Bitmap in place, clearing or filling the area outside the shape inscribed in it.
+     * Bitmaps that are not mutable are first copied.
+     *
+     * @param bitmap          the Bitmap to mask; recycled if a copy has to be made
+     * @param shape           the shape inscribed in the Bitmap
+     * @param cornerRadius    the corner radius, in pixels of <code>bitmap</code>
+     * @param backgroundColor the color outside the shape; if not fully opaque, the outside is
+     *                        cleared to transparent instead
+     * @return the masked Bitmap; either <code>bitmap</code> or its copy
+     */
+    @NonNull
+    public static Bitmap apply(@NonNull Bitmap bitmap,
+                               @NonNull CropShape shape,
+                               float cornerRadius,
+                               @ColorInt int backgroundColor) {
+        boolean opaque = isOpaque(backgroundColor);
+        if (!bitmap.isMutable() || (!opaque && bitmap.getConfig() != Bitmap.Config.ARGB_8888)) {
+            Bitmap copy = bitmap.copy(Bitmap.Config.ARGB_8888, true);
+            bitmap.recycle();
+            bitmap = copy;
+        }
+        if (!opaque) {
+            // Decoded JPEGs are marked opaque; the cleared pixels would otherwise be drawn black.
+            bitmap.setHasAlpha(true);
+        }
+
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        if (opaque) {
+            paint.setColor(backgroundColor);
+            paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        } else {
+            paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
+        }
+        new Canvas(bitmap).drawPath(newShapePath(shape, bitmap.getWidth(), bitmap.getHeight(), cornerRadius, true), paint);
+
+        bitmap.setHasAlpha(!opaque);
+        return bitmap;
+    }
+
+    /**
+     * Returns the background color to use for the given output format: the requested color for
+     * formats without alpha (made opaque if needed), or transparent for formats with alpha.
+     *
+     * @param format          the format the crop will be compressed to
+     * @param backgroundColor the preferred color outside the shape
+     */
+    @ColorInt
+    public static int getBackgroundColor(@NonNull Bitmap.CompressFormat format, @ColorInt int backgroundColor) {
+        if (format == Bitmap.CompressFormat.JPEG) {
+            return backgroundColor | 0xFF000000;
+        }
+        return Color.TRANSPARENT;
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    private static boolean isOpaque(@ColorInt int color) {
+        return (color >>> 24) == 0xFF;
+    }
+
+    /**
+     * Creates the Path of the shape inscribed in a width x height Bitmap; when <code>inverse</code>
+     * is set, the Path covers everything outside the shape instead.
+     */
+    @NonNull
+    private static Path newShapePath(@NonNull CropShape shape, int width, int height, float cornerRadius, boolean inverse) {
+        Path path = new Path();
+        shape.addToPath(path, new RectF(0, 0, width, height), cornerRadius);
+        if (inverse) {
+            path.setFillType(Path.FillType.INVERSE_WINDING);
+        }
+        return path;
+    }
+}
@@ -0,0 +1,528 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+
+package com.xingchen.imagecropper.png;
+
+import android.graphics.Rect;
+
+import androidx.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Crops a PNG by streaming its scanlines, without decoding it into a Bitmap.
+ * <p/>
+ * Rows are inflated and unfiltered one at a time, keeping only the current and the previous row
+ * (so memory is O(width) whatever the height), and only up to the right edge of the crop window,
+ * since no filter ever looks further right. The columns inside the window are re-filtered and
+ * deflated into the output as each row arrives, and the input is not read any further once the
+ * bottom edge has been passed. Pixels are copied bit for bit, so the output keeps the bit depth,
+ * color type, palette and transparency of the input.
+ * <p/>
+ * Adam7 interlaced PNGs store their rows out of order and are not supported; see
+ * {@link #crop(InputStream, Rect, OutputStream)}.
+ */
+public class PngCropper {
+
+    // Private Constants ///////////////////////////////////////////////////////////////////////////
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private static final int IHDR = chunkType("IHDR");
+    private static final int IDAT = chunkType("IDAT");
+    private static final int IEND = chunkType("IEND");
+
+    // Chunks that do not depend on the image size, and stay valid for any crop of the image even
+    // though their names mark them as unsafe to copy.
+    private static final int[] CROP_SAFE_CHUNKS = {
+            chunkType("PLTE"), chunkType("tRNS"), chunkType("gAMA"), chunkType("cHRM"), chunkType("sRGB"),
+            chunkType("iCCP"), chunkType("sBIT"), chunkType("bKGD"), chunkType("pHYs"), chunkType("tIME")};
+
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+
+    // Maximum size of an output IDAT chunk.
+    private static final int IDAT_SIZE = 32 * 1024;
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    private final InputStream mIn;
+    private final OutputStream mOut;
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mHeader = new byte[8];
+
+    // The chunk being read: its type and the number of data bytes left.
+    private int mChunkType;
+    private int mChunkRemaining;
+
+    // Constructor /////////////////////////////////////////////////////////////////////////////////
+
+    private PngCropper(@NonNull InputStream in, @NonNull OutputStream out) {
+        mIn = in;
+        mOut = out;
+    }
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Crops a PNG to the given window.
+     *
+     * @param in   the PNG to read, ideally buffered; it is not closed, and is left positioned just
+     *             after the last row of the window
+     * @param crop the crop window, clamped to the image
+     * @param out  the stream to write the cropped PNG to, ideally buffered; not closed
+     * @return true if the PNG was cropped; false, with nothing written, if it is interlaced and
+     * must be decoded in full instead
+     * @throws IOException              if the input is not a valid PNG, or could not be read or
+     *                                  written
+     * @throws IllegalArgumentException if the window lies outside the image
+     */
+    public static boolean crop(@NonNull InputStream in, @NonNull Rect crop, @NonNull OutputStream out) throws IOException {
+        return new PngCropper(in, out).crop(crop);
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    private boolean crop(@NonNull Rect crop) throws IOException {
+        byte[] signature = new byte[SIGNATURE.length];
+        readFully(signature, 0, signature.length);
+        for (int i = 0; i < SIGNATURE.length; i++) {
+            if (signature[i] != SIGNATURE[i]) {
+                throw new IOException("Not a PNG");
+            }
+        }
+        if (!nextChunk() || mChunkType != IHDR || mChunkRemaining != 13) {
+            throw new IOException("Missing IHDR chunk");
+        }
+        byte[] header = readChunkData();
+        int width = readInt(header, 0);
+        int height = readInt(header, 4);
+        int bitDepth = header[8] & 0xFF;
+        int colorType = header[9] & 0xFF;
+        if (header[12] != 0) {
+            return false;
+        }
+        int channels = getChannels(colorType);
+        if (width <= 0 || height <= 0 || channels == 0 || header[10] != 0 || header[11] != 0) {
+            throw new IOException("Unsupported PNG header");
+        }
+        Rect window = new Rect(Math.max(0, crop.left), Math.max(0, crop.top), Math.min(width, crop.right), Math.min(height, crop.bottom));
+        if (window.isEmpty()) {
+            throw new IllegalArgumentException("Crop rect " + crop + " lies outside the " + width + "x" + height + " PNG.");
+        }
+
+        mOut.write(SIGNATURE);
+        writeInt(header, 0, window.width());
+        writeInt(header, 4, window.height());
+        writeChunk(IHDR, header, header.length);
+
+        // Copy the chunks before the image data that a crop leaves valid.
+        while (nextChunk() && mChunkType != IDAT) {
+            if (mChunkType == IEND) {
+                throw new IOException("PNG has no image data");
+            }
+            byte[] data = readChunkData();
+            if (isCropSafe(mChunkType)) {
+                writeChunk(mChunkType, data, data.length);
+            } else if (isCritical(mChunkType)) {
+                throw new IOException("Unsupported critical chunk " + chunkName(mChunkType));
+            }
+        }
+        if (mChunkType != IDAT) {
+            throw new IOException("PNG has no image data");
+        }
+
+        // Palette and sub-byte images compress best unfiltered.
+        cropRows(width, window, channels * bitDepth, bitDepth >= 8 && colorType != 3);
+        writeChunk(IEND, new byte[0], 0);
+        return true;
+    }
+
+    /**
+     * Streams the rows of the image data, re-encoding the part of each row inside the window.
+     */
+    private void cropRows(int width, @NonNull Rect window, int bitsPerPixel, boolean adaptive) throws IOException {
+        // Filters work on whole bytes, and on bytes one pixel (at least one byte) apart.
+        int filterStride = Math.max(1, bitsPerPixel / 8);
+        int rowBytes = (int) (((long) width * bitsPerPixel + 7) / 8);
+        // Bytes up to the right edge of the window are all that is ever unfiltered.
+        int neededBytes = (int) (((long) window.right * bitsPerPixel + 7) / 8);
+        int croppedBytes = (int) (((long) window.width() * bitsPerPixel + 7) / 8);
+
+        byte[] previous = new byte[neededBytes];
+        byte[] current = new byte[neededBytes];
+        // The filter type byte, the row bytes and the skipped tail of a row.
+        byte[] filterType = new byte[1];
+        byte[] skipped = new byte[Math.min(rowBytes - neededBytes, 8192)];
+        byte[] croppedPrevious = new byte[croppedBytes];
+        byte[] cropped = new byte[croppedBytes];
+        byte[] filtered = new byte[croppedBytes + 1];
+        byte[] deflated = new byte[IDAT_SIZE];
+
+        Inflater inflater = new Inflater();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            byte[] input = new byte[8192];
+            for (int y = 0; y < window.bottom; y++) {
+                inflate(inflater, input, filterType, 1);
+                inflate(inflater, input, current, neededBytes);
+                for (int remaining = rowBytes - neededBytes; remaining > 0; remaining -= skipped.length) {
+                    inflate(inflater, input, skipped, Math.min(remaining, skipped.length));
+                }
+                unfilter(filterType[0] & 0xFF, current, previous, neededBytes, filterStride);
+
+                if (y >= window.top) {
+                    extractColumns(current, window.left, bitsPerPixel, cropped, croppedBytes, window.width());
+                    int type = adaptive ? chooseFilter(cropped, croppedPrevious, croppedBytes, filterStride) : FILTER_NONE;
+                    filter(type, cropped, croppedPrevious, filtered, croppedBytes, filterStride);
+                    deflater.setInput(filtered, 0, croppedBytes + 1);
+                    while (!deflater.needsInput()) {
+                        writeDeflated(deflater, deflated);
+                    }
+                    byte[] swap = croppedPrevious;
+                    croppedPrevious = cropped;
+                    cropped = swap;
+                }
+                byte[] swap = previous;
+                previous = current;
+                current = swap;
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                writeDeflated(deflater, deflated);
+            }
+        } finally {
+            inflater.end();
+            deflater.end();
+        }
+    }
+
+    /**
+     * Inflates exactly <code>length</code> bytes of image data, reading IDAT chunks as needed.
+     */
+    private void inflate(@NonNull Inflater inflater, @NonNull byte[] input, @NonNull byte[] output, int length) throws IOException {
+        int offset = 0;
+        try {
+            while (offset < length) {
+                int count = inflater.inflate(output, offset, length - offset);
+                offset += count;
+                if (count > 0) {
+                    continue;
+                }
+                if (inflater.finished() || inflater.needsDictionary()) {
+                    throw new EOFException("Truncated PNG image data");
+                }
+                if (inflater.needsInput()) {
+                    inflater.setInput(input, 0, readImageData(input));
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt PNG image data", e);
+        }
+    }
+
+    /**
+     * Reads the next bytes of image data, moving on to the next IDAT chunk as needed.
+     *
+     * @return the number of bytes read, at least one
+     */
+    private int readImageData(@NonNull byte[] buffer) throws IOException {
+        while (mChunkRemaining == 0) {
+            skipCrc();
+            if (!nextChunk() || mChunkType != IDAT) {
+                throw new EOFException("Truncated PNG image data");
+            }
+        }
+        int count = Math.min(buffer.length, mChunkRemaining);
+        readFully(buffer, 0, count);
+        mChunkRemaining -= count;
+        return count;
+    }
+
+    /**
+     * Reverses the filter of a row, in place, up to the given byte.
+     */
+    private static void unfilter(int type, @NonNull byte[] row, @NonNull byte[] previous, int length, int stride) throws IOException {
+        switch (type) {
+            case FILTER_NONE:
+                break;
+            case FILTER_SUB:
+                for (int i = stride; i < length; i++) {
+                    row[i] += row[i - stride];
+                }
+                break;
+            case FILTER_UP:
+                for (int i = 0; i < length; i++) {
+                    row[i] += previous[i];
+                }
+                break;
+            case FILTER_AVERAGE:
+                for (int i = 0; i < stride && i < length; i++) {
+                    row[i] += (previous[i] & 0xFF) >> 1;
+                }
+                for (int i = stride; i < length; i++) {
+                    row[i] += ((row[i - stride] & 0xFF) + (previous[i] & 0xFF)) >> 1;
+                }
+                break;
+            case FILTER_PAETH:
+                for (int i = 0; i < stride && i < length; i++) {
+                    row[i] += previous[i];
+                }
+                for (int i = stride; i < length; i++) {
+                    row[i] += paeth(row[i - stride] & 0xFF, previous[i] & 0xFF, previous[i - stride] & 0xFF);
+                }
+                break;
+            default:
+                throw new IOException("Invalid PNG filter type " + type);
+        }
+    }
+
+    /**
+     * Filters a row with the given filter type, writing the type byte and the filtered bytes.
+     */
+    private static void filter(int type, @NonNull byte[] row, @NonNull byte[] previous, @NonNull byte[] out, int length, int stride) {
+        out[0] = (byte) type;
+        for (int i = 0; i < length; i++) {
+            int left = i >= stride ? row[i - stride] & 0xFF : 0;
+            int up = previous[i] & 0xFF;
+            int upLeft = i >= stride ? previous[i - stride] & 0xFF : 0;
+            out[i + 1] = (byte) (row[i] - predict(type, left, up, upLeft));
+        }
+    }
+
+    /**
+     * Chooses the filter that minimizes the sum of the absolute filtered values, the heuristic
+     * recommended by the PNG specification.
+     */
+    private static int chooseFilter(@NonNull byte[] row, @NonNull byte[] previous, int length, int stride) {
+        long[] sums = new long[5];
+        for (int i = 0; i < length; i++) {
+            int value = row[i] & 0xFF;
+            int left = i >= stride ? row[i - stride] & 0xFF : 0;
+            int up = previous[i] & 0xFF;
+            int upLeft = i >= stride ? previous[i - stride] & 0xFF : 0;
+            for (int type = FILTER_NONE; type <= FILTER_PAETH; type++) {
+                // Filtered bytes are scored as signed values.
+                sums[type] += Math.abs((byte) (value - predict(type, left, up, upLeft)));
+            }
+        }
+        int best = FILTER_NONE;
+        for (int type = FILTER_SUB; type <= FILTER_PAETH; type++) {
+            if (sums[type] < sums[best]) {
+                best = type;
+            }
+        }
+        return best;
+    }
+
+    private static int predict(int type, int left, int up, int upLeft) {
+        switch (type) {
+            case FILTER_SUB:
+                return left;
+            case FILTER_UP:
+                return up;
+            case FILTER_AVERAGE:
+                return (left + up) >> 1;
+            case FILTER_PAETH:
+                return paeth(left, up, upLeft);
+            default:
+                return 0;
+        }
+    }
+
+    private static int paeth(int left, int up, int upLeft) {
+        int estimate = left + up - upLeft;
+        int distanceLeft = Math.abs(estimate - left);
+        int distanceUp = Math.abs(estimate - up);
+        int distanceUpLeft = Math.abs(estimate - upLeft);
+        if (distanceLeft <= distanceUp && distanceLeft <= distanceUpLeft) {
+            return left;
+        }
+        return distanceUp <= distanceUpLeft ? up : upLeft;
+    }
+
+    /**
+     * Copies the pixels from <code>left</code> on out of a row, shifting them to the start of the
+     * output when pixels are smaller than a byte.
+     */
+    private static void extractColumns(@NonNull byte[] row, int left, int bitsPerPixel, @NonNull byte[] out, int length, int pixels) {
+        long startBit = (long) left * bitsPerPixel;
+        int shift = (int) (startBit & 7);
+        int start = (int) (startBit >> 3);
+        if (shift == 0) {
+            System.arraycopy(row, start, out, 0, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                int high = row[start + i] & 0xFF;
+                int low = start + i + 1 < row.length ? row[start + i + 1] & 0xFF : 0;
+                out[i] = (byte) (high << shift | low >> (8 - shift));
+            }
+        }
+        // The unused low bits of the last byte must be zero.
+        int usedBits = (int) (((long) pixels * bitsPerPixel) & 7);
+        if (usedBits != 0) {
+            out[length - 1] &= (byte) (0xFF00 >> usedBits);
+        }
+    }
+
+    private void writeDeflated(@NonNull Deflater deflater, @NonNull byte[] buffer) throws IOException {
+        int count = deflater.deflate(buffer);
+        if (count > 0) {
+            writeChunk(IDAT, buffer, count);
+        }
+    }
+
+    /**
+     * Reads the header of the next chunk.
+     *
+     * @return false at the end of the stream
+     */
+    private boolean nextChunk() throws IOException {
+        int count = 0;
+        while (count < 8) {
+            int read = mIn.read(mHeader, count, 8 - count);
+            if (read < 0) {
+                if (count == 0) {
+                    return false;
+                }
+                throw new EOFException("Truncated PNG chunk");
+            }
+            count += read;
+        }
+        mChunkRemaining = readInt(mHeader, 0);
+        mChunkType = readInt(mHeader, 4);
+        if (mChunkRemaining < 0) {
+            throw new IOException("Invalid PNG chunk length");
+        }
+        mCrc.reset();
+        mCrc.update(mHeader, 4, 4);
+        return true;
+    }
+
+    @NonNull
+    private byte[] readChunkData() throws IOException {
+        byte[] data = new byte[mChunkRemaining];
+        readFully(data, 0, data.length);
+        mChunkRemaining = 0;
+        skipCrc();
+        return data;
+    }
+
+    /**
+     * Reads and checks the CRC at the end of the current chunk.
+     */
+    private void skipCrc() throws IOException {
+        long expected = mCrc.getValue();
+        byte[] crc = new byte[4];
+        readFully(crc, 0, 4);
+        if ((readInt(crc, 0) & 0xFFFFFFFFL) != expected) {
+            throw new IOException("Bad CRC in PNG chunk " + chunkName(mChunkType));
+        }
+    }
+
+    private void readFully(@NonNull byte[] buffer, int offset, int length) throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            int count = mIn.read(buffer, offset, end - offset);
+            if (count < 0) {
+                throw new EOFException("Truncated PNG");
+            }
+            mCrc.update(buffer, offset, count);
+            offset += count;
+        }
+    }
+
+    private void writeChunk(int type, @NonNull byte[] data, int length) throws IOException {
+        byte[] header = new byte[8];
+        writeInt(header, 0, length);
+        writeInt(header, 4, type);
+        CRC32 crc = new CRC32();
+        crc.update(header, 4, 4);
+        crc.update(data, 0, length);
+        mOut.write(header);
+        mOut.write(data, 0, length);
+        writeInt(header, 0, (int) crc.getValue());
+        mOut.write(header, 0, 4);
+    }
+
+    /**
+     * Gets the number of channels of a color type; 0 if the type is invalid.
+     */
+    private static int getChannels(int colorType) {
+        switch (colorType) {
+            case 0: // Grayscale.
+            case 3: // Palette.
+                return 1;
+            case 4: // Grayscale and alpha.
+                return 2;
+            case 2: // RGB.
+                return 3;
+            case 6: // RGBA.
+                return 4;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Returns whether a chunk is still valid after cropping: chunks marked safe to copy (bit 5 of
+     * the last letter) by definition, plus the known ones that do not depend on the image size.
+     */
+    private static boolean isCropSafe(int type) {
+        if ((type & 0x20) != 0) {
+            return true;
+        }
+        for (int safe : CROP_SAFE_CHUNKS) {
+            if (type == safe) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isCritical(int type) {
+        return (type & 0x20000000) == 0;
+    }
+
+    private static int chunkType(@NonNull String name) {
+        return name.charAt(0) << 24 | name.charAt(1) << 16 | name.charAt(2) << 8 | name.charAt(3);
+    }
+
+    @NonNull
+    private static String chunkName(int type) {
+        return new String(new char[]{(char) (type >>> 24), (char) (type >> 16 & 0xFF), (char) (type >> 8 & 0xFF), (char) (type & 0xFF)});
+    }
+
+    private static int readInt(@NonNull byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) << 24 | (buffer[offset + 1] & 0xFF) << 16
+                | (buffer[offset + 2] & 0xFF) << 8 | (buffer[offset + 3] & 0xFF);
+    }
+
+    private static void writeInt(@NonNull byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >> 16);
+        buffer[offset + 2] = (byte) (value >> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+
+package com.xingchen.imagecropper.preview;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Renders a low-resolution version of the crop result on a background thread, for a live preview
+ * next to the editor while the crop window is dragged.
+ * <p/>
+ * Requests are conflated: a request replaces any request still waiting, so only the latest crop
+ * window is ever rendered, however fast the window moves. Results are drawn from the displayed
+ * preview Bitmap (never from the source) into two output Bitmaps that are reused for every render,
+ * on a background-priority thread, so rendering does not compete with drawing the view. A render
+ * only starts once the previous result has been delivered on the main thread, so the Bitmap the
+ * listener holds is never drawn into.
+ * <p/>
+ * Once the output Bitmaps exist, nothing allocates per request or per render: requests are recycled
+ * between the main thread and the render thread, and each output Bitmap keeps its own Canvas and
+ * crop rectangle. At most three requests exist at once (one rendering, one pending and one being
+ * filled in), so two spares are always enough.
+ */
+public class LiveCropPreview {
+
+    // Private Constants ///////////////////////////////////////////////////////////////////////////
+
+    // One request can be rendering and one pending while request() fills in a third.
+    private static final int SPARE_COUNT = 2;
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    private final Listener mListener;
+    private final int mMaxSize;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    // The latest request not yet rendered; null if none.
+    private final AtomicReference<Request> mPending = new AtomicReference<>();
+
+    // Requests that are neither pending nor being rendered, for request() to fill in instead of
+    // allocating; null slots are empty. Only the main thread takes from it.
+    private final AtomicReferenceArray<Request> mSpares = new AtomicReferenceArray<>(SPARE_COUNT);
+
+    // The render thread, started on the first request, and its state; main thread only.
+    private HandlerThread mThread;
+    private Renderer mRenderer;
+
+    // Whether a render is queued, running or being delivered; main thread only.
+    private boolean mBusy;
+
+    // Constructor /////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Constructor.
+     *
+     * @param listener receives each rendered preview on the main thread
+     * @param maxSize  the maximum length (in pixels) of the longer side of the preview
+     */
+    public LiveCropPreview(@NonNull Listener listener, int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Invalid preview size " + maxSize);
+        }
+        mListener = listener;
+        mMaxSize = maxSize;
+    }
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Receives the live previews.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the main thread with the preview of the latest rendered crop window.
+         *
+         * @param preview  the preview; valid until the next call or until the preview is released,
+         *                 and must not be recycled or modified
+         * @param cropRect the crop rectangle the preview shows, in image pixel coordinates; valid,
+         *                 and not to be modified, for as long as the preview
+         */
+        @MainThread
+        void onLiveCropPreview(@NonNull Bitmap preview, @NonNull Rect cropRect);
+    }
+
+    /**
+     * Requests a preview of the given window, replacing any request not yet rendered. Returns
+     * immediately.
+     *
+     * @param bitmap     the Bitmap to render from, e.g. the displayed preview; it must not be
+     *                   modified while rendering, and is skipped if recycled
+     * @param bitmapRect the crop window in the pixel coordinates of <code>bitmap</code>
+     * @param cropRect   the crop rectangle reported with the preview
+     */
+    @MainThread
+    public void request(@NonNull Bitmap bitmap, @NonNull RectF bitmapRect, @NonNull Rect cropRect) {
+        Request request = takeSpare();
+        if (request == null) {
+            request = new Request();
+        }
+        request.bitmap = bitmap;
+        request.bitmapRect.set(bitmapRect);
+        request.cropRect.set(cropRect);
+        Request replaced = mPending.getAndSet(request);
+        if (replaced != null) {
+            recycle(replaced);
+        }
+        if (!mBusy) {
+            scheduleRender();
+        }
+    }
+
+    /**
+     * Drops any pending request and stops the render thread. The preview starts again on the next
+     * request.
+     */
+    @MainThread
+    public void release() {
+        mPending.set(null);
+        for (int i = 0; i < SPARE_COUNT; i++) {
+            mSpares.set(i, null);
+        }
+        if (mThread != null) {
+            mThread.quitSafely();
+            mThread = null;
+            mRenderer = null;
+        }
+        mBusy = false;
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    @MainThread
+    private void scheduleRender() {
+        if (mThread == null) {
+            mThread = new HandlerThread("ImageCropper-live-preview", Process.THREAD_PRIORITY_BACKGROUND);
+            mThread.start();
+            mRenderer = new Renderer(new Handler(mThread.getLooper()));
+        }
+        mBusy = true;
+        mRenderer.handler.post(mRenderer.render);
+    }
+
+    /**
+     * Renders the latest request, then hands the result to the main thread.
+     */
+    @WorkerThread
+    private void render(@NonNull Renderer renderer) {
+        Request request = mPending.getAndSet(null);
+        renderer.output = null;
+        if (request != null) {
+            renderer.output = draw(request, renderer);
+            recycle(request);
+        }
+        mMainHandler.post(renderer.deliver);
+    }
+
+    /**
+     * Delivers the result of the last render on the main thread, and starts the next render if
+     * there is a request waiting.
+     */
+    @MainThread
+    private void deliver(@NonNull Renderer renderer) {
+        if (renderer != mRenderer) {
+            // Released in the meantime.
+            return;
+        }
+        Bitmap output = renderer.output;
+        if (output != null) {
+            mListener.onLiveCropPreview(output, renderer.cropRects[renderer.outputIndex]);
+        }
+        mBusy = false;
+        if (mPending.get() != null) {
+            scheduleRender();
+        }
+    }
+
+    /**
+     * Hands a request that is no longer pending or being rendered back for reuse.
+     */
+    private void recycle(@NonNull Request request) {
+        // Do not keep the Bitmap alive (e.g. a preview that has since been replaced).
+        request.bitmap = null;
+        for (int i = 0; i < SPARE_COUNT; i++) {
+            if (mSpares.compareAndSet(i, null, request)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Takes a spare request to fill in.
+     *
+     * @return the request; null if there is none
+     */
+    @MainThread
+    private Request takeSpare() {
+        for (int i = 0; i < SPARE_COUNT; i++) {
+            Request request = mSpares.getAndSet(i, null);
+            if (request != null) {
+                return request;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Draws the window of the request into the next output Bitmap.
+     *
+     * @return the output; null if the request could not be rendered
+     */
+    @WorkerThread
+    private Bitmap draw(@NonNull Request request, @NonNull Renderer renderer) {
+        RectF window = request.bitmapRect;
+        if (request.bitmap.isRecycled() || window.width() < 1 || window.height() < 1) {
+            return null;
+        }
+        float scale = Math.min(1f, mMaxSize / Math.max(window.width(), window.height()));
+        int width = Math.max(1, Math.round(window.width() * scale));
+        int height = Math.max(1, Math.round(window.height() * scale));
+
+        // Reuse the output Bitmap, reconfigured to the aspect ratio of the window.
+        int index = renderer.next;
+        Bitmap output = renderer.bitmaps[index];
+        if (output == null) {
+            output = Bitmap.createBitmap(mMaxSize, mMaxSize, Bitmap.Config.ARGB_8888);
+            renderer.bitmaps[index] = output;
+            renderer.canvases[index] = new Canvas();
+        }
+        output.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+        renderer.next = 1 - index;
+
+        // Re-attaching picks up the new size of the reconfigured Bitmap.
+        Canvas canvas = renderer.canvases[index];
+        canvas.setBitmap(output);
+        renderer.source.set((int) window.left, (int) window.top, (int) Math.ceil(window.right), (int) Math.ceil(window.bottom));
+        renderer.destination.set(0, 0, width, height);
+        try {
+            canvas.drawBitmap(request.bitmap, renderer.source, renderer.destination, mPaint);
+        } catch (RuntimeException e) {
+            // The Bitmap was recycled by its owner while being drawn.
+            return null;
+        }
+        renderer.cropRects[index].set(request.cropRect);
+        renderer.outputIndex = index;
+        return output;
+    }
+
+    // Inner Classes ///////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The state of one render thread: its handler, the two output Bitmaps it uses in turn with their
+     * Canvases and crop rectangles, and the tasks it posts. Only one render is in flight at a time,
+     * so everything is reused from render to render.
+     */
+    private class Renderer {
+
+        final Handler handler;
+        final Bitmap[] bitmaps = new Bitmap[2];
+        final Canvas[] canvases = new Canvas[2];
+        final Rect[] cropRects = {new Rect(), new Rect()};
+        final Rect source = new Rect();
+        final Rect destination = new Rect();
+        int next;
+
+        // The result of the last render and the index of its output; null if it failed.
+        Bitmap output;
+        int outputIndex;
+
+        final Runnable render = new Runnable() {
+            @Override
+            public void run() {
+                render(Renderer.this);
+            }
+        };
+
+        final Runnable deliver = new Runnable() {
+            @Override
+            public void run() {
+                deliver(Renderer.this);
+            }
+        };
+
+        Renderer(@NonNull Handler handler) {
+            this.handler = handler;
+        }
+    }
+
+    /**
+     * A crop window to render; filled in on the main thread and reused once rendered or replaced.
+     */
+    private static class Request {
+
+        Bitmap bitmap;
+        final RectF bitmapRect = new RectF();
+        final Rect cropRect = new Rect();
+    }
+}
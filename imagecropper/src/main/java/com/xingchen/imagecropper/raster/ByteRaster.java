@@ -0,0 +1,200 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.xingchen.imagecropper.raster;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A raster of interleaved byte pixels (e.g. RGBA, ARGB or RGB) in a <code>ByteBuffer</code>,
+ * typically an off-heap direct buffer filled by a native decoder. Whole pixels are copied as-is,
+ * so the channel order does not matter; only the number of bytes per pixel does.
+ * <p/>
+ * Rasters returned by the operations are backed by a new buffer of the same kind (direct or heap)
+ * as this one's, positioned at 0 and tightly packed.
+ */
+public final class ByteRaster extends Raster<ByteRaster> {
+
+    // Public Constants ////////////////////////////////////////////////////////////////////////////
+
+    public static final int BYTES_PER_PIXEL_RGB = 3;
+    public static final int BYTES_PER_PIXEL_ARGB = 4;
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    private final ByteBuffer mBuffer;
+    private final int mStride;
+    private final int mBytesPerPixel;
+
+    // Constructor /////////////////////////////////////////////////////////////////////////////////
+
+    private ByteRaster(ByteBuffer buffer, int stride, int width, int height, int bytesPerPixel) {
+        super(width, height);
+        if (bytesPerPixel != BYTES_PER_PIXEL_RGB && bytesPerPixel != BYTES_PER_PIXEL_ARGB) {
+            throw new IllegalArgumentException("Only 3 and 4 bytes per pixel are supported.");
+        }
+        if (stride < width * bytesPerPixel) {
+            throw new IllegalArgumentException("Stride must be at least width * bytesPerPixel.");
+        }
+        if ((long) stride * (height - 1) + (long) width * bytesPerPixel > buffer.remaining()) {
+            throw new IllegalArgumentException("Buffer is too small for a " + width + "x" + height + " raster.");
+        }
+        // Slice so that absolute indices start at the buffer's current position.
+        mBuffer = buffer.slice();
+        mStride = stride;
+        mBytesPerPixel = bytesPerPixel;
+    }
+
+    // Static Factory Methods //////////////////////////////////////////////////////////////////////
+
+    /**
+     * Wraps the pixels starting at the buffer's current position; the buffer is not copied and its
+     * position and limit are not changed.
+     *
+     * @param stride        the number of bytes between the starts of two consecutive rows
+     * @param bytesPerPixel {@link #BYTES_PER_PIXEL_RGB} or {@link #BYTES_PER_PIXEL_ARGB}
+     */
+    public static ByteRaster wrap(ByteBuffer buffer, int width, int height, int stride, int bytesPerPixel) {
+        return new ByteRaster(buffer, stride, width, height, bytesPerPixel);
+    }
+
+    /**
+     * Wraps tightly packed pixels starting at the buffer's current position.
+     */
+    public static ByteRaster wrap(ByteBuffer buffer, int width, int height, int bytesPerPixel) {
+        return new ByteRaster(buffer, width * bytesPerPixel, width, height, bytesPerPixel);
+    }
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Gets the pixels, as a buffer positioned at the first pixel.
+     */
+    public ByteBuffer getBuffer() {
+        return mBuffer.duplicate();
+    }
+
+    public int getStride() {
+        return mStride;
+    }
+
+    public int getBytesPerPixel() {
+        return mBytesPerPixel;
+    }
+
+    @Override
+    public ByteRaster flipHorizontal() {
+        int rowBytes = mWidth * mBytesPerPixel;
+        ByteBuffer output = allocate(rowBytes * mHeight);
+        byte[] inRow = new byte[rowBytes];
+        byte[] outRow = new byte[rowBytes];
+        ByteBuffer in = mBuffer.duplicate();
+        for (int y = 0; y < mHeight; y++) {
+            // Bulk-read the row, reverse it on the heap, and bulk-write it back out.
+            in.position(y * mStride);
+            in.get(inRow);
+            for (int i = 0, j = rowBytes - mBytesPerPixel; i < rowBytes; i += mBytesPerPixel, j -= mBytesPerPixel) {
+                System.arraycopy(inRow, j, outRow, i, mBytesPerPixel);
+            }
+            output.put(outRow);
+        }
+        return wrapOutput(output, mWidth, mHeight);
+    }
+
+    @Override
+    public ByteRaster flipVertical() {
+        int rowBytes = mWidth * mBytesPerPixel;
+        ByteBuffer output = allocate(rowBytes * mHeight);
+        for (int y = mHeight - 1; y >= 0; y--) {
+            output.put(row(y, 0, rowBytes));
+        }
+        return wrapOutput(output, mWidth, mHeight);
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    ByteRaster copyRect(int left, int top, int width, int height) {
+        int rowBytes = width * mBytesPerPixel;
+        ByteBuffer output = allocate(rowBytes * height);
+        for (int y = top; y < top + height; y++) {
+            output.put(row(y, left * mBytesPerPixel, rowBytes));
+        }
+        return wrapOutput(output, width, height);
+    }
+
+    @Override
+    ByteRaster transpose(boolean clockwise) {
+        // The output is mHeight wide and mWidth tall. Each tile is read into a heap array with bulk
+        // row reads, rotated there, and written back with bulk row writes.
+        int bpp = mBytesPerPixel;
+        int outStride = mHeight * bpp;
+        ByteBuffer output = allocate(outStride * mWidth);
+        byte[] tile = new byte[TILE_SIZE * TILE_SIZE * bpp];
+        byte[] rotated = new byte[TILE_SIZE * TILE_SIZE * bpp];
+        ByteBuffer in = mBuffer.duplicate();
+        for (int tileY = 0; tileY < mHeight; tileY += TILE_SIZE) {
+            int tileHeight = Math.min(TILE_SIZE, mHeight - tileY);
+            for (int tileX = 0; tileX < mWidth; tileX += TILE_SIZE) {
+                int tileWidth = Math.min(TILE_SIZE, mWidth - tileX);
+                for (int y = 0; y < tileHeight; y++) {
+                    in.position((tileY + y) * mStride + tileX * bpp);
+                    in.get(tile, y * tileWidth * bpp, tileWidth * bpp);
+                }
+
+                // Within the tile, (x, y) goes to (tileHeight - 1 - y, x) clockwise and to
+                // (y, tileWidth - 1 - x) counter-clockwise; the rotated tile is tileHeight wide.
+                for (int y = 0; y < tileHeight; y++) {
+                    for (int x = 0; x < tileWidth; x++) {
+                        int out = clockwise
+                                ? x * tileHeight + (tileHeight - 1 - y)
+                                : (tileWidth - 1 - x) * tileHeight + y;
+                        System.arraycopy(tile, (y * tileWidth + x) * bpp, rotated, out * bpp, bpp);
+                    }
+                }
+
+                // Place the rotated tile: clockwise it starts at column (height - tileY - tileHeight)
+                // and row tileX; counter-clockwise at column tileY and row (width - tileX - tileWidth).
+                int outX = clockwise ? mHeight - tileY - tileHeight : tileY;
+                int outY = clockwise ? tileX : mWidth - tileX - tileWidth;
+                for (int row = 0; row < tileWidth; row++) {
+                    output.position((outY + row) * outStride + outX * bpp);
+                    output.put(rotated, row * tileHeight * bpp, tileHeight * bpp);
+                }
+            }
+        }
+        output.clear();
+        return wrap(output, mHeight, mWidth, bpp);
+    }
+
+    /**
+     * Gets a buffer over <code>length</code> bytes of row <code>y</code>, starting at byte
+     * <code>offset</code> within the row.
+     */
+    private ByteBuffer row(int y, int offset, int length) {
+        ByteBuffer row = mBuffer.duplicate();
+        int start = y * mStride + offset;
+        row.limit(start + length);
+        row.position(start);
+        return row;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return mBuffer.isDirect() ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private ByteRaster wrapOutput(ByteBuffer output, int width, int height) {
+        output.flip();
+        return wrap(output, width, height, mBytesPerPixel);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.xingchen.imagecropper.raster;
+
+/**
+ * A raster of packed pixels, one <code>int</code> per pixel (e.g. ARGB_8888 as returned by
+ * <code>Bitmap.getPixels()</code>). The pixel values are copied as-is, so any packing works.
+ */
+public final class IntRaster extends Raster<IntRaster> {
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    private final int[] mPixels;
+    private final int mOffset;
+    private final int mStride;
+
+    // Constructor /////////////////////////////////////////////////////////////////////////////////
+
+    private IntRaster(int[] pixels, int offset, int stride, int width, int height) {
+        super(width, height);
+        if (stride < width) {
+            throw new IllegalArgumentException("Stride must be at least the width.");
+        }
+        if (offset < 0 || offset + (long) stride * (height - 1) + width > pixels.length) {
+            throw new IllegalArgumentException("Pixel array is too small for a " + width + "x" + height + " raster.");
+        }
+        mPixels = pixels;
+        mOffset = offset;
+        mStride = stride;
+    }
+
+    // Static Factory Methods //////////////////////////////////////////////////////////////////////
+
+    /**
+     * Wraps tightly packed pixels; the array is not copied.
+     */
+    public static IntRaster wrap(int[] pixels, int width, int height) {
+        return new IntRaster(pixels, 0, width, width, height);
+    }
+
+    /**
+     * Wraps pixels laid out like <code>Bitmap.getPixels(pixels, offset, stride, ...)</code> writes
+     * them; the array is not copied.
+     */
+    public static IntRaster wrap(int[] pixels, int offset, int stride, int width, int height) {
+        return new IntRaster(pixels, offset, stride, width, height);
+    }
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Gets the backing array. Rasters returned by the operations are tightly packed, with an
+     * offset of 0 and a stride equal to the width.
+     */
+    public int[] getPixels() {
+        return mPixels;
+    }
+
+    public int getOffset() {
+        return mOffset;
+    }
+
+    public int getStride() {
+        return mStride;
+    }
+
+    @Override
+    public IntRaster flipHorizontal() {
+        int[] output = new int[mWidth * mHeight];
+        for (int y = 0; y < mHeight; y++) {
+            int in = mOffset + y * mStride + mWidth - 1;
+            int out = y * mWidth;
+            for (int x = 0; x < mWidth; x++) {
+                output[out + x] = mPixels[in - x];
+            }
+        }
+        return wrap(output, mWidth, mHeight);
+    }
+
+    @Override
+    public IntRaster flipVertical() {
+        int[] output = new int[mWidth * mHeight];
+        for (int y = 0; y < mHeight; y++) {
+            System.arraycopy(mPixels, mOffset + (mHeight - 1 - y) * mStride, output, y * mWidth, mWidth);
+        }
+        return wrap(output, mWidth, mHeight);
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    IntRaster copyRect(int left, int top, int width, int height) {
+        int[] output = new int[width * height];
+        int in = mOffset + top * mStride + left;
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(mPixels, in + y * mStride, output, y * width, width);
+        }
+        return wrap(output, width, height);
+    }
+
+    @Override
+    IntRaster transpose(boolean clockwise) {
+        // The output is mHeight wide and mWidth tall.
+        int[] output = new int[mWidth * mHeight];
+        for (int tileY = 0; tileY < mHeight; tileY += TILE_SIZE) {
+            int endY = Math.min(tileY + TILE_SIZE, mHeight);
+            for (int tileX = 0; tileX < mWidth; tileX += TILE_SIZE) {
+                int endX = Math.min(tileX + TILE_SIZE, mWidth);
+                for (int y = tileY; y < endY; y++) {
+                    int in = mOffset + y * mStride;
+                    for (int x = tileX; x < endX; x++) {
+                        // Clockwise, (x, y) goes to (height - 1 - y, x); counter-clockwise to (y, width - 1 - x).
+                        int out = clockwise
+                                ? x * mHeight + (mHeight - 1 - y)
+                                : (mWidth - 1 - x) * mHeight + y;
+                        output[out] = mPixels[in + x];
+                    }
+                }
+            }
+        }
+        return wrap(output, mHeight, mWidth);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.xingchen.imagecropper.raster;
+
+/**
+ * Base class of the pure-Java rasters, which crop, flip and rotate images without
+ * <code>android.graphics.Bitmap</code> or <code>java.awt.image.BufferedImage</code>, so that the
+ * same crop specs can be run on a server and produce byte-identical pixels.
+ * <p/>
+ * A raster is a window of <code>width x height</code> pixels into a backing store whose rows are
+ * <code>stride</code> elements apart. Every operation returns a new, tightly packed raster and
+ * leaves this one untouched.
+ *
+ * @param <T> the concrete raster type
+ */
+public abstract class Raster<T extends Raster<T>> {
+
+    // Private Constants ///////////////////////////////////////////////////////////////////////////
+
+    // Side length (in pixels) of the square tiles rotations are done in, so that both the rows read
+    // and the rows written stay in cache.
+    static final int TILE_SIZE = 32;
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    final int mWidth;
+    final int mHeight;
+
+    // Constructor /////////////////////////////////////////////////////////////////////////////////
+
+    Raster(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Raster dimensions must be greater than 0.");
+        }
+        mWidth = width;
+        mHeight = height;
+    }
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Copies the given rectangle into a new raster. The rectangle uses the semantics of
+     * <code>CropImageView.getCropRect()</code> and <code>Bitmap.createBitmap()</code>: right and
+     * bottom are exclusive, and the rectangle must lie entirely within the raster.
+     *
+     * @throws IllegalArgumentException if the rectangle is empty or not within the raster
+     */
+    public T crop(int left, int top, int right, int bottom) {
+        if (left < 0 || top < 0) {
+            throw new IllegalArgumentException("left and top must be >= 0");
+        }
+        if (right <= left || bottom <= top) {
+            throw new IllegalArgumentException("width and height must be > 0");
+        }
+        if (right > mWidth) {
+            throw new IllegalArgumentException("left + width must be <= raster width");
+        }
+        if (bottom > mHeight) {
+            throw new IllegalArgumentException("top + height must be <= raster height");
+        }
+        return copyRect(left, top, right - left, bottom - top);
+    }
+
+    /**
+     * Mirrors the raster left to right.
+     */
+    public abstract T flipHorizontal();
+
+    /**
+     * Mirrors the raster top to bottom.
+     */
+    public abstract T flipVertical();
+
+    /**
+     * Rotates the raster clockwise.
+     *
+     * @param degrees 0, 90, 180 or 270 (or an equivalent multiple of 90, e.g. -90)
+     * @throws IllegalArgumentException if the angle is not a multiple of 90 degrees
+     */
+    public T rotate(int degrees) {
+        if (degrees % 90 != 0) {
+            throw new IllegalArgumentException("Rotation must be a multiple of 90 degrees.");
+        }
+        switch (((degrees % 360) + 360) % 360) {
+            case 90:
+                return transpose(true);
+            case 180:
+                return flipHorizontal().flipVertical();
+            case 270:
+                return transpose(false);
+            default:
+                return copyRect(0, 0, mWidth, mHeight);
+        }
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Copies a rectangle known to lie within the raster into a new, tightly packed raster.
+     */
+    abstract T copyRect(int left, int top, int width, int height);
+
+    /**
+     * Rotates the raster by a quarter turn into a new raster of swapped dimensions.
+     *
+     * @param clockwise true for 90 degrees clockwise, false for 90 degrees counter-clockwise
+     */
+    abstract T transpose(boolean clockwise);
+}
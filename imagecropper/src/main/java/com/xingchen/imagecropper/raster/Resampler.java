@@ -0,0 +1,343 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.xingchen.imagecropper.raster;
+
+import com.xingchen.imagecropper.utils.ParallelUtil;
+
+import java.io.IOException;
+
+/**
+ * High-quality resampler for crop results, for use where a single bilinear step (e.g.
+ * <code>Bitmap.createScaledBitmap()</code>) would alias.
+ * <p/>
+ * The filter is separable: rows are resampled horizontally into an intermediate image, whose
+ * columns are then resampled vertically. For each output coordinate the filter taps are computed
+ * once, as 14-bit fixed-point weights, so the inner loops are integer multiply-adds only. Both
+ * passes are split into row strips and run with {@link ParallelUtil}. Images with translucent
+ * pixels are resampled with premultiplied alpha, so transparent areas (e.g. outside an oval crop)
+ * do not bleed dark fringes into the result.
+ * <p/>
+ * Instances are immutable and may be shared between threads.
+ */
+public class Resampler {
+
+    // Private Constants ///////////////////////////////////////////////////////////////////////////
+
+    // Precision of the fixed-point filter weights.
+    private static final int WEIGHT_BITS = 14;
+    private static final int WEIGHT_ONE = 1 << WEIGHT_BITS;
+    private static final int WEIGHT_ROUNDING = 1 << (WEIGHT_BITS - 1);
+
+    // Number of strips each pass is split into per thread, to even out uneven progress.
+    private static final int STRIPS_PER_THREAD = 4;
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    private final Filter mFilter;
+
+    // Constructor /////////////////////////////////////////////////////////////////////////////////
+
+    public Resampler(Filter filter) {
+        mFilter = filter;
+    }
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Resamples packed ARGB pixels (not premultiplied, as returned by
+     * <code>Bitmap.getPixels()</code>) to the given size.
+     *
+     * @return a new, tightly packed raster of the requested size
+     * @throws IOException if the calling thread was interrupted
+     */
+    public IntRaster resample(IntRaster source, int width, int height) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Output dimensions must be greater than 0.");
+        }
+        if (width == source.getWidth() && height == source.getHeight()) {
+            // Nothing to resample; return a copy, like every other raster operation.
+            return source.crop(0, 0, width, height);
+        }
+        int[] pixels = source.getPixels();
+        int offset = source.getOffset();
+        int stride = source.getStride();
+        int sourceWidth = source.getWidth();
+        int sourceHeight = source.getHeight();
+
+        boolean translucent = isTranslucent(pixels, offset, stride, sourceWidth, sourceHeight);
+        if (translucent) {
+            pixels = premultiply(pixels, offset, stride, sourceWidth, sourceHeight);
+            offset = 0;
+            stride = sourceWidth;
+        }
+
+        // Horizontal pass: sourceWidth x sourceHeight -> width x sourceHeight.
+        if (width != sourceWidth) {
+            int[] output = new int[width * sourceHeight];
+            resampleRows(pixels, offset, stride, output, width, sourceHeight, newWeightTable(sourceWidth, width));
+            pixels = output;
+            offset = 0;
+            stride = width;
+        }
+
+        // Vertical pass: width x sourceHeight -> width x height.
+        if (height != sourceHeight) {
+            int[] output = new int[width * height];
+            resampleColumns(pixels, offset, stride, output, width, height, newWeightTable(sourceHeight, height));
+            pixels = output;
+        }
+
+        if (translucent) {
+            unpremultiply(pixels);
+        }
+        return IntRaster.wrap(pixels, width, height);
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Resamples every row horizontally, with the rows split into strips across threads.
+     */
+    private static void resampleRows(final int[] input,
+                                     final int offset,
+                                     final int stride,
+                                     final int[] output,
+                                     final int width,
+                                     final int height,
+                                     final WeightTable table) throws IOException {
+        final int strips = Math.min(height, ParallelUtil.getParallelism() * STRIPS_PER_THREAD);
+        ParallelUtil.parallelFor(strips, new ParallelUtil.IndexedTask() {
+            @Override
+            public void run(int strip) {
+                int endY = (int) ((long) height * (strip + 1) / strips);
+                for (int y = (int) ((long) height * strip / strips); y < endY; y++) {
+                    int in = offset + y * stride;
+                    int out = y * width;
+                    for (int x = 0; x < width; x++) {
+                        output[out + x] = convolve(input, in, 1, table, x);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Resamples every column vertically, with the output rows split into strips across threads.
+     * Each output row is produced left to right, so the input rows under the filter are read
+     * sequentially rather than column by column.
+     */
+    private static void resampleColumns(final int[] input,
+                                        final int offset,
+                                        final int stride,
+                                        final int[] output,
+                                        final int width,
+                                        final int height,
+                                        final WeightTable table) throws IOException {
+        final int strips = Math.min(height, ParallelUtil.getParallelism() * STRIPS_PER_THREAD);
+        ParallelUtil.parallelFor(strips, new ParallelUtil.IndexedTask() {
+            @Override
+            public void run(int strip) {
+                int endY = (int) ((long) height * (strip + 1) / strips);
+                for (int y = (int) ((long) height * strip / strips); y < endY; y++) {
+                    int out = y * width;
+                    for (int x = 0; x < width; x++) {
+                        output[out + x] = convolve(input, offset + x, stride, table, y);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Computes output sample <code>i</code> of the line (row or column) starting at <code>in</code>,
+     * whose samples are <code>step</code> apart.
+     */
+    private static int convolve(int[] input, int in, int step, WeightTable table, int i) {
+        int a = WEIGHT_ROUNDING;
+        int r = WEIGHT_ROUNDING;
+        int g = WEIGHT_ROUNDING;
+        int b = WEIGHT_ROUNDING;
+        int position = in + table.mStarts[i] * step;
+        int w = i * table.mMaxTaps;
+        int end = w + table.mCounts[i];
+        for (; w < end; w++, position += step) {
+            int pixel = input[position];
+            int weight = table.mWeights[w];
+            a += (pixel >>> 24) * weight;
+            r += ((pixel >> 16) & 0xFF) * weight;
+            g += ((pixel >> 8) & 0xFF) * weight;
+            b += (pixel & 0xFF) * weight;
+        }
+        return (clamp(a >> WEIGHT_BITS) << 24)
+                | (clamp(r >> WEIGHT_BITS) << 16)
+                | (clamp(g >> WEIGHT_BITS) << 8)
+                | clamp(b >> WEIGHT_BITS);
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    /**
+     * Computes the taps of every output sample along one axis. When scaling down, the filter is
+     * stretched to cover every input sample that maps onto the output sample.
+     */
+    private WeightTable newWeightTable(int inLength, int outLength) {
+        double scale = outLength / (double) inLength;
+        double filterScale = Math.max(1.0, 1.0 / scale);
+        double support = mFilter.mSupport * filterScale;
+        int maxTaps = (int) Math.ceil(support) * 2 + 1;
+
+        WeightTable table = new WeightTable(outLength, maxTaps);
+        double[] weights = new double[maxTaps];
+        for (int i = 0; i < outLength; i++) {
+            double center = (i + 0.5) / scale;
+            int start = Math.max(0, (int) Math.floor(center - support));
+            int end = Math.min(inLength, (int) Math.ceil(center + support));
+            int count = Math.min(end - start, maxTaps);
+
+            double sum = 0;
+            for (int j = 0; j < count; j++) {
+                weights[j] = mFilter.weight((start + j + 0.5 - center) / filterScale);
+                sum += weights[j];
+            }
+            if (sum == 0) {
+                // The filter missed every input sample (e.g. a narrow box); fall back to the nearest one.
+                int nearest = Math.min(count - 1, Math.max(0, (int) center - start));
+                weights[nearest] = sum = 1;
+            }
+
+            // Quantize; the rounding error goes to the largest tap so that the weights sum to exactly 1.
+            int total = 0;
+            int largest = 0;
+            for (int j = 0; j < count; j++) {
+                int weight = (int) Math.round(weights[j] / sum * WEIGHT_ONE);
+                table.mWeights[i * maxTaps + j] = weight;
+                total += weight;
+                if (weight > table.mWeights[i * maxTaps + largest]) {
+                    largest = j;
+                }
+            }
+            table.mWeights[i * maxTaps + largest] += WEIGHT_ONE - total;
+            table.mStarts[i] = start;
+            table.mCounts[i] = count;
+        }
+        return table;
+    }
+
+    private static boolean isTranslucent(int[] pixels, int offset, int stride, int width, int height) {
+        for (int y = 0; y < height; y++) {
+            for (int i = offset + y * stride, end = i + width; i < end; i++) {
+                if ((pixels[i] >>> 24) != 0xFF) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int[] premultiply(int[] pixels, int offset, int stride, int width, int height) {
+        int[] output = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            int in = offset + y * stride;
+            for (int x = 0; x < width; x++) {
+                int pixel = pixels[in + x];
+                int a = pixel >>> 24;
+                int r = ((pixel >> 16) & 0xFF) * a + 127;
+                int g = ((pixel >> 8) & 0xFF) * a + 127;
+                int b = (pixel & 0xFF) * a + 127;
+                output[y * width + x] = (a << 24) | ((r / 255) << 16) | ((g / 255) << 8) | (b / 255);
+            }
+        }
+        return output;
+    }
+
+    private static void unpremultiply(int[] pixels) {
+        for (int i = 0; i < pixels.length; i++) {
+            int pixel = pixels[i];
+            int a = pixel >>> 24;
+            if (a == 0) {
+                pixels[i] = 0;
+            } else if (a != 0xFF) {
+                int half = a / 2;
+                int r = Math.min(255, (((pixel >> 16) & 0xFF) * 255 + half) / a);
+                int g = Math.min(255, (((pixel >> 8) & 0xFF) * 255 + half) / a);
+                int b = Math.min(255, ((pixel & 0xFF) * 255 + half) / a);
+                pixels[i] = (a << 24) | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+
+    // Inner Classes ///////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The resampling filters.
+     */
+    public enum Filter {
+
+        // Area averaging: every input pixel covered by an output pixel counts equally.
+        BOX(0.5),
+
+        // Linear interpolation, widened when scaling down (unlike a plain bilinear step).
+        TRIANGLE(1.0),
+
+        // Windowed sinc with 3 lobes; the sharpest of the three, at the cost of slight ringing.
+        LANCZOS3(3.0);
+
+        private final double mSupport;
+
+        Filter(double support) {
+            mSupport = support;
+        }
+
+        double weight(double x) {
+            switch (this) {
+                case BOX:
+                    return (x > -0.5 && x <= 0.5) ? 1 : 0;
+                case TRIANGLE:
+                    x = Math.abs(x);
+                    return x < 1 ? 1 - x : 0;
+                default:
+                    return x > -3 && x < 3 ? sinc(x) * sinc(x / 3) : 0;
+            }
+        }
+
+        private static double sinc(double x) {
+            if (x == 0) {
+                return 1;
+            }
+            x *= Math.PI;
+            return Math.sin(x) / x;
+        }
+    }
+
+    /**
+     * The filter taps of every output sample along one axis: the first input sample, the number of
+     * taps and the fixed-point weights (<code>maxTaps</code> slots per output sample).
+     */
+    private static class WeightTable {
+
+        final int[] mStarts;
+        final int[] mCounts;
+        final int[] mWeights;
+        final int mMaxTaps;
+
+        WeightTable(int outLength, int maxTaps) {
+            mStarts = new int[outLength];
+            mCounts = new int[outLength];
+            mWeights = new int[outLength * maxTaps];
+            mMaxTaps = maxTaps;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+
+package com.xingchen.imagecropper.raster;
+
+/**
+ * Stack blur of packed ARGB pixels, an approximation of a Gaussian blur whose cost does not depend
+ * on the radius.
+ * <p/>
+ * Each pixel becomes the average of its neighbours weighted by a triangle (weight <code>radius +
+ * 1</code> at the pixel, falling by one per pixel of distance), applied separably to the rows and
+ * then to the columns. The weighted sum is kept up to date as the window slides along a line by
+ * adding the pixels entering the window and removing those leaving it, so each pixel costs a
+ * constant number of additions per pass. Pixels past the edges repeat the edge pixel.
+ */
+public final class StackBlur {
+
+    // Constructor /////////////////////////////////////////////////////////////////////////////////
+
+    private StackBlur() {
+    }
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Blurs the raster in place.
+     *
+     * @param raster the pixels to blur
+     * @param radius the blur radius, in pixels; 0 leaves the raster unchanged
+     */
+    public static void blur(IntRaster raster, int radius) {
+        if (radius < 0) {
+            throw new IllegalArgumentException("Radius must not be negative.");
+        }
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        if (radius == 0 || width == 0 || height == 0) {
+            return;
+        }
+        int[] pixels = raster.getPixels();
+        int offset = raster.getOffset();
+        int stride = raster.getStride();
+        int[] line = new int[Math.max(width, height)];
+        int[] stack = new int[2 * radius + 1];
+
+        for (int y = 0; y < height; y++) {
+            int start = offset + y * stride;
+            System.arraycopy(pixels, start, line, 0, width);
+            blurLine(line, width, pixels, start, 1, radius, stack);
+        }
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                line[y] = pixels[offset + y * stride + x];
+            }
+            blurLine(line, height, pixels, offset + x, stride, radius, stack);
+        }
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Blurs one line of <code>length</code> pixels into <code>out</code>, starting at
+     * <code>outOffset</code> and <code>outStep</code> apart.
+     */
+    private static void blurLine(int[] line, int length, int[] out, int outOffset, int outStep, int radius, int[] stack) {
+        int size = stack.length;
+        int divisor = (radius + 1) * (radius + 1);
+        int last = length - 1;
+
+        // Weighted sums of the window, and plain sums of its incoming (right) and outgoing (left)
+        // halves, per channel.
+        int sumA = 0, sumR = 0, sumG = 0, sumB = 0;
+        int inA = 0, inR = 0, inG = 0, inB = 0;
+        int outA = 0, outR = 0, outG = 0, outB = 0;
+        for (int i = -radius; i <= radius; i++) {
+            int pixel = line[Math.min(last, Math.max(0, i))];
+            stack[i + radius] = pixel;
+            int weight = radius + 1 - Math.abs(i);
+            int a = pixel >>> 24;
+            int r = (pixel >> 16) & 0xFF;
+            int g = (pixel >> 8) & 0xFF;
+            int b = pixel & 0xFF;
+            sumA += a * weight;
+            sumR += r * weight;
+            sumG += g * weight;
+            sumB += b * weight;
+            if (i <= 0) {
+                outA += a;
+                outR += r;
+                outG += g;
+                outB += b;
+            } else {
+                inA += a;
+                inR += r;
+                inG += g;
+                inB += b;
+            }
+        }
+
+        // The stack is a ring holding the window; 'pointer' is the slot of the center pixel.
+        int pointer = radius;
+        for (int x = 0, index = outOffset; x < length; x++, index += outStep) {
+            out[index] = (sumA / divisor) << 24 | (sumR / divisor) << 16 | (sumG / divisor) << 8 | (sumB / divisor);
+
+            // Slide the window: the left half loses its oldest pixel...
+            sumA -= outA;
+            sumR -= outR;
+            sumG -= outG;
+            sumB -= outB;
+            int slot = (pointer + radius + 1) % size;
+            int leaving = stack[slot];
+            outA -= leaving >>> 24;
+            outR -= (leaving >> 16) & 0xFF;
+            outG -= (leaving >> 8) & 0xFF;
+            outB -= leaving & 0xFF;
+
+            // ...the right half gains the next pixel, in the freed slot...
+            int entering = line[Math.min(last, x + radius + 1)];
+            stack[slot] = entering;
+            inA += entering >>> 24;
+            inR += (entering >> 16) & 0xFF;
+            inG += (entering >> 8) & 0xFF;
+            inB += entering & 0xFF;
+            sumA += inA;
+            sumR += inR;
+            sumG += inG;
+            sumB += inB;
+
+            // ...and the new center pixel moves from the right half to the left one.
+            pointer = (pointer + 1) % size;
+            int center = stack[pointer];
+            outA += center >>> 24;
+            outR += (center >> 16) & 0xFF;
+            outG += (center >> 8) & 0xFF;
+            outB += center & 0xFF;
+            inA -= center >>> 24;
+            inR -= (center >> 16) & 0xFF;
+            inG -= (center >> 8) & 0xFF;
+            inB -= center & 0xFF;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.xingchen.imagecropper.region;
+
+import android.graphics.RectF;
+
+import androidx.annotation.NonNull;
+
+import com.xingchen.imagecropper.handler.Handle;
+import com.xingchen.imagecropper.utils.HandleUtil;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Uniform-grid spatial index over several crop regions, used to find the region and Handle under
+ * a touch point without testing every region.
+ * <p/>
+ * Each region is registered in every grid cell its touch area (the region grown by the handle
+ * radius) overlaps, so a query only runs {@link HandleUtil#getPressedHandle} on the regions sharing
+ * the touched cell.
+ */
+public class RegionIndex {
+
+    // Private Constants ///////////////////////////////////////////////////////////////////////////
+
+    // Number of grid cells along each axis of the indexed bounds.
+    private static final int GRID_SIZE = 8;
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    // The indexed bounds and the size of one cell.
+    private final RectF mBounds = new RectF();
+    private float mCellWidth;
+    private float mCellHeight;
+
+    // For each cell, the indices of the regions overlapping it and how many there are.
+    private final int[][] mCells = new int[GRID_SIZE * GRID_SIZE][];
+    private final int[] mCellSizes = new int[GRID_SIZE * GRID_SIZE];
+
+    // The regions, as last passed to rebuild().
+    private List<RectF> mRegions;
+    private float mHandleRadius;
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Rebuilds the index over the given regions. The list is referenced, not copied; call this
+     * again whenever a region is added, removed or moved.
+     *
+     * @param regions      the crop regions, in view coordinates
+     * @param bounds       the area touches can land in (e.g. the view bounds)
+     * @param handleRadius the touch radius of the handles, in pixels
+     */
+    public void rebuild(@NonNull List<RectF> regions, @NonNull RectF bounds, float handleRadius) {
+        mRegions = regions;
+        mHandleRadius = handleRadius;
+        mBounds.set(bounds);
+        mCellWidth = Math.max(1f, bounds.width() / GRID_SIZE);
+        mCellHeight = Math.max(1f, bounds.height() / GRID_SIZE);
+        Arrays.fill(mCellSizes, 0);
+
+        for (int i = 0; i < regions.size(); i++) {
+            RectF region = regions.get(i);
+            int firstColumn = getColumn(region.left - handleRadius);
+            int lastColumn = getColumn(region.right + handleRadius);
+            int firstRow = getRow(region.top - handleRadius);
+            int lastRow = getRow(region.bottom + handleRadius);
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    addToCell(row * GRID_SIZE + column, i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the region pressed at the given point. Corner handles win over edge handles, which win
+     * over the center handle; among equals the preferred region wins, then the most recently added
+     * one (which is drawn on top).
+     *
+     * @param x         the x-coordinate of the touch point
+     * @param y         the y-coordinate of the touch point
+     * @param preferred the index of the region to favor on ties (e.g. the active one); -1 for none
+     * @return the index of the pressed region; -1 if none
+     */
+    public int findPressedRegion(float x, float y, int preferred) {
+        if (mRegions == null || !mBounds.contains(x, y)) {
+            return -1;
+        }
+        int cell = getRow(y) * GRID_SIZE + getColumn(x);
+        int[] candidates = mCells[cell];
+        int bestRegion = -1;
+        int bestRank = Integer.MAX_VALUE;
+        for (int i = 0; i < mCellSizes[cell]; i++) {
+            int index = candidates[i];
+            RectF region = mRegions.get(index);
+            Handle handle = HandleUtil.getPressedHandle(x, y, region.left, region.top, region.right, region.bottom, mHandleRadius);
+            if (handle == null) {
+                continue;
+            }
+            int rank = getRank(handle);
+            if (rank < bestRank || (rank == bestRank && bestRegion != preferred && (index == preferred || index > bestRegion))) {
+                bestRank = rank;
+                bestRegion = index;
+            }
+        }
+        return bestRegion;
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Ranks a pressed handle; lower ranks take precedence.
+     */
+    private static int getRank(@NonNull Handle handle) {
+        switch (handle) {
+            case TOP_LEFT:
+            case TOP_RIGHT:
+            case BOTTOM_LEFT:
+            case BOTTOM_RIGHT:
+                return 0;
+            case CENTER:
+                return 2;
+            default:
+                return 1;
+        }
+    }
+
+    private int getColumn(float x) {
+        return Math.max(0, Math.min(GRID_SIZE - 1, (int) ((x - mBounds.left) / mCellWidth)));
+    }
+
+    private int getRow(float y) {
+        return Math.max(0, Math.min(GRID_SIZE - 1, (int) ((y - mBounds.top) / mCellHeight)));
+    }
+
+    private void addToCell(int cell, int region) {
+        int[] entries = mCells[cell];
+        if (entries == null) {
+            entries = new int[4];
+        } else if (mCellSizes[cell] == entries.length) {
+            entries = Arrays.copyOf(entries, entries.length * 2);
+        }
+        entries[mCellSizes[cell]++] = region;
+        mCells[cell] = entries;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.xingchen.imagecropper.shape;
+
+import android.graphics.Path;
+import android.graphics.RectF;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Enum representing the shape cut out of the crop window. The crop window itself (and therefore
+ * every Handle) stays rectangular; the shape is inscribed in it.
+ */
+public enum CropShape {
+    RECTANGLE,
+    OVAL,
+    ROUNDED_RECTANGLE;
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Adds the outline of this shape, inscribed in the given bounds, to a Path.
+     *
+     * @param path         the Path to add to
+     * @param bounds       the bounds of the shape
+     * @param cornerRadius the corner radius; only used by {@link #ROUNDED_RECTANGLE}
+     */
+    public void addToPath(@NonNull Path path, @NonNull RectF bounds, float cornerRadius) {
+        switch (this) {
+            case OVAL:
+                path.addOval(bounds, Path.Direction.CW);
+                break;
+            case ROUNDED_RECTANGLE:
+                // Clamp the radius so that the corners never overlap, however small the window gets.
+                float radius = Math.min(cornerRadius, Math.min(bounds.width(), bounds.height()) / 2);
+                path.addRoundRect(bounds, radius, radius, Path.Direction.CW);
+                break;
+            default:
+                path.addRect(bounds, Path.Direction.CW);
+                break;
+        }
+    }
+
+    /**
+     * Returns whether pixels of the crop window fall outside this shape.
+     */
+    public boolean isMasked() {
+        return this != RECTANGLE;
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.xingchen.imagecropper.smartcrop;
+
+/**
+ * Content-aware crop placement.
+ * <p/>
+ * The image is reduced to a small energy map (luminance gradient plus a saturation term), which is
+ * turned into a summed-area table so that every candidate window can be scored in constant time.
+ * The engine has no Android dependencies and can be used from the view or headlessly.
+ * Instances are immutable and may be shared between threads.
+ */
+public class SmartCropEngine {
+
+    // Public Constants ////////////////////////////////////////////////////////////////////////////
+
+    // Default length (in pixels) of the longer side of the energy map.
+    public static final int DEFAULT_ANALYSIS_SIZE = 96;
+
+    // Default smallest window, as a fraction of the largest window of the target aspect ratio.
+    public static final float DEFAULT_MIN_SCALE = 0.6f;
+
+    // Default weight of the window area in the score; keeps the engine from always picking the largest window.
+    public static final float DEFAULT_AREA_PENALTY = 0.3f;
+
+    // Private Constants ///////////////////////////////////////////////////////////////////////////
+
+    // Number of window sizes evaluated between the largest window and the smallest one.
+    private static final int SCALE_STEPS = 5;
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    private final int mAnalysisSize;
+    private final float mMinScale;
+    private final float mAreaPenalty;
+
+    // Constructors ////////////////////////////////////////////////////////////////////////////////
+
+    public SmartCropEngine() {
+        this(DEFAULT_ANALYSIS_SIZE, DEFAULT_MIN_SCALE, DEFAULT_AREA_PENALTY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param analysisSize length (in pixels) of the longer side of the energy map
+     * @param minScale     the smallest window to consider, as a fraction (0, 1] of the largest
+     *                     window of the target aspect ratio
+     * @param areaPenalty  weight of the window's area fraction subtracted from its score
+     */
+    public SmartCropEngine(int analysisSize, float minScale, float areaPenalty) {
+        if (analysisSize < 2) {
+            throw new IllegalArgumentException("Analysis size must be at least 2.");
+        }
+        if (minScale <= 0 || minScale > 1) {
+            throw new IllegalArgumentException("Minimum scale must be in (0, 1].");
+        }
+        mAnalysisSize = analysisSize;
+        mMinScale = minScale;
+        mAreaPenalty = areaPenalty;
+    }
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Gets the size (in pixels) of the map that an image of the given size is analyzed at. Callers
+     * that can downsample cheaply (e.g. with the platform scaler) should do so to this size and
+     * use {@link #findBestWindow(int[], int, int, int, int, float)}.
+     *
+     * @return the width and height of the energy map
+     */
+    public int[] getAnalysisSize(int width, int height) {
+        float scale = Math.min(1f, mAnalysisSize / (float) Math.max(width, height));
+        return new int[]{Math.max(2, Math.round(width * scale)), Math.max(2, Math.round(height * scale))};
+    }
+
+    /**
+     * Finds the best window of the given aspect ratio in a full-size ARGB image.
+     *
+     * @param argb        the pixels of the image, row-major with a stride equal to the width
+     * @param width       the width of the image
+     * @param height      the height of the image
+     * @param aspectRatio the aspect ratio (width / height) of the window to find
+     * @return the best window in the coordinates of the image
+     */
+    public Window findBestWindow(int[] argb, int width, int height, float aspectRatio) {
+        int[] mapSize = getAnalysisSize(width, height);
+        int[] thumbnail = downsample(argb, width, height, mapSize[0], mapSize[1]);
+        return findBestWindow(thumbnail, mapSize[0], mapSize[1], width, height, aspectRatio);
+    }
+
+    /**
+     * Finds the best window of the given aspect ratio from an already downsampled thumbnail.
+     *
+     * @param thumbnail       the ARGB pixels of the thumbnail, row-major with a stride equal to
+     *                        its width
+     * @param thumbnailWidth  the width of the thumbnail
+     * @param thumbnailHeight the height of the thumbnail
+     * @param imageWidth      the width of the full-size image
+     * @param imageHeight     the height of the full-size image
+     * @param aspectRatio     the aspect ratio (width / height) of the window to find
+     * @return the best window in the coordinates of the full-size image
+     */
+    public Window findBestWindow(int[] thumbnail,
+                                 int thumbnailWidth,
+                                 int thumbnailHeight,
+                                 int imageWidth,
+                                 int imageHeight,
+                                 float aspectRatio) {
+        if (aspectRatio <= 0) {
+            throw new IllegalArgumentException("Aspect ratio must be greater than 0.");
+        }
+        long[] table = buildSummedAreaTable(computeEnergy(thumbnail, thumbnailWidth, thumbnailHeight), thumbnailWidth, thumbnailHeight);
+        int stride = thumbnailWidth + 1;
+        double totalEnergy = table[table.length - 1];
+
+        // The largest window of the target aspect ratio, in full-size image coordinates.
+        float maxWidth = Math.min(imageWidth, imageHeight * aspectRatio);
+        float maxHeight = maxWidth / aspectRatio;
+        float mapScaleX = thumbnailWidth / (float) imageWidth;
+        float mapScaleY = thumbnailHeight / (float) imageHeight;
+        double imageArea = (double) imageWidth * imageHeight;
+
+        double bestScore = Double.NEGATIVE_INFINITY;
+        float bestLeft = 0;
+        float bestTop = 0;
+        float bestWidth = maxWidth;
+        float bestHeight = maxHeight;
+
+        for (int step = 0; step < SCALE_STEPS; step++) {
+            float scale = 1f - (1f - mMinScale) * step / (SCALE_STEPS - 1);
+            float windowWidth = maxWidth * scale;
+            float windowHeight = maxHeight * scale;
+            int cellsX = Math.max(1, Math.min(thumbnailWidth, Math.round(windowWidth * mapScaleX)));
+            int cellsY = Math.max(1, Math.min(thumbnailHeight, Math.round(windowHeight * mapScaleY)));
+            double areaTerm = mAreaPenalty * (windowWidth * windowHeight) / imageArea;
+
+            // Every placement of this window size on the energy map, each scored in O(1).
+            for (int y = 0; y + cellsY <= thumbnailHeight; y++) {
+                int topRow = y * stride;
+                int bottomRow = (y + cellsY) * stride;
+                for (int x = 0; x + cellsX <= thumbnailWidth; x++) {
+                    long energy = table[bottomRow + x + cellsX] - table[topRow + x + cellsX]
+                            - table[bottomRow + x] + table[topRow + x];
+                    double score = (totalEnergy > 0 ? energy / totalEnergy : 0) - areaTerm;
+                    if (score > bestScore) {
+                        bestScore = score;
+                        bestLeft = x / mapScaleX;
+                        bestTop = y / mapScaleY;
+                        bestWidth = windowWidth;
+                        bestHeight = windowHeight;
+                    }
+                }
+            }
+        }
+
+        // Center the exact window on the chosen cell range and keep it inside the image.
+        float cellWidth = Math.round(bestWidth * mapScaleX) / mapScaleX;
+        float cellHeight = Math.round(bestHeight * mapScaleY) / mapScaleY;
+        float left = clamp(bestLeft + (cellWidth - bestWidth) / 2f, 0, imageWidth - bestWidth);
+        float top = clamp(bestTop + (cellHeight - bestHeight) / 2f, 0, imageHeight - bestHeight);
+        return new Window(left, top, left + bestWidth, top + bestHeight, (float) bestScore);
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Box-filters the image down to the given size. Large cells are point-sampled on a regular
+     * grid, which is indistinguishable from a full average at the resolution of the energy map.
+     */
+    private static int[] downsample(int[] argb, int width, int height, int outWidth, int outHeight) {
+        final int maxSamplesPerAxis = 4;
+        int[] out = new int[outWidth * outHeight];
+        for (int oy = 0; oy < outHeight; oy++) {
+            int y0 = (int) ((long) oy * height / outHeight);
+            int y1 = Math.max(y0 + 1, (int) ((long) (oy + 1) * height / outHeight));
+            int stepY = Math.max(1, (y1 - y0) / maxSamplesPerAxis);
+            for (int ox = 0; ox < outWidth; ox++) {
+                int x0 = (int) ((long) ox * width / outWidth);
+                int x1 = Math.max(x0 + 1, (int) ((long) (ox + 1) * width / outWidth));
+                int stepX = Math.max(1, (x1 - x0) / maxSamplesPerAxis);
+                int r = 0;
+                int g = 0;
+                int b = 0;
+                int count = 0;
+                for (int y = y0; y < y1; y += stepY) {
+                    int row = y * width;
+                    for (int x = x0; x < x1; x += stepX) {
+                        int pixel = argb[row + x];
+                        r += (pixel >> 16) & 0xFF;
+                        g += (pixel >> 8) & 0xFF;
+                        b += pixel & 0xFF;
+                        count++;
+                    }
+                }
+                out[oy * outWidth + ox] = 0xFF000000 | ((r / count) << 16) | ((g / count) << 8) | (b / count);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Computes the energy of every pixel: the central-difference gradient of the luminance plus a
+     * quarter of the saturation (max - min channel), so that flat but colorful subjects still count.
+     */
+    private static int[] computeEnergy(int[] argb, int width, int height) {
+        int[] luma = new int[width * height];
+        int[] energy = new int[width * height];
+        for (int i = 0; i < argb.length && i < luma.length; i++) {
+            int pixel = argb[i];
+            int r = (pixel >> 16) & 0xFF;
+            int g = (pixel >> 8) & 0xFF;
+            int b = pixel & 0xFF;
+            luma[i] = (r * 299 + g * 587 + b * 114) / 1000;
+            energy[i] = (Math.max(r, Math.max(g, b)) - Math.min(r, Math.min(g, b))) >> 2;
+        }
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            int up = Math.max(0, y - 1) * width;
+            int down = Math.min(height - 1, y + 1) * width;
+            for (int x = 0; x < width; x++) {
+                int left = Math.max(0, x - 1);
+                int right = Math.min(width - 1, x + 1);
+                energy[row + x] += Math.abs(luma[row + right] - luma[row + left])
+                        + Math.abs(luma[down + x] - luma[up + x]);
+            }
+        }
+        return energy;
+    }
+
+    /**
+     * Builds a summed-area table with a leading row and column of zeros, so that the sum of the
+     * rectangle [x0, x1) x [y0, y1) is <code>t[y1][x1] - t[y0][x1] - t[y1][x0] + t[y0][x0]</code>.
+     */
+    private static long[] buildSummedAreaTable(int[] values, int width, int height) {
+        int stride = width + 1;
+        long[] table = new long[stride * (height + 1)];
+        for (int y = 0; y < height; y++) {
+            long rowSum = 0;
+            int row = y * width;
+            int tableRow = (y + 1) * stride;
+            for (int x = 0; x < width; x++) {
+                rowSum += values[row + x];
+                table[tableRow + x + 1] = table[tableRow - stride + x + 1] + rowSum;
+            }
+        }
+        return table;
+    }
+
+    private static float clamp(float value, float min, float max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    // Inner Classes ///////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * A scored crop window, in the coordinates of the analyzed image.
+     */
+    public static class Window {
+
+        public final float left;
+        public final float top;
+        public final float right;
+        public final float bottom;
+
+        // Fraction of the image energy inside the window minus the area penalty; higher is better.
+        public final float score;
+
+        public Window(float left, float top, float right, float bottom, float score) {
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+            this.score = score;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.xingchen.imagecropper.snap;
+
+import android.graphics.RectF;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Index of the lines that crop window edges snap to, in addition to the image bounds.
+ * <p/>
+ * Targets are line segments: a vertical segment attracts the left and right edges of the crop
+ * window, but only while the edge overlaps the segment vertically (and vice-versa for horizontal
+ * segments). Segments are sorted by coordinate once, by {@link #build()}, so a query is a binary
+ * search followed by a scan of the few segments within the snap radius; queries never sort, as they
+ * run for every touch event. An optional regular grid (e.g. source pixels) is snapped to
+ * analytically without being stored.
+ * <p/>
+ * Rebuild the index by calling {@link #clear()}, adding the targets and calling {@link #build()}.
+ */
+public class SnapTargetIndex {
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    // Vertical segments (x, top, bottom) attracting the left/right edges.
+    private final Axis mVertical = new Axis();
+
+    // Horizontal segments (y, left, right) attracting the top/bottom edges.
+    private final Axis mHorizontal = new Axis();
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Removes every target, including the grids.
+     */
+    public void clear() {
+        mVertical.clear();
+        mHorizontal.clear();
+    }
+
+    /**
+     * Returns whether the index contains no targets at all.
+     */
+    public boolean isEmpty() {
+        return mVertical.isEmpty() && mHorizontal.isEmpty();
+    }
+
+    /**
+     * Adds a vertical segment that the left and right edges snap to.
+     */
+    public void addVerticalLine(float x, float top, float bottom) {
+        mVertical.add(x, Math.min(top, bottom), Math.max(top, bottom));
+    }
+
+    /**
+     * Adds a horizontal segment that the top and bottom edges snap to.
+     */
+    public void addHorizontalLine(float y, float left, float right) {
+        mHorizontal.add(y, Math.min(left, right), Math.max(left, right));
+    }
+
+    /**
+     * Adds the four sides of the given rectangle as targets.
+     */
+    public void addRect(@NonNull RectF rect) {
+        addVerticalLine(rect.left, rect.top, rect.bottom);
+        addVerticalLine(rect.right, rect.top, rect.bottom);
+        addHorizontalLine(rect.top, rect.left, rect.right);
+        addHorizontalLine(rect.bottom, rect.left, rect.right);
+    }
+
+    /**
+     * Adds a regular grid of lines that every edge snaps to, bounded by the given rectangle.
+     *
+     * @param bounds  the area covered by the grid; its top-left corner is a grid point
+     * @param spacing the distance between two grid lines; 0 or less removes the grid
+     */
+    public void setGrid(@NonNull RectF bounds, float spacing) {
+        mVertical.setGrid(bounds.left, bounds.right, spacing);
+        mHorizontal.setGrid(bounds.top, bounds.bottom, spacing);
+    }
+
+    /**
+     * Sorts the targets added since {@link #clear()}. Must be called before the index is queried.
+     */
+    public void build() {
+        mVertical.sort();
+        mHorizontal.sort();
+    }
+
+    /**
+     * Snaps the x-coordinate of a vertical edge spanning [top, bottom] to the closest target.
+     *
+     * @return the snapped coordinate; <code>x</code> itself if no target is within the radius
+     * @throws IllegalStateException if targets were added since the last {@link #build()}
+     */
+    public float snapX(float x, float top, float bottom, float radius) {
+        return mVertical.snap(x, top, bottom, radius);
+    }
+
+    /**
+     * Snaps the y-coordinate of a horizontal edge spanning [left, right] to the closest target.
+     *
+     * @return the snapped coordinate; <code>y</code> itself if no target is within the radius
+     * @throws IllegalStateException if targets were added since the last {@link #build()}
+     */
+    public float snapY(float y, float left, float right, float radius) {
+        return mHorizontal.snap(y, left, right, radius);
+    }
+
+    // Inner Classes ///////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The segments perpendicular to one axis, sorted by coordinate.
+     */
+    private static class Axis {
+
+        private static final int INITIAL_CAPACITY = 16;
+
+        // Parallel arrays: the coordinate of each segment and the extent it covers along the other axis.
+        private float[] mCoordinates = new float[INITIAL_CAPACITY];
+        private float[] mStarts = new float[INITIAL_CAPACITY];
+        private float[] mEnds = new float[INITIAL_CAPACITY];
+        private int mSize;
+
+        // Whether segments were added since the arrays were last sorted.
+        private boolean mDirty;
+
+        // Scratch for sort(): each segment's coordinate as an ordered int, packed above its index.
+        private long[] mSortKeys = new long[INITIAL_CAPACITY];
+
+        // The grid: origin, spacing (0 when disabled) and the extent it covers.
+        private float mGridStart;
+        private float mGridEnd;
+        private float mGridSpacing;
+
+        void clear() {
+            mSize = 0;
+            mDirty = false;
+            mGridSpacing = 0;
+        }
+
+        boolean isEmpty() {
+            return mSize == 0 && mGridSpacing <= 0;
+        }
+
+        void add(float coordinate, float start, float end) {
+            if (mSize == mCoordinates.length) {
+                mCoordinates = Arrays.copyOf(mCoordinates, mSize * 2);
+                mStarts = Arrays.copyOf(mStarts, mSize * 2);
+                mEnds = Arrays.copyOf(mEnds, mSize * 2);
+            }
+            mCoordinates[mSize] = coordinate;
+            mStarts[mSize] = start;
+            mEnds[mSize] = end;
+            mSize++;
+            mDirty = true;
+        }
+
+        void setGrid(float start, float end, float spacing) {
+            mGridStart = start;
+            mGridEnd = end;
+            mGridSpacing = spacing;
+        }
+
+        float snap(float coordinate, float spanStart, float spanEnd, float radius) {
+            if (mDirty) {
+                throw new IllegalStateException("SnapTargetIndex.build() was not called after adding targets");
+            }
+            float best = coordinate;
+            float bestDistance = radius;
+
+            // Scan outwards from the first segment at or after (coordinate - radius).
+            for (int i = lowerBound(coordinate - radius); i < mSize && mCoordinates[i] <= coordinate + radius; i++) {
+                float distance = Math.abs(mCoordinates[i] - coordinate);
+                if (distance <= bestDistance && mStarts[i] <= spanEnd && mEnds[i] >= spanStart) {
+                    best = mCoordinates[i];
+                    bestDistance = distance;
+                }
+            }
+
+            if (mGridSpacing > 0 && coordinate >= mGridStart && coordinate <= mGridEnd) {
+                float gridLine = mGridStart + Math.round((coordinate - mGridStart) / mGridSpacing) * mGridSpacing;
+                float distance = Math.abs(gridLine - coordinate);
+                if (distance < bestDistance) {
+                    best = Math.min(gridLine, mGridEnd);
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Finds the index of the first segment whose coordinate is at or after the given value.
+         */
+        private int lowerBound(float coordinate) {
+            int low = 0;
+            int high = mSize;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (mCoordinates[mid] < coordinate) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Sorts the parallel arrays by coordinate, in O(n log n): the segments' indices are sorted
+         * by packed key and the arrays permuted accordingly.
+         */
+        void sort() {
+            if (!mDirty) {
+                return;
+            }
+            if (mSortKeys.length < mSize) {
+                mSortKeys = new long[mCoordinates.length];
+            }
+            for (int i = 0; i < mSize; i++) {
+                mSortKeys[i] = ((long) toOrderedInt(mCoordinates[i]) << 32) | i;
+            }
+            Arrays.sort(mSortKeys, 0, mSize);
+
+            float[] coordinates = new float[mCoordinates.length];
+            float[] starts = new float[mStarts.length];
+            float[] ends = new float[mEnds.length];
+            for (int i = 0; i < mSize; i++) {
+                int index = (int) mSortKeys[i];
+                coordinates[i] = mCoordinates[index];
+                starts[i] = mStarts[index];
+                ends[i] = mEnds[index];
+            }
+            mCoordinates = coordinates;
+            mStarts = starts;
+            mEnds = ends;
+            mDirty = false;
+        }
+
+        /**
+         * Maps a float to an int with the same ordering, so that floats sort as ints.
+         */
+        private static int toOrderedInt(float value) {
+            int bits = Float.floatToIntBits(value);
+            // Negative floats order by descending magnitude; flipping their magnitude bits fixes that.
+            return bits ^ ((bits >> 31) & 0x7FFFFFFF);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.xingchen.imagecropper.source;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * ImageSource backed by a file on the local file system.
+ */
+class FileImageSource extends ImageSource {
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    private final File mFile;
+
+    // Constructor /////////////////////////////////////////////////////////////////////////////////
+
+    FileImageSource(@NonNull File file) {
+        mFile = file;
+    }
+
+    // ImageSource Methods /////////////////////////////////////////////////////////////////////////
+
+    @Nullable
+    @Override
+    public Bitmap decode(@Nullable BitmapFactory.Options options) throws IOException {
+        return BitmapFactory.decodeFile(mFile.getAbsolutePath(), options);
+    }
+
+    @NonNull
+    @Override
+    public BitmapRegionDecoder newRegionDecoder() throws IOException {
+        return BitmapRegionDecoder.newInstance(mFile.getAbsolutePath(), false);
+    }
+
+    @NonNull
+    @Override
+    public InputStream openStream() throws IOException {
+        return new FileInputStream(mFile);
+    }
+
+    @NonNull
+    @Override
+    public String getIdentity() {
+        return mFile.getAbsolutePath() + "@" + mFile.length() + ":" + mFile.lastModified();
+    }
+
+    @Override
+    protected void decodeBounds(@NonNull BitmapFactory.Options options) throws IOException {
+        BitmapFactory.decodeFile(mFile.getAbsolutePath(), options);
+    }
+
+    @Override
+    public String toString() {
+        return mFile.getAbsolutePath();
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.xingchen.imagecropper.source;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An image that can be decoded any number of times (bounds pass, sampled pass, region decodes)
+ * without first being copied to a temporary file.
+ */
+public abstract class ImageSource {
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    // The dimensions and mime type of the encoded image; filled in by the first bounds pass.
+    private int mWidth = -1;
+    private int mHeight = -1;
+    private String mMimeType;
+
+    // Static Factory Methods //////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates an ImageSource reading from the given file.
+     */
+    @NonNull
+    public static ImageSource fromFile(@NonNull File file) {
+        return new FileImageSource(file);
+    }
+
+    /**
+     * Creates an ImageSource for the given Uri. <code>file://</code> Uris are read directly,
+     * everything else is resolved through the {@link ContentResolver}.
+     */
+    @NonNull
+    public static ImageSource fromUri(@NonNull Context context, @NonNull Uri uri) {
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme()) && uri.getPath() != null) {
+            return new FileImageSource(new File(uri.getPath()));
+        }
+        return new UriImageSource(context.getContentResolver(), uri);
+    }
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Gets the width (in pixels) of the encoded image, decoding its bounds if needed.
+     */
+    public int getWidth() throws IOException {
+        ensureBounds();
+        return mWidth;
+    }
+
+    /**
+     * Gets the height (in pixels) of the encoded image, decoding its bounds if needed.
+     */
+    public int getHeight() throws IOException {
+        ensureBounds();
+        return mHeight;
+    }
+
+    /**
+     * Gets the mime type of the encoded image, decoding its bounds if needed.
+     *
+     * @return the mime type; null if the decoder could not determine it
+     */
+    @Nullable
+    public String getMimeType() throws IOException {
+        ensureBounds();
+        return mMimeType;
+    }
+
+    /**
+     * Gets a string identifying the encoded image, for use in cache keys: it changes whenever the
+     * image is replaced, as far as can be told without reading it.
+     *
+     * @return the identity; null if a replaced image cannot be told apart, in which case results
+     * derived from the image must not be cached
+     */
+    @Nullable
+    public String getIdentity() throws IOException {
+        return toString();
+    }
+
+    /**
+     * Decodes the image subsampled by the largest power of two that still keeps both dimensions
+     * at or above the requested size.
+     *
+     * @param reqWidth  the requested width in pixels
+     * @param reqHeight the requested height in pixels
+     * @param options   the options to decode with; <code>inSampleSize</code> is overwritten with
+     *                  the sample size that was used
+     * @return the decoded Bitmap; null if the image could not be decoded
+     */
+    @Nullable
+    public Bitmap decodeSampled(final int reqWidth, final int reqHeight, @NonNull BitmapFactory.Options options) throws IOException {
+        return decodeSampled(new SampleSizePolicy() {
+            @Override
+            public int getSampleSize(int width, int height) {
+                return calculateInSampleSize(width, height, reqWidth, reqHeight);
+            }
+        }, options);
+    }
+
+    /**
+     * Decodes the image subsampled by the sample size the given policy picks for its dimensions.
+     * Unlike calling {@link #getWidth()} followed by {@link #decode}, this lets sources that can
+     * only be read as a stream read the bounds and the pixels from a single stream.
+     *
+     * @param policy  picks the sample size once the dimensions are known
+     * @param options the options to decode with; <code>inSampleSize</code> is overwritten with
+     *                the sample size that was used
+     * @return the decoded Bitmap; null if the image could not be decoded
+     */
+    @Nullable
+    public Bitmap decodeSampled(@NonNull SampleSizePolicy policy, @NonNull BitmapFactory.Options options) throws IOException {
+        ensureBounds();
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = policy.getSampleSize(mWidth, mHeight);
+        return decode(options);
+    }
+
+    /**
+     * Decodes the whole image.
+     *
+     * @param options the options to decode with; may be null
+     * @return the decoded Bitmap; null if the image could not be decoded
+     */
+    @Nullable
+    public abstract Bitmap decode(@Nullable BitmapFactory.Options options) throws IOException;
+
+    /**
+     * Creates a new, independent region decoder for this image. The caller owns the decoder and
+     * must recycle it.
+     */
+    @NonNull
+    public abstract BitmapRegionDecoder newRegionDecoder() throws IOException;
+
+    /**
+     * Opens a new stream over the encoded bytes. The caller must close it.
+     */
+    @NonNull
+    public abstract InputStream openStream() throws IOException;
+
+    /**
+     * Calculates the largest power of two sample size that keeps both dimensions of the decoded
+     * image at or above the requested size.
+     */
+    public static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return inSampleSize;
+        }
+        while ((width / (inSampleSize * 2)) >= reqWidth && (height / (inSampleSize * 2)) >= reqHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    // Protected Methods ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Performs a bounds-only decode of the image into the given options.
+     */
+    protected abstract void decodeBounds(@NonNull BitmapFactory.Options options) throws IOException;
+
+    /**
+     * Returns whether the bounds of the image are already known.
+     */
+    protected boolean hasBounds() {
+        return mWidth >= 0 && mHeight >= 0;
+    }
+
+    /**
+     * Records the result of a bounds-only decode so that it is not repeated.
+     */
+    protected void setBounds(@NonNull BitmapFactory.Options options) throws IOException {
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Unable to decode image bounds: " + this);
+        }
+        mWidth = options.outWidth;
+        mHeight = options.outHeight;
+        mMimeType = options.outMimeType;
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    private void ensureBounds() throws IOException {
+        if (!hasBounds()) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            decodeBounds(options);
+            setBounds(options);
+        }
+    }
+
+    // Inner Classes ///////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Picks the sample size to decode an image at, given its full dimensions.
+     */
+    public interface SampleSizePolicy {
+
+        /**
+         * @return the sample size to decode an image of the given dimensions at; at least 1
+         */
+        int getSampleSize(int width, int height);
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.xingchen.imagecropper.source;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.xingchen.imagecropper.utils.IOUtil;
+
+import java.io.BufferedInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * ImageSource backed by a {@link ContentResolver} Uri.
+ * <p/>
+ * Whenever the provider hands out a file descriptor, every decode goes through a freshly opened
+ * descriptor. Providers that only serve streams (e.g. cloud-backed galleries) are read through a
+ * bounded mark/reset buffer, so the bounds pass and the pixel pass share a single stream.
+ */
+class UriImageSource extends ImageSource {
+
+    // Private Constants ///////////////////////////////////////////////////////////////////////////
+
+    // Upper bound on the bytes buffered for the bounds pass. Image headers fit comfortably in this;
+    // if a decoder reads further the mark is invalidated and the stream is simply reopened.
+    private static final int HEADER_BUFFER_SIZE = 64 * 1024;
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+
+    // Set once the provider has refused to hand out a file descriptor, so that we do not ask again.
+    private boolean mStreamOnly;
+
+    // Constructor /////////////////////////////////////////////////////////////////////////////////
+
+    UriImageSource(@NonNull ContentResolver resolver, @NonNull Uri uri) {
+        mResolver = resolver;
+        mUri = uri;
+    }
+
+    // ImageSource Methods /////////////////////////////////////////////////////////////////////////
+
+    @Nullable
+    @Override
+    public Bitmap decodeSampled(@NonNull SampleSizePolicy policy, @NonNull BitmapFactory.Options options) throws IOException {
+        if (hasBounds()) {
+            return super.decodeSampled(policy, options);
+        }
+
+        ParcelFileDescriptor descriptor = openFileDescriptor();
+        if (descriptor != null) {
+            try {
+                // The descriptor position is left untouched by BitmapFactory, so both passes can share it.
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeFileDescriptor(descriptor.getFileDescriptor(), null, options);
+                setBounds(options);
+                options.inJustDecodeBounds = false;
+                options.inSampleSize = policy.getSampleSize(options.outWidth, options.outHeight);
+                return BitmapFactory.decodeFileDescriptor(descriptor.getFileDescriptor(), null, options);
+            } finally {
+                IOUtil.closeQuietly(descriptor);
+            }
+        }
+
+        InputStream inputStream = new BufferedInputStream(openInputStream(), HEADER_BUFFER_SIZE);
+        try {
+            inputStream.mark(HEADER_BUFFER_SIZE);
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(inputStream, null, options);
+            setBounds(options);
+            try {
+                inputStream.reset();
+            } catch (IOException e) {
+                // The header was larger than the buffer; start over on a fresh stream.
+                IOUtil.closeQuietly(inputStream);
+                inputStream = openInputStream();
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = policy.getSampleSize(options.outWidth, options.outHeight);
+            return BitmapFactory.decodeStream(inputStream, null, options);
+        } finally {
+            IOUtil.closeQuietly(inputStream);
+        }
+    }
+
+    @Nullable
+    @Override
+    public Bitmap decode(@Nullable BitmapFactory.Options options) throws IOException {
+        ParcelFileDescriptor descriptor = openFileDescriptor();
+        if (descriptor != null) {
+            try {
+                return BitmapFactory.decodeFileDescriptor(descriptor.getFileDescriptor(), null, options);
+            } finally {
+                IOUtil.closeQuietly(descriptor);
+            }
+        }
+        InputStream inputStream = openInputStream();
+        try {
+            return BitmapFactory.decodeStream(inputStream, null, options);
+        } finally {
+            IOUtil.closeQuietly(inputStream);
+        }
+    }
+
+    @NonNull
+    @Override
+    public BitmapRegionDecoder newRegionDecoder() throws IOException {
+        ParcelFileDescriptor descriptor = openFileDescriptor();
+        if (descriptor != null) {
+            try {
+                // The decoder duplicates the descriptor, so ours can be closed straight away.
+                return BitmapRegionDecoder.newInstance(descriptor.getFileDescriptor(), false);
+            } finally {
+                IOUtil.closeQuietly(descriptor);
+            }
+        }
+        InputStream inputStream = openInputStream();
+        try {
+            return BitmapRegionDecoder.newInstance(inputStream, false);
+        } finally {
+            IOUtil.closeQuietly(inputStream);
+        }
+    }
+
+    @NonNull
+    @Override
+    public InputStream openStream() throws IOException {
+        return openInputStream();
+    }
+
+    @Nullable
+    @Override
+    public String getIdentity() {
+        // Providers overwrite documents and media rows in place, so the Uri alone does not tell a
+        // replaced image apart; without a modification time the image is simply not cached.
+        Cursor cursor;
+        try {
+            cursor = mResolver.query(mUri, null, null, null, null);
+        } catch (IllegalArgumentException | UnsupportedOperationException | SecurityException e) {
+            return null;
+        }
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            long lastModified = getLong(cursor, DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+            if (lastModified <= 0) {
+                // Media rows record it in seconds rather than milliseconds; only equality matters here.
+                lastModified = getLong(cursor, MediaStore.MediaColumns.DATE_MODIFIED);
+            }
+            if (lastModified <= 0) {
+                return null;
+            }
+            return mUri + "@" + getLong(cursor, OpenableColumns.SIZE) + ":" + lastModified;
+        } finally {
+            IOUtil.closeQuietly(cursor);
+        }
+    }
+
+    @Override
+    protected void decodeBounds(@NonNull BitmapFactory.Options options) throws IOException {
+        ParcelFileDescriptor descriptor = openFileDescriptor();
+        if (descriptor != null) {
+            try {
+                BitmapFactory.decodeFileDescriptor(descriptor.getFileDescriptor(), null, options);
+            } finally {
+                IOUtil.closeQuietly(descriptor);
+            }
+            return;
+        }
+        // Only the header is read, so there is no need to buffer anything here.
+        InputStream inputStream = openInputStream();
+        try {
+            BitmapFactory.decodeStream(inputStream, null, options);
+        } finally {
+            IOUtil.closeQuietly(inputStream);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mUri.toString();
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Opens a read-only file descriptor for the Uri.
+     *
+     * @return the descriptor; null if the provider only serves streams
+     */
+    @Nullable
+    private ParcelFileDescriptor openFileDescriptor() {
+        if (mStreamOnly) {
+            return null;
+        }
+        ParcelFileDescriptor descriptor = null;
+        try {
+            descriptor = mResolver.openFileDescriptor(mUri, "r");
+        } catch (FileNotFoundException | UnsupportedOperationException | SecurityException e) {
+            // Fall through to the stream path; a genuinely missing file is reported by openInputStream().
+        }
+        if (descriptor == null) {
+            mStreamOnly = true;
+        }
+        return descriptor;
+    }
+
+    /**
+     * Reads a long column of the current row.
+     *
+     * @return the value; 0 if the column is absent or null
+     */
+    private static long getLong(@NonNull Cursor cursor, @NonNull String column) {
+        int index = cursor.getColumnIndex(column);
+        if (index < 0 || cursor.isNull(index)) {
+            return 0;
+        }
+        return cursor.getLong(index);
+    }
+
+    @NonNull
+    private InputStream openInputStream() throws IOException {
+        InputStream inputStream = mResolver.openInputStream(mUri);
+        if (inputStream == null) {
+            throw new FileNotFoundException("Unable to open " + mUri);
+        }
+        return inputStream;
+    }
+}
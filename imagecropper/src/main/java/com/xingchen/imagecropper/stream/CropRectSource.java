@@ -0,0 +1,38 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.xingchen.imagecropper.stream;
+
+import android.graphics.Rect;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.Nullable;
+
+/**
+ * A source of the current crop rectangle that can be read from any thread without locking, e.g. by
+ * a {@link StreamingCropper} on a camera analysis thread.
+ *
+ * @see com.xingchen.imagecropper.view.CropImageView#getCropRectSnapshot()
+ */
+public interface CropRectSource {
+
+    /**
+     * Gets the most recently published crop rectangle. The returned Rect is shared and must not be
+     * modified.
+     *
+     * @return the crop rectangle; null if there is nothing to crop yet
+     */
+    @AnyThread
+    @Nullable
+    Rect getCropRectSnapshot();
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.xingchen.imagecropper.stream;
+
+import android.graphics.Rect;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.xingchen.imagecropper.yuv.YuvCropper;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Applies a live crop rectangle to a continuous stream of frames (camera analysis frames, decoded
+ * video) at frame rate.
+ * <p/>
+ * The producer calls {@link #offer(Object, long)} for every frame; the frame is cropped right away,
+ * on the producer's thread, with the crop rectangle read from a {@link CropRectSource} snapshot.
+ * Results are written into a fixed ring of output buffers allocated up front, so a running stream
+ * allocates nothing. The consumer takes the most recent result with {@link #acquireLatest()} and
+ * hands it back with {@link #release(CroppedFrame)}.
+ * <p/>
+ * Nobody ever waits: a result the consumer did not pick up before the next one is dropped, and a
+ * frame for which no buffer is free (because the consumer holds them all) is dropped too. Buffer
+ * ownership is handed over with atomic operations only, so the view, producer and consumer threads
+ * never block each other.
+ *
+ * @param <F> the frame type
+ * @param <O> the output buffer type
+ */
+public class StreamingCropper<F, O> {
+
+    // Private Constants ///////////////////////////////////////////////////////////////////////////
+
+    // Buffer states.
+    private static final int FREE = 0;
+    private static final int BUSY = 1;
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    private final CropRectSource mCropRectSource;
+    private final FrameCropper<F, O> mFrameCropper;
+
+    // The ring of output buffers and whether each one is free or owned by the producer, the
+    // pending slot or the consumer.
+    private final CroppedFrame<O>[] mRing;
+    private final AtomicIntegerArray mStates;
+
+    // Slot to start looking for a free buffer at; only touched by the producer.
+    private int mNextSlot;
+
+    // The most recent result not yet taken by the consumer.
+    private final AtomicReference<CroppedFrame<O>> mLatest = new AtomicReference<>();
+
+    private final AtomicLong mCroppedFrameCount = new AtomicLong();
+    private final AtomicLong mDroppedFrameCount = new AtomicLong();
+
+    // Constructor /////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Constructor.
+     *
+     * @param cropRectSource the source of the crop rectangle, e.g. a CropImageView
+     * @param frameCropper   crops a frame into an output buffer
+     * @param bufferFactory  creates the output buffers; each must fit the largest possible crop
+     * @param ringSize       the number of output buffers; at least 2, plus one for every result the
+     *                       consumer holds on to at the same time
+     */
+    @SuppressWarnings("unchecked")
+    public StreamingCropper(@NonNull CropRectSource cropRectSource,
+                            @NonNull FrameCropper<F, O> frameCropper,
+                            @NonNull BufferFactory<O> bufferFactory,
+                            int ringSize) {
+        if (ringSize < 2) {
+            throw new IllegalArgumentException("The ring needs at least 2 buffers.");
+        }
+        mCropRectSource = cropRectSource;
+        mFrameCropper = frameCropper;
+        mRing = new CroppedFrame[ringSize];
+        for (int i = 0; i < ringSize; i++) {
+            mRing[i] = new CroppedFrame<>(i, bufferFactory.create());
+        }
+        mStates = new AtomicIntegerArray(ringSize);
+    }
+
+    // Static Factory Methods //////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a stage that crops NV21 frames of the given size into NV21 buffers.
+     * <p/>
+     * The crop rectangle of the source is in the pixels of the image it was made on (for a
+     * CropImageView, its ImageSource or displayed Bitmap), which need not have the resolution of
+     * the frames, e.g. when the view shows a still of the stream at another size. The rectangle is
+     * scaled from that image to the frames, rounding outwards, before being aligned to the chroma
+     * grid.
+     *
+     * @param imageWidth  the width of the image the crop rectangle refers to
+     * @param imageHeight the height of the image the crop rectangle refers to
+     * @param width       the width of the frames
+     * @param height      the height of the frames
+     * @see YuvCropper#cropNv21(byte[], int, int, Rect, byte[])
+     */
+    @NonNull
+    public static StreamingCropper<byte[], byte[]> forNv21(@NonNull CropRectSource cropRectSource,
+                                                           final int imageWidth,
+                                                           final int imageHeight,
+                                                           final int width,
+                                                           final int height,
+                                                           int ringSize) {
+        if (imageWidth <= 0 || imageHeight <= 0) {
+            throw new IllegalArgumentException("Invalid image size " + imageWidth + "x" + imageHeight);
+        }
+        return new StreamingCropper<>(cropRectSource,
+                new FrameCropper<byte[], byte[]>() {
+                    @Override
+                    public void crop(@NonNull byte[] frame, @NonNull Rect cropRect, @NonNull byte[] output) {
+                        YuvCropper.cropNv21(frame, width, height, cropRect, output);
+                    }
+
+                    @Override
+                    public void alignCropRect(@NonNull Rect cropRect) {
+                        if (imageWidth != width || imageHeight != height) {
+                            cropRect.set(scaleDown(cropRect.left, width, imageWidth),
+                                    scaleDown(cropRect.top, height, imageHeight),
+                                    scaleUp(cropRect.right, width, imageWidth),
+                                    scaleUp(cropRect.bottom, height, imageHeight));
+                        }
+                        YuvCropper.alignToChroma(cropRect, width, height, cropRect);
+                    }
+                },
+                new BufferFactory<byte[]>() {
+                    @NonNull
+                    @Override
+                    public byte[] create() {
+                        return new byte[width * height * 3 / 2];
+                    }
+                },
+                ringSize);
+    }
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Crops a frame with the current crop rectangle and publishes the result, replacing (and
+     * dropping) any result the consumer has not taken yet. Must be called from one thread at a
+     * time.
+     *
+     * @param frame     the frame; only read during this call
+     * @param timestamp the timestamp of the frame, passed through to the result
+     * @return true if the frame was cropped; false if it was dropped because there is no crop
+     * rectangle yet or every buffer is held by the consumer
+     */
+    public boolean offer(@NonNull F frame, long timestamp) {
+        Rect cropRect = mCropRectSource.getCropRectSnapshot();
+        if (cropRect == null) {
+            return false;
+        }
+        CroppedFrame<O> slot = claimFreeSlot();
+        if (slot == null) {
+            mDroppedFrameCount.incrementAndGet();
+            return false;
+        }
+
+        boolean cropped = false;
+        try {
+            slot.mCropRect.set(cropRect);
+            mFrameCropper.alignCropRect(slot.mCropRect);
+            mFrameCropper.crop(frame, slot.mCropRect, slot.mBuffer);
+            cropped = true;
+        } finally {
+            if (!cropped) {
+                // Otherwise the buffer would stay claimed for good, and the ring would shrink by one.
+                mStates.set(slot.mSlot, FREE);
+            }
+        }
+        slot.mTimestamp = timestamp;
+        mCroppedFrameCount.incrementAndGet();
+
+        CroppedFrame<O> replaced = mLatest.getAndSet(slot);
+        if (replaced != null) {
+            // The consumer never saw it; hand the buffer straight back.
+            mStates.set(replaced.mSlot, FREE);
+            mDroppedFrameCount.incrementAndGet();
+        }
+        return true;
+    }
+
+    /**
+     * Takes the most recent result. It stays valid until it is passed to
+     * {@link #release(CroppedFrame)}.
+     *
+     * @return the result; null if there is nothing new since the last call
+     */
+    @AnyThread
+    @Nullable
+    public CroppedFrame<O> acquireLatest() {
+        return mLatest.getAndSet(null);
+    }
+
+    /**
+     * Hands a result's buffer back to the ring.
+     */
+    @AnyThread
+    public void release(@NonNull CroppedFrame<O> croppedFrame) {
+        mStates.set(croppedFrame.mSlot, FREE);
+    }
+
+    /**
+     * Gets the number of frames cropped so far.
+     */
+    public long getCroppedFrameCount() {
+        return mCroppedFrameCount.get();
+    }
+
+    /**
+     * Gets the number of frames dropped so far, either before cropping (no free buffer) or after
+     * (replaced before the consumer took them).
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount.get();
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Claims a free buffer, starting after the one claimed last so that buffers are used in turn.
+     *
+     * @return the claimed slot; null if every buffer is in use
+     */
+    @Nullable
+    private CroppedFrame<O> claimFreeSlot() {
+        for (int i = 0; i < mRing.length; i++) {
+            int slot = (mNextSlot + i) % mRing.length;
+            if (mStates.compareAndSet(slot, FREE, BUSY)) {
+                mNextSlot = (slot + 1) % mRing.length;
+                return mRing[slot];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Scales a coordinate by <code>numerator / denominator</code>, rounding down.
+     */
+    private static int scaleDown(int value, int numerator, int denominator) {
+        return (int) ((long) value * numerator / denominator);
+    }
+
+    /**
+     * Scales a coordinate by <code>numerator / denominator</code>, rounding up.
+     */
+    private static int scaleUp(int value, int numerator, int denominator) {
+        return (int) (((long) value * numerator + denominator - 1) / denominator);
+    }
+
+    // Inner Classes ///////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Crops one frame into an output buffer.
+     */
+    public interface FrameCropper<F, O> {
+
+        /**
+         * Adjusts the crop rectangle in place to what {@link #crop} will actually produce: mapped
+         * onto the frame if it refers to an image of another size, and e.g. with even coordinates
+         * for YUV 4:2:0, so that consumers know the exact region of every result.
+         */
+        void alignCropRect(@NonNull Rect cropRect);
+
+        void crop(@NonNull F frame, @NonNull Rect cropRect, @NonNull O output);
+    }
+
+    /**
+     * Creates the output buffers of the ring.
+     */
+    public interface BufferFactory<O> {
+
+        @NonNull
+        O create();
+    }
+
+    /**
+     * A cropped frame: an output buffer of the ring together with the region it holds.
+     */
+    public static class CroppedFrame<O> {
+
+        private final int mSlot;
+        private final O mBuffer;
+        private final Rect mCropRect = new Rect();
+        private long mTimestamp;
+
+        CroppedFrame(int slot, @NonNull O buffer) {
+            mSlot = slot;
+            mBuffer = buffer;
+        }
+
+        /**
+         * Gets the output buffer; only the first <code>getCropRect()</code>-sized part is valid.
+         */
+        @NonNull
+        public O getBuffer() {
+            return mBuffer;
+        }
+
+        /**
+         * Gets the region of the frame the buffer holds. Must not be modified.
+         */
+        @NonNull
+        public Rect getCropRect() {
+            return mCropRect;
+        }
+
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+    }
+}
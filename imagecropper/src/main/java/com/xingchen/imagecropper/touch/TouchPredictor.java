@@ -0,0 +1,146 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+
+package com.xingchen.imagecropper.touch;
+
+import android.graphics.PointF;
+import android.view.MotionEvent;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Predicts where a dragging finger will be a few milliseconds ahead, so that a dragged handle can
+ * be drawn where the finger is when the frame reaches the display rather than where it was when
+ * the event was sampled.
+ * <p/>
+ * The velocity is a least-squares fit over the samples of the last {@link #VELOCITY_WINDOW_MS}
+ * milliseconds, historical (batched) samples included. The prediction horizon is capped at
+ * {@link #MAX_PREDICTION_MS}, and the predicted point is only ever a touch coordinate: whoever uses
+ * it still runs it through the usual crop window constraints.
+ */
+public class TouchPredictor {
+
+    // Private Constants ///////////////////////////////////////////////////////////////////////////
+
+    // Samples older than this (relative to the newest one) do not count towards the velocity.
+    private static final long VELOCITY_WINDOW_MS = 40;
+
+    // The furthest ahead a position is ever predicted.
+    private static final long MAX_PREDICTION_MS = 32;
+
+    // Number of samples kept; enough to cover the velocity window at high touch sampling rates.
+    private static final int CAPACITY = 16;
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    // Ring buffer of the latest samples; mHead is the index of the newest one.
+    private final float[] mX = new float[CAPACITY];
+    private final float[] mY = new float[CAPACITY];
+    private final long[] mTime = new long[CAPACITY];
+    private int mHead = -1;
+    private int mSize;
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Forgets every sample; call at the start of each gesture.
+     */
+    public void reset() {
+        mHead = -1;
+        mSize = 0;
+    }
+
+    /**
+     * Adds the samples of a move event, its historical ones first.
+     */
+    public void addMovement(@NonNull MotionEvent event) {
+        for (int i = 0; i < event.getHistorySize(); i++) {
+            addSample(event.getHistoricalX(i), event.getHistoricalY(i), event.getHistoricalEventTime(i));
+        }
+        addSample(event.getX(), event.getY(), event.getEventTime());
+    }
+
+    /**
+     * Adds one sample.
+     *
+     * @param x    the x-coordinate of the touch point
+     * @param y    the y-coordinate of the touch point
+     * @param time the time of the sample, in the {@link android.os.SystemClock#uptimeMillis()} time base
+     */
+    public void addSample(float x, float y, long time) {
+        if (mSize > 0 && time < mTime[mHead]) {
+            // Out of order (e.g. a new gesture without a reset); start over.
+            reset();
+        }
+        mHead = (mHead + 1) % CAPACITY;
+        mX[mHead] = x;
+        mY[mHead] = y;
+        mTime[mHead] = time;
+        mSize = Math.min(mSize + 1, CAPACITY);
+    }
+
+    /**
+     * Predicts the touch position at the given time.
+     *
+     * @param time the time to predict for, in the {@link android.os.SystemClock#uptimeMillis()}
+     *             time base; predictions beyond {@link #MAX_PREDICTION_MS} after the newest sample
+     *             are capped
+     * @param out  the point to store the prediction in; the newest sample if there is too little
+     *             movement to predict from
+     * @return whether a prediction was made
+     */
+    public boolean predict(long time, @NonNull PointF out) {
+        if (mSize == 0) {
+            return false;
+        }
+        long newestTime = mTime[mHead];
+        out.set(mX[mHead], mY[mHead]);
+
+        // Least-squares fit of x(t) and y(t) over the velocity window, relative to the newest sample.
+        int count = 0;
+        double sumT = 0;
+        double sumX = 0;
+        double sumY = 0;
+        double sumTT = 0;
+        double sumTX = 0;
+        double sumTY = 0;
+        for (int i = 0; i < mSize; i++) {
+            int index = (mHead - i + CAPACITY) % CAPACITY;
+            long age = newestTime - mTime[index];
+            if (age > VELOCITY_WINDOW_MS) {
+                break;
+            }
+            double t = -age;
+            double x = mX[index] - mX[mHead];
+            double y = mY[index] - mY[mHead];
+            sumT += t;
+            sumX += x;
+            sumY += y;
+            sumTT += t * t;
+            sumTX += t * x;
+            sumTY += t * y;
+            count++;
+        }
+        double denominator = count * sumTT - sumT * sumT;
+        if (count < 2 || denominator <= 0) {
+            return false;
+        }
+        double velocityX = (count * sumTX - sumT * sumX) / denominator;
+        double velocityY = (count * sumTY - sumT * sumY) / denominator;
+
+        long ahead = Math.max(0, Math.min(MAX_PREDICTION_MS, time - newestTime));
+        out.offset((float) (velocityX * ahead), (float) (velocityY * ahead));
+        return true;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.xingchen.imagecropper.trace;
+
+import android.view.MotionEvent;
+
+import androidx.annotation.NonNull;
+
+import com.xingchen.imagecropper.edge.Edge;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the touch events of a crop session into a {@link GestureTrace}.
+ *
+ * @see com.xingchen.imagecropper.view.CropImageView#setGestureRecorder(GestureRecorder)
+ */
+public class GestureRecorder {
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    private final List<GestureTrace.Event> mEvents = new ArrayList<>();
+
+    // Time of the first recorded event; event times are stored relative to it.
+    private long mStartTime = -1;
+
+    private int mViewWidth;
+    private int mViewHeight;
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Records an event after the view has handled it. Only the current position of batched move
+     * events is recorded, since that is the only one the view acts on.
+     *
+     * @param event      the event that was handled
+     * @param viewWidth  the current width of the view
+     * @param viewHeight the current height of the view
+     */
+    public void record(@NonNull MotionEvent event, int viewWidth, int viewHeight) {
+        int action = event.getActionMasked();
+        if (action != MotionEvent.ACTION_DOWN && action != MotionEvent.ACTION_MOVE
+                && action != MotionEvent.ACTION_UP && action != MotionEvent.ACTION_CANCEL) {
+            return;
+        }
+        mViewWidth = viewWidth;
+        mViewHeight = viewHeight;
+        if (mStartTime < 0) {
+            mStartTime = event.getEventTime();
+        }
+
+        float[] cropWindow = null;
+        if (GestureTrace.Event.endsGesture(action)) {
+            cropWindow = new float[]{
+                    Edge.LEFT.getCoordinate(),
+                    Edge.TOP.getCoordinate(),
+                    Edge.RIGHT.getCoordinate(),
+                    Edge.BOTTOM.getCoordinate()};
+        }
+        mEvents.add(new GestureTrace.Event(action, event.getEventTime() - mStartTime, event.getX(), event.getY(), cropWindow));
+    }
+
+    /**
+     * Gets everything recorded so far as a trace.
+     */
+    @NonNull
+    public GestureTrace toTrace() {
+        return new GestureTrace(mViewWidth, mViewHeight, mEvents);
+    }
+
+    /**
+     * Discards everything recorded so far.
+     */
+    public void reset() {
+        mEvents.clear();
+        mStartTime = -1;
+    }
+}
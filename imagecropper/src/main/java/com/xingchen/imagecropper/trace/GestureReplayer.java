@@ -0,0 +1,243 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.xingchen.imagecropper.trace;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.SystemClock;
+import android.view.MotionEvent;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.xingchen.imagecropper.edge.Edge;
+import com.xingchen.imagecropper.view.CropImageView;
+
+import java.util.Arrays;
+
+/**
+ * Replays a {@link GestureTrace} through {@link CropImageView#onTouchEvent(MotionEvent)}, timing
+ * every event and every redraw, and checks that the crop window at the end of each gesture matches
+ * the recording.
+ * <p/>
+ * The replayer only needs a CropImageView that has been laid out at the recorded size with the
+ * recorded image and settings, so it runs equally on a device or on the JVM under Robolectric.
+ * <p/>
+ * A move event's timing covers everything the view does on the UI thread for a drag: the snap
+ * target query, {@link com.xingchen.imagecropper.handler.Handle#updateCropWindow}, publishing the
+ * crop rect snapshot and, if a {@link com.xingchen.imagecropper.preview.LiveCropPreview} is
+ * attached, posting its request (the preview itself renders on its own thread, outside the
+ * timing). <code>invalidate()</code> is a no-op off-screen, so drawing is only counted in the
+ * redraw timings.
+ */
+public class GestureReplayer {
+
+    // Public Constants ////////////////////////////////////////////////////////////////////////////
+
+    // Default maximum difference (in pixels) between a recorded and a replayed edge coordinate.
+    public static final float DEFAULT_TOLERANCE = 0.01f;
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    private final CropImageView mView;
+    private final float mTolerance;
+
+    // Constructors ////////////////////////////////////////////////////////////////////////////////
+
+    public GestureReplayer(@NonNull CropImageView view) {
+        this(view, DEFAULT_TOLERANCE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param view      the laid-out view to replay on
+     * @param tolerance the maximum difference (in pixels) allowed between a recorded and a replayed
+     *                  edge coordinate
+     */
+    public GestureReplayer(@NonNull CropImageView view, float tolerance) {
+        mView = view;
+        mTolerance = tolerance;
+    }
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Replays the trace, drawing the view after every event.
+     *
+     * @throws IllegalStateException if the view is not laid out at the recorded size
+     */
+    @NonNull
+    public Result replay(@NonNull GestureTrace trace) {
+        if (mView.getWidth() != trace.getViewWidth() || mView.getHeight() != trace.getViewHeight()) {
+            throw new IllegalStateException("View is " + mView.getWidth() + "x" + mView.getHeight()
+                    + " but the trace was recorded at " + trace.getViewWidth() + "x" + trace.getViewHeight());
+        }
+        Bitmap target = Bitmap.createBitmap(trace.getViewWidth(), trace.getViewHeight(), Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(target);
+
+        int eventCount = trace.getEvents().size();
+        long[] eventNanos = new long[eventCount];
+        long[] drawNanos = new long[eventCount];
+        int gestureCount = 0;
+        String firstMismatch = null;
+
+        long baseTime = SystemClock.uptimeMillis();
+        long downTime = baseTime;
+        for (int i = 0; i < eventCount; i++) {
+            GestureTrace.Event recorded = trace.getEvents().get(i);
+            long eventTime = baseTime + recorded.eventTime;
+            if (recorded.action == MotionEvent.ACTION_DOWN) {
+                downTime = eventTime;
+            }
+            MotionEvent event = MotionEvent.obtain(downTime, eventTime, recorded.action, recorded.x, recorded.y, 0);
+            try {
+                long start = System.nanoTime();
+                mView.onTouchEvent(event);
+                eventNanos[i] = System.nanoTime() - start;
+            } finally {
+                event.recycle();
+            }
+
+            long start = System.nanoTime();
+            mView.draw(canvas);
+            drawNanos[i] = System.nanoTime() - start;
+
+            if (recorded.cropWindow != null) {
+                gestureCount++;
+                String mismatch = compareCropWindow(recorded.cropWindow);
+                if (mismatch != null && firstMismatch == null) {
+                    firstMismatch = "Gesture " + gestureCount + " (event " + i + "): " + mismatch;
+                }
+            }
+        }
+        target.recycle();
+        return new Result(eventNanos, drawNanos, gestureCount, firstMismatch);
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Compares the current crop window with a recorded one.
+     *
+     * @return a description of the difference; null if the windows match
+     */
+    @Nullable
+    private String compareCropWindow(@NonNull float[] recorded) {
+        float[] actual = new float[]{
+                Edge.LEFT.getCoordinate(),
+                Edge.TOP.getCoordinate(),
+                Edge.RIGHT.getCoordinate(),
+                Edge.BOTTOM.getCoordinate()};
+        for (int i = 0; i < actual.length; i++) {
+            if (Math.abs(actual[i] - recorded[i]) > mTolerance) {
+                return "expected " + Arrays.toString(recorded) + " but was " + Arrays.toString(actual);
+            }
+        }
+        return null;
+    }
+
+    // Inner Classes ///////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Timings and verification outcome of one replay.
+     */
+    public static class Result {
+
+        private final long[] mEventNanos;
+        private final long[] mDrawNanos;
+        private final int mGestureCount;
+        private final String mFirstMismatch;
+
+        Result(@NonNull long[] eventNanos, @NonNull long[] drawNanos, int gestureCount, @Nullable String firstMismatch) {
+            mEventNanos = eventNanos;
+            mDrawNanos = drawNanos;
+            mGestureCount = gestureCount;
+            mFirstMismatch = firstMismatch;
+        }
+
+        /**
+         * Returns whether the crop window matched the recording at the end of every gesture.
+         */
+        public boolean matches() {
+            return mFirstMismatch == null;
+        }
+
+        /**
+         * Gets a description of the first gesture whose final crop window did not match.
+         *
+         * @return the description; null if every gesture matched
+         */
+        @Nullable
+        public String getFirstMismatch() {
+            return mFirstMismatch;
+        }
+
+        /**
+         * Gets the number of gestures (ACTION_UP or ACTION_CANCEL events) that were verified.
+         */
+        public int getGestureCount() {
+            return mGestureCount;
+        }
+
+        /**
+         * Gets the time spent in onTouchEvent for each event, in nanoseconds.
+         */
+        @NonNull
+        public long[] getEventNanos() {
+            return mEventNanos.clone();
+        }
+
+        /**
+         * Gets the time spent drawing the view after each event, in nanoseconds.
+         */
+        @NonNull
+        public long[] getDrawNanos() {
+            return mDrawNanos.clone();
+        }
+
+        /**
+         * Gets the given percentile (0-100) of the per-event onTouchEvent times, in nanoseconds.
+         */
+        public long getEventPercentileNanos(int percentile) {
+            return percentile(mEventNanos, percentile);
+        }
+
+        /**
+         * Gets the given percentile (0-100) of the per-event draw times, in nanoseconds.
+         */
+        public long getDrawPercentileNanos(int percentile) {
+            return percentile(mDrawNanos, percentile);
+        }
+
+        @Override
+        public String toString() {
+            return "GestureReplayer.Result{events=" + mEventNanos.length
+                    + ", gestures=" + mGestureCount
+                    + ", event p50/p99=" + getEventPercentileNanos(50) + "/" + getEventPercentileNanos(99) + "ns"
+                    + ", draw p50/p99=" + getDrawPercentileNanos(50) + "/" + getDrawPercentileNanos(99) + "ns"
+                    + (matches() ? ", matches" : ", mismatch: " + mFirstMismatch) + "}";
+        }
+
+        private static long percentile(@NonNull long[] values, int percentile) {
+            if (values.length == 0) {
+                return 0;
+            }
+            long[] sorted = values.clone();
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.xingchen.imagecropper.trace;
+
+import androidx.annotation.NonNull;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A recorded sequence of touch events on a CropImageView, together with the crop window observed at
+ * the end of every gesture.
+ * <p/>
+ * The binary format is big-endian: the magic <code>"CGT1"</code>, the view width and height, the
+ * event count, then per event one action byte, the time since the previous event in milliseconds
+ * as an unsigned varint, and the x and y floats. <code>ACTION_UP</code> and
+ * <code>ACTION_CANCEL</code> events are followed by the left, top, right and bottom crop window
+ * floats. A typical drag costs 10 bytes per event.
+ */
+public class GestureTrace {
+
+    // Private Constants ///////////////////////////////////////////////////////////////////////////
+
+    private static final int MAGIC = 0x43475431; // "CGT1"
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    private final int mViewWidth;
+    private final int mViewHeight;
+    private final List<Event> mEvents;
+
+    // Constructor /////////////////////////////////////////////////////////////////////////////////
+
+    public GestureTrace(int viewWidth, int viewHeight, @NonNull List<Event> events) {
+        mViewWidth = viewWidth;
+        mViewHeight = viewHeight;
+        mEvents = Collections.unmodifiableList(new ArrayList<>(events));
+    }
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Gets the width of the view the trace was recorded on.
+     */
+    public int getViewWidth() {
+        return mViewWidth;
+    }
+
+    /**
+     * Gets the height of the view the trace was recorded on.
+     */
+    public int getViewHeight() {
+        return mViewHeight;
+    }
+
+    /**
+     * Gets the recorded events, in order.
+     */
+    @NonNull
+    public List<Event> getEvents() {
+        return mEvents;
+    }
+
+    /**
+     * Writes the trace to the given stream in the compact binary format. The stream is not closed.
+     */
+    public void writeTo(@NonNull OutputStream outputStream) throws IOException {
+        DataOutputStream out = new DataOutputStream(outputStream);
+        out.writeInt(MAGIC);
+        out.writeInt(mViewWidth);
+        out.writeInt(mViewHeight);
+        out.writeInt(mEvents.size());
+        long previousTime = mEvents.isEmpty() ? 0 : mEvents.get(0).eventTime;
+        for (Event event : mEvents) {
+            out.writeByte(event.action);
+            writeVarInt(out, event.eventTime - previousTime);
+            out.writeFloat(event.x);
+            out.writeFloat(event.y);
+            if (event.cropWindow != null) {
+                for (float coordinate : event.cropWindow) {
+                    out.writeFloat(coordinate);
+                }
+            }
+            previousTime = event.eventTime;
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads a trace in the compact binary format from the given stream. The stream is not closed.
+     *
+     * @throws IOException if the stream does not contain a valid trace
+     */
+    @NonNull
+    public static GestureTrace readFrom(@NonNull InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(inputStream);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a gesture trace");
+        }
+        int viewWidth = in.readInt();
+        int viewHeight = in.readInt();
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Corrupt gesture trace: negative event count");
+        }
+        List<Event> events = new ArrayList<>(count);
+        long eventTime = 0;
+        for (int i = 0; i < count; i++) {
+            int action = in.readUnsignedByte();
+            eventTime += readVarInt(in);
+            float x = in.readFloat();
+            float y = in.readFloat();
+            float[] cropWindow = null;
+            if (Event.endsGesture(action)) {
+                cropWindow = new float[4];
+                for (int j = 0; j < cropWindow.length; j++) {
+                    cropWindow[j] = in.readFloat();
+                }
+            }
+            events.add(new Event(action, eventTime, x, y, cropWindow));
+        }
+        return new GestureTrace(viewWidth, viewHeight, events);
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    private static void writeVarInt(@NonNull DataOutputStream out, long value) throws IOException {
+        if (value < 0) {
+            throw new IOException("Event times must be non-decreasing");
+        }
+        while (value >= 0x80) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarInt(@NonNull DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt gesture trace: varint too long");
+    }
+
+    // Inner Classes ///////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * A single recorded touch event.
+     */
+    public static class Event {
+
+        // One of the MotionEvent ACTION_DOWN, ACTION_MOVE, ACTION_UP or ACTION_CANCEL constants.
+        public final int action;
+
+        // Event time in milliseconds, relative to the first event of the trace.
+        public final long eventTime;
+
+        public final float x;
+        public final float y;
+
+        // Crop window (left, top, right, bottom) after the event; only set for events that end a gesture.
+        public final float[] cropWindow;
+
+        public Event(int action, long eventTime, float x, float y, float[] cropWindow) {
+            if (endsGesture(action) != (cropWindow != null)) {
+                throw new IllegalArgumentException("The crop window must be recorded exactly for events that end a gesture.");
+            }
+            this.action = action;
+            this.eventTime = eventTime;
+            this.x = x;
+            this.y = y;
+            this.cropWindow = cropWindow;
+        }
+
+        /**
+         * Returns whether the given action ends a gesture (ACTION_UP or ACTION_CANCEL).
+         */
+        static boolean endsGesture(int action) {
+            // MotionEvent.ACTION_UP and MotionEvent.ACTION_CANCEL; kept literal so this class loads on a plain JVM.
+            return action == 1 || action == 3;
+        }
+    }
+}
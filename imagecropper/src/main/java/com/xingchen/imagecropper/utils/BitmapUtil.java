@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.xingchen.imagecropper.utils;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+
+import com.xingchen.imagecropper.jpeg.JpegEncoder;
+import com.xingchen.imagecropper.raster.IntRaster;
+import com.xingchen.imagecropper.raster.Resampler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Utility class for bridging Bitmaps and the pure-Java rasters of the headless pipeline.
+ */
+public class BitmapUtil {
+
+    // Private Constants ///////////////////////////////////////////////////////////////////////////
+
+    // Below this many pixels Bitmap.compress() is fast enough that copying the pixels out does not pay.
+    private static final long MIN_PARALLEL_JPEG_PIXELS = 4 * 1024 * 1024;
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Copies the pixels of a Bitmap into a packed ARGB raster.
+     */
+    @NonNull
+    public static IntRaster toRaster(@NonNull Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        return IntRaster.wrap(pixels, width, height);
+    }
+
+    /**
+     * Creates an ARGB_8888 Bitmap from a packed ARGB raster.
+     *
+     * @param hasAlpha whether the pixels may be translucent
+     */
+    @NonNull
+    public static Bitmap toBitmap(@NonNull IntRaster raster, boolean hasAlpha) {
+        Bitmap bitmap = Bitmap.createBitmap(raster.getPixels(), raster.getOffset(), raster.getStride(),
+                raster.getWidth(), raster.getHeight(), Bitmap.Config.ARGB_8888);
+        bitmap.setHasAlpha(hasAlpha);
+        return bitmap;
+    }
+
+    /**
+     * Scales a Bitmap to the given size with a {@link Resampler}. The source is not recycled.
+     *
+     * @throws IOException if the calling thread was interrupted
+     */
+    @NonNull
+    public static Bitmap resample(@NonNull Bitmap bitmap, int width, int height, @NonNull Resampler resampler) throws IOException {
+        return toBitmap(resampler.resample(toRaster(bitmap), width, height), bitmap.hasAlpha());
+    }
+
+    /**
+     * Compresses a Bitmap like {@link Bitmap#compress}, but encodes large JPEGs on every core with
+     * {@link JpegEncoder} when there is more than one and the heap has room for a copy of the pixels.
+     *
+     * @return whether the Bitmap was written
+     * @throws IOException if the parallel encoder could not write the output or was interrupted
+     */
+    public static boolean compress(@NonNull Bitmap bitmap, @NonNull Bitmap.CompressFormat format, int quality,
+                                   @NonNull OutputStream out) throws IOException {
+        long pixels = (long) bitmap.getWidth() * bitmap.getHeight();
+        if (format != Bitmap.CompressFormat.JPEG || pixels < MIN_PARALLEL_JPEG_PIXELS
+                || ParallelUtil.getParallelism() < 2 || quality < 1 || quality > 100) {
+            return bitmap.compress(format, quality, out);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        // The copy lives on the Java heap; leave half of what is free to the rest of the app.
+        if (pixels * 4 > free / 2) {
+            return bitmap.compress(format, quality, out);
+        }
+        new JpegEncoder(quality).encode(toRaster(bitmap), out);
+        return true;
+    }
+}
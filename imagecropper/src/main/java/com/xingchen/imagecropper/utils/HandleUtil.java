@@ -18,6 +18,7 @@ import android.graphics.PointF;
 import androidx.annotation.NonNull;
 
 import com.xingchen.imagecropper.handler.Handle;
+import com.xingchen.imagecropper.snap.SnapTargetIndex;
 
 /**
  * Utility class to perform basic operations with Handles.
@@ -167,6 +168,60 @@ public class HandleUtil {
         touchOffsetOutput.y = touchOffsetY;
     }
 
+    /**
+     * Snaps the dragged position of the specified handle so that the edges it moves line up with
+     * the nearest targets in the index. Edges the handle does not move are left alone; the center
+     * handle is shifted so that whichever of its edges is closest to a target lines up with it.
+     * <p/>
+     * The snapped position will be returned in the 'snappedOutput' parameter.
+     */
+    public static void snapToTargets(@NonNull Handle handle,
+                                     float x,
+                                     float y,
+                                     float left,
+                                     float top,
+                                     float right,
+                                     float bottom,
+                                     @NonNull SnapTargetIndex index,
+                                     float snapRadius,
+                                     @NonNull PointF snappedOutput) {
+
+        float snappedX = x;
+        float snappedY = y;
+
+        switch (handle) {
+            case TOP_LEFT:
+            case BOTTOM_LEFT:
+            case TOP_RIGHT:
+            case BOTTOM_RIGHT:
+                snappedX = index.snapX(x, top, bottom, snapRadius);
+                snappedY = index.snapY(y, left, right, snapRadius);
+                break;
+            case LEFT:
+            case RIGHT:
+                snappedX = index.snapX(x, top, bottom, snapRadius);
+                break;
+            case TOP:
+            case BOTTOM:
+                snappedY = index.snapY(y, left, right, snapRadius);
+                break;
+            case CENTER:
+                // Move the window to the dragged position, then snap whichever edge is closer to a target.
+                final float halfWidth = (right - left) / 2;
+                final float halfHeight = (bottom - top) / 2;
+                final float leftShift = index.snapX(x - halfWidth, y - halfHeight, y + halfHeight, snapRadius) - (x - halfWidth);
+                final float rightShift = index.snapX(x + halfWidth, y - halfHeight, y + halfHeight, snapRadius) - (x + halfWidth);
+                snappedX = x + (leftShift == 0 || (rightShift != 0 && Math.abs(rightShift) < Math.abs(leftShift)) ? rightShift : leftShift);
+                final float topShift = index.snapY(y - halfHeight, x - halfWidth, x + halfWidth, snapRadius) - (y - halfHeight);
+                final float bottomShift = index.snapY(y + halfHeight, x - halfWidth, x + halfWidth, snapRadius) - (y + halfHeight);
+                snappedY = y + (topShift == 0 || (bottomShift != 0 && Math.abs(bottomShift) < Math.abs(topShift)) ? bottomShift : topShift);
+                break;
+        }
+
+        snappedOutput.x = snappedX;
+        snappedOutput.y = snappedY;
+    }
+
     // Private Methods /////////////////////////////////////////////////////////////////////////////
 
     /**
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.xingchen.imagecropper.utils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Utility class for working with streams and other closeable resources.
+ */
+public class IOUtil {
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Writes the content of a file.
+     */
+    public interface StreamWriter {
+        void writeTo(@NonNull OutputStream out) throws IOException;
+    }
+
+    /**
+     * Closes the given resource, ignoring null and any exception raised while closing.
+     */
+    public static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    /**
+     * Copies the rest of the input to the output. Neither stream is closed.
+     */
+    public static void copy(@NonNull InputStream in, @NonNull OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+    }
+
+    /**
+     * Writes a file atomically: the content goes to a temporary file next to it, which is synced to
+     * disk and then renamed over the target. Readers (and a process restarted after a crash) see
+     * either the previous file or the complete new one, never a half-written one.
+     *
+     * @param file   the file to write
+     * @param writer writes the content; the stream is buffered and must not be closed
+     * @throws IOException if the content could not be written; the target is then left untouched
+     */
+    public static void writeAtomically(@NonNull File file, @NonNull StreamWriter writer) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            BufferedOutputStream buffered = new BufferedOutputStream(out);
+            writer.writeTo(buffered);
+            buffered.flush();
+            out.getFD().sync();
+            out.close();
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(out);
+            temp.delete();
+            throw e;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to rename " + temp + " to " + file);
+        }
+    }
+}
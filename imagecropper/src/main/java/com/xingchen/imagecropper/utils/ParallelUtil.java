@@ -0,0 +1,158 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.xingchen.imagecropper.utils;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Utility class for running independent pieces of work (tiles, strips, segments, outputs) on all
+ * cores.
+ * <p/>
+ * The calling thread always takes part in the work and only ever waits for indices that another
+ * thread has actually started, so nested calls (e.g. a parallel encoder used from a parallel
+ * pipeline) can never deadlock on the shared pool. No Android APIs are used, so the same code runs
+ * in the headless pipeline.
+ */
+public class ParallelUtil {
+
+    // Private Constants ///////////////////////////////////////////////////////////////////////////
+
+    private static final int PARALLELISM = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    private static ExecutorService sExecutor;
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * A unit of work identified by its index.
+     */
+    public interface IndexedTask {
+        void run(int index) throws Exception;
+    }
+
+    /**
+     * Gets the number of threads (including the caller) that work is spread across.
+     */
+    public static int getParallelism() {
+        return PARALLELISM;
+    }
+
+    /**
+     * Runs <code>task</code> for every index in [0, count) and returns once all of them are done.
+     * After the first failure the remaining indices are skipped and the failure is rethrown.
+     *
+     * @param count the number of indices
+     * @param task  the work to perform for each index
+     * @throws IOException if a task threw an IOException or the caller was interrupted
+     */
+    public static void parallelFor(int count, @NonNull final IndexedTask task) throws IOException {
+        if (count <= 0) {
+            return;
+        }
+        final AtomicInteger nextIndex = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(count);
+        final int indexCount = count;
+
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                runIndices(indexCount, task, nextIndex, failure, done);
+            }
+        };
+        int helpers = Math.min(count, PARALLELISM) - 1;
+        ExecutorService executor = helpers > 0 ? getExecutor() : null;
+        for (int i = 0; i < helpers; i++) {
+            executor.execute(worker);
+        }
+        worker.run();
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for parallel work");
+        }
+        rethrow(failure.get());
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    private static void runIndices(int count,
+                                   @NonNull IndexedTask task,
+                                   @NonNull AtomicInteger nextIndex,
+                                   @NonNull AtomicReference<Throwable> failure,
+                                   @NonNull CountDownLatch done) {
+        int index;
+        while ((index = nextIndex.getAndIncrement()) < count) {
+            try {
+                if (failure.get() == null) {
+                    task.run(index);
+                }
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+
+    private static void rethrow(Throwable failure) throws IOException {
+        if (failure == null) {
+            return;
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw new IOException(failure);
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(PARALLELISM, PARALLELISM,
+                    30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(@NonNull Runnable runnable) {
+                            Thread thread = new Thread(runnable, "ImageCropper-worker-" + mCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sExecutor = executor;
+        }
+        return sExecutor;
+    }
+}
@@ -14,35 +14,84 @@
 package com.xingchen.imagecropper.view;
 
 import android.annotation.SuppressLint;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
+import android.graphics.Path;
 import android.graphics.PointF;
+import android.graphics.Rect;
 import android.graphics.RectF;
+import android.graphics.Region;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.AttributeSet;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.view.Display;
 import android.view.MotionEvent;
+import android.view.ViewParent;
 
+import androidx.annotation.AnyThread;
+import androidx.annotation.ColorInt;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.appcompat.widget.AppCompatImageView;
 
 import com.xingchen.imagecropper.R;
+import com.xingchen.imagecropper.decode.DecodePlan;
+import com.xingchen.imagecropper.decode.DecodePlanner;
 import com.xingchen.imagecropper.edge.Edge;
+import com.xingchen.imagecropper.gif.GifCropper;
+import com.xingchen.imagecropper.jpeg.JpegMetadata;
 import com.xingchen.imagecropper.handler.Handle;
+import com.xingchen.imagecropper.metrics.CropMetrics;
+import com.xingchen.imagecropper.metrics.CropTracer;
+import com.xingchen.imagecropper.output.CropPyramid;
+import com.xingchen.imagecropper.output.MaskedCrop;
+import com.xingchen.imagecropper.png.PngCropper;
+import com.xingchen.imagecropper.preview.LiveCropPreview;
+import com.xingchen.imagecropper.raster.IntRaster;
+import com.xingchen.imagecropper.raster.Resampler;
+import com.xingchen.imagecropper.raster.StackBlur;
+import com.xingchen.imagecropper.region.RegionIndex;
+import com.xingchen.imagecropper.shape.CropShape;
+import com.xingchen.imagecropper.smartcrop.SmartCropEngine;
+import com.xingchen.imagecropper.snap.SnapTargetIndex;
+import com.xingchen.imagecropper.source.ImageSource;
+import com.xingchen.imagecropper.stream.CropRectSource;
+import com.xingchen.imagecropper.touch.TouchPredictor;
+import com.xingchen.imagecropper.trace.GestureRecorder;
 import com.xingchen.imagecropper.utils.AspectRatioUtil;
+import com.xingchen.imagecropper.utils.BitmapUtil;
 import com.xingchen.imagecropper.utils.HandleUtil;
+import com.xingchen.imagecropper.utils.IOUtil;
 import com.xingchen.imagecropper.utils.PaintUtil;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Custom view that provides cropping capabilities to an image.
  */
-public class CropImageView extends AppCompatImageView {
+public class CropImageView extends AppCompatImageView implements CropRectSource {
 
     // Private Constants ///////////////////////////////////////////////////////////////////////////
 
@@ -54,6 +103,14 @@ public class CropImageView extends AppCompatImageView {
     public static final int GUIDELINES_ON_TOUCH = 1;
     public static final int GUIDELINES_ON = 2;
 
+    // How long memory must go untrimmed before a downscaled preview is decoded again.
+    private static final long PREVIEW_RESTORE_DELAY_MS = 10000;
+
+    // The blurred surrounding area is computed at this fraction of the preview resolution, with
+    // this blur radius (in downsampled pixels).
+    private static final int BLUR_DOWNSCALE = 8;
+    private static final int BLUR_RADIUS = 6;
+
     // Member Variables ////////////////////////////////////////////////////////////////////////////
 
     // The Paint used to draw the white rectangle around the crop area.
@@ -68,6 +125,18 @@ public class CropImageView extends AppCompatImageView {
     // The Paint used to darken the surrounding areas outside the crop area.
     private Paint mSurroundingAreaOverlayPaint;
 
+    // Flag indicating if the surrounding areas are blurred rather than darkened.
+    private boolean mBlurSurroundingArea;
+
+    // A blurred, downsampled copy of the displayed Bitmap, drawn outside the crop area when
+    // blurring; null until it has been computed. mBlurSource is the Bitmap it is computed from.
+    private Bitmap mBlurredBitmap;
+    private volatile Bitmap mBlurSource;
+
+    // Maps mBlurredBitmap onto the view; updated on every draw.
+    private final Matrix mBlurDrawMatrix = new Matrix();
+    private final Paint mBlurPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
     // The radius (in pixels) of the touchable area around the handle.
     // We are basing this value off of the recommended 48dp touch target size.
     private float mHandleRadius;
@@ -77,6 +146,10 @@ public class CropImageView extends AppCompatImageView {
     // this distance (in pixels) away from the bounding box edge.
     private float mSnapRadius;
 
+    // A crop window edge will snap to a snap target (rule-of-thirds line, grid line or
+    // caller-supplied rectangle) when it is less than or equal to this distance (in pixels) away.
+    private float mTargetSnapRadius;
+
     // Thickness of the line (in pixels) used to draw the corner handle.
     private float mCornerThickness;
 
@@ -89,6 +162,16 @@ public class CropImageView extends AppCompatImageView {
     // The bounding box around the Bitmap that we are cropping.
     private RectF mBitmapRect;
 
+    // The mapping from displayed Bitmap pixels to view coordinates, and its inverse. Computed once
+    // after each change to the image matrix, the drawable or the layout, and valid for any
+    // ScaleType or custom image matrix.
+    private final Matrix mBitmapToView = new Matrix();
+    private final Matrix mViewToBitmap = new Matrix();
+    private boolean mBitmapMatrixValid;
+
+    // Reused to map view rectangles into the Bitmap.
+    private final RectF mMappedRect = new RectF();
+
     // Holds the x and y offset between the exact touch location and the exact
     // handle location that is activated. There may be an offset because we
     // allow for some leeway (specified by 'mHandleRadius') in activating a
@@ -109,212 +192,1566 @@ public class CropImageView extends AppCompatImageView {
     // Mode indicating how/whether to show the guidelines; must be one of GUIDELINES_OFF, GUIDELINES_ON_TOUCH, GUIDELINES_ON.
     private int mGuidelinesMode = 1;
 
+    // Flag indicating if the initial crop window should be placed on the most interesting part of the image.
+    private boolean mSmartCropEnabled;
+
+    // The last smart crop result, in Bitmap coordinates, together with the Bitmap and aspect ratio it was computed for.
+    private SmartCropEngine.Window mSmartCropWindow;
+    private Bitmap mSmartCropBitmap;
+    private float mSmartCropAspectRatio;
+
+    // The snap targets in view coordinates; rebuilt on every layout.
+    private SnapTargetIndex mSnapTargetIndex;
+
+    // Caller-supplied snap target rectangles, in image coordinates.
+    private final List<RectF> mSnapTargets = new ArrayList<>();
+
+    // Flag indicating if the crop window should snap to the rule-of-thirds lines of the image.
+    private boolean mSnapToThirds;
+
+    // Spacing (in image pixels) of the grid the crop window snaps to; 0 to disable.
+    private float mSnapGridSpacing;
+
+    // Holds the handle position after snapping; kept as a member to avoid allocating on every move event.
+    private PointF mSnappedPosition;
+
+    // The shape cut out of the crop window, its corner radius (in view pixels) and the color used
+    // outside the shape when the output format has no alpha channel.
+    private CropShape mCropShape = CropShape.RECTANGLE;
+    private float mCropCornerRadius;
+    private int mCropBackgroundColor = Color.WHITE;
+
+    // Flag indicating if JPEG crops of a JPEG image source keep its EXIF, XMP and ICC profile.
+    private boolean mKeepMetadata;
+
+    // Reused to build the outline of the crop shape while drawing.
+    private Path mCropShapePath;
+
+    // Flag indicating if several crop regions can be edited at once.
+    private boolean mMultiRegionMode;
+
+    // The crop regions (in view coordinates) in multi-region mode. The Edge values hold the active
+    // region while it is being edited; it is written back here when the gesture ends.
+    private final List<RectF> mCropRegions = new ArrayList<>();
+
+    // Index into mCropRegions of the region mirrored by the Edge values; -1 if not in multi-region mode.
+    private int mActiveRegion = -1;
+
+    // Spatial index used to find the region under a touch point.
+    private RegionIndex mRegionIndex;
+
+    // The crop rect as of the last change to the crop window, for readers on other threads. Replaced,
+    // never modified, so a reader always sees a consistent rect.
+    private volatile Rect mCropRectSnapshot;
+
+    // Records touch events for later replay; null when not recording.
+    private GestureRecorder mGestureRecorder;
+
+    // Renders the live preview of the crop result; null if no one listens.
+    private LiveCropPreview mLiveCropPreview;
+
+    // Flag indicating if dragged handles are drawn at the predicted finger position, with input
+    // dispatched unbuffered, to reduce the visible lag behind the finger.
+    private boolean mLowLatencyTouchEnabled;
+
+    // Extrapolates the finger position in low-latency mode, and holds the latest prediction.
+    private final TouchPredictor mTouchPredictor = new TouchPredictor();
+    private final PointF mPredictedPosition = new PointF();
+
+    // Receives the metrics of every decode, crop and encode; null if none.
+    private CropMetrics.Listener mCropMetricsListener;
+
+    // Fits every decode from mImageSource into the memory budget; created on first use.
+    private DecodePlanner mDecodePlanner;
+
+    // The source the displayed preview was decoded from; null if the image was set directly.
+    private ImageSource mImageSource;
+
+    // Full-resolution dimensions of mImageSource.
+    private int mSourceWidth;
+    private int mSourceHeight;
+
+    // The sample size the preview of mImageSource was decoded at, and the factor it has since been
+    // scaled down by under memory pressure (1 at full preview quality).
+    private int mPreviewSampleSize;
+    private int mPreviewDownscale = 1;
+
+    // When memory was last trimmed, in SystemClock.uptimeMillis() time.
+    private long mLastTrimTime;
+
+    // Set while the preview is swapped for one of another size, so that the next layout scales the
+    // crop window instead of resetting it.
+    private boolean mKeepCropWindow;
+
+    // Downscales the preview when the system runs low on memory.
+    private final ComponentCallbacks2 mTrimMemoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            trimPreview(level);
+        }
+
+        @Override
+        public void onLowMemory() {
+            trimPreview(TRIM_MEMORY_COMPLETE);
+        }
+
+        @Override
+        public void onConfigurationChanged(@NonNull Configuration newConfig) {
+        }
+    };
+
+    // Decodes the full quality preview again once memory pressure has cleared.
+    private final Runnable mRestorePreviewRunnable = new Runnable() {
+        @Override
+        public void run() {
+            restorePreview();
+        }
+    };
+
+    // Runs work that must stay off the main thread (e.g. decoding a restored preview) at background
+    // priority; started on first use and stopped when the view is detached. Main thread only.
+    private HandlerThread mWorkerThread;
+    private Handler mWorkerHandler;
+
+    // Set while a restored preview is being decoded on the worker thread.
+    private boolean mRestoringPreview;
+
     // Constructors ////////////////////////////////////////////////////////////////////////////////
 
     public CropImageView(Context context) {
         this(context, null);
     }
 
-    public CropImageView(Context context, AttributeSet attrs) {
-        this(context, attrs, 0);
+    public CropImageView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public CropImageView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+        init(context, attrs);
+    }
+
+    private void init(@NonNull Context context, @Nullable AttributeSet attrs) {
+        mBitmapRect = new RectF();
+        mTouchOffset = new PointF();
+        mSnapTargetIndex = new SnapTargetIndex();
+        mSnappedPosition = new PointF();
+        mRegionIndex = new RegionIndex();
+        mCropShapePath = new Path();
+
+        Resources resources = context.getResources();
+        mBorderPaint = PaintUtil.newBorderPaint(resources);
+        mGuidelinePaint = PaintUtil.newGuidelinePaint(resources);
+        mCornerPaint = PaintUtil.newCornerPaint(resources);
+        mSurroundingAreaOverlayPaint = PaintUtil.newSurroundingAreaOverlayPaint(resources);
+
+        mHandleRadius = resources.getDimension(R.dimen.target_radius);
+        mSnapRadius = resources.getDimension(R.dimen.snap_radius);
+        mTargetSnapRadius = resources.getDimension(R.dimen.target_snap_radius);
+        mBorderThickness = resources.getDimension(R.dimen.border_thickness);
+        mCornerThickness = resources.getDimension(R.dimen.corner_thickness);
+        mCornerLength = resources.getDimension(R.dimen.corner_length);
+        mCropCornerRadius = resources.getDimension(R.dimen.crop_corner_radius);
+
+        TypedArray typedArray = context.obtainStyledAttributes(attrs, R.styleable.CropImageView, 0, 0);
+        mGuidelinesMode = typedArray.getInteger(R.styleable.CropImageView_guidelines, 1);
+        mFixAspectRatio = typedArray.getBoolean(R.styleable.CropImageView_fixAspectRatio, false);
+        mAspectRatioX = typedArray.getInteger(R.styleable.CropImageView_aspectRatioX, 1);
+        mAspectRatioY = typedArray.getInteger(R.styleable.CropImageView_aspectRatioY, 1);
+        mSmartCropEnabled = typedArray.getBoolean(R.styleable.CropImageView_smartCrop, false);
+        mBlurSurroundingArea = typedArray.getBoolean(R.styleable.CropImageView_blurSurroundingArea, false);
+        mCropShape = CropShape.values()[typedArray.getInt(R.styleable.CropImageView_cropShape, 0)];
+        mCropCornerRadius = typedArray.getDimension(R.styleable.CropImageView_cropCornerRadius, mCropCornerRadius);
+        typedArray.recycle();
+    }
+
+    // View Methods ////////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
+        super.onLayout(changed, left, top, right, bottom);
+        // The ImageView recomputes its draw matrix for the new frame before this runs.
+        mBitmapMatrixValid = false;
+        RectF oldBitmapRect = mBitmapRect;
+        mBitmapRect = getBitmapRect();
+        if (mMultiRegionMode) {
+            relayoutCropRegions(oldBitmapRect, mBitmapRect);
+        } else if (mKeepCropWindow && !oldBitmapRect.isEmpty()) {
+            relayoutCropWindow(oldBitmapRect, mBitmapRect);
+        } else {
+            initCropWindow(mBitmapRect);
+        }
+        mKeepCropWindow = false;
+        rebuildSnapTargets();
+        publishCropRect();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (mMultiRegionMode) {
+            drawInactiveCropRegions(canvas);
+        } else {
+            drawDarkenedSurroundingArea(canvas);
+        }
+        drawGuidelines(canvas);
+        drawBorder(canvas);
+        drawCorners(canvas);
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        getContext().getApplicationContext().registerComponentCallbacks(mTrimMemoryCallbacks);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        getContext().getApplicationContext().unregisterComponentCallbacks(mTrimMemoryCallbacks);
+        removeCallbacks(mRestorePreviewRunnable);
+        if (mLiveCropPreview != null) {
+            mLiveCropPreview.release();
+        }
+        if (mWorkerThread != null) {
+            mWorkerThread.quitSafely();
+            mWorkerThread = null;
+            mWorkerHandler = null;
+        }
+        mRestoringPreview = false;
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        if (visibility == VISIBLE && mPreviewDownscale > 1) {
+            // Back on screen: restore the preview as soon as the pressure that hid it has cleared.
+            removeCallbacks(mRestorePreviewRunnable);
+            post(mRestorePreviewRunnable);
+        }
+    }
+
+    @SuppressLint("ClickableViewAccessibility")
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        boolean handled = handleTouchEvent(event);
+        if (handled && mGestureRecorder != null) {
+            mGestureRecorder.record(event, getWidth(), getHeight());
+        }
+        return handled;
+    }
+
+    @Override
+    public void setImageDrawable(@Nullable Drawable drawable) {
+        // Any image set directly replaces the one decoded from the source.
+        mImageSource = null;
+        mPreviewDownscale = 1;
+        removeCallbacks(mRestorePreviewRunnable);
+        super.setImageDrawable(drawable);
+        mBitmapMatrixValid = false;
+    }
+
+    @Override
+    public void setImageResource(int resId) {
+        super.setImageResource(resId);
+        mBitmapMatrixValid = false;
+    }
+
+    @Override
+    public void setImageMatrix(Matrix matrix) {
+        super.setImageMatrix(matrix);
+        mBitmapMatrixValid = false;
+    }
+
+    @Override
+    public void setScaleType(ScaleType scaleType) {
+        super.setScaleType(scaleType);
+        mBitmapMatrixValid = false;
+    }
+
+    @Override
+    public void setPadding(int left, int top, int right, int bottom) {
+        super.setPadding(left, top, right, bottom);
+        mBitmapMatrixValid = false;
+    }
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Sets the guidelines for the CropOverlayView to be either on, off, or to show when resizing
+     * the application.
+     *
+     * @param guidelinesMode Integer that signals whether the guidelines should be on, off, or only
+     *                       showing when resizing.
+     */
+    public void setGuidelines(int guidelinesMode) {
+        mGuidelinesMode = guidelinesMode;
+        invalidate(); // Request onDraw() to get called again.
+    }
+
+    /**
+     * Sets whether the aspect ratio is fixed or not; true fixes the aspect ratio, while false
+     * allows it to be changed.
+     *
+     * @param fixAspectRatio Boolean that signals whether the aspect ratio should be maintained.
+     * @see {@link #setAspectRatio(int, int)}
+     */
+    public void setFixedAspectRatio(boolean fixAspectRatio) {
+        mFixAspectRatio = fixAspectRatio;
+        requestLayout(); // Request measure/layout to be run again.
+    }
+
+    /**
+     * Sets the both the X and Y values of the aspectRatio. These only apply iff fixed aspect ratio
+     * is set.
+     *
+     * @param aspectRatioX new X value of the aspect ratio; must be greater than 0
+     * @param aspectRatioY new Y value of the aspect ratio; must be greater than 0
+     * @see {@link #setFixedAspectRatio(boolean)}
+     */
+    public void setAspectRatio(int aspectRatioX, int aspectRatioY) {
+        if (aspectRatioX <= 0 || aspectRatioY <= 0) {
+            throw new IllegalArgumentException("Cannot set aspect ratio value to a number less than or equal to 0.");
+        }
+        mAspectRatioX = aspectRatioX;
+        mAspectRatioY = aspectRatioY;
+        if (mFixAspectRatio) {
+            requestLayout(); // Request measure/layout to be run again.
+        }
+    }
+
+    /**
+     * Sets whether the initial crop window is placed on the most interesting part of the image
+     * (see {@link SmartCropEngine}) instead of being centered.
+     *
+     * @param smartCropEnabled Boolean that signals whether smart crop placement should be used.
+     */
+    public void setSmartCropEnabled(boolean smartCropEnabled) {
+        mSmartCropEnabled = smartCropEnabled;
+        requestLayout(); // Request measure/layout to be run again.
+    }
+
+    /**
+     * Sets whether the area outside the crop window is blurred instead of darkened. The blur is
+     * computed once per image, on a downsampled copy and on a background thread; each frame only
+     * draws that copy, clipped to the outside of the window. The area is darkened until the blur is
+     * ready, and in multi-region mode.
+     *
+     * @param blurSurroundingArea true to blur the surrounding area; false (the default) to darken it
+     */
+    public void setBlurSurroundingArea(boolean blurSurroundingArea) {
+        mBlurSurroundingArea = blurSurroundingArea;
+        if (!blurSurroundingArea) {
+            mBlurredBitmap = null;
+            mBlurSource = null;
+        }
+        invalidate();
+    }
+
+    /**
+     * Sets whether the crop window edges snap to the rule-of-thirds lines of the image.
+     *
+     * @param snapToThirds Boolean that signals whether to snap to the rule-of-thirds lines.
+     */
+    public void setSnapToThirds(boolean snapToThirds) {
+        mSnapToThirds = snapToThirds;
+        rebuildSnapTargets();
+    }
+
+    /**
+     * Sets the spacing of a grid, in image pixels, that the crop window edges snap to; e.g. 1 keeps
+     * the crop window aligned to whole source pixels.
+     *
+     * @param spacing the grid spacing in image pixels; 0 to disable grid snapping
+     */
+    public void setSnapGridSpacing(float spacing) {
+        mSnapGridSpacing = Math.max(0, spacing);
+        rebuildSnapTargets();
+    }
+
+    /**
+     * Sets rectangles (e.g. detected faces or document edges) whose sides the crop window edges
+     * snap to. Any number of targets may be given; each move event only looks at the nearby ones.
+     *
+     * @param targets the target rectangles in image pixel coordinates (see {@link #getCropRect()})
+     */
+    public void setSnapTargets(@NonNull List<RectF> targets) {
+        mSnapTargets.clear();
+        for (RectF target : targets) {
+            mSnapTargets.add(new RectF(target));
+        }
+        rebuildSnapTargets();
+    }
+
+    /**
+     * Sets the shape cut out of the crop window, e.g. {@link CropShape#OVAL} for circular avatars.
+     * The crop window stays rectangular; the shape is inscribed in it and applied to the cropped
+     * images.
+     *
+     * @param cropShape the shape of the crop
+     */
+    public void setCropShape(@NonNull CropShape cropShape) {
+        mCropShape = cropShape;
+        invalidate(); // Request onDraw() to get called again.
+    }
+
+    /**
+     * Sets the corner radius of {@link CropShape#ROUNDED_RECTANGLE} crops, as seen on screen. The
+     * radius of the cropped images is scaled accordingly.
+     *
+     * @param cornerRadius the corner radius, in pixels
+     */
+    public void setCropCornerRadius(float cornerRadius) {
+        mCropCornerRadius = cornerRadius;
+        invalidate(); // Request onDraw() to get called again.
+    }
+
+    /**
+     * Sets the color outside the crop shape in images cropped for formats without an alpha channel.
+     *
+     * @param backgroundColor the color; its alpha is ignored
+     * @see #getCroppedImage(Bitmap.CompressFormat)
+     */
+    public void setCropBackgroundColor(@ColorInt int backgroundColor) {
+        mCropBackgroundColor = backgroundColor;
+    }
+
+    /**
+     * Sets whether JPEG crops of a JPEG {@link ImageSource} keep the EXIF, XMP and ICC profile of
+     * the source. The segments are copied from the source header into the output as it is encoded
+     * (see {@link JpegMetadata}), with the EXIF pixel dimensions updated to the crop.
+     *
+     * @param keepMetadata true to keep the metadata; false (the default) to drop it, e.g. for privacy
+     * @see #compressCroppedImage(Bitmap.CompressFormat, int, OutputStream)
+     */
+    public void setKeepMetadata(boolean keepMetadata) {
+        mKeepMetadata = keepMetadata;
+    }
+
+    /**
+     * Sets whether several crop regions (e.g. the receipts on a scanned page) can be edited at once.
+     * Enabling the mode turns the current crop window into the first region; disabling it keeps
+     * only the active region.
+     *
+     * @param multiRegionMode Boolean that signals whether multiple crop regions are allowed.
+     * @see #addCropRegion()
+     * @see #getCroppedImages()
+     */
+    public void setMultiRegionMode(boolean multiRegionMode) {
+        if (multiRegionMode == mMultiRegionMode) {
+            return;
+        }
+        mMultiRegionMode = multiRegionMode;
+        mCropRegions.clear();
+        mActiveRegion = -1;
+        if (multiRegionMode) {
+            mCropRegions.add(new RectF(Edge.LEFT.getCoordinate(), Edge.TOP.getCoordinate(), Edge.RIGHT.getCoordinate(), Edge.BOTTOM.getCoordinate()));
+            mActiveRegion = 0;
+            rebuildRegionIndex();
+        }
+        invalidate();
+    }
+
+    /**
+     * Adds a crop region covering the central quarter of the image and makes it the active one.
+     *
+     * @return the index of the new region
+     * @throws IllegalStateException if multi-region mode is off
+     */
+    public int addCropRegion() {
+        float insetX = mBitmapRect.width() / 4;
+        float insetY = mBitmapRect.height() / 4;
+        return addCropRegion(new RectF(mBitmapRect.left + insetX, mBitmapRect.top + insetY,
+                mBitmapRect.right - insetX, mBitmapRect.bottom - insetY));
+    }
+
+    /**
+     * Adds a crop region and makes it the active one.
+     *
+     * @param imageRect the region in image pixel coordinates (see {@link #getCropRect()})
+     * @return the index of the new region
+     * @throws IllegalStateException if multi-region mode is off
+     */
+    public int addCropRegion(@NonNull Rect imageRect) {
+        Matrix imageToView = getImageToViewMatrix();
+        if (imageToView == null) {
+            return addCropRegion();
+        }
+        RectF viewRect = new RectF(imageRect);
+        imageToView.mapRect(viewRect);
+        if (!viewRect.intersect(mBitmapRect)) {
+            throw new IllegalArgumentException("Crop region " + imageRect + " lies outside the image.");
+        }
+        return addCropRegion(viewRect);
+    }
+
+    /**
+     * Removes a crop region. The most recently added remaining region becomes active if the active
+     * one was removed.
+     *
+     * @param index the index of the region to remove
+     * @throws IllegalStateException if multi-region mode is off or this is the last region
+     */
+    public void removeCropRegion(int index) {
+        checkMultiRegionMode();
+        if (mCropRegions.size() == 1) {
+            throw new IllegalStateException("At least one crop region is required.");
+        }
+        saveActiveCropRegion();
+        mCropRegions.remove(index);
+        if (index == mActiveRegion) {
+            mActiveRegion = mCropRegions.size() - 1;
+            loadActiveCropRegion();
+        } else if (index < mActiveRegion) {
+            mActiveRegion--;
+        }
+        rebuildRegionIndex();
+        invalidate();
+    }
+
+    /**
+     * Gets the number of crop regions; always 1 outside multi-region mode.
+     */
+    public int getCropRegionCount() {
+        return mMultiRegionMode ? mCropRegions.size() : 1;
+    }
+
+    /**
+     * Gets every crop region in image pixel coordinates (see {@link #getCropRect()}), in the order
+     * they were added.
+     *
+     * @return the crop rectangles; empty if there is no Bitmap to crop
+     */
+    @NonNull
+    public List<Rect> getCropRects() {
+        List<Rect> cropRects = new ArrayList<>();
+        if (!mMultiRegionMode) {
+            Rect cropRect = getCropRect();
+            if (cropRect != null) {
+                cropRects.add(cropRect);
+            }
+            return cropRects;
+        }
+        saveActiveCropRegion();
+        for (RectF region : mCropRegions) {
+            Rect cropRect = getCropRect(region.left, region.top, region.right, region.bottom);
+            if (cropRect == null) {
+                break;
+            }
+            cropRects.add(cropRect);
+        }
+        return cropRects;
+    }
+
+    /**
+     * Gets the cropped image of every crop region. When the image comes from an
+     * {@link ImageSource}, the union of all regions is decoded once and every region is cut from
+     * it, instead of decoding each region separately.
+     *
+     * @return the cropped images, in the same order as {@link #getCropRects()}
+     */
+    @NonNull
+    public List<Bitmap> getCroppedImages() {
+        CropTracer tracer = new CropTracer(CropMetrics.Operation.CROP);
+        List<Bitmap> croppedImages = getCroppedImages(tracer);
+        tracer.finish(mCropMetricsListener);
+        return croppedImages;
+    }
+
+    /**
+     * Sets whether dragging a handle runs in low-latency mode. Input is then dispatched to the view
+     * as soon as it arrives rather than batched once per frame (from Lollipop on), and the handle
+     * is drawn where the finger is expected to be when the frame reaches the display, extrapolated
+     * from its recent velocity. Predicted positions go through the same constraints as touches, so
+     * the crop window never leaves the image; the window settles on the actual finger position when
+     * the gesture ends.
+     *
+     * @param lowLatencyTouchEnabled true to enable low-latency mode; false (the default) to draw
+     *                               handles at the last known finger position
+     * @see TouchPredictor
+     */
+    public void setLowLatencyTouchEnabled(boolean lowLatencyTouchEnabled) {
+        mLowLatencyTouchEnabled = lowLatencyTouchEnabled;
+    }
+
+    /**
+     * Sets a listener that receives a low-resolution rendering of the crop result whenever the crop
+     * window changes, e.g. to show the result next to the editor while a handle is dragged. The
+     * rendering is cut from the displayed preview on a background thread; while it runs, further
+     * changes are conflated into one, so the listener always catches up with the latest window and
+     * dragging is never slowed down. The rendering is rectangular, whatever the {@link CropShape}.
+     *
+     * @param listener the listener, called on the main thread; null to stop the live preview
+     * @param maxSize  the maximum length (in pixels) of the longer side of the rendering
+     * @see LiveCropPreview
+     */
+    public void setLiveCropPreviewListener(@Nullable LiveCropPreview.Listener listener, int maxSize) {
+        if (mLiveCropPreview != null) {
+            mLiveCropPreview.release();
+            mLiveCropPreview = null;
+        }
+        if (listener != null) {
+            mLiveCropPreview = new LiveCropPreview(listener, maxSize);
+            requestLiveCropPreview();
+        }
+    }
+
+    /**
+     * Sets a recorder that receives every touch event handled by this view, so that the session can
+     * be replayed with a {@link com.xingchen.imagecropper.trace.GestureReplayer}.
+     *
+     * @param gestureRecorder the recorder; null to stop recording
+     */
+    public void setGestureRecorder(@Nullable GestureRecorder gestureRecorder) {
+        mGestureRecorder = gestureRecorder;
+    }
+
+    /**
+     * Sets a listener that receives the {@link CropMetrics} of every preview load, crop and encode
+     * done by this view, on the thread that ran it.
+     *
+     * @param listener the listener; null to stop reporting
+     */
+    public void setCropMetricsListener(@Nullable CropMetrics.Listener listener) {
+        mCropMetricsListener = listener;
+    }
+
+    /**
+     * Sets the planner that fits the decodes of an {@link ImageSource} (the preview, and the crop
+     * region in {@link #getCroppedImage()}) into a memory budget, e.g. one with a configured cap.
+     *
+     * @param decodePlanner the planner; null for {@link DecodePlanner#forDevice(Context)}
+     */
+    public void setDecodePlanner(@Nullable DecodePlanner decodePlanner) {
+        mDecodePlanner = decodePlanner;
+    }
+
+    /**
+     * Gets the plan {@link #getCroppedImage()} would decode the current crop region with right now,
+     * e.g. to tell the user why the output has a lower resolution than the crop rect.
+     *
+     * @return the plan; null if the image was not set from an {@link ImageSource}
+     * @see DecodePlan#getReason()
+     */
+    @Nullable
+    public DecodePlan getCropDecodePlan() {
+        Rect cropRect = getCropRect();
+        if (mImageSource == null || cropRect == null) {
+            return null;
+        }
+        try {
+            return planDecode(cropRect);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Sets the image to crop from the given source. A preview no larger than the screen is decoded
+     * for display, while {@link #getCroppedImage()} decodes the crop region from the source at
+     * full resolution.
+     *
+     * @param source the image source; null to clear the image
+     * @throws IOException if the source could not be read
+     */
+    public void setImageSource(@Nullable ImageSource source) throws IOException {
+        if (source == null) {
+            setImageDrawable(null);
+            return;
+        }
+        DisplayMetrics displayMetrics = getResources().getDisplayMetrics();
+        final int previewSize = Math.max(displayMetrics.widthPixels, displayMetrics.heightPixels);
+        final DecodePlanner planner = getDecodePlanner();
+        // Planned from inside decodeSampled() so that a stream-only source is opened just once.
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        Bitmap preview = decodePreview(source, new ImageSource.SampleSizePolicy() {
+            @Override
+            public int getSampleSize(int width, int height) {
+                return planner.planImage(width, height, previewSize, Bitmap.Config.ARGB_8888).getSampleSize();
+            }
+        }, options);
+        setImageBitmap(preview);
+
+        // Assigned after setImageBitmap(), which clears any previous source.
+        mImageSource = source;
+        mSourceWidth = source.getWidth();
+        mSourceHeight = source.getHeight();
+        mPreviewSampleSize = options.inSampleSize;
+    }
+
+    /**
+     * Gets the crop window in the pixel coordinates of the image being cropped; i.e. the
+     * {@link ImageSource} if one was set, otherwise the displayed Bitmap.
+     *
+     * @return the crop rectangle; null if there is no Bitmap to crop
+     */
+    @Nullable
+    public Rect getCropRect() {
+        return getCropRect(Edge.LEFT.getCoordinate(), Edge.TOP.getCoordinate(), Edge.RIGHT.getCoordinate(), Edge.BOTTOM.getCoordinate());
+    }
+
+    /**
+     * Gets the crop rectangle (see {@link #getCropRect()}) as of the last change to the crop window.
+     * Unlike getCropRect(), this may be called from any thread, e.g. to crop camera frames with a
+     * {@link com.xingchen.imagecropper.stream.StreamingCropper}; it never blocks the UI thread.
+     *
+     * @return the crop rectangle, which must not be modified; null if there is no Bitmap to crop
+     */
+    @AnyThread
+    @Nullable
+    @Override
+    public Rect getCropRectSnapshot() {
+        return mCropRectSnapshot;
+    }
+
+    /**
+     * Gets the cropped image based on the current crop window. With a masked {@link CropShape},
+     * everything outside the shape is transparent.
+     *
+     * @return a new Bitmap representing the cropped image
+     */
+    public Bitmap getCroppedImage() {
+        CropTracer tracer = new CropTracer(CropMetrics.Operation.CROP);
+        Bitmap croppedImage = getCroppedImage(Color.TRANSPARENT, tracer);
+        tracer.finish(mCropMetricsListener);
+        return croppedImage;
+    }
+
+    /**
+     * Gets the cropped image, prepared for compression to the given format. With a masked
+     * {@link CropShape}, the area outside the shape is transparent for formats with an alpha channel
+     * and filled with the crop background color (and the image marked opaque) for JPEG.
+     *
+     * @param format the format the image will be compressed to
+     * @return a new Bitmap representing the cropped image
+     * @see #setCropBackgroundColor(int)
+     */
+    public Bitmap getCroppedImage(@NonNull Bitmap.CompressFormat format) {
+        CropTracer tracer = new CropTracer(CropMetrics.Operation.CROP);
+        Bitmap croppedImage = getCroppedImage(MaskedCrop.getBackgroundColor(format, mCropBackgroundColor), tracer);
+        tracer.finish(mCropMetricsListener);
+        return croppedImage;
+    }
+
+    /**
+     * Crops the image based on the current crop window and compresses it to the given stream,
+     * reporting the time spent in each stage to the {@link #setCropMetricsListener metrics listener}.
+     * <p/>
+     * A rectangular crop of a PNG {@link ImageSource} to PNG is streamed row by row with
+     * {@link PngCropper} instead of being decoded, always at full resolution. Large JPEGs are encoded
+     * on every core (see {@link BitmapUtil#compress}), and keep the metadata of a JPEG source if
+     * {@link #setKeepMetadata(boolean) enabled}.
+     *
+     * @param format  the format to compress to
+     * @param quality the quality to compress with, as passed to {@link Bitmap#compress}
+     * @param out     the stream to write to; it is not closed
+     * @return whether the image was written; false if there is no Bitmap to crop or the encoder failed
+     * @see #getCroppedImage(Bitmap.CompressFormat)
+     */
+    public boolean compressCroppedImage(@NonNull Bitmap.CompressFormat format, int quality, @NonNull OutputStream out) {
+        CropTracer tracer = new CropTracer(CropMetrics.Operation.CROP_AND_ENCODE);
+        if (format == Bitmap.CompressFormat.PNG && !mCropShape.isMasked() && mImageSource != null) {
+            try {
+                if ("image/png".equals(mImageSource.getMimeType()) && compressCroppedPng(out, tracer)) {
+                    tracer.finish(mCropMetricsListener);
+                    return true;
+                }
+            } catch (IOException e) {
+                // Part of the output may already be written, so there is no falling back.
+                Log.w(TAG, "Unable to crop " + mImageSource, e);
+                return false;
+            }
+        }
+        Bitmap croppedImage = getCroppedImage(MaskedCrop.getBackgroundColor(format, mCropBackgroundColor), tracer);
+        if (croppedImage == null) {
+            return false;
+        }
+        boolean compressed;
+        tracer.beginStage(CropMetrics.Stage.ENCODE);
+        try {
+            OutputStream counted = tracer.countBytes(out);
+            if (format == Bitmap.CompressFormat.JPEG && mKeepMetadata) {
+                // Images are decoded as stored, without applying the EXIF orientation, so it still holds.
+                counted = JpegMetadata.read(mImageSource).insertInto(counted, JpegMetadata.ORIENTATION_UNCHANGED);
+            }
+            compressed = BitmapUtil.compress(croppedImage, format, quality, counted);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to encode the cropped image", e);
+            compressed = false;
+        } finally {
+            tracer.endStage();
+            // A crop of the whole displayed Bitmap may be that Bitmap itself.
+            if (!isDisplayedBitmap(croppedImage)) {
+                tracer.onBitmapReleased(croppedImage);
+                croppedImage.recycle();
+            }
+        }
+        tracer.finish(mCropMetricsListener);
+        return compressed;
+    }
+
+    /**
+     * Crops every frame of an animated GIF set with {@link #setImageSource(ImageSource)} to the
+     * current crop window. Frames are streamed from the source one at a time, so memory use does
+     * not grow with the number of frames. The output is always rectangular, whatever the
+     * {@link CropShape}.
+     *
+     * @param out the stream to write the cropped GIF to; it is not closed
+     * @throws IOException           if the source could not be read, or the output written
+     * @throws IllegalStateException if the image was not set from a GIF {@link ImageSource}
+     * @see GifCropper
+     */
+    public void compressCroppedGif(@NonNull OutputStream out) throws IOException {
+        Rect cropRect = getCropRect();
+        if (mImageSource == null || cropRect == null || !"image/gif".equals(mImageSource.getMimeType())) {
+            throw new IllegalStateException("No GIF image source to crop");
+        }
+        CropTracer tracer = new CropTracer(CropMetrics.Operation.CROP_AND_ENCODE);
+        tracer.setSource(mSourceWidth, mSourceHeight, mImageSource.getMimeType());
+        tracer.setRegion(cropRect);
+        InputStream in = new BufferedInputStream(mImageSource.openStream());
+        tracer.beginStage(CropMetrics.Stage.CROP);
+        try {
+            OutputStream buffered = new BufferedOutputStream(tracer.countBytes(out));
+            GifCropper.crop(in, cropRect, buffered);
+            buffered.flush();
+        } finally {
+            tracer.endStage();
+            IOUtil.closeQuietly(in);
+        }
+        tracer.finish(mCropMetricsListener);
+    }
+
+    /**
+     * Gets the cropped image at several sizes at once. The crop region is decoded a single time and
+     * each smaller size is derived from the next larger one.
+     *
+     * @param maxSizes the maximum length (in pixels) of the longer side of each level
+     * @return the pyramid of cropped images; null if there is no Bitmap to crop
+     * @see CropPyramid#encode(Bitmap.CompressFormat, int, java.io.OutputStream...)
+     */
+    @Nullable
+    public CropPyramid getCroppedImagePyramid(@NonNull int... maxSizes) {
+        Bitmap croppedImage = getCroppedImageForPyramid();
+        return croppedImage != null ? CropPyramid.create(croppedImage, maxSizes) : null;
+    }
+
+    /**
+     * Gets the cropped image at several sizes at once, scaling each level with the given
+     * {@link Resampler} (e.g. {@link Resampler.Filter#LANCZOS3}) rather than bilinear filtering.
+     *
+     * @param resampler the resampler to scale levels with
+     * @param maxSizes  the maximum length (in pixels) of the longer side of each level
+     * @return the pyramid of cropped images; null if there is no Bitmap to crop
+     * @throws IOException if the calling thread was interrupted
+     */
+    @Nullable
+    public CropPyramid getCroppedImagePyramid(@NonNull Resampler resampler, @NonNull int... maxSizes) throws IOException {
+        Bitmap croppedImage = getCroppedImageForPyramid();
+        return croppedImage != null ? CropPyramid.create(croppedImage, resampler, maxSizes) : null;
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Gets the cropped image of every crop region, recording the work in the given tracer.
+     */
+    @NonNull
+    private List<Bitmap> getCroppedImages(@NonNull CropTracer tracer) {
+        List<Rect> cropRects = getCropRects();
+        List<Bitmap> croppedImages = new ArrayList<>(cropRects.size());
+        if (cropRects.isEmpty()) {
+            return croppedImages;
+        }
+
+        Bitmap bitmap = ((BitmapDrawable) getDrawable()).getBitmap();
+        int offsetX = 0;
+        int offsetY = 0;
+        int sampleSize = 1;
+        if (mImageSource != null) {
+            Rect union = new Rect(cropRects.get(0));
+            for (Rect cropRect : cropRects) {
+                union.union(cropRect);
+            }
+            try {
+                tracer.setSource(mSourceWidth, mSourceHeight, mImageSource.getMimeType());
+                tracer.setRegion(union);
+                DecodePlan plan = planDecode(union);
+                tracer.setSampleSize(plan.getSampleSize());
+                bitmap = decode(plan, false, tracer);
+                sampleSize = plan.getSampleSize();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to decode crop regions from " + mImageSource + "; using the preview instead", e);
+                ImageSource source = mImageSource;
+                mImageSource = null;
+                try {
+                    return getCroppedImages(tracer);
+                } finally {
+                    mImageSource = source;
+                }
+            }
+            offsetX = union.left;
+            offsetY = union.top;
+        }
+
+        boolean bitmapReturned = false;
+        float cornerRadius = getImageCornerRadius() / sampleSize;
+        tracer.beginStage(CropMetrics.Stage.CROP);
+        try {
+            for (Rect cropRect : cropRects) {
+                // The region within the decoded, possibly subsampled bitmap.
+                Rect region = getSampledRegion(cropRect, offsetX, offsetY, sampleSize, bitmap);
+                Bitmap croppedImage;
+                if (mCropShape.isMasked()) {
+                    croppedImage = MaskedCrop.draw(bitmap, region, mCropShape, cornerRadius, Color.TRANSPARENT);
+                } else {
+                    croppedImage = Bitmap.createBitmap(bitmap,
+                            region.left,
+                            region.top,
+                            region.width(),
+                            region.height());
+                }
+                if (croppedImage != bitmap) {
+                    tracer.onBitmapAllocated(croppedImage);
+                }
+                bitmapReturned |= croppedImage == bitmap;
+                croppedImages.add(croppedImage);
+            }
+        } finally {
+            tracer.endStage();
+        }
+        if (mImageSource != null && !bitmapReturned) {
+            tracer.onBitmapReleased(bitmap);
+            bitmap.recycle();
+        }
+        return croppedImages;
+    }
+
+    /**
+     * Streams a crop of the PNG image source to the given stream, recording the work in the given
+     * tracer.
+     *
+     * @return true if the PNG was cropped; false, with nothing written, if it must be decoded instead
+     */
+    private boolean compressCroppedPng(@NonNull OutputStream out, @NonNull CropTracer tracer) throws IOException {
+        Rect cropRect = getCropRect();
+        if (cropRect == null) {
+            return false;
+        }
+        tracer.setSource(mSourceWidth, mSourceHeight, mImageSource.getMimeType());
+        tracer.setRegion(cropRect);
+        InputStream in = new BufferedInputStream(mImageSource.openStream());
+        tracer.beginStage(CropMetrics.Stage.CROP);
+        try {
+            OutputStream buffered = new BufferedOutputStream(tracer.countBytes(out));
+            boolean cropped = PngCropper.crop(in, cropRect, buffered);
+            buffered.flush();
+            return cropped;
+        } finally {
+            tracer.endStage();
+            IOUtil.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Gets the cropped image, masked to the crop shape with the given color outside it, recording
+     * the work in the given tracer.
+     */
+    private Bitmap getCroppedImage(@ColorInt int backgroundColor, @NonNull CropTracer tracer) {
+        // Implementation reference: http://stackoverflow.com/a/26930938/1068656
+        Rect cropRect = getCropRect();
+        if (cropRect == null) {
+            return null;
+        }
+        float cornerRadius = getImageCornerRadius();
+
+        // Decode the region straight from the source so that the result is not limited to the preview resolution.
+        if (mImageSource != null) {
+            Bitmap croppedImage;
+            try {
+                tracer.setSource(mSourceWidth, mSourceHeight, mImageSource.getMimeType());
+                tracer.setRegion(cropRect);
+                DecodePlan plan = planDecode(cropRect);
+                tracer.setSampleSize(plan.getSampleSize());
+                croppedImage = decode(plan, mCropShape.isMasked(), tracer);
+                cornerRadius /= plan.getSampleSize();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to decode crop region from " + mImageSource + "; using the preview instead", e);
+                return cropPreview(backgroundColor, tracer);
+            }
+            if (croppedImage == null || !mCropShape.isMasked()) {
+                return croppedImage;
+            }
+            // Mask the decoded region in place rather than drawing it into a second Bitmap.
+            tracer.beginStage(CropMetrics.Stage.CROP);
+            try {
+                return MaskedCrop.apply(croppedImage, mCropShape, cornerRadius, backgroundColor);
+            } finally {
+                tracer.endStage();
+            }
+        }
+
+        // Crop the subset from the original Bitmap, sampling it through the shape if there is one.
+        Bitmap originalBitmap = ((BitmapDrawable) getDrawable()).getBitmap();
+        Bitmap croppedImage;
+        tracer.setRegion(cropRect);
+        tracer.beginStage(CropMetrics.Stage.CROP);
+        try {
+            if (mCropShape.isMasked()) {
+                croppedImage = MaskedCrop.draw(originalBitmap, cropRect, mCropShape, cornerRadius, backgroundColor);
+            } else {
+                croppedImage = Bitmap.createBitmap(originalBitmap,
+                        cropRect.left,
+                        cropRect.top,
+                        cropRect.width(),
+                        cropRect.height());
+            }
+        } finally {
+            tracer.endStage();
+        }
+        if (croppedImage != originalBitmap) {
+            tracer.onBitmapAllocated(croppedImage);
+        }
+        return croppedImage;
+    }
+
+    /**
+     * Gets the given view rectangle in the pixel coordinates of the image being cropped.
+     *
+     * @return the crop rectangle; null if there is no Bitmap to crop
+     */
+    @Nullable
+    private Rect getCropRect(float left, float top, float right, float bottom) {
+        Drawable drawable = getDrawable();
+        if (!(drawable instanceof BitmapDrawable)) {
+            return null;
+        }
+
+        // Map the window into the displayed bitmap, whatever the scale type or image matrix.
+        mMappedRect.set(left, top, right, bottom);
+        getViewToBitmapMatrix().mapRect(mMappedRect);
+
+        // If the bitmap is a sampled preview, scale the window up to the source.
+        Bitmap displayedBitmap = ((BitmapDrawable) drawable).getBitmap();
+        int imageWidth = displayedBitmap.getWidth();
+        int imageHeight = displayedBitmap.getHeight();
+        if (mImageSource != null) {
+            float scaleX = mSourceWidth / (float) displayedBitmap.getWidth();
+            float scaleY = mSourceHeight / (float) displayedBitmap.getHeight();
+            mMappedRect.set(mMappedRect.left * scaleX, mMappedRect.top * scaleY, mMappedRect.right * scaleX, mMappedRect.bottom * scaleY);
+            imageWidth = mSourceWidth;
+            imageHeight = mSourceHeight;
+        }
+
+        // Make sure the edges are not outside the image (this is just to address rounding discrepancies).
+        return new Rect(Math.max(0, Math.round(mMappedRect.left)),
+                Math.max(0, Math.round(mMappedRect.top)),
+                Math.min(imageWidth, Math.round(mMappedRect.right)),
+                Math.min(imageHeight, Math.round(mMappedRect.bottom)));
+    }
+
+    @NonNull
+    private DecodePlanner getDecodePlanner() {
+        if (mDecodePlanner == null) {
+            mDecodePlanner = DecodePlanner.forDevice(getContext());
+        }
+        return mDecodePlanner;
+    }
+
+    /**
+     * Plans the decode of the given region of mImageSource as a single Bitmap, at full resolution
+     * unless that does not fit the memory budget.
+     */
+    @NonNull
+    private DecodePlan planDecode(@NonNull Rect region) throws IOException {
+        DecodePlan plan = getDecodePlanner().plan(mSourceWidth, mSourceHeight, mImageSource.getMimeType(),
+                region, 0, Bitmap.Config.ARGB_8888);
+        if (plan.isDegraded()) {
+            Log.i(TAG, "Decoding " + region + " of " + mImageSource + " at sample size " + plan.getSampleSize()
+                    + ": " + plan.getReason());
+        }
+        return plan;
+    }
+
+    /**
+     * Decodes a region of mImageSource following the given plan.
+     *
+     * @param mutable whether the Bitmap will be drawn into afterwards
+     * @param tracer  records the decode
+     */
+    @NonNull
+    private Bitmap decode(@NonNull DecodePlan plan, boolean mutable, @NonNull CropTracer tracer) throws IOException {
+        Bitmap bitmap;
+        tracer.beginStage(CropMetrics.Stage.DECODE);
+        try {
+            bitmap = plan.decode(mImageSource, mutable);
+        } finally {
+            tracer.endStage();
+        }
+        tracer.onBitmapAllocated(bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Maps a crop rect in source pixels into a Bitmap decoded from the source at the given offset
+     * and sample size, clamped to the Bitmap.
+     */
+    @NonNull
+    private static Rect getSampledRegion(@NonNull Rect cropRect, int offsetX, int offsetY, int sampleSize, @NonNull Bitmap bitmap) {
+        int left = Math.min((cropRect.left - offsetX) / sampleSize, bitmap.getWidth() - 1);
+        int top = Math.min((cropRect.top - offsetY) / sampleSize, bitmap.getHeight() - 1);
+        int right = Math.min(left + Math.max(1, cropRect.width() / sampleSize), bitmap.getWidth());
+        int bottom = Math.min(top + Math.max(1, cropRect.height() / sampleSize), bitmap.getHeight());
+        return new Rect(left, top, right, bottom);
+    }
+
+    /**
+     * Gets the cropped image for a {@link CropPyramid} to take ownership of: a copy if the crop is
+     * the displayed Bitmap itself (a crop of the whole Bitmap), which the pyramid would recycle.
+     */
+    @Nullable
+    private Bitmap getCroppedImageForPyramid() {
+        Bitmap croppedImage = getCroppedImage();
+        if (croppedImage == null || !isDisplayedBitmap(croppedImage)) {
+            return croppedImage;
+        }
+        Bitmap.Config config = croppedImage.getConfig();
+        return croppedImage.copy(config != null ? config : Bitmap.Config.ARGB_8888, false);
+    }
+
+    /**
+     * Returns whether the given Bitmap is the one being displayed, which must not be recycled.
+     */
+    private boolean isDisplayedBitmap(@NonNull Bitmap bitmap) {
+        Drawable drawable = getDrawable();
+        return drawable instanceof BitmapDrawable && ((BitmapDrawable) drawable).getBitmap() == bitmap;
+    }
+
+    /**
+     * Crops the displayed preview Bitmap of an {@link ImageSource}; used when the source itself can
+     * no longer be read.
+     */
+    private Bitmap cropPreview(@ColorInt int backgroundColor, @NonNull CropTracer tracer) {
+        ImageSource source = mImageSource;
+        mImageSource = null;
+        try {
+            return getCroppedImage(backgroundColor, tracer);
+        } finally {
+            mImageSource = source;
+        }
+    }
+
+    /**
+     * Decodes the preview of the given source at the given sample size.
+     *
+     * @throws IOException if the source could not be read or decoded
+     */
+    @NonNull
+    private Bitmap decodePreview(@NonNull ImageSource source, final int sampleSize) throws IOException {
+        return decodePreview(source, new ImageSource.SampleSizePolicy() {
+            @Override
+            public int getSampleSize(int width, int height) {
+                return sampleSize;
+            }
+        }, new BitmapFactory.Options());
+    }
+
+    /**
+     * Decodes the preview of the given source at the sample size the policy picks.
+     *
+     * @param options receives the sample size that was used in <code>inSampleSize</code>
+     * @throws IOException if the source could not be read or decoded
+     */
+    @NonNull
+    private Bitmap decodePreview(@NonNull ImageSource source, @NonNull ImageSource.SampleSizePolicy policy, @NonNull BitmapFactory.Options options) throws IOException {
+        CropTracer tracer = new CropTracer(CropMetrics.Operation.LOAD_PREVIEW);
+        Bitmap preview;
+        tracer.beginStage(CropMetrics.Stage.DECODE);
+        try {
+            preview = source.decodeSampled(policy, options);
+        } finally {
+            tracer.endStage();
+        }
+        if (preview == null) {
+            throw new IOException("Unable to decode " + source);
+        }
+        // The bounds are known by now, from the decode itself if not before.
+        tracer.setSource(source.getWidth(), source.getHeight(), source.getMimeType());
+        tracer.setSampleSize(options.inSampleSize);
+        tracer.setRegion(new Rect(0, 0, source.getWidth(), source.getHeight()));
+        tracer.onBitmapAllocated(preview);
+        tracer.finish(mCropMetricsListener);
+        return preview;
+    }
+
+    /**
+     * Replaces the displayed preview of mImageSource with one of another size, keeping the source
+     * and the crop window.
+     */
+    private void replacePreview(@NonNull Bitmap preview) {
+        ImageSource source = mImageSource;
+        int downscale = mPreviewDownscale;
+        mKeepCropWindow = true;
+        setImageBitmap(preview);
+        mImageSource = source;
+        mPreviewDownscale = downscale;
+    }
+
+    /**
+     * Scales the preview down according to the given trim level: to half its resolution when the
+     * app runs low on memory, and to a quarter when memory is critical or the app is hidden. The
+     * preview is scaled from the one in memory rather than decoded again, so this does no I/O. A
+     * Bitmap set directly (rather than through an ImageSource) is left alone, since it could not be
+     * restored. The blurred copy of the image, if any, is dropped in either case.
+     *
+     * @param level the level passed to {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    private void trimPreview(int level) {
+        if (level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return;
+        }
+        // The blurred copy is a cache; it is computed again the next time it is drawn.
+        mBlurredBitmap = null;
+        mBlurSource = null;
+        if (mImageSource == null) {
+            return;
+        }
+        mLastTrimTime = SystemClock.uptimeMillis();
+        int downscale = level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL ? 4 : 2;
+        if (downscale > mPreviewDownscale) {
+            Bitmap preview = ((BitmapDrawable) getDrawable()).getBitmap();
+            int width = Math.max(1, preview.getWidth() * mPreviewDownscale / downscale);
+            int height = Math.max(1, preview.getHeight() * mPreviewDownscale / downscale);
+            mPreviewDownscale = downscale;
+            replacePreview(Bitmap.createScaledBitmap(preview, width, height, true));
+        }
+        removeCallbacks(mRestorePreviewRunnable);
+        postDelayed(mRestorePreviewRunnable, PREVIEW_RESTORE_DELAY_MS);
+    }
+
+    /**
+     * Decodes the full quality preview again after {@link #trimPreview}, once memory has not been
+     * trimmed for a while and the view is visible; otherwise tries again later. The source is
+     * decoded on the worker thread (it may be a slow content provider), and only the swap happens
+     * on the main thread.
+     */
+    private void restorePreview() {
+        if (mPreviewDownscale == 1 || mImageSource == null || mRestoringPreview) {
+            return;
+        }
+        long sinceTrim = SystemClock.uptimeMillis() - mLastTrimTime;
+        if (sinceTrim < PREVIEW_RESTORE_DELAY_MS) {
+            postDelayed(mRestorePreviewRunnable, PREVIEW_RESTORE_DELAY_MS - sinceTrim);
+            return;
+        }
+        if (getWindowVisibility() != VISIBLE) {
+            // Restored by onWindowVisibilityChanged().
+            return;
+        }
+        final ImageSource source = mImageSource;
+        final int sampleSize = mPreviewSampleSize;
+        final long trimTime = mLastTrimTime;
+        mRestoringPreview = true;
+        getWorkerHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap preview = null;
+                try {
+                    preview = decodePreview(source, sampleSize);
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to restore the preview of " + source, e);
+                }
+                final Bitmap restored = preview;
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onPreviewRestored(source, trimTime, restored);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Swaps in a preview decoded by {@link #restorePreview()}, unless the image has changed or memory
+     * has been trimmed again in the meantime.
+     *
+     * @param trimTime the time memory was last trimmed when the decode started
+     * @param preview  the decoded preview; null if it could not be decoded
+     */
+    private void onPreviewRestored(@NonNull ImageSource source, long trimTime, @Nullable Bitmap preview) {
+        mRestoringPreview = false;
+        if (preview == null) {
+            return;
+        }
+        if (source != mImageSource || trimTime != mLastTrimTime || mPreviewDownscale == 1) {
+            preview.recycle();
+            return;
+        }
+        mPreviewDownscale = 1;
+        replacePreview(preview);
+    }
+
+    /**
+     * Gets the handler of the worker thread, starting the thread if needed.
+     */
+    @NonNull
+    private Handler getWorkerHandler() {
+        if (mWorkerHandler == null) {
+            mWorkerThread = new HandlerThread("ImageCropper-worker", Process.THREAD_PRIORITY_BACKGROUND);
+            mWorkerThread.start();
+            mWorkerHandler = new Handler(mWorkerThread.getLooper());
+        }
+        return mWorkerHandler;
     }
 
-    public CropImageView(Context context, AttributeSet attrs, int defStyleAttr) {
-        super(context, attrs, defStyleAttr);
-        init(context, attrs);
+    /**
+     * Gets the bounding rectangle of the bitmap within the ImageView.
+     */
+    private RectF getBitmapRect() {
+        Drawable drawable = getDrawable();
+        if (!(drawable instanceof BitmapDrawable)) {
+            return new RectF();
+        }
+        Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+        RectF bitmapRect = new RectF(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        getBitmapToViewMatrix().mapRect(bitmapRect);
+
+        // Only the part of the image inside the view can be cropped (e.g. with CENTER_CROP).
+        if (!bitmapRect.intersect(0, 0, getWidth(), getHeight())) {
+            bitmapRect.setEmpty();
+        }
+        return bitmapRect;
     }
 
-    private void init(@NonNull Context context, @Nullable AttributeSet attrs) {
-        mBitmapRect = new RectF();
-        mTouchOffset = new PointF();
+    /**
+     * Publishes the current crop rectangle for {@link #getCropRectSnapshot()}.
+     */
+    private void publishCropRect() {
+        mCropRectSnapshot = getCropRect();
+        requestLiveCropPreview();
+    }
 
-        Resources resources = context.getResources();
-        mBorderPaint = PaintUtil.newBorderPaint(resources);
-        mGuidelinePaint = PaintUtil.newGuidelinePaint(resources);
-        mCornerPaint = PaintUtil.newCornerPaint(resources);
-        mSurroundingAreaOverlayPaint = PaintUtil.newSurroundingAreaOverlayPaint(resources);
+    /**
+     * Requests a live preview of the current crop window, if anyone listens.
+     */
+    private void requestLiveCropPreview() {
+        Rect cropRect = mCropRectSnapshot;
+        Drawable drawable = getDrawable();
+        if (mLiveCropPreview == null || cropRect == null || !(drawable instanceof BitmapDrawable)) {
+            return;
+        }
+        mMappedRect.set(Edge.LEFT.getCoordinate(), Edge.TOP.getCoordinate(), Edge.RIGHT.getCoordinate(), Edge.BOTTOM.getCoordinate());
+        getViewToBitmapMatrix().mapRect(mMappedRect);
+        mLiveCropPreview.request(((BitmapDrawable) drawable).getBitmap(), mMappedRect, cropRect);
+    }
 
-        mHandleRadius = resources.getDimension(R.dimen.target_radius);
-        mSnapRadius = resources.getDimension(R.dimen.snap_radius);
-        mBorderThickness = resources.getDimension(R.dimen.border_thickness);
-        mCornerThickness = resources.getDimension(R.dimen.corner_thickness);
-        mCornerLength = resources.getDimension(R.dimen.corner_length);
+    /**
+     * Adds a crop region given in view coordinates and makes it the active one.
+     */
+    private int addCropRegion(@NonNull RectF viewRect) {
+        checkMultiRegionMode();
+        saveActiveCropRegion();
+        mCropRegions.add(viewRect);
+        mActiveRegion = mCropRegions.size() - 1;
+        loadActiveCropRegion();
+        rebuildRegionIndex();
+        invalidate();
+        return mActiveRegion;
+    }
 
-        TypedArray typedArray = context.obtainStyledAttributes(attrs, R.styleable.CropImageView, 0, 0);
-        mGuidelinesMode = typedArray.getInteger(R.styleable.CropImageView_guidelines, 1);
-        mFixAspectRatio = typedArray.getBoolean(R.styleable.CropImageView_fixAspectRatio, false);
-        mAspectRatioX = typedArray.getInteger(R.styleable.CropImageView_aspectRatioX, 1);
-        mAspectRatioY = typedArray.getInteger(R.styleable.CropImageView_aspectRatioY, 1);
-        typedArray.recycle();
+    private void checkMultiRegionMode() {
+        if (!mMultiRegionMode) {
+            throw new IllegalStateException("Multi-region mode is off.");
+        }
     }
 
-    // View Methods ////////////////////////////////////////////////////////////////////////////////
+    /**
+     * Writes the Edge values back into the active crop region.
+     */
+    private void saveActiveCropRegion() {
+        if (mActiveRegion >= 0) {
+            mCropRegions.get(mActiveRegion).set(Edge.LEFT.getCoordinate(), Edge.TOP.getCoordinate(), Edge.RIGHT.getCoordinate(), Edge.BOTTOM.getCoordinate());
+        }
+    }
 
-    @Override
-    protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
-        super.onLayout(changed, left, top, right, bottom);
-        mBitmapRect = getBitmapRect();
-        initCropWindow(mBitmapRect);
+    /**
+     * Loads the active crop region into the Edge values so that the Handles operate on it.
+     */
+    private void loadActiveCropRegion() {
+        if (mActiveRegion >= 0) {
+            RectF region = mCropRegions.get(mActiveRegion);
+            Edge.LEFT.setCoordinate(region.left);
+            Edge.TOP.setCoordinate(region.top);
+            Edge.RIGHT.setCoordinate(region.right);
+            Edge.BOTTOM.setCoordinate(region.bottom);
+            publishCropRect();
+        }
     }
 
-    @Override
-    protected void onDraw(Canvas canvas) {
-        super.onDraw(canvas);
-        drawDarkenedSurroundingArea(canvas);
-        drawGuidelines(canvas);
-        drawBorder(canvas);
-        drawCorners(canvas);
+    private void rebuildRegionIndex() {
+        mRegionIndex.rebuild(mCropRegions, new RectF(0, 0, getWidth(), getHeight()), mHandleRadius);
     }
 
-    @SuppressLint("ClickableViewAccessibility")
-    @Override
-    public boolean onTouchEvent(MotionEvent event) {
-        switch (event.getAction()) {
-            case MotionEvent.ACTION_DOWN:
-                onActionDown(event.getX(), event.getY());
-                return true;
-            case MotionEvent.ACTION_UP:
-            case MotionEvent.ACTION_CANCEL:
-                getParent().requestDisallowInterceptTouchEvent(false);
-                onActionUp();
-                return true;
-            case MotionEvent.ACTION_MOVE:
-                onActionMove(event.getX(), event.getY());
-                getParent().requestDisallowInterceptTouchEvent(true);
-                return true;
-            default:
-                return false;
+    /**
+     * Moves the crop regions along with the image when the bitmap rect changes, keeping their
+     * position relative to the image.
+     */
+    private void relayoutCropRegions(@NonNull RectF oldBitmapRect, @NonNull RectF newBitmapRect) {
+        saveActiveCropRegion();
+        if (!oldBitmapRect.isEmpty()) {
+            float scaleX = newBitmapRect.width() / oldBitmapRect.width();
+            float scaleY = newBitmapRect.height() / oldBitmapRect.height();
+            for (RectF region : mCropRegions) {
+                region.set(newBitmapRect.left + (region.left - oldBitmapRect.left) * scaleX,
+                        newBitmapRect.top + (region.top - oldBitmapRect.top) * scaleY,
+                        newBitmapRect.left + (region.right - oldBitmapRect.left) * scaleX,
+                        newBitmapRect.top + (region.bottom - oldBitmapRect.top) * scaleY);
+            }
         }
+        loadActiveCropRegion();
+        rebuildRegionIndex();
     }
 
-    // Public Methods //////////////////////////////////////////////////////////////////////////////
-
     /**
-     * Sets the guidelines for the CropOverlayView to be either on, off, or to show when resizing
-     * the application.
-     *
-     * @param guidelinesMode Integer that signals whether the guidelines should be on, off, or only
-     *                       showing when resizing.
+     * Scales the single crop window from one bitmap rect to another, e.g. when the preview is
+     * replaced by one of another resolution.
      */
-    public void setGuidelines(int guidelinesMode) {
-        mGuidelinesMode = guidelinesMode;
-        invalidate(); // Request onDraw() to get called again.
+    private void relayoutCropWindow(@NonNull RectF oldBitmapRect, @NonNull RectF newBitmapRect) {
+        float scaleX = newBitmapRect.width() / oldBitmapRect.width();
+        float scaleY = newBitmapRect.height() / oldBitmapRect.height();
+        Edge.LEFT.setCoordinate(newBitmapRect.left + (Edge.LEFT.getCoordinate() - oldBitmapRect.left) * scaleX);
+        Edge.TOP.setCoordinate(newBitmapRect.top + (Edge.TOP.getCoordinate() - oldBitmapRect.top) * scaleY);
+        Edge.RIGHT.setCoordinate(newBitmapRect.left + (Edge.RIGHT.getCoordinate() - oldBitmapRect.left) * scaleX);
+        Edge.BOTTOM.setCoordinate(newBitmapRect.top + (Edge.BOTTOM.getCoordinate() - oldBitmapRect.top) * scaleY);
     }
 
     /**
-     * Sets whether the aspect ratio is fixed or not; true fixes the aspect ratio, while false
-     * allows it to be changed.
-     *
-     * @param fixAspectRatio Boolean that signals whether the aspect ratio should be maintained.
-     * @see {@link #setAspectRatio(int, int)}
+     * Rebuilds the snap target index from the current settings, in view coordinates.
      */
-    public void setFixedAspectRatio(boolean fixAspectRatio) {
-        mFixAspectRatio = fixAspectRatio;
-        requestLayout(); // Request measure/layout to be run again.
+    private void rebuildSnapTargets() {
+        mSnapTargetIndex.clear();
+        addSnapTargets();
+        mSnapTargetIndex.build();
     }
 
     /**
-     * Sets the both the X and Y values of the aspectRatio. These only apply iff fixed aspect ratio
-     * is set.
-     *
-     * @param aspectRatioX new X value of the aspect ratio; must be greater than 0
-     * @param aspectRatioY new Y value of the aspect ratio; must be greater than 0
-     * @see {@link #setFixedAspectRatio(boolean)}
+     * Adds the snap targets for the current settings to the (cleared) snap target index.
      */
-    public void setAspectRatio(int aspectRatioX, int aspectRatioY) {
-        if (aspectRatioX <= 0 || aspectRatioY <= 0) {
-            throw new IllegalArgumentException("Cannot set aspect ratio value to a number less than or equal to 0.");
+    private void addSnapTargets() {
+        if (mBitmapRect.isEmpty()) {
+            return;
         }
-        mAspectRatioX = aspectRatioX;
-        mAspectRatioY = aspectRatioY;
-        if (mFixAspectRatio) {
-            requestLayout(); // Request measure/layout to be run again.
+        if (mSnapToThirds) {
+            float thirdWidth = mBitmapRect.width() / 3;
+            float thirdHeight = mBitmapRect.height() / 3;
+            for (int i = 1; i <= 2; i++) {
+                mSnapTargetIndex.addVerticalLine(mBitmapRect.left + i * thirdWidth, mBitmapRect.top, mBitmapRect.bottom);
+                mSnapTargetIndex.addHorizontalLine(mBitmapRect.top + i * thirdHeight, mBitmapRect.left, mBitmapRect.right);
+            }
+        }
+        if (mSnapTargets.isEmpty() && mSnapGridSpacing <= 0) {
+            return;
+        }
+        Matrix imageToView = getImageToViewMatrix();
+        if (imageToView == null) {
+            return;
         }
+        if (mSnapGridSpacing > 0) {
+            // The grid is anchored at the image origin, which may lie outside the visible bitmap rect.
+            float[] grid = new float[]{0, 0, mSnapGridSpacing, 0};
+            imageToView.mapPoints(grid);
+            RectF gridBounds = new RectF(grid[0], grid[1], mBitmapRect.right, mBitmapRect.bottom);
+            mSnapTargetIndex.setGrid(gridBounds, grid[2] - grid[0]);
+        }
+        RectF viewRect = new RectF();
+        for (RectF target : mSnapTargets) {
+            imageToView.mapRect(viewRect, target);
+            mSnapTargetIndex.addRect(viewRect);
+        }
+    }
+
+    /**
+     * Gets the crop corner radius in pixels of the image being cropped.
+     */
+    private float getImageCornerRadius() {
+        Matrix imageToView = getImageToViewMatrix();
+        Matrix viewToImage = new Matrix();
+        if (imageToView == null || !imageToView.invert(viewToImage)) {
+            return mCropCornerRadius;
+        }
+        return viewToImage.mapRadius(mCropCornerRadius);
     }
 
     /**
-     * Gets the cropped image based on the current crop window.
+     * Gets the matrix mapping image pixel coordinates (see {@link #getCropRect()}) to view
+     * coordinates.
      *
-     * @return a new Bitmap representing the cropped image
+     * @return the matrix; null if there is no Bitmap
      */
-    public Bitmap getCroppedImage() {
-        // Implementation reference: http://stackoverflow.com/a/26930938/1068656
+    @Nullable
+    private Matrix getImageToViewMatrix() {
         Drawable drawable = getDrawable();
         if (!(drawable instanceof BitmapDrawable)) {
             return null;
         }
+        Matrix matrix = new Matrix(getBitmapToViewMatrix());
+        if (mImageSource != null) {
+            // Map source pixels onto the sampled preview first.
+            Bitmap displayedBitmap = ((BitmapDrawable) drawable).getBitmap();
+            matrix.preScale(displayedBitmap.getWidth() / (float) mSourceWidth,
+                    displayedBitmap.getHeight() / (float) mSourceHeight);
+        }
+        return matrix;
+    }
 
-        // Get image matrix values and place them in an array.
-        float[] matrixValues = new float[9];
-        getImageMatrix().getValues(matrixValues);
-
-        // Extract the scale and translation values. Note, we currently do not handle any other transformations (e.g. skew).
-        float scaleX = matrixValues[Matrix.MSCALE_X];
-        float scaleY = matrixValues[Matrix.MSCALE_Y];
-        float transX = matrixValues[Matrix.MTRANS_X];
-        float transY = matrixValues[Matrix.MTRANS_Y];
-
-        // Ensure that the left and top edges are not outside of the ImageView bounds.
-//        float bitmapLeft = (transX < 0) ? Math.abs(transX) : 0;
-//        float bitmapTop = (transY < 0) ? Math.abs(transY) : 0;
-
-        // Get the original bitmap object.
-        Bitmap originalBitmap = ((BitmapDrawable) drawable).getBitmap();
-
-        // Calculate the top-left corner of the crop window relative to the ~original~ bitmap size.
-//        float cropX = (bitmapLeft + Edge.LEFT.getCoordinate()) / scaleX;
-//        float cropY = (bitmapTop + Edge.TOP.getCoordinate()) / scaleY;
-        float cropX = (Edge.LEFT.getCoordinate() - transX) / scaleX;
-        float cropY = (Edge.TOP.getCoordinate() - transY) / scaleY;
-
-        // Calculate the crop window size relative to the ~original~ bitmap size.
-        // Make sure the right and bottom edges are not outside the ImageView bounds (this is just to address rounding discrepancies).
-        float cropWidth = Math.min(Edge.getWidth() / scaleX, originalBitmap.getWidth() - cropX);
-        float cropHeight = Math.min(Edge.getHeight() / scaleY, originalBitmap.getHeight() - cropY);
-
-        // Crop the subset from the original Bitmap.
-        return Bitmap.createBitmap(originalBitmap,
-                (int) cropX,
-                (int) cropY,
-                (int) cropWidth,
-                (int) cropHeight);
+    /**
+     * Gets the matrix mapping the pixels of the displayed Bitmap to view coordinates. The matrix is
+     * cached and must not be modified.
+     */
+    @NonNull
+    private Matrix getBitmapToViewMatrix() {
+        if (!mBitmapMatrixValid) {
+            updateBitmapMatrix();
+        }
+        return mBitmapToView;
     }
 
-    // Private Methods /////////////////////////////////////////////////////////////////////////////
+    /**
+     * Gets the inverse of {@link #getBitmapToViewMatrix()}. The matrix is cached and must not be
+     * modified.
+     */
+    @NonNull
+    private Matrix getViewToBitmapMatrix() {
+        if (!mBitmapMatrixValid) {
+            updateBitmapMatrix();
+        }
+        return mViewToBitmap;
+    }
 
     /**
-     * Gets the bounding rectangle of the bitmap within the ImageView.
+     * Recomputes the mapping between the displayed Bitmap and the view, the way ImageView draws it:
+     * the Bitmap is stretched to the drawable bounds (which account for its density, or fill the
+     * view with FIT_XY), transformed by the image matrix (identity with FIT_XY) and offset by the
+     * padding. The result is only cached once the drawable has bounds, i.e. after layout.
      */
-    private RectF getBitmapRect() {
+    private void updateBitmapMatrix() {
+        mBitmapToView.reset();
+        mViewToBitmap.reset();
         Drawable drawable = getDrawable();
-        if (drawable == null) {
-            return new RectF();
+        if (!(drawable instanceof BitmapDrawable)) {
+            return;
         }
-        // Get image matrix values and place them in an array.
-        float[] matrixValues = new float[9];
-        getImageMatrix().getValues(matrixValues);
-
-        // Extract the scale and translation values from the matrix.
-        float scaleX = matrixValues[Matrix.MSCALE_X];
-        float scaleY = matrixValues[Matrix.MSCALE_Y];
-        float transX = matrixValues[Matrix.MTRANS_X];
-        float transY = matrixValues[Matrix.MTRANS_Y];
-
-        // Get the width and height of the original bitmap.
-        int drawableIntrinsicWidth = drawable.getIntrinsicWidth();
-        int drawableIntrinsicHeight = drawable.getIntrinsicHeight();
-
-        // Calculate the dimensions as seen on screen.
-        int drawableDisplayWidth = Math.round(drawableIntrinsicWidth * scaleX);
-        int drawableDisplayHeight = Math.round(drawableIntrinsicHeight * scaleY);
-
-        // Get the Rect of the displayed image within the ImageView.
-        float left = Math.max(transX, 0);
-        float top = Math.max(transY, 0);
-        float right = Math.min(left + drawableDisplayWidth, getWidth());
-        float bottom = Math.min(top + drawableDisplayHeight, getHeight());
-
-        return new RectF(left, top, right, bottom);
+        Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+        Rect bounds = drawable.getBounds();
+        if (bounds.isEmpty()) {
+            return;
+        }
+        mBitmapToView.setScale(bounds.width() / (float) bitmap.getWidth(), bounds.height() / (float) bitmap.getHeight());
+        mBitmapToView.postTranslate(bounds.left, bounds.top);
+        mBitmapToView.postConcat(getImageMatrix());
+        mBitmapToView.postTranslate(getPaddingLeft(), getPaddingTop());
+        mBitmapMatrixValid = mBitmapToView.invert(mViewToBitmap);
     }
 
     /**
@@ -322,9 +1759,13 @@ public class CropImageView extends AppCompatImageView {
      * <p/>
      * If fixed aspect ratio is turned off, the initial crop window will be set to the displayed
      * image with 10% margin. If fixed aspect ratio is turned on, the initial crop window will
-     * conform to the aspect ratio with at least one dimension maximized.
+     * conform to the aspect ratio with at least one dimension maximized. If smart crop is enabled,
+     * the window is instead placed on the most interesting part of the image.
      */
     private void initCropWindow(@NonNull RectF bitmapRect) {
+        if (mSmartCropEnabled && initCropWindowWithSmartCrop(bitmapRect)) {
+            return;
+        }
         if (mFixAspectRatio) {
             // Initialize the crop window with the proper aspect ratio.
             initCropWindowWithFixedAspectRatio(bitmapRect);
@@ -357,12 +1798,76 @@ public class CropImageView extends AppCompatImageView {
         }
     }
 
+    /**
+     * Initializes the crop window from the {@link SmartCropEngine}. Without a fixed aspect ratio the
+     * window keeps the aspect ratio of the image.
+     *
+     * @return true if the crop window was set; false if the default placement should be used
+     */
+    private boolean initCropWindowWithSmartCrop(@NonNull RectF bitmapRect) {
+        Drawable drawable = getDrawable();
+        if (!(drawable instanceof BitmapDrawable) || bitmapRect.isEmpty()) {
+            return false;
+        }
+        Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+        float aspectRatio = mFixAspectRatio
+                ? getTargetAspectRatio()
+                : bitmap.getWidth() / (float) bitmap.getHeight();
+        if (bitmap != mSmartCropBitmap || aspectRatio != mSmartCropAspectRatio) {
+            mSmartCropWindow = findSmartCropWindow(bitmap, aspectRatio);
+            mSmartCropBitmap = bitmap;
+            mSmartCropAspectRatio = aspectRatio;
+        }
+
+        // Map the window from Bitmap coordinates onto the view.
+        RectF window = new RectF(mSmartCropWindow.left, mSmartCropWindow.top, mSmartCropWindow.right, mSmartCropWindow.bottom);
+        getBitmapToViewMatrix().mapRect(window);
+        float left = Math.max(bitmapRect.left, window.left);
+        float top = Math.max(bitmapRect.top, window.top);
+        float right = Math.min(bitmapRect.right, window.right);
+        float bottom = Math.min(bitmapRect.bottom, window.bottom);
+        if (right - left < Edge.MIN_CROP_LENGTH_PX || bottom - top < Edge.MIN_CROP_LENGTH_PX) {
+            return false;
+        }
+        Edge.LEFT.setCoordinate(left);
+        Edge.TOP.setCoordinate(top);
+        Edge.RIGHT.setCoordinate(right);
+        Edge.BOTTOM.setCoordinate(bottom);
+        return true;
+    }
+
+    @NonNull
+    private static SmartCropEngine.Window findSmartCropWindow(@NonNull Bitmap bitmap, float aspectRatio) {
+        SmartCropEngine engine = new SmartCropEngine();
+        int[] size = engine.getAnalysisSize(bitmap.getWidth(), bitmap.getHeight());
+        Bitmap thumbnail = Bitmap.createScaledBitmap(bitmap, size[0], size[1], true);
+        int[] pixels = new int[size[0] * size[1]];
+        thumbnail.getPixels(pixels, 0, size[0], 0, 0, size[0], size[1]);
+        if (thumbnail != bitmap) {
+            thumbnail.recycle();
+        }
+        return engine.findBestWindow(pixels, size[0], size[1], bitmap.getWidth(), bitmap.getHeight(), aspectRatio);
+    }
+
     private void drawDarkenedSurroundingArea(@NonNull Canvas canvas) {
         float left = Edge.LEFT.getCoordinate();
         float top = Edge.TOP.getCoordinate();
         float right = Edge.RIGHT.getCoordinate();
         float bottom = Edge.BOTTOM.getCoordinate();
 
+        if (mBlurSurroundingArea && drawBlurredSurroundingArea(canvas, left, top, right, bottom)) {
+            return;
+        }
+
+        // A shaped window cannot be tiled by rectangles; darken everything but the shape instead.
+        if (mCropShape.isMasked()) {
+            int saveCount = canvas.save();
+            clipOutCropShape(canvas, left, top, right, bottom);
+            canvas.drawRect(mBitmapRect, mSurroundingAreaOverlayPaint);
+            canvas.restoreToCount(saveCount);
+            return;
+        }
+
         /*-
           -------------------------------------
           |                top                |
@@ -384,12 +1889,148 @@ public class CropImageView extends AppCompatImageView {
         canvas.drawRect(right, top, mBitmapRect.right, bottom, mSurroundingAreaOverlayPaint);
     }
 
+    /**
+     * Draws the blurred copy of the image outside the crop window, starting to compute it if the
+     * image has changed.
+     *
+     * @return false if the blurred copy is not ready yet
+     */
+    private boolean drawBlurredSurroundingArea(@NonNull Canvas canvas, float left, float top, float right, float bottom) {
+        Drawable drawable = getDrawable();
+        if (!(drawable instanceof BitmapDrawable)) {
+            return false;
+        }
+        Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+        if (bitmap != mBlurSource) {
+            startBlur(bitmap);
+        }
+        Bitmap blurred = mBlurredBitmap;
+        if (blurred == null) {
+            return false;
+        }
+        int saveCount = canvas.save();
+        canvas.clipRect(mBitmapRect);
+        clipOutCropShape(canvas, left, top, right, bottom);
+        mBlurDrawMatrix.set(getBitmapToViewMatrix());
+        mBlurDrawMatrix.preScale(bitmap.getWidth() / (float) blurred.getWidth(), bitmap.getHeight() / (float) blurred.getHeight());
+        canvas.drawBitmap(blurred, mBlurDrawMatrix, mBlurPaint);
+        canvas.restoreToCount(saveCount);
+        return true;
+    }
+
+    /**
+     * Computes the blurred copy of the given Bitmap on the worker thread.
+     */
+    private void startBlur(@NonNull final Bitmap bitmap) {
+        mBlurSource = bitmap;
+        mBlurredBitmap = null;
+        getWorkerHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                if (bitmap != mBlurSource) {
+                    // Superseded before it started, e.g. by another preview swap.
+                    return;
+                }
+                final Bitmap blurred = createBlurredBitmap(bitmap);
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Dropped if the image changed (or blurring was turned off) in the meantime.
+                        if (blurred != null && bitmap == mBlurSource) {
+                            mBlurredBitmap = blurred;
+                            invalidate();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Creates a blurred copy of the given Bitmap at {@link #BLUR_DOWNSCALE} times lower resolution.
+     *
+     * @return the copy; null if the Bitmap was recycled
+     */
+    @Nullable
+    private static Bitmap createBlurredBitmap(@NonNull Bitmap bitmap) {
+        int width = Math.max(1, bitmap.getWidth() / BLUR_DOWNSCALE);
+        int height = Math.max(1, bitmap.getHeight() / BLUR_DOWNSCALE);
+        try {
+            Bitmap downsampled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+            int[] pixels = new int[width * height];
+            downsampled.getPixels(pixels, 0, width, 0, 0, width, height);
+            if (downsampled != bitmap) {
+                downsampled.recycle();
+            }
+            StackBlur.blur(IntRaster.wrap(pixels, width, height), BLUR_RADIUS);
+            return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+        } catch (RuntimeException e) {
+            // The owner recycled the Bitmap while it was being downsampled.
+            Log.w(TAG, "Unable to blur the surrounding area", e);
+            return null;
+        }
+    }
+
+    /**
+     * Darkens everything outside the crop regions and draws the border and corners of every region
+     * except the active one, which is drawn from the Edge values like the single crop window.
+     */
+    private void drawInactiveCropRegions(@NonNull Canvas canvas) {
+        saveActiveCropRegion();
+        int saveCount = canvas.save();
+        for (RectF region : mCropRegions) {
+            clipOutCropShape(canvas, region.left, region.top, region.right, region.bottom);
+        }
+        canvas.drawRect(mBitmapRect, mSurroundingAreaOverlayPaint);
+        canvas.restoreToCount(saveCount);
+
+        for (int i = 0; i < mCropRegions.size(); i++) {
+            if (i != mActiveRegion) {
+                RectF region = mCropRegions.get(i);
+                drawBorder(canvas, region.left, region.top, region.right, region.bottom);
+                drawCorners(canvas, region.left, region.top, region.right, region.bottom);
+            }
+        }
+    }
+
     private void drawBorder(@NonNull Canvas canvas) {
-        canvas.drawRect(Edge.LEFT.getCoordinate(),
-                Edge.TOP.getCoordinate(),
-                Edge.RIGHT.getCoordinate(),
-                Edge.BOTTOM.getCoordinate(),
-                mBorderPaint);
+        drawBorder(canvas, Edge.LEFT.getCoordinate(), Edge.TOP.getCoordinate(), Edge.RIGHT.getCoordinate(), Edge.BOTTOM.getCoordinate());
+    }
+
+    private void drawBorder(@NonNull Canvas canvas, float left, float top, float right, float bottom) {
+        if (mCropShape.isMasked()) {
+            canvas.drawPath(getCropShapePath(left, top, right, bottom), mBorderPaint);
+        } else {
+            canvas.drawRect(left, top, right, bottom, mBorderPaint);
+        }
+    }
+
+    /**
+     * Excludes the crop shape inscribed in the given window from the clip of the Canvas.
+     */
+    private void clipOutCropShape(@NonNull Canvas canvas, float left, float top, float right, float bottom) {
+        if (mCropShape.isMasked()) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                canvas.clipOutPath(getCropShapePath(left, top, right, bottom));
+            } else {
+                canvas.clipPath(getCropShapePath(left, top, right, bottom), Region.Op.DIFFERENCE);
+            }
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            canvas.clipOutRect(left, top, right, bottom);
+        } else {
+            canvas.clipRect(left, top, right, bottom, Region.Op.DIFFERENCE);
+        }
+    }
+
+    /**
+     * Gets the outline of the crop shape inscribed in the given window. The returned Path is reused
+     * by the next call.
+     */
+    @NonNull
+    private Path getCropShapePath(float left, float top, float right, float bottom) {
+        mCropShapePath.rewind();
+        mCropShape.addToPath(mCropShapePath, new RectF(left, top, right, bottom), mCropCornerRadius);
+        return mCropShapePath;
     }
 
     private void drawGuidelines(@NonNull Canvas canvas) {
@@ -416,11 +2057,10 @@ public class CropImageView extends AppCompatImageView {
     }
 
     private void drawCorners(@NonNull Canvas canvas) {
-        float left = Edge.LEFT.getCoordinate();
-        float top = Edge.TOP.getCoordinate();
-        float right = Edge.RIGHT.getCoordinate();
-        float bottom = Edge.BOTTOM.getCoordinate();
+        drawCorners(canvas, Edge.LEFT.getCoordinate(), Edge.TOP.getCoordinate(), Edge.RIGHT.getCoordinate(), Edge.BOTTOM.getCoordinate());
+    }
 
+    private void drawCorners(@NonNull Canvas canvas, float left, float top, float right, float bottom) {
         // Absolute value of the offset by which to draw the corner line such that its inner edge is flush with the border's inner edge.
         float lateralOffset = (mCornerThickness - mBorderThickness) / 2f;
         // Absolute value of the offset by which to start the corner line such that the line is drawn all the way to form a corner edge with the adjacent side.
@@ -456,6 +2096,66 @@ public class CropImageView extends AppCompatImageView {
         return mAspectRatioX / (float) mAspectRatioY;
     }
 
+    /**
+     * Dispatches a touch event to the matching action handler.
+     *
+     * @return true if the event was handled
+     */
+    private boolean handleTouchEvent(@NonNull MotionEvent event) {
+        switch (event.getAction()) {
+            case MotionEvent.ACTION_DOWN:
+                onActionDown(event.getX(), event.getY());
+                if (mLowLatencyTouchEnabled && mPressedHandle != null) {
+                    mTouchPredictor.reset();
+                    mTouchPredictor.addSample(event.getX(), event.getY(), event.getEventTime());
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                        // Lasts until the end of the gesture.
+                        requestUnbufferedDispatch(event);
+                    }
+                }
+                return true;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                requestParentDisallowInterceptTouchEvent(false);
+                if (mLowLatencyTouchEnabled) {
+                    // Settle on where the finger actually is rather than where it was predicted to be.
+                    onActionMove(event.getX(), event.getY());
+                }
+                onActionUp();
+                return true;
+            case MotionEvent.ACTION_MOVE:
+                if (mLowLatencyTouchEnabled && mPressedHandle != null) {
+                    mTouchPredictor.addMovement(event);
+                    mTouchPredictor.predict(getExpectedDisplayTime(), mPredictedPosition);
+                    onActionMove(mPredictedPosition.x, mPredictedPosition.y);
+                } else {
+                    onActionMove(event.getX(), event.getY());
+                }
+                requestParentDisallowInterceptTouchEvent(true);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Estimates when a frame drawn now reaches the display: at the end of the next frame interval.
+     */
+    private long getExpectedDisplayTime() {
+        Display display = getDisplay();
+        float refreshRate = display != null ? display.getRefreshRate() : 0;
+        long frameInterval = refreshRate >= 1 ? Math.round(1000 / refreshRate) : 16;
+        return SystemClock.uptimeMillis() + frameInterval;
+    }
+
+    private void requestParentDisallowInterceptTouchEvent(boolean disallowIntercept) {
+        // The parent is null while events are replayed on a detached view.
+        ViewParent parent = getParent();
+        if (parent != null) {
+            parent.requestDisallowInterceptTouchEvent(disallowIntercept);
+        }
+    }
+
     /**
      * Handles a {@link MotionEvent#ACTION_DOWN} event.
      *
@@ -463,6 +2163,17 @@ public class CropImageView extends AppCompatImageView {
      * @param y the y-coordinate of the down action
      */
     private void onActionDown(float x, float y) {
+        // In multi-region mode, switch the Edge values over to the region under the touch point first.
+        if (mMultiRegionMode) {
+            int pressedRegion = mRegionIndex.findPressedRegion(x, y, mActiveRegion);
+            if (pressedRegion >= 0 && pressedRegion != mActiveRegion) {
+                saveActiveCropRegion();
+                mActiveRegion = pressedRegion;
+                loadActiveCropRegion();
+                invalidate();
+            }
+        }
+
         float left = Edge.LEFT.getCoordinate();
         float top = Edge.TOP.getCoordinate();
         float right = Edge.RIGHT.getCoordinate();
@@ -491,12 +2202,22 @@ public class CropImageView extends AppCompatImageView {
             x += mTouchOffset.x;
             y += mTouchOffset.y;
 
+            // Line the moving edges up with any nearby snap target; the image bounds are handled by the Handle itself.
+            if (!mSnapTargetIndex.isEmpty()) {
+                HandleUtil.snapToTargets(mPressedHandle, x, y,
+                        Edge.LEFT.getCoordinate(), Edge.TOP.getCoordinate(), Edge.RIGHT.getCoordinate(), Edge.BOTTOM.getCoordinate(),
+                        mSnapTargetIndex, mTargetSnapRadius, mSnappedPosition);
+                x = mSnappedPosition.x;
+                y = mSnappedPosition.y;
+            }
+
             // Calculate the new crop window size/position.
             if (mFixAspectRatio) {
                 mPressedHandle.updateCropWindow(x, y, getTargetAspectRatio(), mSnapRadius, mBitmapRect);
             } else {
                 mPressedHandle.updateCropWindow(x, y, mSnapRadius, mBitmapRect);
             }
+            publishCropRect();
             invalidate();
         }
     }
@@ -507,6 +2228,10 @@ public class CropImageView extends AppCompatImageView {
     private void onActionUp() {
         if (mPressedHandle != null) {
             mPressedHandle = null;
+            if (mMultiRegionMode) {
+                saveActiveCropRegion();
+                rebuildRegionIndex();
+            }
             invalidate();
         }
     }
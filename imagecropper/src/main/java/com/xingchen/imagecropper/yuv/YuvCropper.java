@@ -0,0 +1,361 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.xingchen.imagecropper.yuv;
+
+import android.graphics.Rect;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Crops YUV 4:2:0 camera frames directly, without converting them to a Bitmap first.
+ * <p/>
+ * Two layouts are supported: NV21 (the default <code>android.hardware.Camera</code> preview
+ * format: a full-size Y plane followed by interleaved V/U samples) and the three planes of a
+ * <code>YUV_420_888</code> <code>android.media.Image</code>, with arbitrary row and pixel strides.
+ * Since every chroma sample covers a 2x2 block of pixels, crop rectangles are first aligned to even
+ * coordinates (see {@link #alignToChroma(Rect, int, int)}); apart from that, cropping is a handful
+ * of bulk row copies.
+ * <p/>
+ * The crop rectangle is in frame coordinates; a rectangle from
+ * {@link com.xingchen.imagecropper.view.CropImageView#getCropRect()} can be used as-is when the view
+ * displays a frame of the same size and orientation.
+ * <p/>
+ * Conversions that gather strided samples keep their row buffers in the instance, growing them only
+ * when the crop gets wider, so use one instance per stream of frames and nothing is allocated per
+ * frame. Instances are not thread-safe; the static methods are.
+ */
+public class YuvCropper {
+
+    // Private Constants ///////////////////////////////////////////////////////////////////////////
+
+    // BT.601 limited-range coefficients, in 10-bit fixed point.
+    private static final int Y_SCALE = 1192;   // 255 / 219
+    private static final int V_TO_R = 1634;    // 1.596
+    private static final int U_TO_G = 401;     // 0.391
+    private static final int V_TO_G = 833;     // 0.813
+    private static final int U_TO_B = 2066;    // 2.018
+
+    // Member Variables ////////////////////////////////////////////////////////////////////////////
+
+    // Row buffers reused from frame to frame; null until first needed.
+    private byte[] mSamples;
+    private byte[] mPacked;
+    private byte[] mLuma0;
+    private byte[] mLuma1;
+    private byte[] mUSamples;
+    private byte[] mVSamples;
+
+    // The ARGB output handed out when the caller passes none.
+    private int[] mArgb;
+
+    // Public Methods //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Aligns a crop rectangle to the 2x2 chroma blocks of a 4:2:0 frame, by growing it outwards to
+     * even coordinates so that no requested pixel is lost, then clamping it to the frame.
+     *
+     * @return a new, aligned rectangle
+     * @throws IllegalArgumentException if the rectangle does not overlap the frame
+     */
+    @NonNull
+    public static Rect alignToChroma(@NonNull Rect crop, int frameWidth, int frameHeight) {
+        return alignToChroma(crop, frameWidth, frameHeight, new Rect());
+    }
+
+    /**
+     * Aligns a crop rectangle like {@link #alignToChroma(Rect, int, int)}, into an existing Rect.
+     *
+     * @param aligned the Rect to write to; may be <code>crop</code> itself
+     * @return <code>aligned</code>
+     */
+    @NonNull
+    public static Rect alignToChroma(@NonNull Rect crop, int frameWidth, int frameHeight, @NonNull Rect aligned) {
+        aligned.set(
+                Math.max(0, crop.left & ~1),
+                Math.max(0, crop.top & ~1),
+                Math.min(frameWidth & ~1, (crop.right + 1) & ~1),
+                Math.min(frameHeight & ~1, (crop.bottom + 1) & ~1));
+        if (aligned.isEmpty()) {
+            throw new IllegalArgumentException("Crop rect " + crop + " lies outside the " + frameWidth + "x" + frameHeight + " frame.");
+        }
+        return aligned;
+    }
+
+    /**
+     * Crops an NV21 frame into an NV21 frame of the aligned crop size.
+     *
+     * @param nv21   the frame
+     * @param width  the width of the frame
+     * @param height the height of the frame
+     * @param crop   the crop rectangle; aligned with {@link #alignToChroma(Rect, int, int)}
+     * @param output the array to write to, or null to allocate one; reusing an array of at least
+     *               <code>aligned.width() * aligned.height() * 3 / 2</code> bytes avoids a
+     *               per-frame allocation
+     * @return the cropped frame; <code>output</code> if it was large enough
+     */
+    @NonNull
+    public static byte[] cropNv21(@NonNull byte[] nv21, int width, int height, @NonNull Rect crop, @Nullable byte[] output) {
+        checkFrameSize(nv21.length, width, height);
+        Rect aligned = align(crop, width, height);
+        int cropWidth = aligned.width();
+        int cropHeight = aligned.height();
+        int size = cropWidth * cropHeight * 3 / 2;
+        if (output == null || output.length < size) {
+            output = new byte[size];
+        }
+
+        // Luma: one row per pixel row.
+        int out = 0;
+        for (int y = aligned.top; y < aligned.bottom; y++) {
+            System.arraycopy(nv21, y * width + aligned.left, output, out, cropWidth);
+            out += cropWidth;
+        }
+
+        // Chroma: one interleaved V/U row per two pixel rows, with a V/U pair per two pixels, so a
+        // chroma row of the crop is again a contiguous run of cropWidth bytes.
+        int chromaStart = width * height;
+        for (int y = aligned.top / 2; y < aligned.bottom / 2; y++) {
+            System.arraycopy(nv21, chromaStart + y * width + aligned.left, output, out, cropWidth);
+            out += cropWidth;
+        }
+        return output;
+    }
+
+    /**
+     * Crops the planes of a <code>YUV_420_888</code> image into a contiguous I420 buffer (the Y
+     * plane, then the U plane, then the V plane, each tightly packed).
+     *
+     * @param yPlane         the Y plane, with a pixel stride of 1
+     * @param yRowStride     the row stride of the Y plane
+     * @param uPlane         the U plane
+     * @param vPlane         the V plane
+     * @param uvRowStride    the row stride of the U and V planes
+     * @param uvPixelStride  the pixel stride of the U and V planes
+     * @param width          the width of the image
+     * @param height         the height of the image
+     * @param crop           the crop rectangle; aligned with {@link #alignToChroma(Rect, int, int)}
+     * @param output         the buffer to write to, from its position on; needs
+     *                       <code>aligned.width() * aligned.height() * 3 / 2</code> bytes remaining
+     * @return the aligned crop rectangle that was written; <code>crop</code> itself if it was
+     * aligned already
+     */
+    @NonNull
+    public Rect cropYuv420ToI420(@NonNull ByteBuffer yPlane, int yRowStride,
+                                 @NonNull ByteBuffer uPlane, @NonNull ByteBuffer vPlane,
+                                 int uvRowStride, int uvPixelStride,
+                                 int width, int height,
+                                 @NonNull Rect crop, @NonNull ByteBuffer output) {
+        Rect aligned = align(crop, width, height);
+        int cropWidth = aligned.width();
+        int cropHeight = aligned.height();
+        if (output.remaining() < cropWidth * cropHeight * 3 / 2) {
+            throw new IllegalArgumentException("Output buffer is too small for a " + cropWidth + "x" + cropHeight + " crop.");
+        }
+
+        copyPlane(yPlane, yRowStride, 1, aligned.left, aligned.top, cropWidth, cropHeight, output);
+        int chromaLeft = aligned.left / 2;
+        int chromaTop = aligned.top / 2;
+        copyPlane(uPlane, uvRowStride, uvPixelStride, chromaLeft, chromaTop, cropWidth / 2, cropHeight / 2, output);
+        copyPlane(vPlane, uvRowStride, uvPixelStride, chromaLeft, chromaTop, cropWidth / 2, cropHeight / 2, output);
+        return aligned;
+    }
+
+    /**
+     * Converts only the cropped area of an NV21 frame to packed ARGB pixels.
+     *
+     * @param argb the array to write to; null to use an array owned by this cropper, which the next
+     *             conversion overwrites
+     * @return the ARGB pixels of the aligned crop, tightly packed; <code>argb</code> if it was large
+     * enough
+     * @see #alignToChroma(Rect, int, int)
+     */
+    @NonNull
+    public int[] cropNv21ToArgb(@NonNull byte[] nv21, int width, int height, @NonNull Rect crop, @Nullable int[] argb) {
+        checkFrameSize(nv21.length, width, height);
+        ByteBuffer frame = ByteBuffer.wrap(nv21);
+        int chromaStart = width * height;
+        return cropToArgb(frame, 0, width, frame, chromaStart + 1, frame, chromaStart, width, 2, width, height, crop, argb);
+    }
+
+    /**
+     * Converts only the cropped area of a <code>YUV_420_888</code> image to packed ARGB pixels.
+     *
+     * @param argb the array to write to; null to use an array owned by this cropper, which the next
+     *             conversion overwrites
+     * @return the ARGB pixels of the aligned crop, tightly packed; <code>argb</code> if it was large
+     * enough
+     * @see #cropYuv420ToI420(ByteBuffer, int, ByteBuffer, ByteBuffer, int, int, int, int, Rect, ByteBuffer)
+     */
+    @NonNull
+    public int[] cropYuv420ToArgb(@NonNull ByteBuffer yPlane, int yRowStride,
+                                  @NonNull ByteBuffer uPlane, @NonNull ByteBuffer vPlane,
+                                  int uvRowStride, int uvPixelStride,
+                                  int width, int height,
+                                  @NonNull Rect crop, @Nullable int[] argb) {
+        return cropToArgb(yPlane, yPlane.position(), yRowStride,
+                uPlane, uPlane.position(), vPlane, vPlane.position(), uvRowStride, uvPixelStride,
+                width, height, crop, argb);
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Aligns a crop rectangle, without allocating if it is aligned already (e.g. by a previous
+     * frame's call to {@link #alignToChroma(Rect, int, int, Rect)}).
+     */
+    @NonNull
+    private static Rect align(@NonNull Rect crop, int frameWidth, int frameHeight) {
+        boolean aligned = ((crop.left | crop.top | crop.right | crop.bottom) & 1) == 0
+                && crop.left >= 0 && crop.top >= 0
+                && crop.right <= frameWidth && crop.bottom <= frameHeight
+                && !crop.isEmpty();
+        return aligned ? crop : alignToChroma(crop, frameWidth, frameHeight);
+    }
+
+    private static void checkFrameSize(int length, int width, int height) {
+        if (length < width * height * 3 / 2) {
+            throw new IllegalArgumentException("NV21 buffer is too small for a " + width + "x" + height + " frame.");
+        }
+    }
+
+    /**
+     * Copies a rectangle of one plane into the output, tightly packed. Rows with a pixel stride of 1
+     * are bulk-copied; others are bulk-read and then gathered on the heap.
+     */
+    private void copyPlane(@NonNull ByteBuffer plane, int rowStride, int pixelStride,
+                           int left, int top, int width, int height,
+                           @NonNull ByteBuffer output) {
+        ByteBuffer row = plane.duplicate();
+        int base = plane.position();
+        int sampleCount = (width - 1) * pixelStride + 1;
+        if (pixelStride != 1) {
+            mSamples = grow(mSamples, sampleCount);
+            mPacked = grow(mPacked, width);
+        }
+        byte[] samples = mSamples;
+        byte[] packed = mPacked;
+        for (int y = top; y < top + height; y++) {
+            int start = base + y * rowStride + left * pixelStride;
+            if (pixelStride == 1) {
+                row.limit(start + width);
+                row.position(start);
+                output.put(row);
+            } else {
+                readRow(row, start, samples, sampleCount);
+                for (int x = 0, i = 0; x < width; x++, i += pixelStride) {
+                    packed[x] = samples[i];
+                }
+                output.put(packed, 0, width);
+            }
+        }
+    }
+
+    /**
+     * Converts the aligned crop of a 4:2:0 frame to ARGB, two rows at a time so that every chroma
+     * sample is read once and shared by its 2x2 block. The rows are bulk-read into heap arrays
+     * first, which keeps the per-pixel loop free of buffer accesses.
+     */
+    @NonNull
+    private int[] cropToArgb(@NonNull ByteBuffer yPlane, int yStart, int yRowStride,
+                             @NonNull ByteBuffer uPlane, int uStart,
+                             @NonNull ByteBuffer vPlane, int vStart,
+                             int uvRowStride, int uvPixelStride,
+                             int width, int height,
+                             @NonNull Rect crop, @Nullable int[] argb) {
+        Rect aligned = align(crop, width, height);
+        int cropWidth = aligned.width();
+        int cropHeight = aligned.height();
+        if (argb == null) {
+            argb = mArgb = grow(mArgb, cropWidth * cropHeight);
+        } else if (argb.length < cropWidth * cropHeight) {
+            argb = new int[cropWidth * cropHeight];
+        }
+
+        ByteBuffer yRows = yPlane.duplicate();
+        ByteBuffer uRow = uPlane.duplicate();
+        ByteBuffer vRow = vPlane.duplicate();
+        int chromaCount = (cropWidth / 2 - 1) * uvPixelStride + 1;
+        byte[] luma0 = mLuma0 = grow(mLuma0, cropWidth);
+        byte[] luma1 = mLuma1 = grow(mLuma1, cropWidth);
+        byte[] uSamples = mUSamples = grow(mUSamples, chromaCount);
+        byte[] vSamples = mVSamples = grow(mVSamples, chromaCount);
+        for (int y = 0; y < cropHeight; y += 2) {
+            int yRow = yStart + (aligned.top + y) * yRowStride + aligned.left;
+            int uvRow = (aligned.top + y) / 2 * uvRowStride + aligned.left / 2 * uvPixelStride;
+            readRow(yRows, yRow, luma0, cropWidth);
+            readRow(yRows, yRow + yRowStride, luma1, cropWidth);
+            readRow(uRow, uStart + uvRow, uSamples, chromaCount);
+            readRow(vRow, vStart + uvRow, vSamples, chromaCount);
+
+            int out = y * cropWidth;
+            for (int x = 0, i = 0; x < cropWidth; x += 2, i += uvPixelStride) {
+                int u = (uSamples[i] & 0xFF) - 128;
+                int v = (vSamples[i] & 0xFF) - 128;
+                int red = V_TO_R * v;
+                int green = -V_TO_G * v - U_TO_G * u;
+                int blue = U_TO_B * u;
+
+                argb[out + x] = toArgb(luma0[x], red, green, blue);
+                argb[out + x + 1] = toArgb(luma0[x + 1], red, green, blue);
+                argb[out + cropWidth + x] = toArgb(luma1[x], red, green, blue);
+                argb[out + cropWidth + x + 1] = toArgb(luma1[x + 1], red, green, blue);
+            }
+        }
+        return argb;
+    }
+
+    /**
+     * Bulk-reads <code>length</code> bytes starting at absolute index <code>start</code> into the
+     * start of <code>destination</code>; <code>buffer</code> must be a private duplicate.
+     */
+    private static void readRow(@NonNull ByteBuffer buffer, int start, @NonNull byte[] destination, int length) {
+        buffer.limit(start + length);
+        buffer.position(start);
+        buffer.get(destination, 0, length);
+    }
+
+    /**
+     * Returns <code>buffer</code> if it holds at least <code>length</code> elements, otherwise a new
+     * array of that length.
+     */
+    @NonNull
+    private static byte[] grow(@Nullable byte[] buffer, int length) {
+        return buffer != null && buffer.length >= length ? buffer : new byte[length];
+    }
+
+    @NonNull
+    private static int[] grow(@Nullable int[] buffer, int length) {
+        return buffer != null && buffer.length >= length ? buffer : new int[length];
+    }
+
+    private static int toArgb(byte luma, int red, int green, int blue) {
+        int y = (luma & 0xFF) - 16;
+        y = (y & ~(y >> 31)) * Y_SCALE;
+        return 0xFF000000
+                | (clamp((y + red) >> 10) << 16)
+                | (clamp((y + green) >> 10) << 8)
+                | clamp((y + blue) >> 10);
+    }
+
+    /**
+     * Clamps to [0, 255] without branches; camera noise makes the branches unpredictable.
+     */
+    private static int clamp(int value) {
+        value &= ~(value >> 31);
+        return (value | ((255 - value) >> 31)) & 0xFF;
+    }
+}
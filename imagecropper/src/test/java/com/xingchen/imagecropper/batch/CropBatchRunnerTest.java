@@ -0,0 +1,152 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+
+package com.xingchen.imagecropper.batch;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests how {@link CropBatchRunner} records the outcome of each job in its journal, with the jobs
+ * themselves stubbed out.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class CropBatchRunnerTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+    private CropJournal mJournal;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = new File(mFolder.getRoot(), "crops.journal");
+        mJournal = CropJournal.open(mFile);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mJournal.close();
+    }
+
+    @Test
+    public void runPending_interrupted_leavesTheRunningJobPending() throws IOException {
+        long[] ids = mJournal.enqueue(newJob(0), newJob(1), newJob(2));
+        StubRunner runner = new StubRunner(mJournal, ids[1], new InterruptedIOException("Interrupted"));
+
+        try {
+            runner.runPending(null);
+            fail("Expected the run to be interrupted");
+        } catch (InterruptedIOException e) {
+            // Expected.
+        }
+
+        assertEquals(2, runner.runIds.size());
+        Map<Long, CropJob> pending = mJournal.getPendingJobs();
+        assertEquals(2, pending.size());
+        assertTrue(pending.containsKey(ids[1]));
+        assertTrue(pending.containsKey(ids[2]));
+
+        // The interrupted job survives a restart, and runs again.
+        mJournal.close();
+        mJournal = CropJournal.open(mFile);
+        assertEquals(pending.keySet(), mJournal.getPendingJobs().keySet());
+        StubRunner resumed = new StubRunner(mJournal, -1, null);
+        assertEquals(2, resumed.runPending(null));
+        assertEquals(ids[1], (long) resumed.runIds.get(0));
+        assertTrue(mJournal.getPendingJobs().isEmpty());
+    }
+
+    @Test
+    public void runPending_failedJob_isRecordedAndSkipped() throws IOException {
+        long[] ids = mJournal.enqueue(newJob(0), newJob(1));
+        StubRunner runner = new StubRunner(mJournal, ids[0], new IOException("Source is gone"));
+        final List<Exception> errors = new ArrayList<>();
+
+        int completed = runner.runPending(new CropBatchRunner.Listener() {
+            @Override
+            public void onJobFinished(long id, @NonNull CropJob job, int sampleSize, Exception error) {
+                errors.add(error);
+            }
+        });
+
+        assertEquals(1, completed);
+        assertNotNull(errors.get(0));
+        assertNull(errors.get(1));
+        assertTrue(mJournal.getPendingJobs().isEmpty());
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    private CropJob newJob(int index) {
+        return new CropJob("file:///sdcard/image" + index + ".jpg", new Rect(0, 0, 10, 10),
+                new File(mFolder.getRoot(), "crop" + index + ".jpg"), Bitmap.CompressFormat.JPEG, 90);
+    }
+
+    // Inner Classes ///////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Runs jobs without decoding anything; the job with the given id throws the given exception.
+     */
+    private static class StubRunner extends CropBatchRunner {
+
+        final List<Long> runIds = new ArrayList<>();
+        private final CropJournal mJournal;
+        private final long mThrowingId;
+        private final IOException mException;
+
+        StubRunner(CropJournal journal, long throwingId, IOException exception) {
+            super(RuntimeEnvironment.application, journal);
+            mJournal = journal;
+            mThrowingId = throwingId;
+            mException = exception;
+        }
+
+        @Override
+        int run(@NonNull CropJob job) throws IOException {
+            for (Map.Entry<Long, CropJob> entry : mJournal.getPendingJobs().entrySet()) {
+                if (entry.getValue() == job) {
+                    runIds.add(entry.getKey());
+                    if (entry.getKey() == mThrowingId) {
+                        throw mException;
+                    }
+                }
+            }
+            return 1;
+        }
+    }
+}
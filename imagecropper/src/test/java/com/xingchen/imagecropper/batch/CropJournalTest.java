@@ -0,0 +1,333 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+
+package com.xingchen.imagecropper.batch;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that a {@link CropJournal} survives being reopened, torn and corrupted records at the end
+ * of the file, and compaction.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class CropJournalTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+    private CropJournal mJournal;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = new File(mFolder.getRoot(), "crops.journal");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mJournal != null) {
+            mJournal.close();
+        }
+    }
+
+    @Test
+    public void pendingJobs_surviveCloseAndReopen() throws IOException {
+        mJournal = CropJournal.open(mFile);
+        long[] ids = mJournal.enqueue(newJob(0), newJob(1), newJob(2), newJob(3));
+        mJournal.markCompleted(ids[1]);
+        mJournal.markFailed(ids[3], "Source is gone");
+        mJournal.close();
+
+        mJournal = CropJournal.open(mFile);
+        Map<Long, CropJob> pending = mJournal.getPendingJobs();
+        assertEquals(2, pending.size());
+        assertJobEquals(newJob(0), pending.get(ids[0]));
+        assertJobEquals(newJob(2), pending.get(ids[2]));
+
+        // New ids continue after the highest one ever used, including finished jobs.
+        long[] newIds = mJournal.enqueue(newJob(4));
+        assertEquals(ids[3] + 1, newIds[0]);
+    }
+
+    @Test
+    public void open_recordTruncatedMidway_dropsItAndAppendsAfterTheLastValidRecord() throws IOException {
+        mJournal = CropJournal.open(mFile);
+        mJournal.enqueue(newJob(0), newJob(1), newJob(2));
+        mJournal.close();
+        List<Long> offsets = readRecordOffsets(mFile);
+        long thirdRecord = offsets.get(2);
+        setLength(mFile, mFile.length() - 5);
+
+        mJournal = CropJournal.open(mFile);
+        Map<Long, CropJob> pending = mJournal.getPendingJobs();
+        assertEquals(2, pending.size());
+        assertJobEquals(newJob(0), pending.get(0L));
+        assertJobEquals(newJob(1), pending.get(1L));
+        assertEquals(thirdRecord, mFile.length());
+
+        // A record appended after reopening must be readable, i.e. not follow the torn bytes.
+        long[] ids = mJournal.enqueue(newJob(3));
+        assertEquals(2, ids[0]);
+        mJournal.close();
+
+        mJournal = CropJournal.open(mFile);
+        pending = mJournal.getPendingJobs();
+        assertEquals(3, pending.size());
+        assertJobEquals(newJob(3), pending.get(2L));
+    }
+
+    @Test
+    public void open_recordHeaderTruncated_dropsIt() throws IOException {
+        mJournal = CropJournal.open(mFile);
+        mJournal.enqueue(newJob(0), newJob(1));
+        mJournal.close();
+        long secondRecord = readRecordOffsets(mFile).get(1);
+        // Leave only the length of the second record.
+        setLength(mFile, secondRecord + 4);
+
+        mJournal = CropJournal.open(mFile);
+        assertEquals(1, mJournal.getPendingJobs().size());
+        assertEquals(secondRecord, mFile.length());
+    }
+
+    @Test
+    public void open_corruptedPayload_dropsTheRecordAndEverythingAfterIt() throws IOException {
+        mJournal = CropJournal.open(mFile);
+        mJournal.enqueue(newJob(0), newJob(1), newJob(2));
+        mJournal.close();
+        long secondRecord = readRecordOffsets(mFile).get(1);
+        // Flip a byte of the second record's payload; its CRC no longer matches.
+        flipByte(mFile, secondRecord + 8 + 3);
+
+        mJournal = CropJournal.open(mFile);
+        Map<Long, CropJob> pending = mJournal.getPendingJobs();
+        assertEquals(1, pending.size());
+        assertJobEquals(newJob(0), pending.get(0L));
+        assertEquals(secondRecord, mFile.length());
+    }
+
+    @Test
+    public void open_corruptedCrc_dropsTheRecord() throws IOException {
+        mJournal = CropJournal.open(mFile);
+        mJournal.enqueue(newJob(0), newJob(1));
+        mJournal.close();
+        long secondRecord = readRecordOffsets(mFile).get(1);
+        flipByte(mFile, secondRecord + 4);
+
+        mJournal = CropJournal.open(mFile);
+        assertEquals(1, mJournal.getPendingJobs().size());
+        assertEquals(secondRecord, mFile.length());
+    }
+
+    @Test
+    public void open_corruptedMagic_startsEmpty() throws IOException {
+        mJournal = CropJournal.open(mFile);
+        mJournal.enqueue(newJob(0));
+        mJournal.close();
+        flipByte(mFile, 0);
+
+        mJournal = CropJournal.open(mFile);
+        assertTrue(mJournal.getPendingJobs().isEmpty());
+        assertEquals(4, mFile.length());
+    }
+
+    @Test
+    public void enqueue_oversizeJob_rejectsTheWholeBatch() throws IOException {
+        mJournal = CropJournal.open(mFile);
+        mJournal.enqueue(newJob(0));
+        // Each string fits writeUTF(), but together they exceed the record limit.
+        CropJob oversize = new CropJob("content://media/" + repeat('a', 40000), new Rect(0, 0, 10, 10),
+                new File(mFolder.getRoot(), repeat('b', 40000)), Bitmap.CompressFormat.PNG, 100);
+        try {
+            mJournal.enqueue(newJob(1), oversize);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // Expected.
+        }
+        assertEquals(1, mJournal.getPendingJobs().size());
+
+        // Nothing of the rejected batch was written, so the journal replays as before.
+        long[] ids = mJournal.enqueue(newJob(2));
+        assertEquals(1, ids[0]);
+        mJournal.close();
+        assertEquals(2, readRecordOffsets(mFile).size());
+
+        mJournal = CropJournal.open(mFile);
+        Map<Long, CropJob> pending = mJournal.getPendingJobs();
+        assertEquals(2, pending.size());
+        assertJobEquals(newJob(0), pending.get(0L));
+        assertJobEquals(newJob(2), pending.get(1L));
+    }
+
+    @Test
+    public void markFailed_longReason_isTruncatedAndReplays() throws IOException {
+        mJournal = CropJournal.open(mFile);
+        long[] ids = mJournal.enqueue(newJob(0), newJob(1));
+        mJournal.markFailed(ids[0], repeat('x', 100000));
+        mJournal.close();
+
+        mJournal = CropJournal.open(mFile);
+        Map<Long, CropJob> pending = mJournal.getPendingJobs();
+        assertEquals(1, pending.size());
+        assertJobEquals(newJob(1), pending.get(ids[1]));
+        assertEquals(3, readRecordOffsets(mFile).size());
+    }
+
+    @Test
+    public void open_belowCompactionThreshold_keepsDeadRecords() throws IOException {
+        // Every finished job leaves two dead records: its enqueue and its completion.
+        int finished = CropJournal.COMPACTION_THRESHOLD / 2 - 1;
+        writeFinishedJobs(finished, 2);
+        long length = mFile.length();
+
+        mJournal = CropJournal.open(mFile);
+        assertEquals(2, mJournal.getPendingJobs().size());
+        assertEquals(length, mFile.length());
+    }
+
+    @Test
+    public void open_aboveCompactionThreshold_keepsOnlyPendingJobs() throws IOException {
+        int finished = CropJournal.COMPACTION_THRESHOLD / 2;
+        long[] ids = writeFinishedJobs(finished, 2);
+
+        mJournal = CropJournal.open(mFile);
+        Map<Long, CropJob> pending = mJournal.getPendingJobs();
+        assertEquals(2, pending.size());
+        assertJobEquals(newJob(finished), pending.get(ids[finished]));
+        assertJobEquals(newJob(finished + 1), pending.get(ids[finished + 1]));
+        assertEquals(2, readRecordOffsets(mFile).size());
+
+        // Ids are kept, and new ones still follow the highest id ever used.
+        assertEquals(ids[ids.length - 1] + 1, mJournal.enqueue(newJob(0))[0]);
+        mJournal.close();
+
+        mJournal = CropJournal.open(mFile);
+        assertEquals(3, mJournal.getPendingJobs().size());
+        assertEquals(3, readRecordOffsets(mFile).size());
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Writes a journal with the given number of completed jobs followed by pending ones, and closes
+     * it.
+     *
+     * @return the ids of all jobs, in order
+     */
+    private long[] writeFinishedJobs(int finished, int pending) throws IOException {
+        CropJournal journal = CropJournal.open(mFile, 1000);
+        CropJob[] jobs = new CropJob[finished + pending];
+        for (int i = 0; i < jobs.length; i++) {
+            jobs[i] = newJob(i);
+        }
+        long[] ids = journal.enqueue(jobs);
+        for (int i = 0; i < finished; i++) {
+            journal.markCompleted(ids[i]);
+        }
+        journal.close();
+        return ids;
+    }
+
+    private CropJob newJob(int index) {
+        return new CropJob("content://media/external/images/media/" + index,
+                new Rect(index, 2 * index, index + 100, 2 * index + 50),
+                new File(mFolder.getRoot(), "crop" + index + ".jpg"),
+                Bitmap.CompressFormat.JPEG,
+                90);
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static void assertJobEquals(CropJob expected, CropJob actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getSourceUri(), actual.getSourceUri());
+        assertEquals(expected.getCropRect(), actual.getCropRect());
+        assertEquals(expected.getOutput(), actual.getOutput());
+        assertEquals(expected.getFormat(), actual.getFormat());
+        assertEquals(expected.getQuality(), actual.getQuality());
+    }
+
+    /**
+     * Gets the offsets of the complete records in a journal file, by their length fields.
+     */
+    private static List<Long> readRecordOffsets(File file) throws IOException {
+        List<Long> offsets = new ArrayList<>();
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            long offset = 4;
+            in.readInt();
+            while (offset + 8 <= file.length()) {
+                int length = in.readInt();
+                if (offset + 8 + length > file.length()) {
+                    break;
+                }
+                offsets.add(offset);
+                in.readInt();
+                in.readFully(new byte[length]);
+                offset += 8 + length;
+            }
+        } finally {
+            in.close();
+        }
+        return offsets;
+    }
+
+    private static void setLength(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void flipByte(File file, long position) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(position);
+            int value = raf.read();
+            raf.seek(position);
+            raf.write(value ^ 0xFF);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,489 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+
+package com.xingchen.imagecropper.gif;
+
+import android.graphics.Rect;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Crops GIFs with {@link GifCropper} and checks every frame of the result, as decoded by ImageIO,
+ * against the window cut out of the corresponding source frame.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class GifCropperTest {
+
+    private static final int SCREEN_WIDTH = 120;
+    private static final int SCREEN_HEIGHT = 90;
+
+    @Test
+    public void crop_animation_cropsAndMovesEveryFrame() throws IOException {
+        Random random = new Random(1);
+        List<Frame> frames = new ArrayList<>();
+        frames.add(noiseFrame(random, 0, 0, SCREEN_WIDTH, SCREEN_HEIGHT, 4).withDelay(10));
+        frames.add(noiseFrame(random, 30, 20, 50, 40, 4).withDelay(20).withTransparentIndex(3));
+        // Straddles the left and top edges of the window.
+        frames.add(noiseFrame(random, 5, 8, 40, 30, 2).withDelay(30).withLocalColorTable());
+        // Straddles the right and bottom edges.
+        frames.add(noiseFrame(random, 90, 60, 30, 30, 3).withDelay(40));
+
+        assertCropMatches(frames, new Rect(20, 15, 100, 75));
+        assertCropMatches(frames, new Rect(0, 0, SCREEN_WIDTH, SCREEN_HEIGHT));
+        assertCropMatches(frames, new Rect(31, 21, 32, 22));
+    }
+
+    @Test
+    public void crop_largeNoiseFrame_resetsTheCodeTable() throws IOException {
+        // 256 colors of noise fill the 4096-entry code table every few thousand pixels, so the
+        // encoder runs through every code width from 9 to 12 and clears the table several times.
+        Random random = new Random(2);
+        List<Frame> frames = new ArrayList<>();
+        frames.add(noiseFrame(random, 0, 0, SCREEN_WIDTH, SCREEN_HEIGHT, 8));
+
+        assertCropMatches(frames, new Rect(3, 1, 117, 88));
+    }
+
+    @Test
+    public void crop_smoothFrame_growsTheCodeWidth() throws IOException {
+        // Long runs compress well, so codes grow to 12 bits without filling the table as quickly.
+        Frame frame = new Frame(0, 0, SCREEN_WIDTH, SCREEN_HEIGHT, 2);
+        for (int y = 0; y < frame.height; y++) {
+            for (int x = 0; x < frame.width; x++) {
+                frame.pixels[y * frame.width + x] = (byte) ((x / 7 + y / 5) & 3);
+            }
+        }
+        List<Frame> frames = new ArrayList<>();
+        frames.add(frame);
+
+        assertCropMatches(frames, new Rect(10, 10, 110, 80));
+    }
+
+    @Test
+    public void crop_frameOutsideWindow_isReplacedByTransparentPixel() throws IOException {
+        Random random = new Random(3);
+        List<Frame> frames = new ArrayList<>();
+        frames.add(noiseFrame(random, 0, 0, SCREEN_WIDTH, SCREEN_HEIGHT, 4).withDelay(10));
+        frames.add(noiseFrame(random, 0, 0, 20, 20, 4).withDelay(70));
+        frames.add(noiseFrame(random, 100, 70, 20, 20, 4));
+        frames.add(noiseFrame(random, 50, 40, 10, 10, 4).withDelay(5));
+
+        List<DecodedFrame> decoded = assertCropMatches(frames, new Rect(30, 30, 80, 60));
+        for (int i = 1; i <= 2; i++) {
+            DecodedFrame frame = decoded.get(i);
+            assertEquals(new Rect(0, 0, 1, 1), frame.bounds);
+            assertTrue("frame " + i + " transparent", frame.transparent);
+            assertEquals("frame " + i + " transparent index", frame.transparentIndex, frame.image.getRaster().getSample(0, 0, 0));
+            assertEquals("frame " + i + " disposal", "doNotDispose", frame.disposal);
+        }
+        assertEquals(70, decoded.get(1).delay);
+        assertEquals(0, decoded.get(2).delay);
+    }
+
+    @Test
+    public void crop_interlacedFrames_areWrittenProgressive() throws IOException {
+        Random random = new Random(4);
+        List<Frame> frames = new ArrayList<>();
+        // Heights that leave each interlace pass with a different number of rows.
+        for (int height : new int[]{1, 2, 3, 4, 5, 8, 9, 12, 13, 20, 90}) {
+            frames.add(noiseFrame(random, 0, 0, SCREEN_WIDTH, height, 4).interlaced());
+        }
+
+        List<DecodedFrame> decoded = assertCropMatches(frames, new Rect(7, 0, 101, 77));
+        for (DecodedFrame frame : decoded) {
+            assertFalse(frame.interlaced);
+        }
+    }
+
+    @Test
+    public void crop_keepsApplicationExtensions() throws IOException {
+        List<Frame> frames = new ArrayList<>();
+        frames.add(noiseFrame(new Random(5), 0, 0, SCREEN_WIDTH, SCREEN_HEIGHT, 4));
+        byte[] input = writeGif(frames);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(1, GifCropper.crop(new ByteArrayInputStream(input), new Rect(1, 2, 3, 4), out));
+        assertTrue(new String(out.toByteArray(), "ISO-8859-1").contains("NETSCAPE2.0"));
+    }
+
+    @Test
+    public void crop_imageIoEncodedGif_matchesImageIoDecoding() throws IOException {
+        // ImageIO's own LZW coder, rather than the one in writeGif().
+        byte[] gray = new byte[256];
+        for (int i = 0; i < gray.length; i++) {
+            gray[i] = (byte) i;
+        }
+        BufferedImage image = new BufferedImage(SCREEN_WIDTH, SCREEN_HEIGHT, BufferedImage.TYPE_BYTE_INDEXED,
+                new IndexColorModel(8, 256, gray, gray, gray));
+        Random random = new Random(6);
+        for (int y = 0; y < SCREEN_HEIGHT; y++) {
+            for (int x = 0; x < SCREEN_WIDTH; x++) {
+                image.getRaster().setSample(x, y, 0, x * y % 17 == 0 ? random.nextInt(256) : (x + y) & 0xFF);
+            }
+        }
+        ByteArrayOutputStream gif = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image, "gif", gif));
+
+        Rect window = new Rect(11, 13, 97, 71);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(1, GifCropper.crop(new ByteArrayInputStream(gif.toByteArray()), window, out));
+        BufferedImage source = readFrames(gif.toByteArray()).get(0).image;
+        BufferedImage cropped = readFrames(out.toByteArray()).get(0).image;
+        assertEquals(window.width(), cropped.getWidth());
+        assertEquals(window.height(), cropped.getHeight());
+        for (int y = 0; y < window.height(); y++) {
+            for (int x = 0; x < window.width(); x++) {
+                assertEquals(source.getRGB(window.left + x, window.top + y), cropped.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void crop_windowOutsideScreen_throws() throws IOException {
+        List<Frame> frames = new ArrayList<>();
+        frames.add(noiseFrame(new Random(7), 0, 0, 10, 10, 2));
+        GifCropper.crop(new ByteArrayInputStream(writeGif(frames)), new Rect(SCREEN_WIDTH, 0, SCREEN_WIDTH + 10, 10),
+                new ByteArrayOutputStream());
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Crops the frames, and checks each frame of the result against the expected part of its
+     * source frame.
+     *
+     * @return the decoded frames of the result
+     */
+    private static List<DecodedFrame> assertCropMatches(List<Frame> frames, Rect crop) throws IOException {
+        byte[] input = writeGif(frames);
+        // The test GIF must itself decode to the frames it was written from. ImageIO does not
+        // reliably decode short interlaced frames, so those are only checked through the output,
+        // which is never interlaced.
+        List<DecodedFrame> source = readFrames(input);
+        for (int i = 0; i < frames.size(); i++) {
+            Frame frame = frames.get(i);
+            if (!frame.interlaced) {
+                assertPixelsEqual("source frame " + i, frame, frame.left, frame.top, frame.width, frame.height, source.get(i).image);
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(frames.size(), GifCropper.crop(new ByteArrayInputStream(input), crop, out));
+        List<DecodedFrame> decoded = readFrames(out.toByteArray());
+        assertEquals(frames.size(), decoded.size());
+
+        Rect window = new Rect(crop);
+        window.intersect(0, 0, SCREEN_WIDTH, SCREEN_HEIGHT);
+        for (int i = 0; i < frames.size(); i++) {
+            Frame frame = frames.get(i);
+            DecodedFrame result = decoded.get(i);
+            String name = crop + " frame " + i;
+            Rect visible = new Rect(frame.left, frame.top, frame.left + frame.width, frame.top + frame.height);
+            if (!visible.intersect(window)) {
+                continue;
+            }
+            assertEquals(name + " bounds",
+                    new Rect(visible.left - window.left, visible.top - window.top, visible.right - window.left, visible.bottom - window.top),
+                    result.bounds);
+            assertEquals(name + " delay", frame.delay, result.delay);
+            assertEquals(name + " transparency", frame.transparentIndex >= 0, result.transparent);
+            if (frame.transparentIndex >= 0) {
+                assertEquals(name + " transparent index", frame.transparentIndex, result.transparentIndex);
+            }
+            assertPixelsEqual(name, frame, visible.left, visible.top, visible.width(), visible.height(), result.image);
+        }
+        return decoded;
+    }
+
+    /**
+     * Checks the indices of a decoded frame against a region, in screen coordinates, of a frame.
+     */
+    private static void assertPixelsEqual(String name, Frame frame, int left, int top, int width, int height, BufferedImage image) {
+        assertEquals(name + " width", width, image.getWidth());
+        assertEquals(name + " height", height, image.getHeight());
+        Raster raster = image.getRaster();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int expected = frame.pixels[(top - frame.top + y) * frame.width + left - frame.left + x] & 0xFF;
+                if (raster.getSample(x, y, 0) != expected) {
+                    fail(name + ": pixel (" + x + ", " + y + ") is " + raster.getSample(x, y, 0) + ", expected " + expected);
+                }
+            }
+        }
+    }
+
+    private static Frame noiseFrame(Random random, int left, int top, int width, int height, int bitsPerPixel) {
+        Frame frame = new Frame(left, top, width, height, bitsPerPixel);
+        for (int i = 0; i < frame.pixels.length; i++) {
+            frame.pixels[i] = (byte) random.nextInt(1 << bitsPerPixel);
+        }
+        return frame;
+    }
+
+    /**
+     * Writes a GIF89a with a 256-entry global color table, a looping application extension and the
+     * given frames, each with a graphic control extension.
+     */
+    private static byte[] writeGif(List<Frame> frames) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("GIF89a".getBytes("ISO-8859-1"));
+        writeShort(out, SCREEN_WIDTH);
+        writeShort(out, SCREEN_HEIGHT);
+        out.write(new byte[]{(byte) 0xF7, 0, 0});
+        out.write(newColorTable(256, 0));
+        out.write(new byte[]{0x21, (byte) 0xFF, 11});
+        out.write("NETSCAPE2.0".getBytes("ISO-8859-1"));
+        out.write(new byte[]{3, 1, 0, 0, 0});
+
+        for (Frame frame : frames) {
+            int transparent = frame.transparentIndex >= 0 ? 1 : 0;
+            out.write(new byte[]{0x21, (byte) 0xF9, 4, (byte) (1 << 2 | transparent)});
+            writeShort(out, frame.delay);
+            out.write(Math.max(0, frame.transparentIndex));
+            out.write(0);
+
+            out.write(0x2C);
+            writeShort(out, frame.left);
+            writeShort(out, frame.top);
+            writeShort(out, frame.width);
+            writeShort(out, frame.height);
+            int codeSize = Math.max(2, frame.bitsPerPixel);
+            int flags = frame.interlaced ? 0x40 : 0;
+            if (frame.localColorTable) {
+                out.write(flags | 0x80 | (codeSize - 1));
+                out.write(newColorTable(1 << codeSize, 17));
+            } else {
+                out.write(flags);
+            }
+
+            byte[] pixels = frame.pixels;
+            if (frame.interlaced) {
+                pixels = new byte[pixels.length];
+                int row = 0;
+                int[][] passes = {{0, 8}, {4, 8}, {2, 4}, {1, 2}};
+                for (int[] pass : passes) {
+                    for (int y = pass[0]; y < frame.height; y += pass[1]) {
+                        System.arraycopy(frame.pixels, y * frame.width, pixels, row++ * frame.width, frame.width);
+                    }
+                }
+            }
+            writeUncompressedLzw(out, codeSize, pixels);
+        }
+        out.write(0x3B);
+        return out.toByteArray();
+    }
+
+    /**
+     * LZW-codes the indices one literal code each, with a clear code before the table would make the
+     * codes any wider; valid for every decoder, and independent of the coder under test.
+     */
+    private static void writeUncompressedLzw(ByteArrayOutputStream out, int minCodeSize, byte[] pixels) {
+        int clear = 1 << minCodeSize;
+        int codeSize = minCodeSize + 1;
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int bits = 0;
+        int bitCount = 0;
+        int literals = 0;
+        for (int i = 0; i <= pixels.length + 1; i++) {
+            int code;
+            if (i == pixels.length + 1) {
+                code = clear + 1;
+            } else if (i == 0 || literals == clear - 2) {
+                code = clear;
+                literals = 0;
+                if (i > 0) {
+                    // The pixel is written after the clear code.
+                    i--;
+                }
+            } else {
+                code = pixels[i - 1] & 0xFF;
+                literals++;
+            }
+            bits |= code << bitCount;
+            bitCount += codeSize;
+            while (bitCount >= 8) {
+                data.write(bits & 0xFF);
+                bits >>>= 8;
+                bitCount -= 8;
+            }
+        }
+        if (bitCount > 0) {
+            data.write(bits & 0xFF);
+        }
+
+        out.write(minCodeSize);
+        byte[] bytes = data.toByteArray();
+        for (int offset = 0; offset < bytes.length; offset += 255) {
+            int size = Math.min(255, bytes.length - offset);
+            out.write(size);
+            out.write(bytes, offset, size);
+        }
+        out.write(0);
+    }
+
+    private static byte[] newColorTable(int entries, int seed) {
+        byte[] table = new byte[entries * 3];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (byte) (i * 7 + seed);
+        }
+        return table;
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value & 0xFF);
+        out.write((value >> 8) & 0xFF);
+    }
+
+    /**
+     * Decodes every frame of a GIF with ImageIO, uncomposited.
+     */
+    private static List<DecodedFrame> readFrames(byte[] gif) throws IOException {
+        ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+        ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(gif));
+        try {
+            reader.setInput(in, false);
+            List<DecodedFrame> frames = new ArrayList<>();
+            int count = reader.getNumImages(true);
+            for (int i = 0; i < count; i++) {
+                frames.add(new DecodedFrame(reader.read(i), reader.getImageMetadata(i)));
+            }
+            return frames;
+        } finally {
+            reader.dispose();
+            in.close();
+        }
+    }
+
+    // Inner Classes ///////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * A frame to write: its rectangle on the logical screen, indices and graphic control.
+     */
+    private static class Frame {
+
+        final int left;
+        final int top;
+        final int width;
+        final int height;
+        final int bitsPerPixel;
+        final byte[] pixels;
+        int delay;
+        int transparentIndex = -1;
+        boolean interlaced;
+        boolean localColorTable;
+
+        Frame(int left, int top, int width, int height, int bitsPerPixel) {
+            this.left = left;
+            this.top = top;
+            this.width = width;
+            this.height = height;
+            this.bitsPerPixel = bitsPerPixel;
+            pixels = new byte[width * height];
+        }
+
+        Frame withDelay(int delay) {
+            this.delay = delay;
+            return this;
+        }
+
+        Frame withTransparentIndex(int transparentIndex) {
+            this.transparentIndex = transparentIndex;
+            return this;
+        }
+
+        Frame withLocalColorTable() {
+            localColorTable = true;
+            return this;
+        }
+
+        Frame interlaced() {
+            interlaced = true;
+            return this;
+        }
+    }
+
+    /**
+     * A frame as decoded by ImageIO, with the parts of its metadata the cropper touches.
+     */
+    private static class DecodedFrame {
+
+        final BufferedImage image;
+        final Rect bounds;
+        final boolean interlaced;
+        final int delay;
+        final boolean transparent;
+        final int transparentIndex;
+        final String disposal;
+
+        DecodedFrame(BufferedImage image, IIOMetadata metadata) {
+            this.image = image;
+            Node root = metadata.getAsTree("javax_imageio_gif_image_1.0");
+            NamedNodeMap descriptor = findChild(root, "ImageDescriptor").getAttributes();
+            int left = getInt(descriptor, "imageLeftPosition");
+            int top = getInt(descriptor, "imageTopPosition");
+            bounds = new Rect(left, top, left + getInt(descriptor, "imageWidth"), top + getInt(descriptor, "imageHeight"));
+            interlaced = "TRUE".equals(descriptor.getNamedItem("interlaceFlag").getNodeValue());
+
+            Node graphicControl = findChild(root, "GraphicControlExtension");
+            if (graphicControl != null) {
+                NamedNodeMap attributes = graphicControl.getAttributes();
+                delay = getInt(attributes, "delayTime");
+                transparent = "TRUE".equals(attributes.getNamedItem("transparentColorFlag").getNodeValue());
+                transparentIndex = getInt(attributes, "transparentColorIndex");
+                disposal = attributes.getNamedItem("disposalMethod").getNodeValue();
+            } else {
+                delay = 0;
+                transparent = false;
+                transparentIndex = -1;
+                disposal = null;
+            }
+        }
+
+        private static Node findChild(Node parent, String name) {
+            for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (name.equals(child.getNodeName())) {
+                    return child;
+                }
+            }
+            return null;
+        }
+
+        private static int getInt(NamedNodeMap attributes, String name) {
+            return Integer.parseInt(attributes.getNamedItem(name).getNodeValue());
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+
+package com.xingchen.imagecropper.jpeg;
+
+import com.xingchen.imagecropper.raster.IntRaster;
+import com.xingchen.imagecropper.utils.ParallelUtil;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+/**
+ * Encodes rasters with {@link JpegEncoder}, decodes them again with ImageIO and checks the quality
+ * of the result and the restart marker layout of the stream.
+ */
+public class JpegEncoderTest {
+
+    // Sizes that are whole MCUs, partial MCUs in one or both directions, and a single MCU.
+    private static final int[][] SIZES = {
+            {1, 1}, {7, 13}, {16, 16}, {17, 9}, {31, 33}, {64, 1024}, {300, 211}, {1000, 777}};
+
+    // Minimum PSNR (in dB) of a smooth gradient at quality 90.
+    private static final double MIN_GRADIENT_PSNR = 40;
+
+    // Minimum PSNR (in dB) of uniform gray noise at quality 90. Noise is the worst case for the
+    // DCT; it is gray because 4:2:0 subsampling averages colored noise away by design.
+    private static final double MIN_NOISE_PSNR = 30;
+
+    @Test
+    public void encode_gradient_decodesCloseToTheOriginal() throws IOException {
+        for (int[] size : SIZES) {
+            int[] pixels = gradient(size[0], size[1]);
+            assertRoundTrip(pixels, size[0], size[1], MIN_GRADIENT_PSNR);
+        }
+    }
+
+    @Test
+    public void encode_noise_decodesCloseToTheOriginal() throws IOException {
+        Random random = new Random(42);
+        for (int[] size : SIZES) {
+            int[] pixels = new int[size[0] * size[1]];
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = 0xFF000000 | random.nextInt(256) * 0x010101;
+            }
+            assertRoundTrip(pixels, size[0], size[1], MIN_NOISE_PSNR);
+        }
+    }
+
+    @Test
+    public void encode_solidColor_decodesAlmostExactly() throws IOException {
+        int[] pixels = new int[37 * 21];
+        Arrays.fill(pixels, 0xFF3C8AD2);
+        assertRoundTrip(pixels, 37, 21, 45);
+    }
+
+    @Test
+    public void encode_subRaster_matchesTightlyPackedCopy() throws IOException {
+        int width = 45;
+        int height = 70;
+        int stride = 64;
+        int offset = 3 * stride + 5;
+        int[] source = new int[offset + (height - 1) * stride + width];
+        Random random = new Random(7);
+        for (int i = 0; i < source.length; i++) {
+            source[i] = random.nextInt();
+        }
+        int[] packed = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(source, offset + y * stride, packed, y * width, width);
+        }
+
+        JpegEncoder encoder = new JpegEncoder(85);
+        assertArrayEquals(encode(encoder, IntRaster.wrap(packed, width, height)),
+                encode(encoder, IntRaster.wrap(source, offset, stride, width, height)));
+    }
+
+    @Test
+    public void encode_restartMarkers_cycleThroughRst0ToRst7() throws IOException {
+        // Enough MCU rows for one segment per SEGMENTS_PER_THREAD per thread, so that the markers
+        // wrap around past RST7 on machines with three or more cores.
+        for (int[] size : SIZES) {
+            byte[] jpeg = encode(new JpegEncoder(90), IntRaster.wrap(gradient(size[0], size[1]), size[0], size[1]));
+            assertRestartMarkers(jpeg, size[0], size[1]);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void encode_emptyRaster_throws() throws IOException {
+        new JpegEncoder(90).encode(IntRaster.wrap(new int[0], 0, 0), new ByteArrayOutputStream());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_invalidQuality_throws() {
+        new JpegEncoder(101);
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a gradient that spans the full range on large images, and rises by at most 4 levels
+     * per pixel on small ones.
+     */
+    private static int[] gradient(int width, int height) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = x * 255 / Math.max(width - 1, 63);
+                int g = y * 255 / Math.max(height - 1, 63);
+                int b = (r + g) / 2;
+                pixels[y * width + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return pixels;
+    }
+
+    private static byte[] encode(JpegEncoder encoder, IntRaster raster) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encode(raster, out);
+        return out.toByteArray();
+    }
+
+    private static void assertRoundTrip(int[] pixels, int width, int height, double minPsnr) throws IOException {
+        byte[] jpeg = encode(new JpegEncoder(90), IntRaster.wrap(pixels, width, height));
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(jpeg));
+        String name = width + "x" + height;
+        assertNotNull(name + " could not be decoded", decoded);
+        assertEquals(name + " width", width, decoded.getWidth());
+        assertEquals(name + " height", height, decoded.getHeight());
+
+        double squaredError = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int expected = pixels[y * width + x];
+                int actual = decoded.getRGB(x, y);
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    int difference = ((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF);
+                    squaredError += difference * difference;
+                }
+            }
+        }
+        double meanSquaredError = squaredError / (3.0 * width * height);
+        double psnr = meanSquaredError == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(255 * 255 / meanSquaredError);
+        assertTrue(name + " PSNR " + psnr + " dB is below " + minPsnr + " dB", psnr >= minPsnr);
+    }
+
+    /**
+     * Checks that the entropy-coded data holds exactly one RST marker between each two restart
+     * intervals declared in the DRI segment, numbered RST0 to RST7 in turn.
+     */
+    private static void assertRestartMarkers(byte[] jpeg, int width, int height) {
+        String name = width + "x" + height;
+        int restartInterval = 0;
+        int position = 2;
+        // Walk the marker segments up to the start of scan.
+        while (true) {
+            assertEquals(name + " marker prefix", 0xFF, jpeg[position] & 0xFF);
+            int marker = jpeg[position + 1] & 0xFF;
+            int length = ((jpeg[position + 2] & 0xFF) << 8) | (jpeg[position + 3] & 0xFF);
+            if (marker == 0xDD) {
+                restartInterval = ((jpeg[position + 4] & 0xFF) << 8) | (jpeg[position + 5] & 0xFF);
+            }
+            position += 2 + length;
+            if (marker == 0xDA) {
+                break;
+            }
+        }
+
+        int restartCount = 0;
+        for (; position < jpeg.length - 1; position++) {
+            if ((jpeg[position] & 0xFF) != 0xFF) {
+                continue;
+            }
+            int next = jpeg[position + 1] & 0xFF;
+            if (next == 0x00) {
+                // Stuffed 0xFF data byte.
+                position++;
+            } else if (next >= 0xD0 && next <= 0xD7) {
+                assertEquals(name + " restart marker " + restartCount, 0xD0 + (restartCount & 7), next);
+                restartCount++;
+                position++;
+            } else {
+                assertEquals(name + " unexpected marker " + Integer.toHexString(next), 0xD9, next);
+                assertEquals(name + " EOI position", jpeg.length - 2, position);
+            }
+        }
+
+        int mcuCount = ((width + 15) / 16) * ((height + 15) / 16);
+        int expectedRestarts = restartInterval == 0 ? 0 : (mcuCount + restartInterval - 1) / restartInterval - 1;
+        assertEquals(name + " restart markers", expectedRestarts, restartCount);
+        if (height > 16 * ParallelUtil.getParallelism() * 4) {
+            // Tall enough for every thread to get its share of segments.
+            assertTrue(name + " expected restart intervals", restartInterval > 0);
+        }
+    }
+}
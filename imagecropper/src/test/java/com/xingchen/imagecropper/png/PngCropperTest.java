@@ -0,0 +1,406 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+
+package com.xingchen.imagecropper.png;
+
+import android.graphics.Rect;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Crops PNGs of every color type and bit depth with {@link PngCropper} and checks, with ImageIO,
+ * that the result holds exactly the pixels of the window.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class PngCropperTest {
+
+    // Color types.
+    private static final int GRAY = 0;
+    private static final int RGB = 2;
+    private static final int PALETTE = 3;
+    private static final int GRAY_ALPHA = 4;
+    private static final int RGBA = 6;
+
+    // Windows on a 21x13 image: sub-byte offsets on both sides, a single pixel, the first and last
+    // rows, the whole image, and one reaching past the image that is clamped.
+    private static final Rect[] WINDOWS = {
+            new Rect(3, 2, 17, 11), new Rect(5, 4, 6, 5), new Rect(0, 0, 9, 1),
+            new Rect(13, 12, 21, 13), new Rect(0, 0, 21, 13), new Rect(-4, 7, 30, 40)};
+
+    private static final int WIDTH = 21;
+    private static final int HEIGHT = 13;
+
+    @Test
+    public void crop_grayscale_allBitDepths() throws IOException {
+        for (int bitDepth : new int[]{1, 2, 4, 8, 16}) {
+            assertCropsMatch(new TestPng(GRAY, bitDepth));
+        }
+    }
+
+    @Test
+    public void crop_truecolor_allBitDepths() throws IOException {
+        for (int bitDepth : new int[]{8, 16}) {
+            assertCropsMatch(new TestPng(RGB, bitDepth));
+            assertCropsMatch(new TestPng(GRAY_ALPHA, bitDepth));
+            assertCropsMatch(new TestPng(RGBA, bitDepth));
+        }
+    }
+
+    @Test
+    public void crop_palette_allBitDepths() throws IOException {
+        for (int bitDepth : new int[]{1, 2, 4, 8}) {
+            assertCropsMatch(new TestPng(PALETTE, bitDepth));
+        }
+    }
+
+    @Test
+    public void crop_transparency_keepsTrnsChunk() throws IOException {
+        assertCropsMatch(new TestPng(PALETTE, 4).withTransparency());
+        assertCropsMatch(new TestPng(PALETTE, 8).withTransparency());
+        assertCropsMatch(new TestPng(GRAY, 2).withTransparency());
+        assertCropsMatch(new TestPng(GRAY, 16).withTransparency());
+        assertCropsMatch(new TestPng(RGB, 8).withTransparency());
+        assertCropsMatch(new TestPng(RGB, 16).withTransparency());
+    }
+
+    @Test
+    public void crop_windowAtTheTop_stopsReadingAfterTheBottomEdge() throws IOException {
+        TestPng png = new TestPng(RGB, 8);
+        png.width = 300;
+        png.height = 400;
+        png.idatSize = 4096;
+        byte[] input = png.encode();
+
+        CountingInputStream in = new CountingInputStream(new ByteArrayInputStream(input));
+        Rect window = new Rect(40, 10, 120, 50);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(PngCropper.crop(in, window, out));
+
+        // Noise does not compress, so the first 50 of 400 rows are about an eighth of the data.
+        assertTrue("Read " + in.count + " of " + input.length + " bytes", in.count < input.length / 4);
+        assertPixelsMatch("early stop", ImageIO.read(new ByteArrayInputStream(input)), window, out.toByteArray());
+    }
+
+    @Test
+    public void crop_interlaced_returnsFalseWithoutWriting() throws IOException {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(3);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        ByteArrayOutputStream interlaced = new ByteArrayOutputStream();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+        ImageOutputStream stream = ImageIO.createImageOutputStream(interlaced);
+        try {
+            writer.setOutput(stream);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            stream.close();
+            writer.dispose();
+        }
+        byte[] input = interlaced.toByteArray();
+        assertEquals("Adam7 interlace method", 1, input[28]);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertFalse(PngCropper.crop(new ByteArrayInputStream(input), new Rect(1, 1, 5, 5), out));
+        assertEquals(0, out.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void crop_windowOutsideImage_throws() throws IOException {
+        byte[] input = new TestPng(GRAY, 8).encode();
+        PngCropper.crop(new ByteArrayInputStream(input), new Rect(WIDTH, 0, WIDTH + 5, 5), new ByteArrayOutputStream());
+    }
+
+    @Test(expected = IOException.class)
+    public void crop_truncatedImageData_throws() throws IOException {
+        byte[] input = new TestPng(RGB, 8).encode();
+        byte[] truncated = new byte[input.length / 2];
+        System.arraycopy(input, 0, truncated, 0, truncated.length);
+        PngCropper.crop(new ByteArrayInputStream(truncated), new Rect(0, 0, WIDTH, HEIGHT), new ByteArrayOutputStream());
+    }
+
+    // Private Methods /////////////////////////////////////////////////////////////////////////////
+
+    private static void assertCropsMatch(TestPng png) throws IOException {
+        byte[] input = png.encode();
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(input));
+        assertNotNull(png + " is not a valid PNG", image);
+        for (Rect window : WINDOWS) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertTrue(PngCropper.crop(new ByteArrayInputStream(input), window, out));
+            byte[] output = out.toByteArray();
+            // Bit depth and color type are kept.
+            assertEquals(png + " bit depth", input[24], output[24]);
+            assertEquals(png + " color type", input[25], output[25]);
+            // Palette, transparency and safe-to-copy chunks are kept; unsafe-to-copy ones dropped.
+            assertEquals(png + " PLTE", containsChunk(input, "PLTE"), containsChunk(output, "PLTE"));
+            assertEquals(png + " tRNS", containsChunk(input, "tRNS"), containsChunk(output, "tRNS"));
+            assertTrue(png + " tEXt", containsChunk(output, "tEXt"));
+            assertFalse(png + " prVW", containsChunk(output, "prVW"));
+            assertPixelsMatch(png + " " + window, image, window, output);
+        }
+    }
+
+    private static void assertPixelsMatch(String name, BufferedImage image, Rect window, byte[] output) throws IOException {
+        int left = Math.max(0, window.left);
+        int top = Math.max(0, window.top);
+        int right = Math.min(image.getWidth(), window.right);
+        int bottom = Math.min(image.getHeight(), window.bottom);
+
+        BufferedImage cropped = ImageIO.read(new ByteArrayInputStream(output));
+        assertNotNull(name + ": output is not a valid PNG", cropped);
+        assertEquals(name + " width", right - left, cropped.getWidth());
+        assertEquals(name + " height", bottom - top, cropped.getHeight());
+
+        Raster expected = image.getRaster();
+        Raster actual = cropped.getRaster();
+        assertEquals(name + " bands", expected.getNumBands(), actual.getNumBands());
+        for (int y = 0; y < cropped.getHeight(); y++) {
+            for (int x = 0; x < cropped.getWidth(); x++) {
+                for (int band = 0; band < actual.getNumBands(); band++) {
+                    if (expected.getSample(left + x, top + y, band) != actual.getSample(x, y, band)) {
+                        fail(name + ": sample " + band + " of pixel (" + x + ", " + y + ") differs");
+                    }
+                }
+                // Compares palette and transparency lookups too.
+                assertEquals(name + ": color of pixel (" + x + ", " + y + ")", image.getRGB(left + x, top + y), cropped.getRGB(x, y));
+            }
+        }
+    }
+
+    private static boolean containsChunk(byte[] png, String type) throws IOException {
+        byte[] typeBytes = type.getBytes("ISO-8859-1");
+        for (int position = 8; position + 8 <= png.length; ) {
+            int length = ((png[position] & 0xFF) << 24) | ((png[position + 1] & 0xFF) << 16)
+                    | ((png[position + 2] & 0xFF) << 8) | (png[position + 3] & 0xFF);
+            boolean matches = true;
+            for (int i = 0; i < 4; i++) {
+                matches &= png[position + 4 + i] == typeBytes[i];
+            }
+            if (matches) {
+                return true;
+            }
+            position += 12 + length;
+        }
+        return false;
+    }
+
+    // Inner Classes ///////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Writes a non-interlaced PNG of random pixels, using every filter type in turn so that the
+     * cropper has to reverse each of them.
+     */
+    private static class TestPng {
+
+        final int colorType;
+        final int bitDepth;
+        int width = WIDTH;
+        int height = HEIGHT;
+        int idatSize = 100;
+        boolean transparency;
+
+        TestPng(int colorType, int bitDepth) {
+            this.colorType = colorType;
+            this.bitDepth = bitDepth;
+        }
+
+        TestPng withTransparency() {
+            transparency = true;
+            return this;
+        }
+
+        byte[] encode() throws IOException {
+            int channels = colorType == RGBA ? 4 : colorType == RGB ? 3 : colorType == GRAY_ALPHA ? 2 : 1;
+            int bitsPerPixel = channels * bitDepth;
+            int stride = Math.max(1, bitsPerPixel / 8);
+            int rowBytes = (width * bitsPerPixel + 7) / 8;
+            int maxSample = (1 << bitDepth) - 1;
+            Random random = new Random(colorType * 100 + bitDepth);
+
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(png);
+            out.write(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'});
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream headerData = new DataOutputStream(header);
+            headerData.writeInt(width);
+            headerData.writeInt(height);
+            headerData.write(new byte[]{(byte) bitDepth, (byte) colorType, 0, 0, 0});
+            writeChunk(out, "IHDR", header.toByteArray(), 0, header.size());
+
+            // A safe-to-copy chunk, and a private one that is not safe to copy since it may depend
+            // on the pixels.
+            writeChunk(out, "tEXt", "Comment\0test".getBytes("ISO-8859-1"), 0, 12);
+            writeChunk(out, "prVW", new byte[]{1, 2, 3, 4}, 0, 4);
+            if (colorType == PALETTE) {
+                byte[] palette = new byte[(maxSample + 1) * 3];
+                random.nextBytes(palette);
+                writeChunk(out, "PLTE", palette, 0, palette.length);
+            }
+            if (transparency) {
+                byte[] trns;
+                if (colorType == PALETTE) {
+                    trns = new byte[(maxSample + 1) / 2 + 1];
+                    random.nextBytes(trns);
+                } else {
+                    // The transparent color: sample value 1 in every channel, so some pixels hit it.
+                    trns = new byte[channels * 2];
+                    for (int i = 1; i < trns.length; i += 2) {
+                        trns[i] = 1;
+                    }
+                }
+                writeChunk(out, "tRNS", trns, 0, trns.length);
+            }
+
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            byte[] previous = new byte[rowBytes];
+            byte[] row = new byte[rowBytes];
+            for (int y = 0; y < height; y++) {
+                Arrays.fill(row, (byte) 0);
+                for (int i = 0; i < width * channels; i++) {
+                    // Mostly small values so that transparent colors occur.
+                    int sample = random.nextInt(4) == 0 ? random.nextInt(2) : random.nextInt(maxSample + 1);
+                    if (bitDepth == 16) {
+                        row[i * 2] = (byte) (sample >> 8);
+                        row[i * 2 + 1] = (byte) sample;
+                    } else {
+                        int bit = i * bitDepth;
+                        row[bit / 8] |= (byte) (sample << (8 - bitDepth - bit % 8));
+                    }
+                }
+                int type = y % 5;
+                raw.write(type);
+                for (int i = 0; i < rowBytes; i++) {
+                    int left = i >= stride ? row[i - stride] & 0xFF : 0;
+                    int up = previous[i] & 0xFF;
+                    int upLeft = i >= stride ? previous[i - stride] & 0xFF : 0;
+                    raw.write(row[i] - predict(type, left, up, upLeft));
+                }
+                byte[] swap = previous;
+                previous = row;
+                row = swap;
+            }
+
+            Deflater deflater = new Deflater();
+            deflater.setInput(raw.toByteArray());
+            deflater.finish();
+            byte[] buffer = new byte[idatSize];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                writeChunk(out, "IDAT", buffer, 0, count);
+            }
+            deflater.end();
+            writeChunk(out, "IEND", new byte[0], 0, 0);
+            return png.toByteArray();
+        }
+
+        @Override
+        public String toString() {
+            return "PNG{colorType=" + colorType + ", bitDepth=" + bitDepth + (transparency ? ", tRNS" : "") + "}";
+        }
+
+        private static int predict(int type, int left, int up, int upLeft) {
+            switch (type) {
+                case 1:
+                    return left;
+                case 2:
+                    return up;
+                case 3:
+                    return (left + up) >> 1;
+                case 4:
+                    int estimate = left + up - upLeft;
+                    int distanceLeft = Math.abs(estimate - left);
+                    int distanceUp = Math.abs(estimate - up);
+                    int distanceUpLeft = Math.abs(estimate - upLeft);
+                    if (distanceLeft <= distanceUp && distanceLeft <= distanceUpLeft) {
+                        return left;
+                    }
+                    return distanceUp <= distanceUpLeft ? up : upLeft;
+                default:
+                    return 0;
+            }
+        }
+
+        private static void writeChunk(DataOutputStream out, String type, byte[] data, int offset, int length) throws IOException {
+            byte[] typeBytes = type.getBytes("ISO-8859-1");
+            CRC32 crc = new CRC32();
+            crc.update(typeBytes);
+            crc.update(data, offset, length);
+            out.writeInt(length);
+            out.write(typeBytes);
+            out.write(data, offset, length);
+            out.writeInt((int) crc.getValue());
+        }
+    }
+
+    /**
+     * Counts the bytes read through it.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value >= 0) {
+                count++;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2013, Edmodo, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+
+package com.xingchen.imagecropper.trace;
+
+import android.graphics.Bitmap;
+import android.view.View;
+
+import com.xingchen.imagecropper.view.CropImageView;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays the checked-in trace <code>drag_resize_snap.cgt</code>: a drag of the whole window, a
+ * drag of the bottom-right corner and a drag of the left edge into the snap radius of the image,
+ * recorded on a 400x400 view showing a 400x400 image at mdpi (so the initial window is inset by
+ * 40 pixels on every side).
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class GestureReplayerTest {
+
+    private static final int VIEW_SIZE = 400;
+
+    @Test
+    public void replay_recordedTrace_matchesCropWindows() throws IOException {
+        GestureTrace trace = readTrace("drag_resize_snap.cgt");
+        CropImageView view = newLaidOutView(trace.getViewWidth(), trace.getViewHeight());
+
+        GestureReplayer.Result result = new GestureReplayer(view).replay(trace);
+
+        assertTrue(result.getFirstMismatch(), result.matches());
+        assertEquals(3, result.getGestureCount());
+        assertEquals(trace.getEvents().size(), result.getEventNanos().length);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void replay_viewOfAnotherSize_throws() throws IOException {
+        GestureTrace trace = readTrace("drag_resize_snap.cgt");
+        CropImageView view = newLaidOutView(VIEW_SIZE / 2, VIEW_SIZE / 2);
+
+        new GestureReplayer(view).replay(trace);
+    }
+
+    private GestureTrace readTrace(String name) throws IOException {
+        InputStream in = getClass().getResourceAsStream(name);
+        assertNotNull("Missing test resource " + name, in);
+        try {
+            return GestureTrace.readFrom(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static CropImageView newLaidOutView(int width, int height) {
+        CropImageView view = new CropImageView(RuntimeEnvironment.application);
+        view.setImageBitmap(Bitmap.createBitmap(VIEW_SIZE, VIEW_SIZE, Bitmap.Config.ARGB_8888));
+        view.measure(View.MeasureSpec.makeMeasureSpec(width, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(height, View.MeasureSpec.EXACTLY));
+        view.layout(0, 0, width, height);
+        return view;
+    }
+}